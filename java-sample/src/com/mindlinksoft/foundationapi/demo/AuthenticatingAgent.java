@@ -1,42 +1,144 @@
 package com.mindlinksoft.foundationapi.demo;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.UnknownHostException;
+import java.net.http.HttpConnectTimeoutException;
+import java.net.http.HttpTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.JSONTokener;
 
+import com.mindlinksoft.foundationapi.demo.cluster.Cluster;
+import com.mindlinksoft.foundationapi.demo.cluster.Node;
+import com.mindlinksoft.foundationapi.demo.metrics.EndpointMetrics;
+import com.mindlinksoft.foundationapi.demo.metrics.MetricsRegistry;
+import com.mindlinksoft.foundationapi.demo.resilience.AdaptiveConcurrencyLimiter;
+import com.mindlinksoft.foundationapi.demo.resilience.CircuitBreaker;
+import com.mindlinksoft.foundationapi.demo.resilience.Deadline;
+import com.mindlinksoft.foundationapi.demo.resilience.DeadlineExceededException;
+import com.mindlinksoft.foundationapi.demo.resilience.Hedger;
+import com.mindlinksoft.foundationapi.demo.resilience.HedgingPolicy;
+import com.mindlinksoft.foundationapi.demo.resilience.Priority;
+import com.mindlinksoft.foundationapi.demo.resilience.HttpStatusException;
+import com.mindlinksoft.foundationapi.demo.resilience.RateLimiter;
+import com.mindlinksoft.foundationapi.demo.resilience.RetryBudget;
+import com.mindlinksoft.foundationapi.demo.resilience.RetryPolicy;
+import com.mindlinksoft.foundationapi.demo.transport.ConnectionPool;
+import com.mindlinksoft.foundationapi.demo.transport.CountingInputStream;
+import com.mindlinksoft.foundationapi.demo.transport.InMemoryFoundationApi;
+import com.mindlinksoft.foundationapi.demo.transport.JsonBodyWriter;
+import com.mindlinksoft.foundationapi.demo.transport.Request;
+import com.mindlinksoft.foundationapi.demo.transport.RequestCoalescer;
+import com.mindlinksoft.foundationapi.demo.transport.Response;
+import com.mindlinksoft.foundationapi.demo.transport.Transport;
+
 /**
  * A basic agent which facilitates making authenticated requests to the
  * Foundation API. The agent internally handles authentication and maintenance
  * of the API's session token. Authentication is only performed when a page
  * is requested - if the given credentials are not valid, an error will only
- * occur when a request is made.
+ * occur when a request is made. Concurrent requests share a single
+ * authentication (see {@link TokenManager}), as do agents built on the same
+ * {@link Session}.
+ * <p>
+ * Requests which fail transiently are retried according to the agent's
+ * {@link RetryPolicy}, within a {@link RetryBudget} for each endpoint, and a
+ * {@link CircuitBreaker} makes requests fail fast while the API is down.
+ * Requests may also be rate limited per area of the API, and the number in
+ * flight adapts to what the server can sustain (see
+ * {@link AdaptiveConcurrencyLimiter}); requests waiting for the limit or for
+ * a connection are served by {@link Priority}. Latency, byte counts, status
+ * codes, errors and timeouts are recorded for each endpoint in a
+ * {@link MetricsRegistry}.
+ * <p>
+ * Every call must complete by a {@link Deadline}: the calling thread's, if it
+ * is within one's scope, or otherwise one set by the agent's request timeout.
+ * The deadline covers authentication, queueing, the request itself and any
+ * retries, and cancelling it aborts the call.
+ * <p>
+ * Slow GET requests may also be hedged: sent again once they have taken
+ * longer than most recent requests to the same endpoint, with the first
+ * response to arrive being used (see {@link HedgingPolicy}).
+ * <p>
+ * An agent may be given a {@link Cluster} of several API servers rather than
+ * a single base URL, in which case each request is routed to one of the
+ * cluster's healthy nodes. Requests which fail because a node can't be
+ * reached are sent to another node straight away, and count against the
+ * circuit breaker only if no node can be reached; the agent authenticates
+ * separately with each node it talks to.
  */
 public class AuthenticatingAgent {
 
+    /** The default time allowed for a call which inherits no deadline. */
+    public static final long DEFAULT_REQUEST_TIMEOUT_MILLIS = 30000;
+
     /** The method to call to authenticate. */
     private static final String AUTH_METHOD = "/Authentication/v1/Tokens";
 
-    /** The current token provided by the API. */
-    private String token;
+    /** Parses the token returned by the authentication method. */
+    private static final ResponseParser<String> TOKEN_PARSER
+            = tokener -> tokener.nextString(tokener.nextClean());
+
+    /** Parses responses consisting of a JSON array. */
+    protected static final ResponseParser<JSONArray> JSON_ARRAY
+            = tokener -> new JSONArray(tokener);
+
+    /** Parses responses consisting of a JSON object. */
+    protected static final ResponseParser<JSONObject> JSON_OBJECT
+            = tokener -> new JSONObject(tokener);
 
-    /** The base URL to use to connect to the API. */
-    private final String baseUrl;
-    /** The username to use when authenticating to the API. */
-    private final String username;
-    /** The password to use when authenticating to the API. */
-    private final String password;
-    /** The agent to request when authenticating to the API. */
-    private final String agent;
+    /** Parses responses consisting of a single JSON value. */
+    protected static final ResponseParser<Object> JSON_VALUE
+            = tokener -> tokener.nextValue();
+
+    /** The session the agent's requests are made in. */
+    private final Session session;
+    /** The API servers to send requests to (the session's cluster). */
+    private final Cluster cluster;
+    /** Sends requests to the API (the session's transport). */
+    private final Transport transport;
+    /** Retry budgets for each endpoint, keyed on method and endpoint. */
+    private final ConcurrentMap<String, RetryBudget> retryBudgets
+            = new ConcurrentHashMap<String, RetryBudget>();
+    /** Decides which failed requests are retried. */
+    private volatile RetryPolicy retryPolicy = RetryPolicy.DEFAULT;
+    /** The priority the agent's requests are scheduled with. */
+    private volatile Priority priority = Priority.NORMAL;
+    /** The time allowed for calls which inherit no deadline (0 for none). */
+    private volatile long requestTimeoutMillis = DEFAULT_REQUEST_TIMEOUT_MILLIS;
+    /**
+     * Shares responses between identical concurrent GETs (or
+     * <code>null</code> if disabled). Never shared between agents.
+     */
+    private volatile RequestCoalescer requestCoalescer;
+    /** Decides when slow GETs are hedged (or <code>null</code> if never). */
+    private volatile HedgingPolicy hedgingPolicy;
+    /** Hedging state for each endpoint, keyed on normalised address. */
+    private final ConcurrentMap<String, Hedger> hedgers
+            = new ConcurrentHashMap<String, Hedger>();
 
     /**
      * Creates a new {@link AuthenticatingAgent}.
@@ -52,11 +154,424 @@ public class AuthenticatingAgent {
      */
     public AuthenticatingAgent(final String baseUrl, final String username,
             final String password, final String agent) {
+        this(baseUrl, username, password, agent, ConnectionPool.getDefault());
+    }
+
+    /**
+     * Creates a new {@link AuthenticatingAgent} which sends its requests
+     * through the given transport.
+     *
+     * @param baseUrl The base address for the Foundation API. The agent will
+     * append method names automatically. For example, a base URL of
+     * <code>http://api.company.com</code> will result in URLs constructed such
+     * as <code>http://api.company.com/Authentication/v1/Tokens</code>.
+     * @param username The username to give to the API when authenticating
+     * @param password The username to give to the API when authenticating
+     * @param agent The ID of the agent to use. May be an empty string if
+     * authenticating as a super user.
+     * @param transport The transport to send requests through: normally a
+     * {@link ConnectionPool}, which agents may share to reuse each other's
+     * connections, or an {@link InMemoryFoundationApi} to run offline
+     */
+    public AuthenticatingAgent(final String baseUrl, final String username,
+            final String password, final String agent,
+            final Transport transport) {
+        this(new Cluster(baseUrl), username, password, agent, transport);
+    }
+
+    /**
+     * Creates a new {@link AuthenticatingAgent} which spreads its requests
+     * across a cluster of API servers.
+     *
+     * @param cluster The API servers to send requests to
+     * @param username The username to give to the API when authenticating
+     * @param password The username to give to the API when authenticating
+     * @param agent The ID of the agent to use. May be an empty string if
+     * authenticating as a super user.
+     * @param transport The transport to send requests through: normally a
+     * {@link ConnectionPool}, which agents may share to reuse each other's
+     * connections, or an {@link InMemoryFoundationApi} to run offline
+     */
+    public AuthenticatingAgent(final Cluster cluster, final String username,
+            final String password, final String agent,
+            final Transport transport) {
+        this(new Session(cluster, username, password, agent, transport));
+    }
+
+    /**
+     * Creates a new {@link AuthenticatingAgent} which makes its requests in
+     * the given session, sharing its token, connections, limits and metrics
+     * with every other agent on the session.
+     *
+     * @param session The session to make requests in
+     */
+    public AuthenticatingAgent(final Session session) {
         super();
-        this.baseUrl = baseUrl;
-        this.username = username;
-        this.password = password;
-        this.agent = agent;
+        this.session = session;
+        this.cluster = session.getCluster();
+        this.transport = session.getTransport();
+
+        if (session.getTokenCache() != null) {
+            for (Node node : cluster.getNodes()) {
+                getTokenManager(node);
+            }
+        }
+    }
+
+    /**
+     * Gets the session this agent makes its requests in.
+     *
+     * @return The agent's session
+     */
+    public Session getSession() {
+        return session;
+    }
+
+    /**
+     * Gets the API servers this agent sends its requests to.
+     *
+     * @return The agent's cluster, which has a single node if the agent was
+     * given a single base URL
+     */
+    public Cluster getCluster() {
+        return cluster;
+    }
+
+    /**
+     * Gets the transport this agent sends its requests through.
+     *
+     * @return The agent's transport
+     */
+    public Transport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Gets the pool of connections this agent sends its requests through.
+     *
+     * @return The agent's connection pool, or <code>null</code> if its
+     * transport isn't a {@link ConnectionPool}
+     */
+    public ConnectionPool getConnectionPool() {
+        return transport instanceof ConnectionPool
+                ? (ConnectionPool) transport : null;
+    }
+
+    /**
+     * Gets the manager which obtains and refreshes this agent's session token
+     * on the first node of its cluster (its only node, unless the agent was
+     * given a cluster of several).
+     *
+     * @return The agent's token manager
+     */
+    public TokenManager getTokenManager() {
+        return getTokenManager(cluster.getNodes().get(0));
+    }
+
+    /**
+     * Gets the manager which obtains and refreshes this agent's session token
+     * on the given node, creating it if necessary. The manager belongs to
+     * the agent's {@link Session}.
+     *
+     * @param node A node of the agent's cluster
+     * @return The agent's token manager for the node
+     */
+    public TokenManager getTokenManager(final Node node) {
+        return session.getTokenManager(node, () -> authenticateAsync(node));
+    }
+
+    /**
+     * Prepares the agent to serve its first requests without delay: obtains
+     * a session token from each node of its cluster (unless one was restored
+     * from the session's {@link TokenCache}) and, if requests are sent
+     * through a {@link ConnectionPool}, opens connections to each node
+     * ahead of time. Nodes which can't be reached are skipped; they are
+     * tried again as requests are routed to them.
+     *
+     * @param connections The number of connections to open to each node
+     * @throws IOException If no node could be reached
+     */
+    public void warmUp(final int connections) throws IOException {
+        final ConnectionPool pool = getConnectionPool();
+        IOException failure = null;
+        boolean warmed = false;
+
+        for (Node node : cluster.getNodes()) {
+            try {
+                getTokenManager(node).getToken();
+
+                if (pool != null && connections > 0) {
+                    pool.preconnect(toUri(node, Cluster.HEALTH_CHECK_ADDRESS),
+                            connections);
+                }
+
+                warmed = true;
+            } catch (InterruptedIOException ex) {
+                throw ex;
+            } catch (IOException ex) {
+                failure = ex;
+            }
+        }
+
+        if (!warmed) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Gets the policy deciding which failed requests are retried.
+     *
+     * @return The agent's retry policy
+     */
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * Sets the policy deciding which failed requests are retried. Any retry
+     * budgets accrued under the previous policy are discarded.
+     *
+     * @param retryPolicy The retry policy to use, or {@link RetryPolicy#NONE}
+     * to disable retries
+     */
+    public void setRetryPolicy(final RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+        retryBudgets.clear();
+    }
+
+    /**
+     * Gets the priority the agent's requests are scheduled with.
+     *
+     * @return The agent's priority
+     */
+    public Priority getPriority() {
+        return priority;
+    }
+
+    /**
+     * Sets the priority the agent's requests are scheduled with while they
+     * wait for the session's concurrency limit or a connection. Defaults to
+     * {@link Priority#NORMAL}.
+     *
+     * @param priority The priority to use
+     * @see #getPriority(String, String)
+     */
+    public void setPriority(final Priority priority) {
+        this.priority = priority;
+    }
+
+    /**
+     * Gets the time allowed for calls made outside the scope of a
+     * {@link Deadline}.
+     *
+     * @return The request timeout in milliseconds, or 0 for no limit
+     */
+    public long getRequestTimeoutMillis() {
+        return requestTimeoutMillis;
+    }
+
+    /**
+     * Sets the time allowed for calls made outside the scope of a
+     * {@link Deadline}, including authentication, retries and any time
+     * spent waiting for the agent's limits or a connection. Defaults to
+     * {@link #DEFAULT_REQUEST_TIMEOUT_MILLIS}.
+     *
+     * @param timeout The request timeout, or 0 for no limit (in which case
+     * calls are bounded only by the transport's own timeouts)
+     * @param unit The unit of the timeout
+     */
+    public void setRequestTimeout(final long timeout, final TimeUnit unit) {
+        this.requestTimeoutMillis = unit.toMillis(timeout);
+    }
+
+    /**
+     * Gets the deadline for a call made now: the calling thread's current
+     * deadline, or else a new one from the agent's request timeout.
+     *
+     * @return The call's deadline, or <code>null</code> if it has none
+     * @see Deadline#current()
+     */
+    protected Deadline getDeadline() {
+        final Deadline current = Deadline.current();
+        return current != null ? current : createDeadline();
+    }
+
+    /**
+     * Creates a deadline from the agent's request timeout, for work done on
+     * behalf of many calls (such as authentication) which mustn't inherit
+     * any one caller's deadline.
+     *
+     * @return A new deadline, or <code>null</code> if the agent has no
+     * request timeout
+     */
+    private Deadline createDeadline() {
+        final long timeout = requestTimeoutMillis;
+        return timeout > 0
+                ? Deadline.after(timeout, TimeUnit.MILLISECONDS) : null;
+    }
+
+    /**
+     * Gets the circuit breaker guarding this agent's requests.
+     *
+     * @return The agent's circuit breaker
+     */
+    public CircuitBreaker getCircuitBreaker() {
+        return session.getCircuitBreaker();
+    }
+
+    /**
+     * Sets the circuit breaker guarding this agent's requests, and those of
+     * every other agent on its session. Agents talking to the same server
+     * may share a breaker.
+     *
+     * @param circuitBreaker The circuit breaker to use
+     */
+    public void setCircuitBreaker(final CircuitBreaker circuitBreaker) {
+        session.setCircuitBreaker(circuitBreaker);
+    }
+
+    /**
+     * Limits the rate of requests to one area of the API by every agent on
+     * this agent's session.
+     *
+     * @param area The API area, i.e. the first segment of its addresses
+     * (<code>Collaboration</code>, <code>Provisioning</code> or
+     * <code>Management</code>)
+     * @param rateLimiter The rate limiter to apply, or <code>null</code> to
+     * remove the area's limit
+     * @see Endpoints#getArea(String)
+     */
+    public void setRateLimiter(final String area,
+            final RateLimiter rateLimiter) {
+        session.setRateLimiter(area, rateLimiter);
+    }
+
+    /**
+     * Gets the rate limits applied to each area of the API. Areas without
+     * an entry are not rate limited.
+     *
+     * @return A map of API area to its rate limiter
+     */
+    public Map<String, RateLimiter> getRateLimiters() {
+        return session.getRateLimiters();
+    }
+
+    /**
+     * Gets the limiter adapting the number of requests this agent has in
+     * flight.
+     *
+     * @return The agent's concurrency limiter, or <code>null</code> if
+     * concurrency isn't limited
+     */
+    public AdaptiveConcurrencyLimiter getConcurrencyLimiter() {
+        return session.getConcurrencyLimiter();
+    }
+
+    /**
+     * Sets the limiter adapting the number of requests this agent, and every
+     * other agent on its session, has in flight. Agents talking to the same
+     * server may share a limiter.
+     *
+     * @param concurrencyLimiter The limiter to use, or <code>null</code> to
+     * only limit concurrency by the size of the connection pool
+     */
+    public void setConcurrencyLimiter(
+            final AdaptiveConcurrencyLimiter concurrencyLimiter) {
+        session.setConcurrencyLimiter(concurrencyLimiter);
+    }
+
+    /**
+     * Gets the registry this agent records request metrics in.
+     *
+     * @return The agent's metrics registry, or <code>null</code> if metrics
+     * aren't recorded
+     */
+    public MetricsRegistry getMetricsRegistry() {
+        return session.getMetricsRegistry();
+    }
+
+    /**
+     * Sets the registry this agent, and every other agent on its session,
+     * records request metrics in. By default agents share
+     * {@link MetricsRegistry#getDefault()}.
+     *
+     * @param metricsRegistry The registry to use, or <code>null</code> to
+     * stop recording metrics
+     */
+    public void setMetricsRegistry(final MetricsRegistry metricsRegistry) {
+        session.setMetricsRegistry(metricsRegistry);
+    }
+
+    /**
+     * Sets whether or not identical GET requests made concurrently share a
+     * single request to the server. When enabled, callers requesting the same
+     * URI while a request for it is in flight receive a copy of its response
+     * rather than sending their own. Disabled by default.
+     *
+     * @param enabled <code>true</code> to coalesce concurrent identical GETs
+     * @see RequestCoalescer
+     */
+    public void setRequestCoalescing(final boolean enabled) {
+        if (!enabled) {
+            requestCoalescer = null;
+        } else if (requestCoalescer == null) {
+            requestCoalescer = new RequestCoalescer();
+        }
+    }
+
+    /**
+     * Gets the coalescer sharing responses between identical GET requests.
+     *
+     * @return The agent's coalescer (whose statistics show how many requests
+     * were shared), or <code>null</code> if coalescing is disabled
+     */
+    public RequestCoalescer getRequestCoalescer() {
+        return requestCoalescer;
+    }
+
+    /**
+     * Gets the policy deciding when slow GET requests are hedged.
+     *
+     * @return The agent's hedging policy, or <code>null</code> if requests
+     * aren't hedged
+     */
+    public HedgingPolicy getHedgingPolicy() {
+        return hedgingPolicy;
+    }
+
+    /**
+     * Sets the policy deciding when slow GET requests are hedged. Disabled
+     * by default. Resets the latency and budget of every endpoint.
+     *
+     * @param hedgingPolicy The policy to apply, or <code>null</code> to stop
+     * hedging requests
+     * @see #isHedged(String)
+     */
+    public void setHedgingPolicy(final HedgingPolicy hedgingPolicy) {
+        this.hedgingPolicy = hedgingPolicy;
+        hedgers.clear();
+    }
+
+    /**
+     * Gets the hedging state of the endpoints this agent has sent GET
+     * requests to while hedging was enabled.
+     *
+     * @return A map of normalised address to its hedger, whose statistics
+     * show how many requests were hedged and how many hedges won
+     * @see Endpoints#normalise(String)
+     */
+    public Map<String, Hedger> getHedgers() {
+        return Collections.unmodifiableMap(hedgers);
+    }
+
+    /**
+     * Gets the retry budgets of the endpoints this agent has called.
+     *
+     * @return A map of endpoint (method and normalised address) to its budget
+     * @see Endpoints#normalise(String)
+     */
+    public Map<String, RetryBudget> getRetryBudgets() {
+        return Collections.unmodifiableMap(retryBudgets);
     }
 
     /**
@@ -98,76 +613,1684 @@ public class AuthenticatingAgent {
      */
     public String getResponse(final String address, final String method,
             final String body, final boolean authenticate) throws IOException {
-        if (authenticate && token == null) {
-            authenticate();
+        final byte[] encoded = encode(body);
+        final RequestCoalescer coalescer = getCoalescer(method, encoded);
+
+        if (coalescer != null && authenticate) {
+            return new String(coalescer.execute(getCoalescingKey(address),
+                    getDeadline(), () -> execute(address, "GET", null,
+                    true).readBytes()), StandardCharsets.UTF_8);
         }
 
-        final URL url = new URL(baseUrl + address);
-        final HttpURLConnection connection
-                = (HttpURLConnection) url.openConnection();
-        connection.setRequestMethod(method);
-        connection.setRequestProperty("Accept", "application/json");
-        connection.setRequestProperty("Content-Type", "application/json");
+        return execute(address, method, encoded, authenticate).readBody();
+    }
+
+    /**
+     * Sends a request to the Foundation API and parses the response as it is
+     * received. The body is decoded straight from the connection into the
+     * parser, without first being buffered as a string. Will attempt to
+     * authenticate if the agent has not previously done so, or if the request
+     * fails with a 401 authentication error.
+     *
+     * @param <T> The type of result produced by the parser
+     * @param address The address of the API method to call
+     * (e.g. <code>/Collaboration/v1/Channels</code>) including any GET
+     * parameters.
+     * @param method The HTTP method to use (GET, POST, etc).
+     * @param body The body to send with the request (or <code>null</code>
+     * for no body).
+     * @param parser The parser to apply to the response body, or
+     * <code>null</code> to discard the body and return <code>null</code>
+     * @return The parsed response
+     * @throws IOException If the API cannot be reached, or authentication fails
+     * @throws JSONException If the response can't be parsed
+     */
+    public <T> T getResponse(final String address, final String method,
+            final String body, final ResponseParser<T> parser)
+            throws IOException, JSONException {
+        return request(address, method, encode(body), parser);
+    }
+
+    /**
+     * Sends a JSON payload to the Foundation API and parses the response as
+     * it is received. The payload is serialised straight to UTF-8 bytes
+     * (see {@link JsonBodyWriter}) rather than being built as a string first.
+     * Will attempt to authenticate if the agent has not previously done so,
+     * or if the request fails with a 401 authentication error.
+     *
+     * @param <T> The type of result produced by the parser
+     * @param address The address of the API method to call
+     * (e.g. <code>/Collaboration/v1/Channels</code>) including any GET
+     * parameters.
+     * @param method The HTTP method to use (POST, PUT, etc).
+     * @param payload The payload to send: a {@link JSONObject},
+     * {@link JSONArray} or any other value org.json can serialise
+     * @param parser The parser to apply to the response body, or
+     * <code>null</code> to discard the body and return <code>null</code>
+     * @return The parsed response
+     * @throws IOException If the payload can't be serialised, the API cannot
+     * be reached, or authentication fails
+     * @throws JSONException If the response can't be parsed
+     */
+    public <T> T sendPayload(final String address, final String method,
+            final Object payload, final ResponseParser<T> parser)
+            throws IOException, JSONException {
+        return request(address, method, toBytes(payload), parser);
+    }
+
+    /**
+     * Sends a request and parses the response, sharing it with identical
+     * concurrent GETs if coalescing is enabled.
+     *
+     * @param <T> The type of result produced by the parser
+     * @param address The address of the API method, including any GET
+     * parameters
+     * @param method The HTTP method to use
+     * @param body The encoded body to send (or <code>null</code>)
+     * @param parser The parser to apply to the response body (or
+     * <code>null</code>)
+     * @return The parsed response
+     * @throws IOException If the API cannot be reached, or authentication fails
+     * @throws JSONException If the response can't be parsed
+     */
+    private <T> T request(final String address, final String method,
+            final byte[] body, final ResponseParser<T> parser)
+            throws IOException, JSONException {
+        final RequestCoalescer coalescer = getCoalescer(method, body);
 
-        if (token != null) {
-            connection.setRequestProperty("Authorization", "FCF " + token);
+        if (coalescer != null) {
+            return parse(new ByteArrayInputStream(coalescer.execute(
+                    getCoalescingKey(address), getDeadline(),
+                    () -> execute(address, "GET", null, true).readBytes())),
+                    parser);
         }
 
-        try {
-            if (body != null) {
-                connection.setDoOutput(true);
-                connection.setRequestProperty("Content-Length",
-                        String.valueOf(body.length()));
-                OutputStreamWriter out
-                        = new OutputStreamWriter(connection.getOutputStream());
-                out.write(body);
-                out.close();
-            }
+        return execute(address, method, body, true).parse(parser);
+    }
 
-            final InputStreamReader in
-                    = new InputStreamReader(connection.getInputStream());
-            final BufferedReader reader = new BufferedReader(in);
+    /**
+     * Sends a request to the Foundation API without blocking the calling
+     * thread. Will attempt to authenticate if the agent has not previously
+     * done so, or if the request fails with a 401 authentication error.
+     *
+     * @param address The address of the API method to call
+     * (e.g. <code>/Collaboration/v1/Channels</code>) including any GET
+     * parameters.
+     * @param method The HTTP method to use (GET, POST, etc).
+     * @param body The body to send with the request (or <code>null</code>
+     * for no body).
+     * @return A future which completes with the body of the API response, or
+     * exceptionally with an {@link IOException} if the API cannot be reached
+     * or authentication fails
+     */
+    public CompletableFuture<String> getResponseAsync(final String address,
+            final String method, final String body) {
+        final byte[] encoded = encode(body);
+        final RequestCoalescer coalescer = getCoalescer(method, encoded);
 
-            final StringBuilder builder = new StringBuilder();
-            String line;
+        if (coalescer != null) {
+            return getCoalescedResponseAsync(coalescer, address).thenApply(
+                    bytes -> new String(bytes, StandardCharsets.UTF_8));
+        }
 
-            while ((line = reader.readLine()) != null) {
-                builder.append(line);
+        return executeAsync(address, method, encoded).thenApply(exchange -> {
+            try {
+                return exchange.readBody();
+            } catch (IOException ex) {
+                throw new CompletionException(ex);
             }
+        });
+    }
 
-            return builder.toString();
-        } catch (IOException ex) {
-            if (authenticate && connection.getResponseCode() == 401) {
-                authenticate();
-                return getResponse(address, method, body);
-            }
+    /**
+     * Sends a request to the Foundation API without blocking the calling
+     * thread, and parses the response with the given parser.
+     *
+     * @param <T> The type of result produced by the parser
+     * @param address The address of the API method to call
+     * (e.g. <code>/Collaboration/v1/Channels</code>) including any GET
+     * parameters.
+     * @param method The HTTP method to use (GET, POST, etc).
+     * @param body The body to send with the request (or <code>null</code>
+     * for no body).
+     * @param parser The parser to apply to the response body, or
+     * <code>null</code> to ignore the body and complete with <code>null</code>
+     * @return A future which completes with the parsed response, or
+     * exceptionally with an {@link IOException} if the request fails or the
+     * response can't be parsed
+     * @see #getResponseAsync(String, String, String)
+     */
+    public <T> CompletableFuture<T> getResponseAsync(final String address,
+            final String method, final String body,
+            final ResponseParser<T> parser) {
+        return requestAsync(address, method, encode(body), parser);
+    }
 
-            throw ex;
+    /**
+     * Sends a JSON payload to the Foundation API without blocking the calling
+     * thread, and parses the response with the given parser.
+     *
+     * @param <T> The type of result produced by the parser
+     * @param address The address of the API method to call
+     * (e.g. <code>/Collaboration/v1/Channels</code>) including any GET
+     * parameters.
+     * @param method The HTTP method to use (POST, PUT, etc).
+     * @param payload The payload to send: a {@link JSONObject},
+     * {@link JSONArray} or any other value org.json can serialise
+     * @param parser The parser to apply to the response body, or
+     * <code>null</code> to ignore the body and complete with <code>null</code>
+     * @return A future which completes with the parsed response, or
+     * exceptionally with an {@link IOException} if the payload can't be
+     * serialised, the request fails or the response can't be parsed
+     * @see #sendPayload(String, String, Object, ResponseParser)
+     */
+    public <T> CompletableFuture<T> sendPayloadAsync(final String address,
+            final String method, final Object payload,
+            final ResponseParser<T> parser) {
+        final byte[] body;
+
+        try {
+            body = toBytes(payload);
+        } catch (IOException ex) {
+            return CompletableFuture.failedFuture(ex);
         }
+
+        return requestAsync(address, method, body, parser);
     }
 
     /**
-     * Authenticates the agent by attempting to POST to the
-     * <code>/Authentication/v1/Tokens</code> resource.
+     * Sends a request without blocking and parses the response, sharing it
+     * with identical concurrent GETs if coalescing is enabled.
      *
-     * @throws IOException If the authentication request cannot be completed,
-     * or if the JSON payload/response can't be built/parsed.
+     * @param <T> The type of result produced by the parser
+     * @param address The address of the API method, including any GET
+     * parameters
+     * @param method The HTTP method to use
+     * @param body The encoded body to send (or <code>null</code>)
+     * @param parser The parser to apply to the response body (or
+     * <code>null</code>)
+     * @return A future which completes with the parsed response
      */
-    private void authenticate() throws IOException {
-        token = null;
+    private <T> CompletableFuture<T> requestAsync(final String address,
+            final String method, final byte[] body,
+            final ResponseParser<T> parser) {
+        final RequestCoalescer coalescer = getCoalescer(method, body);
 
-        try {
-            JSONObject object = new JSONObject();
-            object.put("Username", username);
-            object.put("Password", password);
-            object.put("AgentId", agent);
-
-            JSONTokener tokener = new JSONTokener(getResponse(AUTH_METHOD,
-                    "POST", object.toString(), false));
-            token = tokener.nextString(tokener.nextClean());
-        } catch (JSONException ex) {
-            throw new IOException("Unable to authenticate", ex);
+        if (coalescer != null) {
+            return getCoalescedResponseAsync(coalescer, address).thenApply(
+                    bytes -> {
+                try {
+                    return parse(new ByteArrayInputStream(bytes), parser);
+                } catch (IOException ex) {
+                    throw new CompletionException(ex);
+                } catch (JSONException ex) {
+                    throw new CompletionException(new IOException(
+                            "Unable to deserialise JSON response", ex));
+                }
+            });
         }
+
+        return executeAsync(address, method, body).thenApply(exchange -> {
+            try {
+                return exchange.parse(parser);
+            } catch (IOException ex) {
+                throw new CompletionException(ex);
+            } catch (JSONException ex) {
+                throw new CompletionException(new IOException(
+                        "Unable to deserialise JSON response", ex));
+            }
+        });
+    }
+
+    /**
+     * Sends a GET request without blocking, sharing the response with any
+     * identical request already in flight.
+     *
+     * @param coalescer The coalescer to share the response through
+     * @param address The address of the API method, including any GET
+     * parameters
+     * @return A future which completes with the body of the response
+     */
+    private CompletableFuture<byte[]> getCoalescedResponseAsync(
+            final RequestCoalescer coalescer, final String address) {
+        return coalescer.executeAsync(getCoalescingKey(address),
+                getDeadline(), () -> executeAsync(address, "GET",
+                null).thenApply(exchange -> {
+            try {
+                return exchange.readBytes();
+            } catch (IOException ex) {
+                throw new CompletionException(ex);
+            }
+        }));
+    }
+
+    /**
+     * Gets the coalescer to share a request's response through, if the
+     * request can be shared.
+     *
+     * @param method The HTTP method to use
+     * @param body The body to send with the request (or <code>null</code>)
+     * @return The agent's coalescer, or <code>null</code> if coalescing is
+     * disabled or the request isn't a GET
+     */
+    private RequestCoalescer getCoalescer(final String method,
+            final byte[] body) {
+        return "GET".equals(method) && body == null ? requestCoalescer : null;
+    }
+
+    /**
+     * Gets the key identifying a GET request to the coalescer. Requests are
+     * shared regardless of which node of the cluster they would be sent to.
+     *
+     * @param address The address of the API method, including any GET
+     * parameters
+     * @return The coalescing key
+     */
+    private static String getCoalescingKey(final String address) {
+        return "GET ".concat(address);
+    }
+
+    /**
+     * Sends a request to the Foundation API, authenticating first if
+     * requested and necessary, and retrying according to the agent's retry
+     * policy.
+     *
+     * @param address The address of the API method, including any GET
+     * parameters
+     * @param method The HTTP method to use
+     * @param body The body to send with the request (or <code>null</code>)
+     * @param authenticate Whether or not to attempt to authenticate
+     * @return The request and its unread response
+     * @throws IOException If the API cannot be reached, or authentication fails
+     */
+    private Exchange execute(final String address, final String method,
+            final byte[] body, final boolean authenticate) throws IOException {
+        final RetryPolicy policy = retryPolicy;
+        final RetryBudget budget = getRetryBudget(address, method);
+        final Hedger hedger = authenticate
+                ? getHedger(address, method, body) : null;
+        final Deadline deadline = getDeadline();
+        budget.deposit();
+
+        long delay = 0;
+
+        for (int attempt = 1;; attempt++) {
+            final Exchange exchange;
+
+            try {
+                exchange = hedger == null ? executeOnce(address, method, body,
+                        authenticate, deadline) : executeHedged(address, hedger,
+                        deadline);
+            } catch (IOException ex) {
+                final long nextDelay = policy.nextDelay(delay);
+
+                if (attempt >= policy.getMaxAttempts()
+                        || !policy.isRetryable(method, ex)
+                        || !hasTimeFor(deadline, nextDelay)
+                        || !budget.tryWithdraw()) {
+                    throw ex;
+                }
+
+                delay = nextDelay;
+                sleep(delay, deadline);
+                continue;
+            }
+
+            final long nextDelay = policy.nextDelay(delay);
+
+            if (attempt < policy.getMaxAttempts() && policy.isRetryable(
+                    method, exchange.getStatusCode())
+                    && hasTimeFor(deadline, nextDelay)
+                    && budget.tryWithdraw()) {
+                exchange.close();
+                delay = nextDelay;
+                sleep(delay, deadline);
+                continue;
+            }
+
+            return exchange;
+        }
+    }
+
+    /**
+     * Sends a GET request, hedging it if it is slow, and waits for the first
+     * response.
+     *
+     * @param address The address of the API method, including any GET
+     * parameters
+     * @param hedger The endpoint's hedging state
+     * @param deadline The call's deadline (may be <code>null</code>)
+     * @return The request and its unread response
+     * @throws IOException If every attempt fails, the deadline passes or is
+     * cancelled, or the thread is interrupted
+     */
+    private Exchange executeHedged(final String address, final Hedger hedger,
+            final Deadline deadline) throws IOException {
+        final CompletableFuture<Exchange> exchange = executeHedgedAsync(
+                address, hedger, deadline);
+
+        try {
+            return (deadline == null ? Deadline.none() : deadline).await(
+                    exchange, "requesting " + address);
+        } catch (IOException ex) {
+            // Abandon any attempts still in flight
+            exchange.completeExceptionally(ex);
+            throw ex;
+        }
+    }
+
+    /**
+     * Determines whether a retry after the given delay could still complete
+     * by the deadline.
+     *
+     * @param deadline The call's deadline (may be <code>null</code>)
+     * @param delay The delay before the retry in milliseconds
+     * @return <code>true</code> if time remains after the delay
+     */
+    private static boolean hasTimeFor(final Deadline deadline,
+            final long delay) {
+        return deadline == null || (!deadline.isCancelled()
+                && deadline.getRemainingMillis() > delay);
+    }
+
+    /**
+     * Makes a single attempt at a request on a node of the cluster. If the
+     * node can't be reached the request is sent to each of the other nodes
+     * in turn until one can: the request never reached the server, so this
+     * is safe whatever the HTTP method.
+     *
+     * @param address The address of the API method, including any GET
+     * parameters
+     * @param method The HTTP method to use
+     * @param body The body to send with the request (or <code>null</code>)
+     * @param authenticate Whether or not to attempt to authenticate
+     * @param deadline The call's deadline (may be <code>null</code>)
+     * @return The request and its unread response
+     * @throws IOException If the API cannot be reached, or authentication fails
+     */
+    private Exchange executeOnce(final String address, final String method,
+            final byte[] body, final boolean authenticate,
+            final Deadline deadline) throws IOException {
+        Node node = cluster.select();
+        List<Node> tried = null;
+
+        while (true) {
+            try {
+                return executeOnce(node, address, method, body, authenticate,
+                        deadline);
+            } catch (IOException ex) {
+                if (!isUnreachable(ex)) {
+                    throw ex;
+                }
+
+                if (tried == null) {
+                    tried = new ArrayList<Node>(cluster.getNodes().size());
+                }
+
+                tried.add(node);
+                node = cluster.select(tried);
+
+                if (node == null) {
+                    onExhausted(ex);
+                    throw ex;
+                }
+            }
+        }
+    }
+
+    /**
+     * Makes a single attempt at a request on the given node, authenticating
+     * with the node first if requested and necessary. A request rejected
+     * with a 401 is re-sent once with a fresh token.
+     *
+     * @param node The node to send the request to
+     * @param address The address of the API method, including any GET
+     * parameters
+     * @param method The HTTP method to use
+     * @param body The body to send with the request (or <code>null</code>)
+     * @param authenticate Whether or not to attempt to authenticate
+     * @param deadline The call's deadline (may be <code>null</code>)
+     * @return The request and its unread response
+     * @throws IOException If the API cannot be reached, or authentication fails
+     */
+    private Exchange executeOnce(final Node node, final String address,
+            final String method, final byte[] body, final boolean authenticate,
+            final Deadline deadline) throws IOException {
+        final TokenManager nodeTokens = authenticate
+                ? getTokenManager(node) : null;
+        final String currentToken = authenticate ? await(deadline,
+                nodeTokens.getTokenAsync()) : null;
+        final Exchange exchange = send(node, address, method, body,
+                currentToken, deadline);
+
+        if (authenticate && exchange.getStatusCode() == 401) {
+            exchange.close();
+            return send(node, address, method, body, await(deadline,
+                    nodeTokens.refreshAsync(currentToken)), deadline);
+        }
+
+        return exchange;
+    }
+
+    /**
+     * Waits for a token, for no longer than the call's deadline allows.
+     *
+     * @param deadline The call's deadline (may be <code>null</code>)
+     * @param token The token being obtained
+     * @return The token
+     * @throws IOException If authentication fails, the deadline passes or is
+     * cancelled, or the thread is interrupted
+     */
+    private static String await(final Deadline deadline,
+            final CompletableFuture<String> token) throws IOException {
+        if (token.isDone() && !token.isCompletedExceptionally()) {
+            return token.join();
+        }
+
+        return (deadline == null ? Deadline.none() : deadline).await(token,
+                "waiting for authentication");
+    }
+
+    /**
+     * Bounds the wait for a token by the call's deadline, without blocking.
+     *
+     * @param deadline The call's deadline (may be <code>null</code>)
+     * @param token The token being obtained
+     * @return A future which completes with the token by the deadline
+     */
+    private static CompletableFuture<String> bound(final Deadline deadline,
+            final CompletableFuture<String> token) {
+        return deadline == null ? token
+                : deadline.bound(token, "waiting for authentication");
+    }
+
+    /**
+     * Sends a request to a node through the transport, subject to the
+     * circuit breaker.
+     *
+     * @param node The node to send the request to
+     * @param address The address of the API method, including any GET
+     * parameters
+     * @param method The HTTP method to use
+     * @param body The body to send with the request (or <code>null</code>)
+     * @param currentToken The token to authorise the request with (or
+     * <code>null</code>)
+     * @param deadline The call's deadline (may be <code>null</code>)
+     * @return The request and its unread response
+     * @throws IOException If the request can't be sent, the circuit breaker
+     * is open, or the deadline passes or is cancelled
+     */
+    private Exchange send(final Node node, final String address,
+            final String method, final byte[] body, final String currentToken,
+            final Deadline deadline) throws IOException {
+        final Request request = createRequest(node, address, method, body,
+                currentToken, deadline);
+        final Admission admission = new Admission(node, address, request);
+        admission.acquire();
+
+        final Response response;
+
+        try {
+            response = transport.send(request);
+        } catch (IOException | RuntimeException ex) {
+            admission.onFailure(ex);
+            throw ex;
+        }
+
+        admission.onResponse(response.getStatusCode());
+        return new Exchange(request, response, admission);
+    }
+
+    /**
+     * Sends a request to the Foundation API without blocking, authenticating
+     * first if necessary and once more if the request is rejected with a 401,
+     * and retrying according to the agent's retry policy.
+     *
+     * @param address The address of the API method, including any GET
+     * parameters
+     * @param method The HTTP method to use
+     * @param body The body to send with the request (or <code>null</code>)
+     * @return A future which completes with the request and its response
+     */
+    private CompletableFuture<Exchange> executeAsync(final String address,
+            final String method, final byte[] body) {
+        final RetryBudget budget = getRetryBudget(address, method);
+        budget.deposit();
+        return executeAsync(address, method, body, retryPolicy, budget,
+                getDeadline(), 1, 0);
+    }
+
+    /**
+     * Makes an attempt at a request without blocking, scheduling another
+     * attempt if it fails and may be retried.
+     *
+     * @param address The address of the API method, including any GET
+     * parameters
+     * @param method The HTTP method to use
+     * @param body The body to send with the request (or <code>null</code>)
+     * @param policy The retry policy to apply
+     * @param budget The endpoint's retry budget
+     * @param deadline The call's deadline (may be <code>null</code>)
+     * @param attempt The number of this attempt, starting at 1
+     * @param delay The delay before this attempt in milliseconds
+     * @return A future which completes with the request and its response
+     */
+    private CompletableFuture<Exchange> executeAsync(final String address,
+            final String method, final byte[] body, final RetryPolicy policy,
+            final RetryBudget budget, final Deadline deadline,
+            final int attempt, final long delay) {
+        final Hedger hedger = getHedger(address, method, body);
+
+        return (hedger == null ? executeOnceAsync(address, method, body,
+                deadline) : executeHedgedAsync(address, hedger, deadline))
+                .handle((exchange, thrown) -> {
+            final long nextDelay = policy.nextDelay(delay);
+            final boolean canRetry = attempt < policy.getMaxAttempts()
+                    && hasTimeFor(deadline, nextDelay);
+
+            if (thrown == null) {
+                if (canRetry && policy.isRetryable(method,
+                        exchange.getStatusCode())
+                        && budget.tryWithdraw()) {
+                    closeQuietly(exchange);
+                    return retryAsync(address, method, body, policy, budget,
+                            deadline, attempt, nextDelay);
+                }
+
+                return CompletableFuture.completedFuture(exchange);
+            }
+
+            final Throwable cause = thrown instanceof CompletionException
+                    && thrown.getCause() != null ? thrown.getCause() : thrown;
+
+            if (canRetry && cause instanceof IOException
+                    && policy.isRetryable(method, (IOException) cause)
+                    && budget.tryWithdraw()) {
+                return retryAsync(address, method, body, policy, budget,
+                        deadline, attempt, nextDelay);
+            }
+
+            return CompletableFuture.<Exchange>failedFuture(cause);
+        }).thenCompose(future -> future);
+    }
+
+    /**
+     * Schedules the next attempt at a request after the policy's backoff
+     * delay, without blocking a thread in the meantime. Cancelling the
+     * deadline abandons the wait.
+     *
+     * @param address The address of the API method, including any GET
+     * parameters
+     * @param method The HTTP method to use
+     * @param body The body to send with the request (or <code>null</code>)
+     * @param policy The retry policy to apply
+     * @param budget The endpoint's retry budget
+     * @param deadline The call's deadline (may be <code>null</code>)
+     * @param attempt The number of the attempt which failed
+     * @param nextDelay The delay before the next attempt
+     * @return A future which completes with the request and its response
+     */
+    private CompletableFuture<Exchange> retryAsync(final String address,
+            final String method, final byte[] body, final RetryPolicy policy,
+            final RetryBudget budget, final Deadline deadline,
+            final int attempt, final long nextDelay) {
+        final CompletableFuture<Void> wait = CompletableFuture.runAsync(
+                () -> { }, CompletableFuture.delayedExecutor(nextDelay,
+                TimeUnit.MILLISECONDS));
+        return (deadline == null ? wait : deadline.bound(wait,
+                "waiting to retry")).thenCompose(ignored -> executeAsync(
+                address, method, body, policy, budget, deadline, attempt + 1,
+                nextDelay));
+    }
+
+    /**
+     * Makes a single attempt at a request on a node of the cluster without
+     * blocking, failing over to the other nodes in turn if the node can't be
+     * reached.
+     *
+     * @param address The address of the API method, including any GET
+     * parameters
+     * @param method The HTTP method to use
+     * @param body The body to send with the request (or <code>null</code>)
+     * @param deadline The call's deadline (may be <code>null</code>)
+     * @return A future which completes with the request and its response
+     * @see #executeOnce(String, String, byte[], boolean, Deadline)
+     */
+    private CompletableFuture<Exchange> executeOnceAsync(final String address,
+            final String method, final byte[] body, final Deadline deadline) {
+        final Node node = cluster.select();
+
+        if (cluster.getNodes().size() == 1) {
+            return executeOnceAsync(node, address, method, body, deadline);
+        }
+
+        return failoverAsync(node, Collections.<Node>emptyList(), address,
+                method, body, deadline);
+    }
+
+    /**
+     * Makes a single attempt at a request on the given node without blocking,
+     * moving on to another node if it can't be reached.
+     *
+     * @param node The node to send the request to
+     * @param tried The nodes which have already been tried
+     * @param address The address of the API method, including any GET
+     * parameters
+     * @param method The HTTP method to use
+     * @param body The body to send with the request (or <code>null</code>)
+     * @param deadline The call's deadline (may be <code>null</code>)
+     * @return A future which completes with the request and its response
+     */
+    private CompletableFuture<Exchange> failoverAsync(final Node node,
+            final List<Node> tried, final String address, final String method,
+            final byte[] body, final Deadline deadline) {
+        return executeOnceAsync(node, address, method, body, deadline).handle(
+                (exchange, thrown) -> {
+            if (thrown == null) {
+                return CompletableFuture.completedFuture(exchange);
+            }
+
+            final Throwable cause = thrown instanceof CompletionException
+                    && thrown.getCause() != null ? thrown.getCause() : thrown;
+
+            if (isUnreachable(cause)) {
+                final List<Node> nowTried = new ArrayList<Node>(tried);
+                nowTried.add(node);
+
+                final Node next = cluster.select(nowTried);
+
+                if (next != null) {
+                    return failoverAsync(next, nowTried, address, method,
+                            body, deadline);
+                }
+
+                onExhausted(cause);
+            }
+
+            return CompletableFuture.<Exchange>failedFuture(cause);
+        }).thenCompose(future -> future);
+    }
+
+    /**
+     * Makes a single attempt at a request on the given node without
+     * blocking, authenticating with the node first if necessary and once
+     * more if the request is rejected with a 401.
+     *
+     * @param node The node to send the request to
+     * @param address The address of the API method, including any GET
+     * parameters
+     * @param method The HTTP method to use
+     * @param body The body to send with the request (or <code>null</code>)
+     * @param deadline The call's deadline (may be <code>null</code>)
+     * @return A future which completes with the request and its response
+     */
+    private CompletableFuture<Exchange> executeOnceAsync(final Node node,
+            final String address, final String method, final byte[] body,
+            final Deadline deadline) {
+        final TokenManager nodeTokens = getTokenManager(node);
+
+        return bound(deadline, nodeTokens.getTokenAsync())
+                .thenCompose(currentToken -> sendAsync(node, address, method,
+                        body, currentToken, deadline)
+                .thenCompose(exchange -> {
+                    if (exchange.getStatusCode() == 401) {
+                        closeQuietly(exchange);
+                        return bound(deadline, nodeTokens.refreshAsync(
+                                currentToken)).thenCompose(newToken ->
+                                sendAsync(node, address, method, body,
+                                newToken, deadline));
+                    }
+
+                    return CompletableFuture.completedFuture(exchange);
+                }));
+    }
+
+    /**
+     * Sends a GET request without blocking, and hedges it with a second
+     * attempt if no response has arrived by the endpoint's hedging delay. The
+     * first response to arrive is used and the other attempt is cancelled.
+     * The hedge is routed like any other request, so normally goes to the
+     * least busy node (not the one still working on the first attempt).
+     * <p>
+     * Failing the returned future abandons every attempt still in flight.
+     *
+     * @param address The address of the API method, including any GET
+     * parameters
+     * @param hedger The endpoint's hedging state
+     * @param deadline The call's deadline (may be <code>null</code>)
+     * @return A future which completes with the first response, or
+     * exceptionally once every attempt has failed
+     */
+    private CompletableFuture<Exchange> executeHedgedAsync(
+            final String address, final Hedger hedger,
+            final Deadline deadline) {
+        final Deadline parent = deadline == null ? Deadline.none() : deadline;
+        final Deadline first = parent.fork();
+        final Deadline second = parent.fork();
+        final CompletableFuture<Exchange> result
+                = new CompletableFuture<Exchange>();
+        final AtomicInteger outstanding = new AtomicInteger(1);
+        final long delay = hedger.getDelayMillis();
+        final Runnable deregister = parent.onCancel(() -> {
+            first.cancel();
+            second.cancel();
+        });
+
+        result.whenComplete((exchange, ex) -> {
+            deregister.run();
+
+            if (ex != null) {
+                first.cancel();
+                second.cancel();
+            }
+        });
+
+        hedger.onRequest();
+        attemptAsync(address, hedger, first, second, result, outstanding,
+                false);
+
+        if (delay >= 0) {
+            CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS)
+                    .execute(() -> {
+                if (!result.isDone() && hasTimeFor(deadline, 0)
+                        && hedger.tryHedge()) {
+                    outstanding.incrementAndGet();
+                    attemptAsync(address, hedger, second, first, result,
+                            outstanding, true);
+                }
+            });
+        }
+
+        return result;
+    }
+
+    /**
+     * Makes one attempt at a hedged request, completing the request with the
+     * attempt's response if it is the first to arrive.
+     *
+     * @param address The address of the API method, including any GET
+     * parameters
+     * @param hedger The endpoint's hedging state
+     * @param attempt The deadline to make the attempt under
+     * @param other The deadline of the other attempt, cancelled if this one
+     * wins
+     * @param result The hedged request's result
+     * @param outstanding The number of attempts which haven't failed
+     * @param hedge Whether or not this attempt is the hedge
+     */
+    private void attemptAsync(final String address, final Hedger hedger,
+            final Deadline attempt, final Deadline other,
+            final CompletableFuture<Exchange> result,
+            final AtomicInteger outstanding, final boolean hedge) {
+        final long startedAt = System.nanoTime();
+
+        executeOnceAsync(address, "GET", null, attempt).whenComplete(
+                (exchange, ex) -> {
+            if (ex == null) {
+                hedger.record((System.nanoTime() - startedAt) / 1000L);
+
+                if (result.complete(exchange)) {
+                    other.cancel();
+
+                    if (hedge) {
+                        hedger.onHedgeWon();
+                    }
+                } else {
+                    closeQuietly(exchange);
+                }
+            } else if (outstanding.decrementAndGet() == 0) {
+                result.completeExceptionally(ex instanceof CompletionException
+                        && ex.getCause() != null ? ex.getCause() : ex);
+            }
+        });
+    }
+
+    /**
+     * Determines whether a request failed because it timed out, whether
+     * waiting for the server or at its deadline.
+     *
+     * @param ex The reason the request failed
+     * @return <code>true</code> if the request timed out
+     */
+    private static boolean isTimeout(final Throwable ex) {
+        return ex instanceof SocketTimeoutException
+                || ex instanceof HttpTimeoutException
+                || ex instanceof DeadlineExceededException;
+    }
+
+    /**
+     * Determines whether a request failed because the server couldn't be
+     * reached at all, in which case it can safely be sent to another node.
+     *
+     * @param ex The reason the request failed
+     * @return <code>true</code> if the request never reached the server
+     */
+    private static boolean isUnreachable(final Throwable ex) {
+        for (Throwable cause = ex; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ConnectException
+                    || cause instanceof NoRouteToHostException
+                    || cause instanceof UnknownHostException
+                    || cause instanceof HttpConnectTimeoutException) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Determines whether a request which failed will be sent to another
+     * node of the cluster: true of any request to a node which can't be
+     * reached, unless the cluster has only the one node.
+     *
+     * @param ex The reason the request failed
+     * @return <code>true</code> if the request fails over
+     */
+    private boolean isFailingOver(final Throwable ex) {
+        return cluster.getNodes().size() > 1 && isUnreachable(ex);
+    }
+
+    /**
+     * Reports a request which failed over to every node of the cluster in
+     * turn, and couldn't reach any of them, to the circuit breaker: once for
+     * the request, since none of its attempts were counted.
+     *
+     * @param ex The reason the last attempt failed
+     */
+    private void onExhausted(final Throwable ex) {
+        if (isFailingOver(ex)) {
+            session.getCircuitBreaker().onFailure();
+        }
+    }
+
+    /**
+     * Obtains a new token from a node by POSTing to the
+     * <code>/Authentication/v1/Tokens</code> resource. Only called by the
+     * node's {@link TokenManager}, which ensures that at most one
+     * authentication request is in flight.
+     *
+     * @param node The node to authenticate with
+     * @return A future which completes with the new token, or exceptionally
+     * with an {@link IOException} if the authentication request cannot be
+     * completed, or if the JSON payload/response can't be built/parsed
+     */
+    private CompletableFuture<String> authenticateAsync(final Node node) {
+        final byte[] payload;
+
+        try {
+            payload = getAuthenticationPayload();
+        } catch (IOException ex) {
+            return CompletableFuture.failedFuture(ex);
+        }
+
+        return sendAsync(node, AUTH_METHOD, "POST", payload, null,
+                createDeadline()).thenApply(exchange -> {
+                    try {
+                        return exchange.parse(TOKEN_PARSER);
+                    } catch (IOException ex) {
+                        throw new CompletionException(ex);
+                    } catch (JSONException ex) {
+                        throw new CompletionException(
+                                new IOException("Unable to authenticate", ex));
+                    }
+                });
+    }
+
+    /**
+     * Builds the payload to POST to <code>/Authentication/v1/Tokens</code>.
+     *
+     * @return The serialised authentication request
+     * @throws IOException If the JSON payload can't be built
+     */
+    private byte[] getAuthenticationPayload() throws IOException {
+        try {
+            final JSONObject object = new JSONObject();
+            object.put("Username", session.getUsername());
+            object.put("Password", session.getPassword());
+            object.put("AgentId", session.getAgent());
+            return JsonBodyWriter.toBytes(object);
+        } catch (JSONException ex) {
+            throw new IOException("Unable to authenticate", ex);
+        }
+    }
+
+    /**
+     * Encodes a textual request body as UTF-8.
+     *
+     * @param body The body (or <code>null</code>)
+     * @return The encoded body, or <code>null</code> for no body
+     */
+    private static byte[] encode(final String body) {
+        return body == null ? null : body.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Serialises a JSON payload as a request body.
+     *
+     * @param payload The payload
+     * @return The encoded body
+     * @throws IOException If the payload can't be serialised
+     */
+    private static byte[] toBytes(final Object payload) throws IOException {
+        try {
+            return JsonBodyWriter.toBytes(payload);
+        } catch (JSONException ex) {
+            throw new IOException("Unable to construct JSON payload", ex);
+        }
+    }
+
+    /**
+     * Builds a request to the given API method on a node, authorised with
+     * the given token.
+     *
+     * @param node The node to send the request to
+     * @param address The address of the API method, including any GET
+     * parameters
+     * @param method The HTTP method to use
+     * @param body The body to send with the request (or <code>null</code>)
+     * @param currentToken The token to authorise the request with (or
+     * <code>null</code> for an unauthenticated request)
+     * @param deadline The call's deadline (may be <code>null</code>)
+     * @return The corresponding request
+     * @throws IOException If the address is not a valid URI
+     */
+    private Request createRequest(final Node node, final String address,
+            final String method, final byte[] body, final String currentToken,
+            final Deadline deadline) throws IOException {
+        final Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Accept", "application/json");
+        headers.put("Content-Type", "application/json");
+
+        if (currentToken != null) {
+            headers.put("Authorization", "FCF " + currentToken);
+        }
+
+        return new Request(method, toUri(node, address), headers,
+                body, deadline, getPriority(address, method));
+    }
+
+    /**
+     * Sends a request to a node through the transport without blocking.
+     *
+     * @param node The node to send the request to
+     * @param address The address of the API method, including any GET
+     * parameters
+     * @param method The HTTP method to use
+     * @param body The body to send with the request (or <code>null</code>)
+     * @param currentToken The token to authorise the request with (or
+     * <code>null</code>)
+     * @param deadline The call's deadline (may be <code>null</code>)
+     * @return A future which completes with the request and its response
+     */
+    private CompletableFuture<Exchange> sendAsync(final Node node,
+            final String address, final String method, final byte[] body,
+            final String currentToken, final Deadline deadline) {
+        final Request request;
+        final Admission admission;
+        final CompletableFuture<Void> admitted;
+
+        try {
+            request = createRequest(node, address, method, body,
+                    currentToken, deadline);
+            admission = new Admission(node, address, request);
+            admitted = admission.acquireAsync();
+        } catch (IOException ex) {
+            return CompletableFuture.failedFuture(ex);
+        }
+
+        return admitted.thenCompose(ignored -> {
+            admission.start();
+            return transport.sendAsync(request);
+        }).whenComplete((response, ex) -> {
+            if (ex == null) {
+                admission.onResponse(response.getStatusCode());
+            } else if (admission.started) {
+                admission.onFailure(ex instanceof CompletionException
+                        && ex.getCause() != null ? ex.getCause() : ex);
+            } else {
+                admission.onRefused();
+            }
+        }).thenApply(response -> new Exchange(request, response, admission));
+    }
+
+    /**
+     * Determines whether requests to the given address are subject to the
+     * agent's rate and concurrency limits. Long-running requests, such as
+     * long polls, should be excluded: they would hold a concurrency permit
+     * for their whole duration and skew the latencies the limit adapts to.
+     *
+     * @param address The address of the API method, including any GET
+     * parameters
+     * @return <code>true</code> if the request should be limited
+     */
+    protected boolean isThrottled(final String address) {
+        return true;
+    }
+
+    /**
+     * Gets the priority to schedule a request with. Agents may raise the
+     * priority of requests a person is waiting on.
+     *
+     * @param address The address of the API method, including any GET
+     * parameters
+     * @param method The HTTP method to use
+     * @return The request's priority (by default, the agent's)
+     */
+    protected Priority getPriority(final String address,
+            final String method) {
+        return priority;
+    }
+
+    /**
+     * Determines whether GET requests to the given address may be hedged.
+     * Agents should exclude requests which the server deliberately holds
+     * open, such as long polls.
+     *
+     * @param address The address of the API method, including any GET
+     * parameters
+     * @return <code>true</code> if the request may be hedged
+     */
+    protected boolean isHedged(final String address) {
+        return true;
+    }
+
+    /**
+     * Gets the hedging state for the endpoint the given request targets,
+     * creating it if necessary.
+     *
+     * @param address The address of the API method, including any GET
+     * parameters
+     * @param method The HTTP method to use
+     * @param body The body to send with the request (or <code>null</code>)
+     * @return The endpoint's hedger, or <code>null</code> if hedging is
+     * disabled or the request can't be hedged
+     */
+    private Hedger getHedger(final String address, final String method,
+            final byte[] body) {
+        final HedgingPolicy policy = hedgingPolicy;
+
+        if (policy == null || !"GET".equals(method) || body != null
+                || !isHedged(address)) {
+            return null;
+        }
+
+        final String key = Endpoints.normalise(address);
+        Hedger hedger = hedgers.get(key);
+
+        if (hedger == null) {
+            final Hedger created = policy.newHedger();
+            hedger = hedgers.putIfAbsent(key, created);
+
+            if (hedger == null) {
+                hedger = created;
+            }
+        }
+
+        return hedger;
+    }
+
+    /**
+     * Gets the retry budget for the endpoint the given request targets,
+     * creating it if necessary.
+     *
+     * @param address The address of the API method, including any GET
+     * parameters
+     * @param method The HTTP method to use
+     * @return The endpoint's retry budget
+     */
+    private RetryBudget getRetryBudget(final String address,
+            final String method) {
+        final String key = method + " " + Endpoints.normalise(address);
+        RetryBudget budget = retryBudgets.get(key);
+
+        if (budget == null) {
+            final RetryBudget created = retryPolicy.newBudget();
+            budget = retryBudgets.putIfAbsent(key, created);
+
+            if (budget == null) {
+                budget = created;
+            }
+        }
+
+        return budget;
+    }
+
+    /**
+     * Waits before retrying a request, for no longer than the deadline
+     * allows.
+     *
+     * @param millis The time to wait in milliseconds
+     * @param deadline The call's deadline (may be <code>null</code>)
+     * @throws IOException If the deadline passes or is cancelled, or the
+     * thread is interrupted while waiting
+     */
+    private static void sleep(final long millis, final Deadline deadline)
+            throws IOException {
+        if (deadline == null) {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(
+                        "Interrupted waiting to retry");
+            }
+
+            return;
+        }
+
+        deadline.await(CompletableFuture.runAsync(() -> { },
+                CompletableFuture.delayedExecutor(millis,
+                TimeUnit.MILLISECONDS)), "waiting to retry");
+    }
+
+    /**
+     * Closes a response which is being discarded, ignoring any errors.
+     *
+     * @param exchange The exchange whose response should be closed
+     */
+    private static void closeQuietly(final Exchange exchange) {
+        try {
+            exchange.close();
+        } catch (IOException ex) {
+            // The response is being discarded anyway
+        }
+    }
+
+    /**
+     * Resolves the given API address against a node's base URL,
+     * percent-encoding any characters in the address which may not legally
+     * appear in a URI (such as spaces in search terms or brackets in regular
+     * expressions) while leaving existing escapes and delimiters intact.
+     * Addresses expanded from a {@link UriTemplate} are already encoded, so
+     * are resolved without being copied. The node's base URL is parsed only
+     * once, so each request parses just its own path and query.
+     *
+     * @param node The node the request is sent to
+     * @param address The address of the API method, including any GET
+     * parameters
+     * @return A corresponding absolute URI
+     * @throws IOException If the resulting address is not a valid URI
+     */
+    protected URI toUri(final Node node, final String address)
+            throws IOException {
+        final String encoded = needsEscaping(address)
+                ? escape(address) : address;
+
+        try {
+            final URI base = node.getBaseUri();
+            final URI relative = new URI(base.getRawPath().concat(encoded));
+
+            if (relative.getScheme() != null
+                    || relative.getRawAuthority() != null) {
+                throw new URISyntaxException(encoded,
+                        "Expected a path relative to the base URL");
+            }
+
+            return base.resolve(relative);
+        } catch (URISyntaxException ex) {
+            throw new IOException("Invalid address: " + node.getBaseUrl()
+                    + address, ex);
+        }
+    }
+
+    /**
+     * Percent-encodes the characters of an address which may not appear in
+     * a URI.
+     *
+     * @param address The address of the API method
+     * @return The encoded address
+     */
+    private static String escape(final String address) {
+        final StringBuilder builder = new StringBuilder(
+                address.length() + 16);
+
+        for (byte b : address.getBytes(StandardCharsets.UTF_8)) {
+            final int c = b & 0xFF;
+
+            if (c > 0x20 && c < 0x7F && "\"#<>[\\]^`{|}".indexOf(c) < 0) {
+                builder.append((char) c);
+            } else {
+                builder.append('%');
+                builder.append(Character.toUpperCase(
+                        Character.forDigit(c >> 4, 16)));
+                builder.append(Character.toUpperCase(
+                        Character.forDigit(c & 0xF, 16)));
+            }
+        }
+
+        return builder.toString();
+    }
+
+    /**
+     * Determines whether an address contains any characters which must be
+     * percent-encoded before it can be used in a URI.
+     *
+     * @param address The address of the API method
+     * @return Whether {@link #toUri(Node, String)} needs to encode the
+     * address
+     */
+    private static boolean needsEscaping(final String address) {
+        for (int i = 0; i < address.length(); i++) {
+            final char c = address.charAt(i);
+
+            if (c <= 0x20 || c >= 0x7F || "\"#<>[\\]^`{|}".indexOf(c) >= 0) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Admits a single HTTP request past the agent's circuit breaker, rate
+     * limit and concurrency limit, and reports its outcome back to them, to
+     * the node it is sent to and to the agent's metrics.
+     */
+    private class Admission {
+
+        /** The node the request is sent to. */
+        private final Node node;
+
+        /** The circuit breaker to report to. */
+        private final CircuitBreaker breaker;
+
+        /** The rate limiter to wait on (may be <code>null</code>). */
+        private final RateLimiter rateLimiter;
+
+        /** The concurrency limiter to report to (may be <code>null</code>). */
+        private final AdaptiveConcurrencyLimiter limiter;
+
+        /** The endpoint's metrics (may be <code>null</code>). */
+        private final EndpointMetrics metrics;
+
+        /** The call's deadline (may be <code>null</code>). */
+        private final Deadline deadline;
+
+        /** The priority to wait for the concurrency limit with. */
+        private final Priority priority;
+
+        /** The number of request body bytes being sent. */
+        private final long sent;
+
+        /** The time the request was sent, from {@link System#nanoTime()}. */
+        private volatile long startedAt;
+
+        /** Whether or not the request has been sent. */
+        private volatile boolean started;
+
+        /**
+         * Creates a new {@link Admission}.
+         *
+         * @param node The node the request is sent to
+         * @param address The address of the API method being requested
+         * @param request The request being sent
+         */
+        public Admission(final Node node, final String address,
+                final Request request) {
+            final boolean throttled = isThrottled(address);
+            this.node = node;
+            final MetricsRegistry registry = session.getMetricsRegistry();
+            this.breaker = session.getCircuitBreaker();
+            this.rateLimiter = throttled
+                    ? session.getRateLimiter(Endpoints.getArea(address)) : null;
+            this.limiter = throttled ? session.getConcurrencyLimiter() : null;
+            this.metrics = registry == null ? null : registry.getEndpoint(
+                    request.getMethod() + " " + Endpoints.normalise(address));
+            this.sent = request.getBody() == null
+                    ? 0 : request.getBody().length;
+            this.deadline = request.getDeadline();
+            this.priority = request.getPriority();
+        }
+
+        /**
+         * Waits for the request to be admitted.
+         *
+         * @throws IOException If the circuit breaker is open, the deadline
+         * passes or is cancelled, or the thread is interrupted while waiting
+         */
+        public void acquire() throws IOException {
+            breaker.acquire();
+
+            try {
+                if (rateLimiter != null) {
+                    if (deadline == null) {
+                        rateLimiter.acquire();
+                    } else {
+                        rateLimiter.acquire(deadline);
+                    }
+                }
+
+                if (limiter != null) {
+                    if (deadline == null) {
+                        limiter.acquire(priority);
+                    } else {
+                        deadline.await(acquirePermit(),
+                                "waiting for the concurrency limit");
+                    }
+                }
+            } catch (IOException ex) {
+                breaker.onCancelled();
+                throw ex;
+            }
+
+            start();
+        }
+
+        /**
+         * Admits the request without blocking. The caller must call
+         * {@link #start()} once the returned future completes.
+         *
+         * @return A future which completes once the request is admitted
+         * @throws IOException If the circuit breaker is open
+         */
+        public CompletableFuture<Void> acquireAsync() throws IOException {
+            breaker.acquire();
+
+            CompletableFuture<Void> admitted = rateLimiter == null
+                    ? CompletableFuture.<Void>completedFuture(null)
+                    : deadline == null ? rateLimiter.acquireAsync()
+                    : rateLimiter.acquireAsync(deadline);
+
+            if (limiter != null) {
+                admitted = admitted.thenCompose(ignored -> acquirePermit());
+            }
+
+            return admitted;
+        }
+
+        /**
+         * Takes a permit from the concurrency limiter without blocking,
+         * giving it up if the deadline passes or is cancelled first.
+         *
+         * @return A future which completes once the permit is taken
+         */
+        private CompletableFuture<Void> acquirePermit() {
+            final CompletableFuture<Void> permit
+                    = limiter.acquireAsync(priority);
+
+            if (deadline == null || permit.isDone()) {
+                return permit;
+            }
+
+            return deadline.bound(permit, "waiting for the concurrency limit")
+                    .whenComplete((ignored, ex) -> {
+                if (ex != null && !permit.cancel(false)) {
+                    // The permit was granted as the deadline ended
+                    limiter.cancel();
+                }
+            });
+        }
+
+        /**
+         * Records that the request is being sent.
+         */
+        public void start() {
+            startedAt = System.nanoTime();
+            started = true;
+            node.onRequestStarted();
+        }
+
+        /**
+         * Reports a response to the request. Server errors count as failures
+         * for the circuit breaker, and responses showing the server is
+         * overloaded reduce the concurrency limit.
+         *
+         * @param statusCode The status code of the response
+         */
+        public void onResponse(final int statusCode) {
+            node.onRequestCompleted(getElapsedMicros());
+
+            if (statusCode >= 500) {
+                breaker.onFailure();
+            } else {
+                breaker.onSuccess();
+            }
+
+            if (limiter != null) {
+                limiter.release(statusCode == 429 || statusCode == 503
+                        || statusCode == 504, getElapsedMillis());
+            }
+        }
+
+        /**
+         * Reports that the request was abandoned while waiting to be
+         * admitted. Any permit taken has already been given back and nothing
+         * was sent, so only the circuit breaker needs to hear of it, as if
+         * {@link #acquire()} had failed.
+         */
+        public void onRefused() {
+            breaker.onCancelled();
+        }
+
+        /**
+         * Reports that the request failed without a response, after
+         * {@link #start()}. Requests which time out count as failures;
+         * requests abandoned because the calling thread was interrupted or
+         * the deadline cancelled say nothing about the API's health. Nor do
+         * requests to a node of a cluster which couldn't be reached: the
+         * node is ejected and the request sent to another, and the circuit
+         * breaker only hears of it if every node fails (see
+         * {@link AuthenticatingAgent#onExhausted(Throwable)}).
+         *
+         * @param ex The reason the request failed
+         */
+        public void onFailure(final Throwable ex) {
+            final boolean timedOut = isTimeout(ex);
+            final boolean cancelled = ex instanceof InterruptedIOException
+                    && !timedOut;
+
+            if (cancelled || isFailingOver(ex)) {
+                breaker.onCancelled();
+            } else {
+                breaker.onFailure();
+            }
+
+            if (started) {
+                if (cancelled) {
+                    node.onRequestCancelled();
+                } else {
+                    node.onRequestFailed(getElapsedMicros());
+                }
+            }
+
+            if (metrics != null) {
+                if (cancelled) {
+                    metrics.recordCancelled(sent);
+                } else if (timedOut) {
+                    metrics.recordTimeout(getElapsedMicros(), sent);
+                } else {
+                    metrics.recordError(getElapsedMicros(), sent);
+                }
+            }
+
+            if (limiter != null) {
+                if (cancelled) {
+                    limiter.cancel();
+                } else {
+                    limiter.release(true, getElapsedMillis());
+                }
+            }
+        }
+
+        /**
+         * Records that the caller has finished with the response.
+         *
+         * @param statusCode The status code of the response
+         * @param received The number of response body bytes read
+         */
+        public void onClosed(final int statusCode, final long received) {
+            if (metrics != null) {
+                metrics.recordResponse(statusCode, getElapsedMicros(), sent,
+                        received);
+            }
+        }
+
+        /**
+         * Gets the time since the request was sent.
+         *
+         * @return The elapsed time in milliseconds
+         */
+        private long getElapsedMillis() {
+            return (System.nanoTime() - startedAt) / 1000000L;
+        }
+
+        /**
+         * Gets the time since the request was sent.
+         *
+         * @return The elapsed time in microseconds
+         */
+        private long getElapsedMicros() {
+            return (System.nanoTime() - startedAt) / 1000L;
+        }
+
+    }
+
+    /**
+     * Parses a response body as it is read from the given stream.
+     *
+     * @param <T> The type of result produced by the parser
+     * @param in The stream to read the body from
+     * @param parser The parser to apply, or <code>null</code> to ignore the
+     * body
+     * @return The parsed body, or <code>null</code> if no parser was given
+     * @throws IOException If the body can't be read
+     * @throws JSONException If the body can't be parsed
+     */
+    private static <T> T parse(final InputStream in,
+            final ResponseParser<T> parser) throws IOException, JSONException {
+        if (parser == null) {
+            return null;
+        }
+
+        final JSONTokener tokener = new JSONTokener(new InputStreamReader(in,
+                StandardCharsets.UTF_8));
+
+        try {
+            return parser.parse(tokener);
+        } catch (JSONException ex) {
+            // The tokener hides read failures inside JSONExceptions; report
+            // those as I/O errors rather than bad responses.
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+
+            throw ex;
+        }
+    }
+
+    /**
+     * A request paired with the response received for it.
+     */
+    private static class Exchange {
+
+        /** The request that was sent. */
+        private final Request request;
+
+        /** The response that was received. */
+        private final Response response;
+
+        /** The admission to report to once the response is closed. */
+        private final Admission admission;
+
+        /** The response body, counting the bytes read from it. */
+        private final CountingInputStream body;
+
+        /**
+         * Creates a new {@link Exchange}.
+         */
+        public Exchange(final Request request, final Response response,
+                final Admission admission) {
+            this.request = request;
+            this.response = response;
+            this.admission = admission;
+            this.body = new CountingInputStream(response.getBody());
+        }
+
+        /**
+         * Gets the status code of the response.
+         *
+         * @return The response's status code
+         */
+        public int getStatusCode() {
+            return response.getStatusCode();
+        }
+
+        /**
+         * Closes the response, recording the exchange in the agent's metrics.
+         *
+         * @throws IOException If the response can't be closed
+         */
+        public void close() throws IOException {
+            try {
+                response.close();
+            } finally {
+                admission.onClosed(response.getStatusCode(), body.getCount());
+            }
+        }
+
+        /**
+         * Reads the body of the response as text, closing the response.
+         *
+         * @return The body of the response
+         * @throws IOException If the response indicates an error or can't be
+         * read
+         */
+        public String readBody() throws IOException {
+            return new String(readBytes(), StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Reads the body of the response in full, closing the response.
+         *
+         * @return The body of the response
+         * @throws IOException If the response indicates an error or can't be
+         * read
+         */
+        public byte[] readBytes() throws IOException {
+            try {
+                checkStatus();
+                return body.readAllBytes();
+            } finally {
+                close();
+            }
+        }
+
+        /**
+         * Parses the body of the response directly from its stream, closing
+         * the response afterwards.
+         *
+         * @param <T> The type of result produced by the parser
+         * @param parser The parser to apply, or <code>null</code> to discard
+         * the body
+         * @return The parsed body, or <code>null</code> if no parser was given
+         * @throws IOException If the response indicates an error or can't be
+         * read
+         * @throws JSONException If the body can't be parsed
+         */
+        public <T> T parse(final ResponseParser<T> parser)
+                throws IOException, JSONException {
+            try {
+                checkStatus();
+
+                return AuthenticatingAgent.parse(body, parser);
+            } finally {
+                close();
+            }
+        }
+
+        /**
+         * Ensures the response indicates success.
+         *
+         * @throws HttpStatusException If the response has a non-2xx status
+         * code
+         */
+        private void checkStatus() throws IOException {
+            if (!response.isSuccessful()) {
+                throw new HttpStatusException(response.getStatusCode(),
+                        request.getUri());
+            }
+        }
+
     }
 
     /**
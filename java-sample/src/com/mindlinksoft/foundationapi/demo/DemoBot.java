@@ -3,21 +3,27 @@ package com.mindlinksoft.foundationapi.demo;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.file.Paths;
 import java.util.Collection;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
+import com.mindlinksoft.foundationapi.demo.cluster.Cluster;
 import com.mindlinksoft.foundationapi.demo.management.ChannelPrivacy;
 import com.mindlinksoft.foundationapi.demo.management.ManagedCategory;
 import com.mindlinksoft.foundationapi.demo.management.ManagedChannel;
 import com.mindlinksoft.foundationapi.demo.management.ManagementAgent;
+import com.mindlinksoft.foundationapi.demo.metrics.MetricsRegistry;
 import com.mindlinksoft.foundationapi.demo.provisioning.ProvisionedChannel;
 import com.mindlinksoft.foundationapi.demo.provisioning.ProvisioningAgent;
 import com.mindlinksoft.foundationapi.demo.streaming.Event;
 import com.mindlinksoft.foundationapi.demo.streaming.EventListener;
 import com.mindlinksoft.foundationapi.demo.streaming.EventType;
 import com.mindlinksoft.foundationapi.demo.streaming.StreamingCollaborationAgent;
+import com.mindlinksoft.foundationapi.demo.transport.ConnectionPool;
+import com.mindlinksoft.foundationapi.demo.transport.InMemoryFoundationApi;
 
 /**
  * A simple interactive bot to demonstrate using the Foundation API. Interaction
@@ -27,6 +33,9 @@ import com.mindlinksoft.foundationapi.demo.streaming.StreamingCollaborationAgent
  */
 public class DemoBot {
 
+    /** The system property naming the file to cache session tokens in. */
+    private static final String TOKEN_CACHE_PROPERTY = "demobot.tokenCache";
+
     /**
      * Main entry point.
      *
@@ -37,7 +46,10 @@ public class DemoBot {
         if (args.length < 3 || args.length > 4) {
             System.err.println("Usage: demobot <url> <user> <pass> [agent]");
             System.err.println();
-            System.err.println("   <url> - base URL for foundation API");
+            System.err.println("   <url> - base URL for foundation API, a "
+                    + "comma-separated list of URLs to");
+            System.err.println("           balance across several servers, "
+                    + "or 'offline' to use an in-memory stand-in");
             System.err.println("  <user> - username to use for authentication");
             System.err.println("  <pass> - password to use for authentication");
             System.err.println(" [agent] - agent ID to request");
@@ -49,6 +61,10 @@ public class DemoBot {
                     + "used, and some functions will");
             System.err.println("be unavailable.");
             System.err.println();
+            System.err.println("Set -D" + TOKEN_CACHE_PROPERTY + "=<file> to "
+                    + "keep session tokens in a file across");
+            System.err.println("restarts.");
+            System.err.println();
             return;
         }
 
@@ -67,16 +83,59 @@ public class DemoBot {
             password = args[2];
         }
 
+        final Session session;
+
+        if ("offline".equalsIgnoreCase(url)) {
+            final InMemoryFoundationApi api
+                    = new InMemoryFoundationApi(user, password);
+            api.addChannel("chat-room:general", "General");
+            api.addChannel("chat-room:support", "Support");
+            api.addCategory("category:default", "Default");
+
+            session = new Session(new Cluster("http://localhost"), user,
+                    password, agent, api);
+        } else {
+            // Let the JDK keep as many idle connections as the pool opens,
+            // unless told otherwise on the command line
+            if (System.getProperty("http.maxConnections") == null) {
+                System.setProperty("http.maxConnections", String.valueOf(
+                        ConnectionPool.DEFAULT_MAX_CONNECTIONS_PER_HOST));
+            }
+
+            final Cluster cluster = Cluster.parse(url);
+            final ConnectionPool pool = ConnectionPool.getDefault();
+
+            if (cluster.getNodes().size() > 1) {
+                cluster.startHealthChecks(pool, 5, TimeUnit.SECONDS);
+            }
+
+            session = new Session(cluster, user, password, agent, pool);
+        }
+
+        final String tokenCache = System.getProperty(TOKEN_CACHE_PROPERTY);
+
+        if (tokenCache != null && !tokenCache.isEmpty()) {
+            session.setTokenCache(new TokenCache(Paths.get(tokenCache)));
+        }
+
+        // All three agents share one token, connection pool and set of limits
         final StreamingCollaborationAgent collabAgent
-                = new StreamingCollaborationAgent(url, user, password, agent);
-        final ProvisioningAgent provAgent
-                = new ProvisioningAgent(url, user, password, agent);
-        final ManagementAgent managementAgent
-                = new ManagementAgent(url, user, password, agent);
+                = new StreamingCollaborationAgent(session);
+        final ProvisioningAgent provAgent = new ProvisioningAgent(session);
+        final ManagementAgent managementAgent = new ManagementAgent(session);
+
+        if (!"offline".equalsIgnoreCase(url)) {
+            try {
+                collabAgent.warmUp(2);
+            } catch (IOException ex) {
+                System.out.println("Unable to reach the API: "
+                        + ex.getMessage());
+            }
+        }
 
         while (true) {
             System.out.println();
-            System.out.println("Functions: channels, send, history, events, manage, exit");
+            System.out.println("Functions: channels, send, history, events, manage, metrics, exit");
             System.out.print("Select option: ");
 
             final String option = bufferedReader.readLine().toLowerCase();
@@ -91,6 +150,8 @@ public class DemoBot {
                 doEvents(collabAgent, bufferedReader);
             } else if ("manage".equals(option)) {
                 doManage(managementAgent, bufferedReader);
+            } else if ("metrics".equals(option)) {
+                doMetrics(collabAgent);
             } else if ("exit".equals(option)) {
                 break;
             } else {
@@ -418,6 +479,28 @@ public class DemoBot {
         agent.stopStreaming();
     }
 
+    private static void doMetrics(final AuthenticatingAgent agent) {
+        System.out.println();
+        System.out.println("Request Metrics");
+        System.out.println("---------------");
+
+        final MetricsRegistry metrics = agent.getMetricsRegistry();
+
+        if (metrics != null) {
+            metrics.dump(System.out);
+        }
+
+        if (agent.getConnectionPool() != null) {
+            System.out.println();
+            System.out.println(agent.getConnectionPool().getStatistics());
+        }
+
+        if (agent.getCluster().getNodes().size() > 1) {
+            System.out.println();
+            System.out.println(agent.getCluster());
+        }
+    }
+
     private static <T extends Enum<?>> T toEnum(Class<T> enumeration, String search, T d) {
         for (T each : enumeration.getEnumConstants()) {
             if (each.name().compareToIgnoreCase(search) == 0) {
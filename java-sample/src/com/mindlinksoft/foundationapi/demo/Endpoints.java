@@ -0,0 +1,68 @@
+package com.mindlinksoft.foundationapi.demo;
+
+/**
+ * Utilities for identifying which Foundation API endpoint a request targets,
+ * so that per-endpoint state (such as retry budgets and rate limits) isn't
+ * split across every channel or agent ID.
+ */
+public final class Endpoints {
+
+    /**
+     * Prevents instantiation of {@link Endpoints}.
+     */
+    private Endpoints() {
+    }
+
+    /**
+     * Gets the area of the API an address belongs to: its first path segment,
+     * such as <code>Collaboration</code> or <code>Provisioning</code>.
+     *
+     * @param address The address of the API method
+     * @return The address's API area
+     */
+    public static String getArea(final String address) {
+        final int start = address.startsWith("/") ? 1 : 0;
+        int end = start;
+
+        while (end < address.length() && address.charAt(end) != '/'
+                && address.charAt(end) != '?') {
+            end++;
+        }
+
+        return address.substring(start, end);
+    }
+
+    /**
+     * Normalises an API address to the endpoint it targets. The query string
+     * is dropped, and resource identifiers are replaced with
+     * <code>{id}</code>: Foundation API addresses take the form
+     * <code>/Area/v1/Collection/id/Collection/id...</code>, so every other
+     * segment after the version is an identifier. For example,
+     * <code>/Collaboration/v1/Channels/chat-room:abc/Messages?take=10</code>
+     * becomes <code>/Collaboration/v1/Channels/{id}/Messages</code>.
+     *
+     * @param address The address of the API method, including any GET
+     * parameters
+     * @return The normalised endpoint
+     */
+    public static String normalise(final String address) {
+        final int query = address.indexOf('?');
+        final String path = query < 0 ? address : address.substring(0, query);
+        final String[] segments = path.split("/", -1);
+        final StringBuilder builder = new StringBuilder(path.length());
+
+        // segments[0] is the empty string before the leading slash
+        for (int i = 1; i < segments.length; i++) {
+            builder.append('/');
+
+            if (i >= 4 && i % 2 == 0 && !"Search".equals(segments[i])) {
+                builder.append("{id}");
+            } else {
+                builder.append(segments[i]);
+            }
+        }
+
+        return builder.toString();
+    }
+
+}
@@ -0,0 +1,779 @@
+package com.mindlinksoft.foundationapi.demo;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.mindlinksoft.foundationapi.demo.resilience.HttpStatusException;
+import com.mindlinksoft.foundationapi.demo.resilience.RetryPolicy;
+import com.mindlinksoft.foundationapi.demo.transport.JsonBodyWriter;
+
+/**
+ * A durable queue of outbound messages, so that messages sent while the
+ * Foundation API is unreachable are delivered once it is back rather than
+ * lost.
+ * <p>
+ * Each message is appended to a journal file, which is flushed to disk before
+ * the send returns, and is then delivered in the background. Messages to one
+ * channel are delivered one at a time in the order they were sent; channels
+ * are delivered independently, so a channel which keeps failing doesn't hold
+ * up the rest. Failed deliveries are retried after the delays chosen by the
+ * journal's {@link RetryPolicy}, for as many attempts as it allows. A message
+ * the server rejects outright (with any 4xx status other than 401, 408 or
+ * 429) is dropped and counted as failed.
+ * <p>
+ * Each message is marked as delivered in the journal once the server accepts
+ * it, and a journal reopened after a restart carries on delivering whatever
+ * its predecessor had not. Delivery is at least once: a message whose
+ * response was lost, or which was delivered just before the process died,
+ * may be sent again.
+ * <p>
+ * The journal is compacted as messages are delivered, so it only grows while
+ * messages can't be. A lock file beside it stops two processes delivering
+ * from one journal.
+ *
+ * @see SimpleCollaborationAgent#setOutboundJournal(OutboundJournal)
+ */
+public class OutboundJournal {
+
+    /**
+     * The default retry policy: retry until delivered, from 500 ms up to a
+     * minute apart.
+     */
+    public static final RetryPolicy DEFAULT_RETRY_POLICY
+            = new RetryPolicy(Integer.MAX_VALUE, 500, 60000);
+
+    /**
+     * The number of deliveries recorded since the last compaction at which
+     * the journal is rewritten, if they outnumber the messages waiting.
+     */
+    private static final int COMPACTION_THRESHOLD = 1000;
+
+    /** Schedules retries for all journals. */
+    private static final ScheduledThreadPoolExecutor SCHEDULER;
+
+    static {
+        SCHEDULER = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable,
+                        "Outbound journal");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Delivers messages from the journal.
+     */
+    public interface Sender {
+
+        /**
+         * Starts delivering a message.
+         *
+         * @param channelId The ID of the channel to send the message to
+         * @param body The message's JSON payload
+         * @return A future which completes once the server has accepted the
+         * message, or exceptionally if it couldn't be delivered
+         */
+        CompletableFuture<Void> send(String channelId, String body);
+
+    }
+
+    /**
+     * A message waiting in the journal.
+     */
+    private static final class Entry {
+
+        /** The message's position in the journal. */
+        private final long sequence;
+
+        /** The ID of the channel the message is for. */
+        private final String channelId;
+
+        /** The message's JSON payload. */
+        private final String body;
+
+        /** The time the message was sent, from currentTimeMillis(). */
+        private final long sentAt;
+
+        /** The number of delivery attempts made. */
+        private int attempts;
+
+        /** The delay before the last retry, in milliseconds. */
+        private long delayMillis;
+
+        /**
+         * Creates a new {@link Entry}.
+         *
+         * @param sequence The message's position in the journal
+         * @param channelId The ID of the channel the message is for
+         * @param body The message's JSON payload
+         * @param sentAt The time the message was sent
+         */
+        private Entry(final long sequence, final String channelId,
+                final String body, final long sentAt) {
+            this.sequence = sequence;
+            this.channelId = channelId;
+            this.body = body;
+            this.sentAt = sentAt;
+        }
+
+    }
+
+    /** The journal file. */
+    private final Path file;
+
+    /** The file locked while the journal is open. */
+    private final Path lockFile;
+
+    /** Decides how often and how long apart deliveries are retried. */
+    private final RetryPolicy retryPolicy;
+
+    /** The messages waiting for each channel, oldest first. */
+    private final Map<String, Deque<Entry>> queues
+            = new LinkedHashMap<String, Deque<Entry>>();
+
+    /** Delivers the messages (or <code>null</code> if not open). */
+    private Sender sender;
+
+    /** The open journal file. */
+    private FileChannel channel;
+
+    /** The open lock file. */
+    private FileChannel lockChannel;
+
+    /** The lock held on the lock file. */
+    private FileLock lock;
+
+    /** The sequence number of the next message appended. */
+    private long nextSequence = 1;
+
+    /** The number of messages waiting. */
+    private int depth;
+
+    /** The number of deliveries recorded since the last compaction. */
+    private int recordedSinceCompaction;
+
+    /** The number of messages appended. */
+    private long appended;
+
+    /** The number of messages delivered. */
+    private long delivered;
+
+    /** The number of messages dropped without being delivered. */
+    private long failed;
+
+    /** The number of delivery attempts which were retried. */
+    private long retries;
+
+    /**
+     * Creates a new {@link OutboundJournal} which retries deliveries until
+     * they succeed.
+     *
+     * @param file The journal file. It is created if necessary.
+     */
+    public OutboundJournal(final Path file) {
+        this(file, DEFAULT_RETRY_POLICY);
+    }
+
+    /**
+     * Creates a new {@link OutboundJournal}.
+     *
+     * @param file The journal file. It is created if necessary.
+     * @param retryPolicy Decides how often and how long apart deliveries are
+     * retried. Every failure the server doesn't reject outright is retried,
+     * whether or not the policy would retry a POST.
+     */
+    public OutboundJournal(final Path file, final RetryPolicy retryPolicy) {
+        this.file = file.toAbsolutePath().normalize();
+        this.lockFile = this.file.resolveSibling(
+                this.file.getFileName() + ".lock");
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * Gets the journal file.
+     *
+     * @return The journal file
+     */
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Gets the policy deciding how often and how long apart deliveries are
+     * retried.
+     *
+     * @return The journal's retry policy
+     */
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * Opens the journal and starts delivering the messages left in it.
+     *
+     * @param sender Delivers the messages
+     * @throws IOException If the journal can't be read, or another process
+     * has it open
+     * @throws IllegalStateException If the journal is already open
+     */
+    public void open(final Sender sender) throws IOException {
+        final List<Entry> heads = new ArrayList<Entry>();
+
+        synchronized (this) {
+            if (this.sender != null) {
+                throw new IllegalStateException("Journal is already open");
+            }
+
+            if (file.getParent() != null) {
+                Files.createDirectories(file.getParent());
+            }
+
+            lockChannel = FileChannel.open(lockFile,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+
+            try {
+                lock = lockChannel.tryLock();
+            } catch (OverlappingFileLockException ex) {
+                // Open in another journal within this process
+                lock = null;
+            } catch (IOException ex) {
+                lockChannel.close();
+                throw ex;
+            }
+
+            if (lock == null) {
+                lockChannel.close();
+                throw new IOException("Journal " + file + " is in use");
+            }
+
+            try {
+                for (Entry entry : replay()) {
+                    enqueue(entry);
+                }
+
+                // Drops the delivered messages and any partly written record
+                compact();
+            } catch (IOException ex) {
+                release();
+                throw ex;
+            }
+
+            this.sender = sender;
+
+            for (Deque<Entry> queue : queues.values()) {
+                heads.add(queue.peek());
+            }
+        }
+
+        for (Entry head : heads) {
+            deliver(head);
+        }
+    }
+
+    /**
+     * Closes the journal. Messages not yet delivered stay in the journal
+     * until it is next opened; a delivery in progress may complete, and the
+     * message be sent again then.
+     */
+    public void close() {
+        synchronized (this) {
+            if (sender == null) {
+                return;
+            }
+
+            sender = null;
+            queues.clear();
+            depth = 0;
+            release();
+        }
+    }
+
+    /**
+     * Appends a message to the journal, returning once it is on disk. The
+     * message is then delivered in the background.
+     *
+     * @param channelId The ID of the channel to send the message to
+     * @param body The message's JSON payload
+     * @throws IOException If the journal can't be written
+     * @throws IllegalStateException If the journal isn't open
+     */
+    public void append(final String channelId, final String body)
+            throws IOException {
+        final Entry entry;
+
+        synchronized (this) {
+            if (sender == null) {
+                throw new IllegalStateException("Journal is not open");
+            }
+
+            entry = new Entry(nextSequence, channelId, body,
+                    System.currentTimeMillis());
+
+            try {
+                write(channel, toRecord(entry));
+            } catch (JSONException ex) {
+                throw new IOException("Unable to write journal record", ex);
+            }
+
+            channel.force(false);
+            nextSequence++;
+            appended++;
+
+            if (!enqueue(entry)) {
+                // Delivered after the messages already waiting
+                return;
+            }
+        }
+
+        deliver(entry);
+    }
+
+    /**
+     * Gets the number of messages waiting to be delivered.
+     *
+     * @return The journal's depth
+     */
+    public synchronized int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Gets the number of messages waiting to be delivered to one channel.
+     *
+     * @param channelId The ID of the channel
+     * @return The channel's depth
+     */
+    public synchronized int getDepth(final String channelId) {
+        final Deque<Entry> queue = queues.get(channelId);
+        return queue == null ? 0 : queue.size();
+    }
+
+    /**
+     * Gets the depth of each channel with messages waiting.
+     *
+     * @return The number of messages waiting, keyed on channel ID
+     */
+    public synchronized Map<String, Integer> getDepths() {
+        final Map<String, Integer> depths
+                = new LinkedHashMap<String, Integer>();
+
+        for (Map.Entry<String, Deque<Entry>> queue : queues.entrySet()) {
+            depths.put(queue.getKey(), queue.getValue().size());
+        }
+
+        return depths;
+    }
+
+    /**
+     * Gets how long the oldest waiting message has been waiting, which shows
+     * how far behind delivery is.
+     *
+     * @return The age in milliseconds, or 0 if no messages are waiting
+     */
+    public synchronized long getOldestAgeMillis() {
+        long oldest = Long.MAX_VALUE;
+
+        for (Deque<Entry> queue : queues.values()) {
+            oldest = Math.min(oldest, queue.peek().sentAt);
+        }
+
+        return oldest == Long.MAX_VALUE
+                ? 0 : Math.max(0, System.currentTimeMillis() - oldest);
+    }
+
+    /**
+     * Gets the number of messages appended since the journal was created.
+     *
+     * @return The number of messages appended
+     */
+    public synchronized long getAppended() {
+        return appended;
+    }
+
+    /**
+     * Gets the number of messages delivered since the journal was created.
+     *
+     * @return The number of messages delivered
+     */
+    public synchronized long getDelivered() {
+        return delivered;
+    }
+
+    /**
+     * Gets the number of messages dropped because the server rejected them
+     * or the retry policy gave up on them.
+     *
+     * @return The number of messages dropped
+     */
+    public synchronized long getFailed() {
+        return failed;
+    }
+
+    /**
+     * Gets the number of delivery attempts which failed and were retried.
+     *
+     * @return The number of retries
+     */
+    public synchronized long getRetries() {
+        return retries;
+    }
+
+    /**
+     * Makes an attempt at delivering a message.
+     *
+     * @param entry The message, which must be at the head of its channel's
+     * queue
+     */
+    private void deliver(final Entry entry) {
+        final Sender current;
+
+        synchronized (this) {
+            current = sender;
+            entry.attempts++;
+        }
+
+        if (current == null) {
+            return;
+        }
+
+        CompletableFuture<Void> attempt;
+
+        try {
+            attempt = current.send(entry.channelId, entry.body);
+        } catch (RuntimeException ex) {
+            attempt = CompletableFuture.failedFuture(ex);
+        }
+
+        attempt.whenComplete((ignored, ex) -> onAttempt(current, entry,
+                ex instanceof CompletionException && ex.getCause() != null
+                ? ex.getCause() : ex));
+    }
+
+    /**
+     * Handles the outcome of a delivery attempt: records the message as
+     * delivered (or dropped) and moves on to the channel's next message, or
+     * schedules a retry.
+     *
+     * @param attemptedBy The sender which made the attempt
+     * @param entry The message
+     * @param ex The exception the attempt failed with, or <code>null</code>
+     * if the message was delivered
+     */
+    private void onAttempt(final Sender attemptedBy, final Entry entry,
+            final Throwable ex) {
+        final Entry next;
+        long delay = 0;
+
+        synchronized (this) {
+            if (sender != attemptedBy) {
+                // Closed (and maybe reopened) since the attempt was made
+                return;
+            }
+
+            if (ex != null && !isRejected(ex)
+                    && entry.attempts < retryPolicy.getMaxAttempts()) {
+                retries++;
+                entry.delayMillis = retryPolicy.nextDelay(entry.delayMillis);
+                delay = entry.delayMillis;
+                next = entry;
+            } else {
+                if (ex == null) {
+                    delivered++;
+                } else {
+                    failed++;
+                }
+
+                next = remove(entry);
+                record(entry);
+            }
+        }
+
+        if (next == null) {
+            return;
+        }
+
+        if (delay > 0) {
+            SCHEDULER.schedule(() -> deliver(next), delay,
+                    TimeUnit.MILLISECONDS);
+        } else {
+            deliver(next);
+        }
+    }
+
+    /**
+     * Determines whether a delivery failed because the server rejected the
+     * message itself, so that sending it again would fail the same way.
+     *
+     * @param ex The exception the delivery failed with
+     * @return <code>true</code> if the message should be dropped
+     */
+    private static boolean isRejected(final Throwable ex) {
+        if (!(ex instanceof HttpStatusException)) {
+            return false;
+        }
+
+        final int status = ((HttpStatusException) ex).getStatusCode();
+        return status >= 400 && status < 500 && status != 401
+                && status != 408 && status != 429;
+    }
+
+    /**
+     * Adds a message to the back of its channel's queue. The caller must
+     * hold the journal's lock.
+     *
+     * @param entry The message
+     * @return <code>true</code> if the message is at the head of the queue,
+     * and so should be delivered straight away
+     */
+    private boolean enqueue(final Entry entry) {
+        Deque<Entry> queue = queues.get(entry.channelId);
+
+        if (queue == null) {
+            queue = new ArrayDeque<Entry>();
+            queues.put(entry.channelId, queue);
+        }
+
+        queue.add(entry);
+        depth++;
+        return queue.size() == 1;
+    }
+
+    /**
+     * Removes a message from the head of its channel's queue. The caller
+     * must hold the journal's lock.
+     *
+     * @param entry The message
+     * @return The channel's next message, or <code>null</code> if there are
+     * none
+     */
+    private Entry remove(final Entry entry) {
+        final Deque<Entry> queue = queues.get(entry.channelId);
+        queue.poll();
+        depth--;
+
+        if (queue.isEmpty()) {
+            queues.remove(entry.channelId);
+            return null;
+        }
+
+        return queue.peek();
+    }
+
+    /**
+     * Records in the journal that a message is no longer waiting, compacting
+     * the journal if enough messages have been. The caller must hold the
+     * journal's lock.
+     *
+     * @param entry The message
+     */
+    private void record(final Entry entry) {
+        try {
+            final JSONObject record = new JSONObject();
+            record.put("Done", entry.sequence);
+            write(channel, record);
+
+            if (depth == 0) {
+                channel.truncate(0);
+                recordedSinceCompaction = 0;
+            } else if (++recordedSinceCompaction >= COMPACTION_THRESHOLD
+                    && recordedSinceCompaction >= depth) {
+                compact();
+            }
+        } catch (IOException | JSONException ex) {
+            // The message stays in the journal, and is sent again when the
+            // journal is next opened
+        }
+    }
+
+    /**
+     * Builds the journal record of a waiting message.
+     *
+     * @param entry The message
+     * @return The record
+     * @throws JSONException If the record can't be built
+     */
+    private static JSONObject toRecord(final Entry entry)
+            throws JSONException {
+        final JSONObject record = new JSONObject();
+        record.put("Seq", entry.sequence);
+        record.put("Channel", entry.channelId);
+        record.put("Body", entry.body);
+        record.put("Time", entry.sentAt);
+        return record;
+    }
+
+    /**
+     * Writes a record, as a line of JSON, to the end of a journal file.
+     *
+     * @param out The open file
+     * @param record The record
+     * @throws IOException If the file can't be written
+     * @throws JSONException If the record can't be serialised
+     */
+    private static void write(final FileChannel out, final JSONObject record)
+            throws IOException, JSONException {
+        final byte[] json = JsonBodyWriter.toBytes(record);
+        final ByteBuffer bytes = ByteBuffer.allocate(json.length + 1);
+        bytes.put(json).put((byte) '\n').flip();
+
+        while (bytes.hasRemaining()) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Reads the messages in the journal which haven't been delivered.
+     * Records which can't be parsed (such as one a process died while
+     * writing) are skipped.
+     *
+     * @return The waiting messages, in the order they were appended
+     * @throws IOException If the journal can't be read
+     */
+    private List<Entry> replay() throws IOException {
+        final Map<Long, Entry> entries = new TreeMap<Long, Entry>();
+
+        if (!Files.exists(file)) {
+            return new ArrayList<Entry>();
+        }
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                Files.newInputStream(file), StandardCharsets.UTF_8))) {
+            for (String line = reader.readLine(); line != null;
+                    line = reader.readLine()) {
+                final JSONObject record;
+
+                try {
+                    record = new JSONObject(line);
+                } catch (JSONException ex) {
+                    continue;
+                }
+
+                final long sequence = record.has("Seq")
+                        ? record.optLong("Seq") : record.optLong("Done");
+                nextSequence = Math.max(nextSequence, sequence + 1);
+
+                if (!record.has("Seq")) {
+                    entries.remove(sequence);
+                } else if (record.has("Channel") && record.has("Body")) {
+                    entries.put(sequence, new Entry(sequence,
+                            record.optString("Channel"),
+                            record.optString("Body"),
+                            record.optLong("Time")));
+                }
+            }
+        }
+
+        return new ArrayList<Entry>(entries.values());
+    }
+
+    /**
+     * Rewrites the journal with only the messages still waiting, replacing
+     * the old file atomically so that a crash part way through loses
+     * nothing. The caller must hold the journal's lock.
+     *
+     * @throws IOException If the journal can't be written
+     */
+    private void compact() throws IOException {
+        final List<Entry> waiting = new ArrayList<Entry>(depth);
+
+        for (Deque<Entry> queue : queues.values()) {
+            waiting.addAll(queue);
+        }
+
+        Collections.sort(waiting, new Comparator<Entry>() {
+            @Override
+            public int compare(final Entry a, final Entry b) {
+                return Long.compare(a.sequence, b.sequence);
+            }
+        });
+
+        final Path temporary = file.resolveSibling(
+                file.getFileName() + ".tmp");
+
+        try (FileChannel out = FileChannel.open(temporary,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+            for (Entry entry : waiting) {
+                write(out, toRecord(entry));
+            }
+
+            out.force(false);
+        } catch (JSONException ex) {
+            throw new IOException("Unable to write journal record", ex);
+        }
+
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+
+        if (channel != null) {
+            channel.close();
+        }
+
+        channel = FileChannel.open(file, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        recordedSinceCompaction = 0;
+    }
+
+    /**
+     * Closes the journal file and releases the lock. The caller must hold
+     * the journal's lock.
+     */
+    private void release() {
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+
+            if (lock != null) {
+                lock.release();
+            }
+
+            lockChannel.close();
+        } catch (IOException ex) {
+            // Nothing more can be done; the lock goes with the process
+        }
+
+        channel = null;
+        lock = null;
+        lockChannel = null;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public synchronized String toString() {
+        return "OutboundJournal{depth=" + depth + ", appended=" + appended
+                + ", delivered=" + delivered + ", failed=" + failed
+                + ", retries=" + retries + '}';
+    }
+
+}
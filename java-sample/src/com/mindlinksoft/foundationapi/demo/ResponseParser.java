@@ -0,0 +1,22 @@
+package com.mindlinksoft.foundationapi.demo;
+
+import org.json.JSONException;
+import org.json.JSONTokener;
+
+/**
+ * Converts the JSON body of an API response into a result object.
+ *
+ * @param <T> The type of result produced
+ */
+public interface ResponseParser<T> {
+
+    /**
+     * Parses a response body.
+     *
+     * @param tokener A tokener positioned at the start of the response body
+     * @return The result corresponding to the response
+     * @throws JSONException If the response is malformed
+     */
+    T parse(JSONTokener tokener) throws JSONException;
+
+}
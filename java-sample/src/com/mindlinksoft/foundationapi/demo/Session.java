@@ -0,0 +1,378 @@
+package com.mindlinksoft.foundationapi.demo;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.mindlinksoft.foundationapi.demo.cluster.Cluster;
+import com.mindlinksoft.foundationapi.demo.cluster.Node;
+import com.mindlinksoft.foundationapi.demo.metrics.MetricsRegistry;
+import com.mindlinksoft.foundationapi.demo.resilience.AdaptiveConcurrencyLimiter;
+import com.mindlinksoft.foundationapi.demo.resilience.CircuitBreaker;
+import com.mindlinksoft.foundationapi.demo.resilience.RateLimiter;
+import com.mindlinksoft.foundationapi.demo.transport.ConnectionPool;
+import com.mindlinksoft.foundationapi.demo.transport.InMemoryFoundationApi;
+import com.mindlinksoft.foundationapi.demo.transport.Transport;
+
+/**
+ * An authenticated session with the Foundation API, which any number of
+ * agents can be built on.
+ * <p>
+ * The session holds everything which depends only on who is talking to which
+ * servers: the credentials, the servers themselves, the transport (and so
+ * the connections), the session token for each server, the circuit breaker,
+ * the rate and concurrency limits, and the metrics registry. A process using
+ * the collaboration, provisioning and management APIs with the same
+ * credentials can build all three agents on one session, so that it
+ * authenticates once rather than three times and the limits apply to the
+ * traffic as a whole:
+ *
+ * <pre>
+ * Session session = new Session(url, username, password, agentId);
+ * SimpleCollaborationAgent collaboration
+ *         = new SimpleCollaborationAgent(session);
+ * ProvisioningAgent provisioning = new ProvisioningAgent(session);
+ * ManagementAgent management = new ManagementAgent(session);
+ * </pre>
+ *
+ * Changing a shared setting through any agent (for example
+ * {@link AuthenticatingAgent#setCircuitBreaker(CircuitBreaker)}) changes it
+ * for every agent on the session. Retry policies and request coalescing
+ * remain per agent.
+ * <p>
+ * Sessions can keep their tokens in a {@link TokenCache}, so that a
+ * restarted process needn't authenticate before its first request.
+ */
+public class Session {
+
+    /** The API servers to send requests to. */
+    private final Cluster cluster;
+    /** The username to use when authenticating to the API. */
+    private final String username;
+    /** The password to use when authenticating to the API. */
+    private final String password;
+    /** The agent to request when authenticating to the API. */
+    private final String agent;
+    /** Sends requests to the API (normally a {@link ConnectionPool}). */
+    private final Transport transport;
+    /** Obtains and refreshes the session token on each node. */
+    private final ConcurrentMap<Node, TokenManager> tokens
+            = new ConcurrentHashMap<Node, TokenManager>();
+    /** Fails requests fast while the API is unavailable. */
+    private volatile CircuitBreaker circuitBreaker = new CircuitBreaker();
+    /** Rate limits for each API area (e.g. <code>Provisioning</code>). */
+    private final ConcurrentMap<String, RateLimiter> rateLimiters
+            = new ConcurrentHashMap<String, RateLimiter>();
+    /** Records request metrics for each endpoint (or <code>null</code>). */
+    private volatile MetricsRegistry metricsRegistry
+            = MetricsRegistry.getDefault();
+    /** Adapts the number of requests in flight to the server's capacity. */
+    private volatile AdaptiveConcurrencyLimiter concurrencyLimiter
+            = new AdaptiveConcurrencyLimiter();
+    /** Persists the session's tokens (or <code>null</code>). */
+    private volatile TokenCache tokenCache;
+
+    /**
+     * Creates a new {@link Session} which sends its requests through the
+     * default {@link ConnectionPool}.
+     *
+     * @param baseUrl The base address for the Foundation API. Agents will
+     * append method names automatically. For example, a base URL of
+     * <code>http://api.company.com</code> will result in URLs constructed such
+     * as <code>http://api.company.com/Authentication/v1/Tokens</code>.
+     * @param username The username to give to the API when authenticating
+     * @param password The password to give to the API when authenticating
+     * @param agent The ID of the agent to use. May be an empty string if
+     * authenticating as a super user.
+     */
+    public Session(final String baseUrl, final String username,
+            final String password, final String agent) {
+        this(new Cluster(baseUrl), username, password, agent,
+                ConnectionPool.getDefault());
+    }
+
+    /**
+     * Creates a new {@link Session}.
+     *
+     * @param cluster The API servers to send requests to
+     * @param username The username to give to the API when authenticating
+     * @param password The password to give to the API when authenticating
+     * @param agent The ID of the agent to use. May be an empty string if
+     * authenticating as a super user.
+     * @param transport The transport to send requests through: normally a
+     * {@link ConnectionPool}, or an {@link InMemoryFoundationApi} to run
+     * offline
+     */
+    public Session(final Cluster cluster, final String username,
+            final String password, final String agent,
+            final Transport transport) {
+        this.cluster = cluster;
+        this.username = username;
+        this.password = password;
+        this.agent = agent;
+        this.transport = transport;
+    }
+
+    /**
+     * Gets the API servers the session sends requests to.
+     *
+     * @return The session's cluster
+     */
+    public Cluster getCluster() {
+        return cluster;
+    }
+
+    /**
+     * Gets the username the session authenticates with.
+     *
+     * @return The username
+     */
+    public String getUsername() {
+        return username;
+    }
+
+    /**
+     * Gets the ID of the agent the session authenticates as.
+     *
+     * @return The agent ID (may be empty for a super user)
+     */
+    public String getAgent() {
+        return agent;
+    }
+
+    /**
+     * Gets the password the session authenticates with.
+     *
+     * @return The password
+     */
+    String getPassword() {
+        return password;
+    }
+
+    /**
+     * Gets the transport the session sends requests through.
+     *
+     * @return The session's transport
+     */
+    public Transport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Gets the managers of the session's token on each node it has talked
+     * to.
+     *
+     * @return A map of node to its token manager
+     */
+    public Map<Node, TokenManager> getTokenManagers() {
+        return Collections.unmodifiableMap(tokens);
+    }
+
+    /**
+     * Gets the manager of the session's token on the given node, creating it
+     * if no agent on the session has talked to the node yet. A new manager
+     * starts with the node's token from the session's token cache, if it has
+     * one, and writes each token it obtains back to the cache.
+     *
+     * @param node A node of the session's cluster
+     * @param authenticator Obtains new tokens from the node, if the manager
+     * needs to be created
+     * @return The node's token manager
+     */
+    TokenManager getTokenManager(final Node node,
+            final TokenManager.Authenticator authenticator) {
+        TokenManager manager = tokens.get(node);
+
+        if (manager == null) {
+            final TokenCache cache = tokenCache;
+            final TokenManager created;
+
+            if (cache == null) {
+                created = new TokenManager(authenticator);
+            } else {
+                final String key = TokenCache.getKey(node.getBaseUrl(),
+                        username, agent);
+                created = new TokenManager(() -> authenticator.authenticate()
+                        .thenApply(token -> {
+                            store(cache, key, token);
+                            return token;
+                        }));
+                restore(cache, key, created);
+            }
+
+            manager = tokens.putIfAbsent(node, created);
+
+            if (manager == null) {
+                manager = created;
+            }
+        }
+
+        return manager;
+    }
+
+    /**
+     * Gets the cache the session's tokens are kept in.
+     *
+     * @return The session's token cache, or <code>null</code> if tokens
+     * aren't cached
+     */
+    public TokenCache getTokenCache() {
+        return tokenCache;
+    }
+
+    /**
+     * Sets the cache the session's tokens are kept in. Must be set before any
+     * agents are built on the session: they restore their tokens from the
+     * cache as they are constructed.
+     *
+     * @param tokenCache The cache to use, or <code>null</code> to stop
+     * caching tokens
+     */
+    public void setTokenCache(final TokenCache tokenCache) {
+        this.tokenCache = tokenCache;
+    }
+
+    /**
+     * Restores a token from the cache into a new token manager. The cache is
+     * only an optimisation, so a token which can't be read is simply
+     * obtained from the server instead.
+     *
+     * @param cache The token cache
+     * @param key The key the token is cached under
+     * @param manager The new token manager
+     */
+    private static void restore(final TokenCache cache, final String key,
+            final TokenManager manager) {
+        try {
+            final TokenCache.CachedToken cached = cache.load(key);
+
+            if (cached != null) {
+                manager.restore(cached.getToken(), cached.getIssuedAt());
+            }
+        } catch (IOException ex) {
+            // Authenticate as though nothing were cached
+        }
+    }
+
+    /**
+     * Writes a newly obtained token to the cache. Failing to do so only
+     * costs the next process an authentication, so doesn't fail the request.
+     *
+     * @param cache The token cache
+     * @param key The key to cache the token under
+     * @param token The token
+     */
+    private static void store(final TokenCache cache, final String key,
+            final String token) {
+        try {
+            cache.store(key, token, System.currentTimeMillis());
+        } catch (IOException ex) {
+            // The token will simply be obtained again after a restart
+        }
+    }
+
+    /**
+     * Gets the circuit breaker guarding the session's requests.
+     *
+     * @return The session's circuit breaker
+     */
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * Sets the circuit breaker guarding the session's requests.
+     *
+     * @param circuitBreaker The circuit breaker to use
+     */
+    public void setCircuitBreaker(final CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    /**
+     * Limits the rate of the session's requests to one area of the API.
+     *
+     * @param area The API area, i.e. the first segment of its addresses
+     * @param rateLimiter The rate limiter to apply, or <code>null</code> to
+     * remove the area's limit
+     * @see Endpoints#getArea(String)
+     */
+    public void setRateLimiter(final String area,
+            final RateLimiter rateLimiter) {
+        if (rateLimiter == null) {
+            rateLimiters.remove(area);
+        } else {
+            rateLimiters.put(area, rateLimiter);
+        }
+    }
+
+    /**
+     * Gets the rate limit applied to one area of the API.
+     *
+     * @param area The API area
+     * @return The area's rate limiter, or <code>null</code> if it isn't
+     * limited
+     */
+    public RateLimiter getRateLimiter(final String area) {
+        return rateLimiters.get(area);
+    }
+
+    /**
+     * Gets the rate limits applied to each area of the API. Areas without
+     * an entry are not rate limited.
+     *
+     * @return A map of API area to its rate limiter
+     */
+    public Map<String, RateLimiter> getRateLimiters() {
+        return Collections.unmodifiableMap(rateLimiters);
+    }
+
+    /**
+     * Gets the limiter adapting the number of requests the session has in
+     * flight.
+     *
+     * @return The session's concurrency limiter, or <code>null</code> if
+     * concurrency isn't limited
+     */
+    public AdaptiveConcurrencyLimiter getConcurrencyLimiter() {
+        return concurrencyLimiter;
+    }
+
+    /**
+     * Sets the limiter adapting the number of requests the session has in
+     * flight. By default, the session has one which starts at the default
+     * pool's per-host connection limit (see
+     * {@link AdaptiveConcurrencyLimiter#DEFAULT_INITIAL_LIMIT}).
+     *
+     * @param concurrencyLimiter The limiter to use, or <code>null</code> to
+     * only limit concurrency by the size of the connection pool
+     */
+    public void setConcurrencyLimiter(
+            final AdaptiveConcurrencyLimiter concurrencyLimiter) {
+        this.concurrencyLimiter = concurrencyLimiter;
+    }
+
+    /**
+     * Gets the registry the session's requests are recorded in.
+     *
+     * @return The session's metrics registry, or <code>null</code> if metrics
+     * aren't recorded
+     */
+    public MetricsRegistry getMetricsRegistry() {
+        return metricsRegistry;
+    }
+
+    /**
+     * Sets the registry the session's requests are recorded in. By default
+     * sessions share {@link MetricsRegistry#getDefault()}.
+     *
+     * @param metricsRegistry The registry to use, or <code>null</code> to
+     * stop recording metrics
+     */
+    public void setMetricsRegistry(final MetricsRegistry metricsRegistry) {
+        this.metricsRegistry = metricsRegistry;
+    }
+
+}
@@ -1,22 +1,90 @@
 package com.mindlinksoft.foundationapi.demo;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONString;
 
+import com.mindlinksoft.foundationapi.demo.cluster.Cluster;
+import com.mindlinksoft.foundationapi.demo.resilience.Deadline;
+import com.mindlinksoft.foundationapi.demo.resilience.Priority;
 import com.mindlinksoft.foundationapi.demo.searchcriteria.MessageSearchCriteria;
+import com.mindlinksoft.foundationapi.demo.transport.BatchLoader;
+import com.mindlinksoft.foundationapi.demo.transport.JsonBodyWriter;
+import com.mindlinksoft.foundationapi.demo.transport.Transport;
 
 /**
  * Agent for accessing the "simple" (non-streaming) collaboration methods.
+ * <p>
+ * Channel lookups may be batched (see
+ * {@link #setChannelBatching(long, TimeUnit)}), so that code resolving many
+ * channels one at a time makes a handful of requests rather than one each.
+ * <p>
+ * Messages may be sent through an {@link OutboundJournal} (see
+ * {@link #setOutboundJournal(OutboundJournal)}), so that they are kept on disk
+ * and delivered once the server is reachable rather than failing.
  */
 public class SimpleCollaborationAgent extends AuthenticatingAgent {
 
+    /** The default largest number of channels looked up in one batch. */
+    public static final int DEFAULT_MAX_CHANNEL_BATCH = 100;
+
+    /**
+     * The number of channels in a listing which costs about as much as one
+     * request: a batch is loaded from the listing if it asks for at least
+     * this fraction of the channels listed last time.
+     */
+    private static final int CHANNELS_PER_REQUEST = 20;
+
+    /** The address of a channel. */
+    private static final UriTemplate CHANNEL = UriTemplate.compile(
+            "/Collaboration/v1/Channels/{channelId}");
+
+    /** The address of a channel's state. */
+    private static final UriTemplate CHANNEL_STATE = UriTemplate.compile(
+            "/Collaboration/v1/Channels/{channelId}/State");
+
+    /** The address messages are sent to. */
+    private static final UriTemplate MESSAGES = UriTemplate.compile(
+            "/Collaboration/v1/Channels/{channelId}/Messages");
+
+    /** The normalised address messages are sent to. */
+    private static final String MESSAGES_ENDPOINT
+            = Endpoints.normalise(MESSAGES.expand("channel"));
+
+    /** The address of all the agent's channels. */
+    private static final String CHANNELS = "/Collaboration/v1/Channels";
+
+    /** The address of a page of a channel's history. */
+    private static final UriTemplate HISTORY = UriTemplate.compile(
+            "/Collaboration/v1/Channels/{channelId}/Messages"
+            + "?take={take}&before={before}");
+
+    /** The address of the agent's own state in a channel. */
+    private static final UriTemplate AGENT_STATE = UriTemplate.compile(
+            "/Collaboration/v1/Channels/{channelId}/Me");
+
+    /** Batches channel lookups (or <code>null</code> if disabled). */
+    private volatile BatchLoader<String, Channel> channelLoader;
+
+    /** The number of channels in the last listing (0 if not yet listed). */
+    private volatile int listedChannels;
+
+    /** Keeps messages until delivered (or <code>null</code> if disabled). */
+    private volatile OutboundJournal outboundJournal;
+
     /**
      * Creates a new {@link SimpleCollaborationAgent}.
      *
@@ -33,6 +101,148 @@ public class SimpleCollaborationAgent extends AuthenticatingAgent {
         super(baseUrl, username, password, agent);
     }
 
+    /**
+     * Creates a new {@link SimpleCollaborationAgent} which sends its requests
+     * through the given transport.
+     *
+     * @param baseUrl The base address for the Foundation API. The agent will
+     * append method names automatically. For example, a base URL of
+     * <code>http://api.company.com</code> will result in URLs constructed such
+     * as <code>http://api.company.com/Authentication/v1/Tokens</code>.
+     * @param username The username to give to the API when authenticating
+     * @param password The username to give to the API when authenticating
+     * @param agent The ID of the agent to use.
+     * @param transport The transport to send requests through
+     */
+    public SimpleCollaborationAgent(final String baseUrl, final String username,
+            final String password, final String agent,
+            final Transport transport) {
+        super(baseUrl, username, password, agent, transport);
+    }
+
+    /**
+     * Creates a new {@link SimpleCollaborationAgent} which spreads its requests
+     * across a cluster of API servers.
+     *
+     * @param cluster The API servers to send requests to
+     * @param username The username to give to the API when authenticating
+     * @param password The username to give to the API when authenticating
+     * @param agent The ID of the agent to use.
+     * @param transport The transport to send requests through
+     */
+    public SimpleCollaborationAgent(final Cluster cluster,
+            final String username, final String password, final String agent,
+            final Transport transport) {
+        super(cluster, username, password, agent, transport);
+    }
+
+    /**
+     * Creates a new {@link SimpleCollaborationAgent} which makes its requests
+     * in the given session, sharing its token, connections, limits and metrics
+     * with every other agent on the session.
+     *
+     * @param session The session to make requests in
+     */
+    public SimpleCollaborationAgent(final Session session) {
+        super(session);
+    }
+
+    /**
+     * Sets whether or not channel lookups are batched. When enabled, calls
+     * to {@link #getChannelInformation(String)} and
+     * {@link #getChannelInformationAsync(String)} made within the given
+     * window of each other are answered together: from a single listing of
+     * the agent's channels if the batch covers enough of them, or otherwise
+     * by fetching each channel in parallel (within the agent's usual limits).
+     * Channels missing from the listing, or every channel if the listing
+     * fails, are fetched individually, so a lookup fails exactly as it would
+     * unbatched. Disabled by default.
+     *
+     * @param window The time to wait for more lookups after the first of a
+     * batch, or 0 to disable batching
+     * @param unit The unit of the window
+     * @see BatchLoader
+     */
+    public void setChannelBatching(final long window, final TimeUnit unit) {
+        channelLoader = window <= 0 ? null : new BatchLoader<String, Channel>(
+                this::loadChannels, window, unit, DEFAULT_MAX_CHANNEL_BATCH);
+    }
+
+    /**
+     * Sets the journal messages are sent through. Once set, sending a
+     * message appends it to the journal and returns as soon as it is on
+     * disk, without waiting for the server; the journal delivers it in the
+     * background, retrying until the server accepts it (see
+     * {@link OutboundJournal}). A send therefore only fails if the journal
+     * can't be written.
+     * <p>
+     * The journal is opened by this method, and any messages left in it by a
+     * previous process are delivered. The journal previously set, if any, is
+     * closed.
+     *
+     * @param journal The journal to use, or <code>null</code> to send
+     * messages directly
+     * @throws IOException If the journal can't be opened
+     */
+    public void setOutboundJournal(final OutboundJournal journal)
+            throws IOException {
+        if (journal != null) {
+            journal.open((channelId, body) -> sendPayloadAsync(
+                    MESSAGES.expand(channelId), "POST",
+                    (JSONString) () -> body, null));
+        }
+
+        final OutboundJournal previous = outboundJournal;
+        outboundJournal = journal;
+
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    /**
+     * Gets the journal messages are sent through.
+     *
+     * @return The agent's journal (whose statistics show how many messages
+     * are waiting), or <code>null</code> if messages are sent directly
+     */
+    public OutboundJournal getOutboundJournal() {
+        return outboundJournal;
+    }
+
+    /**
+     * Gets the loader batching channel lookups.
+     *
+     * @return The agent's channel loader (whose statistics show how many
+     * lookups were batched), or <code>null</code> if batching is disabled
+     */
+    public BatchLoader<String, Channel> getChannelLoader() {
+        return channelLoader;
+    }
+
+    /**
+     * Sends messages and alerts as {@link Priority#INTERACTIVE}, as someone
+     * is normally waiting on them, unless the agent has been given
+     * {@link Priority#BULK} priority.
+     *
+     * @param address The address of the API method, including any GET
+     * parameters
+     * @param method The HTTP method to use
+     * @return The request's priority
+     */
+    @Override
+    protected Priority getPriority(final String address,
+            final String method) {
+        final Priority priority = getPriority();
+
+        if (priority != Priority.BULK && "POST".equals(method)
+                && Endpoints.normalise(address).equals(MESSAGES_ENDPOINT)) {
+            return Priority.INTERACTIVE;
+        }
+
+        return priority;
+    }
+
     /**
      * Sends a message to the specified channel.
      *
@@ -128,7 +338,7 @@ public class SimpleCollaborationAgent extends AuthenticatingAgent {
             final JSONObject payload = new JSONObject();
             payload.put("MessageParts", messageParts);
 
-            getResponse("/Collaboration/v1/Channels/" + channelId + "/Messages", "POST", payload.toString());
+            postMessage(channelId, payload);
         } catch (JSONException ex) {
             throw new IOException("Unable to construct JSON payload", ex);
         }
@@ -151,36 +361,180 @@ public class SimpleCollaborationAgent extends AuthenticatingAgent {
             final boolean alert, boolean hasClassification,
             boolean hasSecurityContext) throws IOException {
         try {
-            final JSONObject payload = new JSONObject();
-            payload.put("IsAlert", alert);
-            payload.put("Subject", subject);
-            payload.put("Text", message);
+            postMessage(channelId, getMessagePayload(subject, message, alert,
+                    hasClassification, hasSecurityContext));
+        } catch (JSONException ex) {
+            throw new IOException("Unable to construct JSON payload", ex);
+        }
+    }
 
-            if (hasClassification) {
-                final JSONOrderedObject classification = new JSONOrderedObject();
-                classification.put("__type", "Classification:http://schemas.fcg.im/foundation/v1/collaboration");
-                classification.put("Token", "primary.us.confidential,disseminations.display,disseminations.display.identity-can");
+    /**
+     * Sends a message to the specified channel without blocking the calling
+     * thread.
+     *
+     * @param channelId The ID of the channel to send a message to
+     * @param message The content of the message to send
+     * @return A future which completes once the message has been sent
+     * @see #sendMessage(String, String)
+     */
+    public CompletableFuture<Void> sendMessageAsync(final String channelId,
+            final String message) {
+        return sendMessageAsync(channelId, null, message, false, false, false);
+    }
 
-                payload.put("Classification", classification);
-            }
+    /**
+     * Sends an alert message to the specified channel without blocking the
+     * calling thread.
+     *
+     * @param channelId The ID of the channel to send a message to
+     * @param message The content of the message to send
+     * @return A future which completes once the alert has been sent
+     * @see #sendAlert(String, String)
+     */
+    public CompletableFuture<Void> sendAlertAsync(final String channelId,
+            final String message) {
+        return sendMessageAsync(channelId, null, message, true, false, false);
+    }
 
-            if (hasSecurityContext) {
-                final JSONOrderedObject securityContext = new JSONOrderedObject();
-                securityContext.put("__type", "SecurityContext:http://schemas.fcg.im/foundation/v1/collaboration");
-                securityContext.put("Id", "coi2");
+    /**
+     * Sends a story message to the specified channel without blocking the
+     * calling thread.
+     *
+     * @param channelId The ID of the channel to send a message to
+     * @param subject The subject of the message
+     * @param body The body of the message
+     * @return A future which completes once the story has been sent
+     * @see #sendStory(String, String, String)
+     */
+    public CompletableFuture<Void> sendStoryAsync(final String channelId,
+            final String subject, final String body) {
+        return sendMessageAsync(channelId, subject, body, false, false, false);
+    }
 
-                final JSONOrderedObject[] securityContexts = { securityContext };
+    /**
+     * Sends a message to the specified channel without blocking the calling
+     * thread.
+     *
+     * @param channelId The ID of the channel to send a message to
+     * @param subject The subject of the story or <code>null</code> for a non-
+     * story message
+     * @param message The content of the message to send
+     * @param alert Whether to send the message as an alert or not
+     * @param hasClassification A value indicating whether or not the message has a classification
+     * @param hasSecurityContext A value indicating whether or not the message has a security context
+     * @return A future which completes once the message has been sent, or
+     * exceptionally with an {@link IOException} if it can't be sent
+     */
+    protected CompletableFuture<Void> sendMessageAsync(final String channelId,
+            final String subject, final String message,
+            final boolean alert, boolean hasClassification,
+            boolean hasSecurityContext) {
+        final JSONObject payload;
 
-                payload.put("SecurityContexts", securityContexts);
-            }
+        try {
+            payload = getMessagePayload(subject, message, alert,
+                    hasClassification, hasSecurityContext);
+        } catch (JSONException ex) {
+            return CompletableFuture.failedFuture(
+                    new IOException("Unable to construct JSON payload", ex));
+        }
+
+        return postMessageAsync(channelId, payload);
+    }
+
+    /**
+     * Posts a message payload to a channel, through the outbound journal if
+     * there is one.
+     *
+     * @param channelId The ID of the channel to send the message to
+     * @param payload The message payload
+     * @throws IOException If the message can't be sent (or journalled)
+     * @throws JSONException If the payload can't be serialised
+     */
+    private void postMessage(final String channelId, final JSONObject payload)
+            throws IOException, JSONException {
+        final OutboundJournal journal = outboundJournal;
+
+        if (journal != null) {
+            journal.append(channelId, new String(
+                    JsonBodyWriter.toBytes(payload), StandardCharsets.UTF_8));
+        } else {
+            sendPayload(MESSAGES.expand(channelId), "POST", payload, null);
+        }
+    }
+
+    /**
+     * Posts a message payload to a channel without waiting for the server,
+     * through the outbound journal if there is one. Journalling the message
+     * blocks until it is on disk.
+     *
+     * @param channelId The ID of the channel to send the message to
+     * @param payload The message payload
+     * @return A future which completes once the message has been sent (or
+     * journalled)
+     */
+    private CompletableFuture<Void> postMessageAsync(final String channelId,
+            final JSONObject payload) {
+        final OutboundJournal journal = outboundJournal;
 
-            getResponse("/Collaboration/v1/Channels/" + channelId + "/Messages",
-                    "POST", payload.toString());
+        if (journal == null) {
+            return sendPayloadAsync(MESSAGES.expand(channelId), "POST",
+                    payload, null);
+        }
+
+        try {
+            postMessage(channelId, payload);
+            return CompletableFuture.completedFuture(null);
+        } catch (IOException ex) {
+            return CompletableFuture.failedFuture(ex);
         } catch (JSONException ex) {
-            throw new IOException("Unable to construct JSON payload", ex);
+            return CompletableFuture.failedFuture(
+                    new IOException("Unable to construct JSON payload", ex));
         }
     }
 
+    /**
+     * Builds the JSON payload used to send a message.
+     *
+     * @param subject The subject of the story or <code>null</code> for a non-
+     * story message
+     * @param message The content of the message to send
+     * @param alert Whether to send the message as an alert or not
+     * @param hasClassification A value indicating whether or not the message has a classification
+     * @param hasSecurityContext A value indicating whether or not the message has a security context
+     * @return The message payload
+     * @throws JSONException If the payload can't be constructed
+     */
+    protected JSONObject getMessagePayload(final String subject,
+            final String message, final boolean alert,
+            final boolean hasClassification, final boolean hasSecurityContext)
+            throws JSONException {
+        final JSONObject payload = new JSONObject();
+        payload.put("IsAlert", alert);
+        payload.put("Subject", subject);
+        payload.put("Text", message);
+
+        if (hasClassification) {
+            final JSONOrderedObject classification = new JSONOrderedObject();
+            classification.put("__type", "Classification:http://schemas.fcg.im/foundation/v1/collaboration");
+            classification.put("Token", "primary.us.confidential,disseminations.display,disseminations.display.identity-can");
+
+            payload.put("Classification", classification);
+        }
+
+        if (hasSecurityContext) {
+            final JSONOrderedObject securityContext = new JSONOrderedObject();
+            securityContext.put("__type", "SecurityContext:http://schemas.fcg.im/foundation/v1/collaboration");
+            securityContext.put("Id", "coi2");
+
+            final JSONOrderedObject[] securityContexts = { securityContext };
+
+            payload.put("SecurityContexts", securityContexts);
+        }
+
+        return payload;
+    }
+
     /**
      * Retrieves the metadata associated with the agent.
      *
@@ -190,14 +544,27 @@ public class SimpleCollaborationAgent extends AuthenticatingAgent {
      */
     public Map<String, String> getMetadata() throws IOException {
         try {
-            final JSONArray response = new JSONArray(
-                    getResponse("/Collaboration/v1/MetaData", "GET", null));
+            final JSONArray response = getResponse(
+                    "/Collaboration/v1/MetaData", "GET", null, JSON_ARRAY);
             return getMap(response);
         } catch (JSONException ex) {
             throw new IOException("Unable to deserialise JSON response", ex);
         }
     }
 
+    /**
+     * Retrieves the metadata associated with the agent without blocking the
+     * calling thread.
+     *
+     * @return A future which completes with a map containing arbitrary
+     * metadata assigned to the agent
+     * @see #getMetadata()
+     */
+    public CompletableFuture<Map<String, String>> getMetadataAsync() {
+        return getResponseAsync("/Collaboration/v1/MetaData", "GET", null,
+                tokener -> getMap(new JSONArray(tokener)));
+    }
+
     /**
      * Retrieves the set of all channels that the current agent is provisioned
      * for.
@@ -208,23 +575,27 @@ public class SimpleCollaborationAgent extends AuthenticatingAgent {
      * agent's provisioned channels
      */
     public Collection<Channel> getChannels() throws IOException {
-        final List<Channel> channels
-                = new ArrayList<Channel>();
-
         try {
-            final JSONArray response = new JSONArray(getResponse(
-                    "/Collaboration/v1/Channels",
-                    "GET", null));
+            final JSONArray response = getResponse(CHANNELS, "GET", null,
+                    JSON_ARRAY);
 
-            for (int i = 0; i < response.length(); i++) {
-                channels.add(getChannelInformation(
-                        (JSONObject) response.get(i)));
-            }
+            return getChannels(response);
         } catch (JSONException ex) {
             throw new IOException("Unable to deserialise JSON response", ex);
         }
+    }
 
-        return channels;
+    /**
+     * Retrieves the set of all channels that the current agent is provisioned
+     * for without blocking the calling thread.
+     *
+     * @return A future which completes with a collection of {@link Channel}
+     * instances corresponding to the agent's provisioned channels
+     * @see #getChannels()
+     */
+    public CompletableFuture<Collection<Channel>> getChannelsAsync() {
+        return getResponseAsync(CHANNELS, "GET", null,
+                tokener -> getChannels(new JSONArray(tokener)));
     }
 
     /**
@@ -244,9 +615,9 @@ public class SimpleCollaborationAgent extends AuthenticatingAgent {
         try {
             final JSONObject object = new JSONObject();
             criteria.putData(object);
-            final JSONArray response = new JSONArray(
-                    getResponse("/Collaboration/v1/Channels/Search", "POST",
-                    object.toString()));
+            final JSONArray response = sendPayload(
+                    "/Collaboration/v1/Channels/Search", "POST",
+                    object, JSON_ARRAY);
 
             for (int i = 0; i < response.length(); i++) {
                 entries.add(getSearchResultSet((JSONObject) response.get(i)));
@@ -271,10 +642,17 @@ public class SimpleCollaborationAgent extends AuthenticatingAgent {
      */
     public Channel getChannelInformation(final String channelId)
             throws IOException {
+        final BatchLoader<String, Channel> loader = channelLoader;
+
+        if (loader != null) {
+            final Deadline deadline = getDeadline();
+            return (deadline == null ? Deadline.none() : deadline).await(
+                    loader.load(channelId), "looking up " + channelId);
+        }
+
         try {
-            final JSONObject response = new JSONObject(getResponse(
-                    "/Collaboration/v1/Channels/" + channelId,
-                    "GET", null));
+            final JSONObject response = getResponse(
+                    CHANNEL.expand(channelId), "GET", null, JSON_OBJECT);
 
             return getChannelInformation(response);
         } catch (JSONException ex) {
@@ -282,6 +660,94 @@ public class SimpleCollaborationAgent extends AuthenticatingAgent {
         }
     }
 
+    /**
+     * Retrieves information for the channel with the channel ID without
+     * blocking the calling thread.
+     *
+     * @param channelId The ID of the channel to retrieve information for
+     * @return A future which completes with a {@link Channel} object
+     * describing the channel
+     * @see #getChannelInformation(String)
+     */
+    public CompletableFuture<Channel> getChannelInformationAsync(
+            final String channelId) {
+        final BatchLoader<String, Channel> loader = channelLoader;
+
+        return loader != null ? loader.load(channelId)
+                : fetchChannelInformationAsync(channelId);
+    }
+
+    /**
+     * Fetches information for a single channel without blocking, bypassing
+     * any batching.
+     *
+     * @param channelId The ID of the channel to retrieve information for
+     * @return A future which completes with the channel
+     */
+    private CompletableFuture<Channel> fetchChannelInformationAsync(
+            final String channelId) {
+        return getResponseAsync(CHANNEL.expand(channelId), "GET", null,
+                tokener -> getChannelInformation(new JSONObject(tokener)));
+    }
+
+    /**
+     * Loads a batch of channel lookups: from a listing of every channel if
+     * the batch asks for enough of them, and otherwise one at a time. Should
+     * the listing fail, each channel is fetched on its own instead.
+     *
+     * @param channelIds The channels to look up
+     * @return A future for each channel
+     */
+    private Map<String, CompletableFuture<Channel>> loadChannels(
+            final Set<String> channelIds) {
+        final Map<String, CompletableFuture<Channel>> channels
+                = new HashMap<String, CompletableFuture<Channel>>();
+
+        if (channelIds.size() < 2 || channelIds.size() * CHANNELS_PER_REQUEST
+                < listedChannels) {
+            for (String channelId : channelIds) {
+                channels.put(channelId,
+                        fetchChannelInformationAsync(channelId));
+            }
+
+            return channels;
+        }
+
+        final CompletableFuture<Map<String, Channel>> listing
+                = getChannelsAsync().handle((listed, ex) -> {
+            if (ex != null) {
+                // Fetch every channel on its own instead, so that a failed
+                // listing doesn't fail lookups which would have succeeded
+                return Collections.<String, Channel>emptyMap();
+            }
+
+            listedChannels = listed.size();
+
+            final Map<String, Channel> byId
+                    = new HashMap<String, Channel>(listed.size() * 2);
+
+            for (Channel channel : listed) {
+                byId.put(channel.getId(), channel);
+            }
+
+            return byId;
+        });
+
+        for (String channelId : channelIds) {
+            channels.put(channelId, listing.thenCompose(byId -> {
+                final Channel channel = byId.get(channelId);
+
+                // Not provisioned (or a new channel): fetch it on its own so
+                // that the lookup succeeds or fails as it would unbatched
+                return channel != null
+                        ? CompletableFuture.completedFuture(channel)
+                        : fetchChannelInformationAsync(channelId);
+            }));
+        }
+
+        return channels;
+    }
+
     /**
      * Retrieves the current state of the specified channel.
      *
@@ -293,9 +759,9 @@ public class SimpleCollaborationAgent extends AuthenticatingAgent {
     public ChannelState getChannelState(final String channelId)
             throws IOException {
         try {
-            final JSONObject response = new JSONObject(getResponse(
-                    "/Collaboration/v1/Channels/" + channelId + "/State",
-                    "GET", null));
+            final JSONObject response = getResponse(
+                    CHANNEL_STATE.expand(channelId), "GET", null,
+                    JSON_OBJECT);
 
             return getChannelState(response);
         } catch (JSONException ex) {
@@ -303,6 +769,21 @@ public class SimpleCollaborationAgent extends AuthenticatingAgent {
         }
     }
 
+    /**
+     * Retrieves the current state of the specified channel without blocking
+     * the calling thread.
+     *
+     * @param channelId The ID of the channel to retrieve state for
+     * @return A future which completes with a {@link ChannelState} object
+     * describing the channel
+     * @see #getChannelState(String)
+     */
+    public CompletableFuture<ChannelState> getChannelStateAsync(
+            final String channelId) {
+        return getResponseAsync(CHANNEL_STATE.expand(channelId), "GET", null,
+                tokener -> getChannelState(new JSONObject(tokener)));
+    }
+
     /**
      * Retrieves the most recent history of the specified channel.
      *
@@ -316,18 +797,34 @@ public class SimpleCollaborationAgent extends AuthenticatingAgent {
     public List<Message> getChannelHistory(final String channelId,
             final int number, final String beforeToken) throws IOException {
         try {
-            final String beforeParam = beforeToken == null ? "" : "&before=" + beforeToken;
-            final JSONArray response = new JSONArray(getResponse(
-                    "/Collaboration/v1/Channels/" + channelId
-                    + "/Messages?take=" + number
-                    + beforeParam,
-                    "GET", null));
+            final JSONArray response = getResponse(
+                    HISTORY.expand(channelId, number, beforeToken),
+                    "GET", null, JSON_ARRAY);
             return getMessages(response);
         } catch (JSONException ex) {
             throw new IOException("Unable to deserialise JSON response", ex);
         }
     }
 
+    /**
+     * Retrieves the most recent history of the specified channel without
+     * blocking the calling thread.
+     *
+     * @param channelId The ID of the channel to retrieve history for
+     * @param number The maximum number of messages to retrieve
+     * @param beforeToken The token from which to begin the history, or {@code null} to get the latest history.
+     * @return A future which completes with a list of most recent
+     * {@link Message}s in the channel
+     * @see #getChannelHistory(String, int, String)
+     */
+    public CompletableFuture<List<Message>> getChannelHistoryAsync(
+            final String channelId, final int number,
+            final String beforeToken) {
+        return getResponseAsync(
+                HISTORY.expand(channelId, number, beforeToken), "GET", null,
+                tokener -> getMessages(new JSONArray(tokener)));
+    }
+
     /**
      * Updates the channel agent state.
      * @param isComposing A value indicating whether the agent is composing.
@@ -338,10 +835,8 @@ public class SimpleCollaborationAgent extends AuthenticatingAgent {
         	JSONOrderedObject channelAgentState = new JSONOrderedObject();
         	channelAgentState.put("IsComposing", isComposing.toString());
 
-        	getResponse(
-                    "/Collaboration/v1/Channels/" + channelId
-                    + "/Me",
-                    "POST", channelAgentState.toString());
+        	sendPayload(AGENT_STATE.expand(channelId), "POST",
+                    channelAgentState, null);
         } catch (JSONException ex) {
             throw new IOException("Unable to construct JSON payload", ex);
         }
@@ -363,6 +858,22 @@ public class SimpleCollaborationAgent extends AuthenticatingAgent {
         return messages;
     }
 
+    /**
+     * Constructs a collection of {@link Channel}s from the given JSON array.
+     *
+     * @see #getChannelInformation(org.json.JSONObject)
+     * @param array The JSON array to be converted
+     * @return A collection of corresponding Channel instances
+     * @throws JSONException If an element fails to contain required properties
+     */
+    protected List<Channel> getChannels(final JSONArray array) throws JSONException {
+        final List<Channel> channels = new ArrayList<Channel>();
+        for (int i = 0; i < array.length(); i++) {
+            channels.add(getChannelInformation((JSONObject) array.get(i)));
+        }
+        return channels;
+    }
+
     /**
      * Constructs a {@link SearchResultSet} object from the given JSON object.
      *
@@ -0,0 +1,362 @@
+package com.mindlinksoft.foundationapi.demo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.mindlinksoft.foundationapi.demo.transport.JsonBodyWriter;
+
+/**
+ * Keeps session tokens on disk, so that a restarted process can carry on with
+ * the token its predecessor obtained rather than authenticating before its
+ * first request. When a whole fleet of bots restarts at once, this also
+ * spares the authentication service a stampede.
+ * <p>
+ * Tokens are keyed on the server's base URL, the username and the agent ID,
+ * and are only handed back while younger than the cache's maximum age. The
+ * file is locked while it is read or written, so any number of processes may
+ * share one cache. It is created readable by its owner only where the file
+ * system supports it, as the tokens it holds grant access to the API;
+ * passwords are never written to it.
+ * <p>
+ * A token restored from the cache which the server no longer accepts is
+ * simply replaced, as with any other rejected token.
+ *
+ * @see Session#setTokenCache(TokenCache)
+ */
+public class TokenCache {
+
+    /** The default maximum age of a cached token: the refresh interval. */
+    public static final long DEFAULT_MAX_AGE_MILLIS
+            = TokenManager.DEFAULT_REFRESH_INTERVAL_MILLIS;
+
+    /** Serialises access to each file within this process. */
+    private static final ConcurrentMap<Path, Object> LOCKS
+            = new ConcurrentHashMap<Path, Object>();
+
+    /** The file the tokens are kept in. */
+    private final Path file;
+
+    /** The age beyond which cached tokens are discarded. */
+    private final long maxAgeMillis;
+
+    /**
+     * A token read from the cache.
+     */
+    public static class CachedToken {
+
+        /** The token. */
+        private final String token;
+
+        /** The time the token was issued. */
+        private final long issuedAt;
+
+        /**
+         * Creates a new {@link CachedToken}.
+         *
+         * @param token The token
+         * @param issuedAt The time the token was issued, from
+         * {@link System#currentTimeMillis()}
+         */
+        public CachedToken(final String token, final long issuedAt) {
+            this.token = token;
+            this.issuedAt = issuedAt;
+        }
+
+        /**
+         * Gets the token.
+         *
+         * @return The token
+         */
+        public String getToken() {
+            return token;
+        }
+
+        /**
+         * Gets the time the token was issued.
+         *
+         * @return The time from {@link System#currentTimeMillis()}
+         */
+        public long getIssuedAt() {
+            return issuedAt;
+        }
+
+    }
+
+    /**
+     * Creates a new {@link TokenCache} which keeps tokens for the default
+     * maximum age.
+     *
+     * @param file The file to keep tokens in. It is created if necessary.
+     */
+    public TokenCache(final Path file) {
+        this(file, DEFAULT_MAX_AGE_MILLIS);
+    }
+
+    /**
+     * Creates a new {@link TokenCache}.
+     *
+     * @param file The file to keep tokens in. It is created if necessary.
+     * @param maxAgeMillis The age beyond which cached tokens are discarded.
+     * This should be no longer than the server keeps tokens valid for.
+     */
+    public TokenCache(final Path file, final long maxAgeMillis) {
+        this.file = file.toAbsolutePath().normalize();
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * Gets the key a token is cached under.
+     *
+     * @param baseUrl The base URL of the server which issued the token
+     * @param username The username the token was issued to
+     * @param agent The agent the token was issued for (may be
+     * <code>null</code> or empty for a super user)
+     * @return The cache key
+     */
+    public static String getKey(final String baseUrl, final String username,
+            final String agent) {
+        return baseUrl + " " + username + " " + (agent == null ? "" : agent);
+    }
+
+    /**
+     * Gets the file the tokens are kept in.
+     *
+     * @return The cache file
+     */
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Gets the age beyond which cached tokens are discarded.
+     *
+     * @return The maximum age in milliseconds
+     */
+    public long getMaxAgeMillis() {
+        return maxAgeMillis;
+    }
+
+    /**
+     * Reads a token from the cache.
+     *
+     * @param key The key the token is cached under
+     * @return The token, or <code>null</code> if there is no token under the
+     * key or it has expired
+     * @throws IOException If the file can't be read
+     */
+    public CachedToken load(final String key) throws IOException {
+        if (!Files.exists(file)) {
+            return null;
+        }
+
+        synchronized (getLock()) {
+            try (FileChannel channel = FileChannel.open(file,
+                    StandardOpenOption.READ)) {
+                // Released when the channel is closed
+                channel.lock(0, Long.MAX_VALUE, true);
+                final JSONObject entry = read(channel).optJSONObject(key);
+
+                if (entry == null) {
+                    return null;
+                }
+
+                final String token = entry.optString("Token", null);
+                final long issuedAt = entry.optLong("IssuedAt");
+
+                return token == null || isExpired(issuedAt)
+                        ? null : new CachedToken(token, issuedAt);
+            }
+        }
+    }
+
+    /**
+     * Writes a token to the cache, replacing any token under the same key
+     * and discarding any which have expired.
+     *
+     * @param key The key to cache the token under
+     * @param token The token
+     * @param issuedAt The time the token was issued, from
+     * {@link System#currentTimeMillis()}
+     * @throws IOException If the file can't be written
+     */
+    public void store(final String key, final String token,
+            final long issuedAt) throws IOException {
+        update(key, token, issuedAt);
+    }
+
+    /**
+     * Removes a token from the cache.
+     *
+     * @param key The key the token is cached under
+     * @throws IOException If the file can't be written
+     */
+    public void remove(final String key) throws IOException {
+        if (Files.exists(file)) {
+            update(key, null, 0);
+        }
+    }
+
+    /**
+     * Rewrites the cache with one entry replaced or removed, holding an
+     * exclusive lock on the file throughout.
+     *
+     * @param key The key of the entry
+     * @param token The new token, or <code>null</code> to remove the entry
+     * @param issuedAt The time the new token was issued
+     * @throws IOException If the file can't be read or written
+     */
+    private void update(final String key, final String token,
+            final long issuedAt) throws IOException {
+        synchronized (getLock()) {
+            create();
+
+            try (FileChannel channel = FileChannel.open(file,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                // Released when the channel is closed
+                channel.lock();
+                final JSONObject entries = read(channel);
+                final List<String> expired = new ArrayList<String>();
+
+                for (Iterator<?> keys = entries.keys(); keys.hasNext();) {
+                    final String existing = keys.next().toString();
+                    final JSONObject entry = entries.optJSONObject(existing);
+
+                    if (entry == null
+                            || isExpired(entry.optLong("IssuedAt"))) {
+                        expired.add(existing);
+                    }
+                }
+
+                for (String existing : expired) {
+                    entries.remove(existing);
+                }
+
+                if (token == null) {
+                    entries.remove(key);
+                } else {
+                    final JSONObject entry = new JSONObject();
+                    entry.put("Token", token);
+                    entry.put("IssuedAt", issuedAt);
+                    entries.put(key, entry);
+                }
+
+                final ByteBuffer bytes = ByteBuffer.wrap(
+                        JsonBodyWriter.toBytes(entries));
+                channel.truncate(0);
+
+                while (bytes.hasRemaining()) {
+                    channel.write(bytes, bytes.position());
+                }
+
+                channel.force(false);
+            } catch (JSONException ex) {
+                throw new IOException("Unable to write token cache", ex);
+            }
+        }
+    }
+
+    /**
+     * Creates the cache file if it doesn't exist, readable and writable by
+     * its owner only where the file system supports it.
+     *
+     * @throws IOException If the file can't be created
+     */
+    private void create() throws IOException {
+        if (Files.exists(file)) {
+            return;
+        }
+
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+
+        try {
+            if (file.getFileSystem().supportedFileAttributeViews()
+                    .contains("posix")) {
+                Files.createFile(file, PosixFilePermissions.asFileAttribute(
+                        PosixFilePermissions.fromString("rw-------")));
+            } else {
+                Files.createFile(file);
+            }
+        } catch (FileAlreadyExistsException ex) {
+            // Created by another process in the meantime
+        }
+    }
+
+    /**
+     * Reads the entries in the cache. A file which can't be parsed (for
+     * example, because a process died while writing it) is treated as empty.
+     *
+     * @param channel The open, locked file
+     * @return The entries, keyed on cache key
+     * @throws IOException If the file can't be read
+     */
+    private static JSONObject read(final FileChannel channel)
+            throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+
+        while (buffer.hasRemaining()
+                && channel.read(buffer, buffer.position()) >= 0) {
+            // Keep reading until the buffer is full
+        }
+
+        if (buffer.position() == 0) {
+            return new JSONObject();
+        }
+
+        try {
+            return new JSONObject(new String(buffer.array(), 0,
+                    buffer.position(), StandardCharsets.UTF_8));
+        } catch (JSONException ex) {
+            return new JSONObject();
+        }
+    }
+
+    /**
+     * Determines whether a token issued at the given time has expired.
+     *
+     * @param issuedAt The time the token was issued
+     * @return <code>true</code> if the token is too old to use
+     */
+    private boolean isExpired(final long issuedAt) {
+        return System.currentTimeMillis() - issuedAt >= maxAgeMillis;
+    }
+
+    /**
+     * Gets the object guarding this cache's file within the process. The JVM
+     * refuses to let two channels of one process lock the same file, so
+     * caches sharing a file take turns here before locking it.
+     *
+     * @return The lock object
+     */
+    private Object getLock() {
+        Object lock = LOCKS.get(file);
+
+        if (lock == null) {
+            final Object created = new Object();
+            lock = LOCKS.putIfAbsent(file, created);
+
+            if (lock == null) {
+                lock = created;
+            }
+        }
+
+        return lock;
+    }
+
+}
@@ -0,0 +1,362 @@
+package com.mindlinksoft.foundationapi.demo;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Manages the session token used to authorise requests to the Foundation API.
+ * <p>
+ * At most one authentication request is ever in flight: callers which need a
+ * token while one is being obtained wait for the result of that request rather
+ * than authenticating themselves, and a token rejected by several requests at
+ * once is only replaced once. Tokens which are in use are also refreshed in
+ * the background shortly before the refresh interval elapses, with callers
+ * continuing to use the old token until the new one arrives, so that requests
+ * don't normally wait for authentication at all.
+ */
+public class TokenManager {
+
+    /** The default interval after which tokens are refreshed. */
+    public static final long DEFAULT_REFRESH_INTERVAL_MILLIS
+            = TimeUnit.MINUTES.toMillis(10);
+
+    /** The delay before retrying a failed background refresh. */
+    private static final long REFRESH_RETRY_MILLIS
+            = TimeUnit.SECONDS.toMillis(30);
+
+    /** Runs background refreshes for all token managers. */
+    private static final ScheduledThreadPoolExecutor SCHEDULER;
+
+    static {
+        SCHEDULER = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "Token refresh");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        SCHEDULER.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Obtains new tokens from the API.
+     */
+    public interface Authenticator {
+
+        /**
+         * Authenticates against the API without blocking.
+         *
+         * @return A future which completes with a new token, or exceptionally
+         * with an {@link IOException} if authentication fails
+         */
+        CompletableFuture<String> authenticate();
+
+    }
+
+    /** The authenticator used to obtain new tokens. */
+    private final Authenticator authenticator;
+
+    /** Guards the token state below. */
+    private final Object lock = new Object();
+
+    /** The current token, or <code>null</code> if there isn't a valid one. */
+    private String token;
+
+    /** The time at which the current token was obtained. */
+    private long issuedAt;
+
+    /** The authentication request in flight, if any. */
+    private CompletableFuture<String> pending;
+
+    /** The next scheduled background refresh, if any. */
+    private ScheduledFuture<?> scheduledRefresh;
+
+    /** The time at which a token was last handed out. */
+    private volatile long lastUsed;
+
+    /** The interval after which tokens are refreshed (0 to disable). */
+    private volatile long refreshIntervalMillis
+            = DEFAULT_REFRESH_INTERVAL_MILLIS;
+
+    /** The number of authentication requests made. */
+    private final AtomicLong authentications = new AtomicLong();
+
+    /**
+     * Creates a new {@link TokenManager}.
+     *
+     * @param authenticator The authenticator used to obtain new tokens
+     */
+    public TokenManager(final Authenticator authenticator) {
+        this.authenticator = authenticator;
+    }
+
+    /**
+     * Gets a valid token, waiting for one to be obtained if necessary.
+     *
+     * @return The current token
+     * @throws IOException If authentication fails, or the thread is
+     * interrupted while waiting
+     */
+    public String getToken() throws IOException {
+        return await(getTokenAsync());
+    }
+
+    /**
+     * Gets a valid token without blocking.
+     *
+     * @return A future which completes with the current token, or
+     * exceptionally with an {@link IOException} if authentication fails
+     */
+    public CompletableFuture<String> getTokenAsync() {
+        synchronized (lock) {
+            lastUsed = System.currentTimeMillis();
+
+            if (token != null) {
+                return CompletableFuture.completedFuture(token);
+            }
+
+            return authenticate();
+        }
+    }
+
+    /**
+     * Replaces a token which the API has rejected, waiting for the new token.
+     *
+     * @param rejected The token which was rejected
+     * @return The new token
+     * @throws IOException If authentication fails, or the thread is
+     * interrupted while waiting
+     * @see #refreshAsync(String)
+     */
+    public String refresh(final String rejected) throws IOException {
+        return await(refreshAsync(rejected));
+    }
+
+    /**
+     * Replaces a token which the API has rejected without blocking. If the
+     * token has already been replaced (for example, because another request
+     * was also rejected), the current token is returned without
+     * re-authenticating.
+     *
+     * @param rejected The token which was rejected
+     * @return A future which completes with the new token, or exceptionally
+     * with an {@link IOException} if authentication fails
+     */
+    public CompletableFuture<String> refreshAsync(final String rejected) {
+        synchronized (lock) {
+            lastUsed = System.currentTimeMillis();
+
+            if (token != null && !token.equals(rejected)) {
+                return CompletableFuture.completedFuture(token);
+            }
+
+            token = null;
+            return authenticate();
+        }
+    }
+
+    /**
+     * Installs a token obtained earlier, typically by a previous process (see
+     * {@link TokenCache}), unless the manager already has a token or is
+     * obtaining one. The token is refreshed in the background once the
+     * refresh interval has elapsed since it was issued, as though this
+     * manager had obtained it.
+     *
+     * @param restored The token to install
+     * @param restoredIssuedAt The time the token was issued, from
+     * {@link System#currentTimeMillis()}
+     * @return <code>true</code> if the token was installed
+     */
+    public boolean restore(final String restored,
+            final long restoredIssuedAt) {
+        synchronized (lock) {
+            if (token != null || pending != null) {
+                return false;
+            }
+
+            token = restored;
+            issuedAt = restoredIssuedAt;
+            scheduleRefresh(Math.max(0, restoredIssuedAt
+                    + refreshIntervalMillis - System.currentTimeMillis()));
+            return true;
+        }
+    }
+
+    /**
+     * Discards the current token, so that the next request re-authenticates.
+     */
+    public void invalidate() {
+        synchronized (lock) {
+            token = null;
+        }
+    }
+
+    /**
+     * Sets the interval after which tokens are refreshed in the background.
+     * Tokens which haven't been used since they were obtained are left to
+     * lapse instead, and are obtained again on next use.
+     *
+     * @param interval The refresh interval, or 0 to disable background refresh
+     * @param unit The unit of the interval
+     */
+    public void setRefreshInterval(final long interval, final TimeUnit unit) {
+        refreshIntervalMillis = unit.toMillis(interval);
+
+        synchronized (lock) {
+            scheduleRefresh(refreshIntervalMillis);
+        }
+    }
+
+    /**
+     * Gets the interval after which tokens are refreshed in the background.
+     *
+     * @return The refresh interval in milliseconds, or 0 if disabled
+     */
+    public long getRefreshIntervalMillis() {
+        return refreshIntervalMillis;
+    }
+
+    /**
+     * Gets the number of authentication requests which have been made.
+     *
+     * @return The number of authentications
+     */
+    public long getAuthenticationCount() {
+        return authentications.get();
+    }
+
+    /**
+     * Starts authenticating, unless a request is already in flight. Must be
+     * called with the lock held.
+     *
+     * @return The in-flight authentication
+     */
+    private CompletableFuture<String> authenticate() {
+        if (pending != null) {
+            return pending;
+        }
+
+        final CompletableFuture<String> future
+                = new CompletableFuture<String>();
+        pending = future;
+        authentications.incrementAndGet();
+
+        CompletableFuture<String> request;
+
+        try {
+            request = authenticator.authenticate();
+        } catch (RuntimeException ex) {
+            request = CompletableFuture.failedFuture(ex);
+        }
+
+        // The request may already be complete, in which case pending has
+        // been cleared again by the time we get here
+        request.whenComplete((newToken, ex) -> {
+            synchronized (lock) {
+                if (pending == future) {
+                    pending = null;
+                }
+
+                if (ex == null) {
+                    token = newToken;
+                    issuedAt = System.currentTimeMillis();
+                    scheduleRefresh(refreshIntervalMillis);
+                }
+            }
+
+            if (ex == null) {
+                future.complete(newToken);
+            } else {
+                future.completeExceptionally(
+                        ex instanceof CompletionException
+                        && ex.getCause() != null ? ex.getCause() : ex);
+            }
+        });
+
+        return future;
+    }
+
+    /**
+     * Schedules the next background refresh, replacing any already scheduled.
+     * Must be called with the lock held.
+     *
+     * @param delay The delay before refreshing in milliseconds
+     */
+    private void scheduleRefresh(final long delay) {
+        if (scheduledRefresh != null) {
+            scheduledRefresh.cancel(false);
+            scheduledRefresh = null;
+        }
+
+        if (refreshIntervalMillis > 0 && token != null) {
+            scheduledRefresh = SCHEDULER.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    refreshInBackground();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Obtains a new token while continuing to hand out the current one.
+     */
+    private void refreshInBackground() {
+        final CompletableFuture<String> refresh;
+
+        synchronized (lock) {
+            scheduledRefresh = null;
+
+            if (token == null || pending != null || lastUsed < issuedAt) {
+                // Either someone is already authenticating, or the token
+                // isn't being used and can be left to lapse
+                return;
+            }
+
+            refresh = authenticate();
+        }
+
+        refresh.whenComplete((newToken, ex) -> {
+            if (ex != null) {
+                synchronized (lock) {
+                    scheduleRefresh(Math.min(REFRESH_RETRY_MILLIS,
+                            refreshIntervalMillis));
+                }
+            }
+        });
+    }
+
+    /**
+     * Waits for the given token future to complete.
+     *
+     * @param future The future to wait for
+     * @return The token the future completed with
+     * @throws IOException If the future failed, or the thread was interrupted
+     */
+    private static String await(final CompletableFuture<String> future)
+            throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(
+                    "Interrupted waiting for authentication");
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+
+            throw new IOException("Unable to authenticate", ex.getCause());
+        }
+    }
+
+}
@@ -0,0 +1,311 @@
+package com.mindlinksoft.foundationapi.demo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A compiled template for the address of an API method, such as
+ * <code>/Collaboration/v1/Channels/{channelId}/Messages?take={take}</code>.
+ * <p>
+ * Templates are parsed once, typically into a constant, and then expanded
+ * with the values for each request. Values are percent-encoded for the part
+ * of the address they appear in, so identifiers, search terms and regular
+ * expressions containing characters such as <code>/</code>, <code>&amp;</code>,
+ * <code>+</code> or <code>#</code> reach the server intact. Expanding a
+ * template only appends the precomputed literal parts and the encoded values
+ * to a single builder, so it produces no garbage beyond the resulting
+ * address.
+ * <p>
+ * Path parameters are required. Query parameters whose value is
+ * <code>null</code> are left out of the address altogether, along with their
+ * name.
+ */
+public final class UriTemplate {
+
+    /** Characters which may appear unencoded in a path segment. */
+    private static final boolean[] PATH_SAFE = safe("!$&'()*+,;=:@");
+
+    /** Characters which may appear unencoded in a query value. */
+    private static final boolean[] QUERY_SAFE = safe("!$'()*,;:@/?");
+
+    /** Hexadecimal digits, for percent-encoding. */
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    /** The template as written. */
+    private final String template;
+
+    /** The literal path parts before, between and after path parameters. */
+    private final String[] pathLiterals;
+
+    /** The names of the path parameters. */
+    private final String[] pathParameters;
+
+    /** The encoded name of each query parameter, followed by '='. */
+    private final String[] queryNames;
+
+    /**
+     * The encoded value of each query parameter which has a fixed value, or
+     * <code>null</code> for those which are template parameters.
+     */
+    private final String[] queryLiterals;
+
+    /** The number of template parameters. */
+    private final int parameterCount;
+
+    /**
+     * Creates a new {@link UriTemplate}.
+     *
+     * @param template The template as written
+     * @param pathLiterals The literal path parts
+     * @param pathParameters The names of the path parameters
+     * @param queryNames The encoded query parameter names
+     * @param queryLiterals The encoded fixed query values
+     */
+    private UriTemplate(final String template, final String[] pathLiterals,
+            final String[] pathParameters, final String[] queryNames,
+            final String[] queryLiterals) {
+        this.template = template;
+        this.pathLiterals = pathLiterals;
+        this.pathParameters = pathParameters;
+        this.queryNames = queryNames;
+        this.queryLiterals = queryLiterals;
+
+        int count = pathParameters.length;
+
+        for (String literal : queryLiterals) {
+            if (literal == null) {
+                count++;
+            }
+        }
+
+        this.parameterCount = count;
+    }
+
+    /**
+     * Compiles a template. Parameters are written as <code>{name}</code>,
+     * either as (part of) a path segment or as the whole value of a query
+     * parameter.
+     *
+     * @param template The template (e.g.
+     * <code>/Provisioning/v1/Agents/{agentId}/MetaData/{key}</code>)
+     * @return The compiled template
+     * @throws IllegalArgumentException If the template is malformed
+     */
+    public static UriTemplate compile(final String template) {
+        final int question = template.indexOf('?');
+        final String path = question < 0 ? template
+                : template.substring(0, question);
+        final List<String> literals = new ArrayList<String>();
+        final List<String> parameters = new ArrayList<String>();
+        int start = 0;
+
+        while (true) {
+            final int open = path.indexOf('{', start);
+
+            if (open < 0) {
+                literals.add(path.substring(start));
+                break;
+            }
+
+            final int close = path.indexOf('}', open);
+
+            if (close < 0) {
+                throw new IllegalArgumentException(
+                        "Unterminated parameter in " + template);
+            }
+
+            literals.add(path.substring(start, open));
+            parameters.add(path.substring(open + 1, close));
+            start = close + 1;
+        }
+
+        final List<String> names = new ArrayList<String>();
+        final List<String> values = new ArrayList<String>();
+
+        if (question >= 0) {
+            for (String pair : template.substring(question + 1).split("&")) {
+                final int equals = pair.indexOf('=');
+
+                if (equals <= 0) {
+                    throw new IllegalArgumentException(
+                            "Malformed query parameter in " + template);
+                }
+
+                final StringBuilder name = new StringBuilder();
+                appendEncoded(name, pair.substring(0, equals), QUERY_SAFE);
+                names.add(name.append('=').toString());
+
+                final String value = pair.substring(equals + 1);
+
+                if (value.startsWith("{") && value.endsWith("}")) {
+                    values.add(null);
+                } else {
+                    final StringBuilder literal = new StringBuilder();
+                    appendEncoded(literal, value, QUERY_SAFE);
+                    values.add(literal.toString());
+                }
+            }
+        }
+
+        return new UriTemplate(template,
+                literals.toArray(new String[literals.size()]),
+                parameters.toArray(new String[parameters.size()]),
+                names.toArray(new String[names.size()]),
+                values.toArray(new String[values.size()]));
+    }
+
+    /**
+     * Expands the template into an API address.
+     *
+     * @param values The value of each parameter, in the order they appear in
+     * the template. Values are converted with {@link String#valueOf(Object)}.
+     * @return The address, with every value percent-encoded
+     * @throws IllegalArgumentException If the wrong number of values is
+     * given, or a path parameter's value is <code>null</code>
+     */
+    public String expand(final Object... values) {
+        if (values.length != parameterCount) {
+            throw new IllegalArgumentException("Expected " + parameterCount
+                    + " values for " + template + " but got "
+                    + values.length);
+        }
+
+        final StringBuilder builder = new StringBuilder(template.length()
+                + 16 * parameterCount);
+        int next = 0;
+
+        for (int i = 0; i < pathParameters.length; i++) {
+            builder.append(pathLiterals[i]);
+
+            if (values[next] == null) {
+                throw new IllegalArgumentException("No value for {"
+                        + pathParameters[i] + "} in " + template);
+            }
+
+            appendEncoded(builder, String.valueOf(values[next++]), PATH_SAFE);
+        }
+
+        builder.append(pathLiterals[pathParameters.length]);
+
+        boolean first = true;
+
+        for (int i = 0; i < queryNames.length; i++) {
+            final String literal = queryLiterals[i];
+            final Object value = literal == null ? values[next++] : literal;
+
+            if (value == null) {
+                continue;
+            }
+
+            builder.append(first ? '?' : '&').append(queryNames[i]);
+            first = false;
+
+            if (literal != null) {
+                builder.append(literal);
+            } else {
+                appendEncoded(builder, String.valueOf(value), QUERY_SAFE);
+            }
+        }
+
+        return builder.toString();
+    }
+
+    /**
+     * Gets the template as written.
+     *
+     * @return The template
+     */
+    public String getTemplate() {
+        return template;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+        return template;
+    }
+
+    /**
+     * Appends a value, percent-encoding each UTF-8 byte of any character
+     * which isn't safe in its part of the address.
+     *
+     * @param builder The builder to append to
+     * @param value The value
+     * @param safe The ASCII characters which needn't be encoded
+     */
+    private static void appendEncoded(final StringBuilder builder,
+            final String value, final boolean[] safe) {
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+
+            if (c < 0x80 && safe[c]) {
+                builder.append(c);
+                continue;
+            }
+
+            final int codePoint;
+
+            if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                codePoint = Character.toCodePoint(c, value.charAt(++i));
+            } else if (Character.isSurrogate(c)) {
+                codePoint = '?';
+            } else {
+                codePoint = c;
+            }
+
+            if (codePoint < 0x80) {
+                appendByte(builder, codePoint);
+            } else if (codePoint < 0x800) {
+                appendByte(builder, 0xC0 | (codePoint >> 6));
+                appendByte(builder, 0x80 | (codePoint & 0x3F));
+            } else if (codePoint < 0x10000) {
+                appendByte(builder, 0xE0 | (codePoint >> 12));
+                appendByte(builder, 0x80 | ((codePoint >> 6) & 0x3F));
+                appendByte(builder, 0x80 | (codePoint & 0x3F));
+            } else {
+                appendByte(builder, 0xF0 | (codePoint >> 18));
+                appendByte(builder, 0x80 | ((codePoint >> 12) & 0x3F));
+                appendByte(builder, 0x80 | ((codePoint >> 6) & 0x3F));
+                appendByte(builder, 0x80 | (codePoint & 0x3F));
+            }
+        }
+    }
+
+    /**
+     * Appends a percent-encoded byte.
+     *
+     * @param builder The builder to append to
+     * @param b The byte
+     */
+    private static void appendByte(final StringBuilder builder, final int b) {
+        builder.append('%').append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+    }
+
+    /**
+     * Builds a table of the ASCII characters which needn't be encoded: the
+     * unreserved characters, plus the given delimiters.
+     *
+     * @param delimiters The delimiters which are also safe
+     * @return A table indexed by character
+     */
+    private static boolean[] safe(final String delimiters) {
+        final boolean[] table = new boolean[0x80];
+
+        for (char c = 'a'; c <= 'z'; c++) {
+            table[c] = true;
+            table[Character.toUpperCase(c)] = true;
+        }
+
+        for (char c = '0'; c <= '9'; c++) {
+            table[c] = true;
+        }
+
+        for (char c : ("-._~" + delimiters).toCharArray()) {
+            table[c] = true;
+        }
+
+        return table;
+    }
+
+}
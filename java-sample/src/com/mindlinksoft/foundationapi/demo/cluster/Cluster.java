@@ -0,0 +1,371 @@
+package com.mindlinksoft.foundationapi.demo.cluster;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.mindlinksoft.foundationapi.demo.resilience.Deadline;
+import com.mindlinksoft.foundationapi.demo.transport.Request;
+import com.mindlinksoft.foundationapi.demo.transport.Transport;
+
+/**
+ * A set of interchangeable Foundation API servers which an agent spreads its
+ * requests across.
+ * <p>
+ * Each request is routed to one healthy {@link Node}, chosen by the
+ * cluster's {@link Strategy}. A node which fails to answer a request is
+ * taken out of rotation for a while (see {@link #setEjectMillis(long)}), and
+ * agents transparently resend requests which never reached it to another
+ * node. Nodes can also be health-checked in the background (see
+ * {@link #startHealthChecks(Transport, long, TimeUnit)}), in which case a
+ * node which fails a check stays out of rotation until it passes one. If
+ * every node is down, requests go to the node which has been down the
+ * longest rather than failing outright.
+ * <p>
+ * A cluster of one node behaves exactly like a single base URL. Clusters may
+ * be shared between agents; each agent still authenticates separately with
+ * each node it talks to.
+ */
+public class Cluster {
+
+    /** The default time a node stays out of rotation after a failure. */
+    public static final long DEFAULT_EJECT_MILLIS = 10000;
+
+    /** The address requested from each node to check its health. */
+    public static final String HEALTH_CHECK_ADDRESS
+            = "/Authentication/v1/Tokens";
+
+    /** The time a node has to answer a health check before failing it. */
+    public static final long HEALTH_CHECK_TIMEOUT_MILLIS = 5000;
+
+    /**
+     * The ways requests can be routed between healthy nodes.
+     */
+    public enum Strategy {
+
+        /** Route each request to the node with the fewest in flight. */
+        LEAST_OUTSTANDING,
+
+        /**
+         * Route each request to the node with the lowest average latency,
+         * weighted by the number of requests it already has in flight.
+         */
+        LOWEST_LATENCY
+
+    }
+
+    /** Runs the health checks of all clusters. */
+    private static final ScheduledThreadPoolExecutor SCHEDULER;
+
+    static {
+        SCHEDULER = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "Health checks");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        SCHEDULER.setRemoveOnCancelPolicy(true);
+    }
+
+    /** The nodes in the cluster. */
+    private final List<Node> nodes;
+
+    /** Rotates the node considered first, to break ties evenly. */
+    private final AtomicInteger rotation = new AtomicInteger();
+
+    /** How requests are routed between healthy nodes. */
+    private volatile Strategy strategy = Strategy.LEAST_OUTSTANDING;
+
+    /** The time a node stays out of rotation after a failed request. */
+    private volatile long ejectMillis = DEFAULT_EJECT_MILLIS;
+
+    /** The scheduled health checks, if running. */
+    private ScheduledFuture<?> healthChecks;
+
+    /**
+     * Creates a new {@link Cluster}.
+     *
+     * @param baseUrls The base address of each Foundation API server (e.g.
+     * <code>http://api1.company.com</code>)
+     */
+    public Cluster(final String... baseUrls) {
+        this(Arrays.asList(baseUrls));
+    }
+
+    /**
+     * Creates a new {@link Cluster}.
+     *
+     * @param baseUrls The base address of each Foundation API server (e.g.
+     * <code>http://api1.company.com</code>)
+     */
+    public Cluster(final Collection<String> baseUrls) {
+        if (baseUrls.isEmpty()) {
+            throw new IllegalArgumentException(
+                    "A cluster needs at least one base URL");
+        }
+
+        final List<Node> created = new ArrayList<Node>(baseUrls.size());
+
+        for (String baseUrl : baseUrls) {
+            final String trimmed = baseUrl.trim();
+            created.add(new Node(this, trimmed.endsWith("/")
+                    ? trimmed.substring(0, trimmed.length() - 1) : trimmed));
+        }
+
+        this.nodes = Collections.unmodifiableList(created);
+    }
+
+    /**
+     * Creates a cluster from a comma-separated list of base URLs.
+     *
+     * @param baseUrls The base URLs, separated by commas
+     * @return The corresponding cluster
+     */
+    public static Cluster parse(final String baseUrls) {
+        return new Cluster(baseUrls.split(","));
+    }
+
+    /**
+     * Gets the nodes in the cluster, in the order they were given.
+     *
+     * @return The cluster's nodes
+     */
+    public List<Node> getNodes() {
+        return nodes;
+    }
+
+    /**
+     * Gets the strategy used to route requests between healthy nodes.
+     *
+     * @return The routing strategy
+     */
+    public Strategy getStrategy() {
+        return strategy;
+    }
+
+    /**
+     * Sets the strategy used to route requests between healthy nodes.
+     * Defaults to {@link Strategy#LEAST_OUTSTANDING}.
+     *
+     * @param strategy The routing strategy
+     */
+    public void setStrategy(final Strategy strategy) {
+        this.strategy = strategy;
+    }
+
+    /**
+     * Gets the time a node stays out of rotation after a request to it fails
+     * without a response.
+     *
+     * @return The ejection time in milliseconds
+     */
+    public long getEjectMillis() {
+        return ejectMillis;
+    }
+
+    /**
+     * Sets the time a node stays out of rotation after a request to it fails
+     * without a response. If health checks are running, a node which passes
+     * a check is returned to rotation sooner.
+     *
+     * @param ejectMillis The ejection time in milliseconds
+     */
+    public void setEjectMillis(final long ejectMillis) {
+        this.ejectMillis = ejectMillis;
+    }
+
+    /**
+     * Chooses the node to send a request to.
+     *
+     * @return The chosen node
+     */
+    public Node select() {
+        return select(Collections.<Node>emptySet());
+    }
+
+    /**
+     * Chooses the node to send a request to, other than those given. Used to
+     * fail a request over to another node.
+     *
+     * @param excluded The nodes which must not be chosen (e.g. those already
+     * tried)
+     * @return The chosen node, or <code>null</code> if every node is
+     * excluded
+     */
+    public Node select(final Collection<Node> excluded) {
+        final int size = nodes.size();
+
+        if (size == 1) {
+            final Node only = nodes.get(0);
+            return excluded.contains(only) ? null : only;
+        }
+
+        final boolean byLatency = strategy == Strategy.LOWEST_LATENCY;
+        final int start = Math.floorMod(rotation.getAndIncrement(), size);
+        Node best = null;
+        double bestScore = 0;
+        Node fallback = null;
+
+        for (int i = 0; i < size; i++) {
+            final Node node = nodes.get((start + i) % size);
+
+            if (excluded.contains(node)) {
+                continue;
+            }
+
+            if (!node.isHealthy()) {
+                if (fallback == null
+                        || node.getDownUntil() < fallback.getDownUntil()) {
+                    fallback = node;
+                }
+
+                continue;
+            }
+
+            final double score = byLatency
+                    ? node.getLatencyScore() : node.getOutstanding();
+
+            if (best == null || score < bestScore) {
+                best = node;
+                bestScore = score;
+            }
+        }
+
+        return best == null ? fallback : best;
+    }
+
+    /**
+     * Starts checking the health of every node in the background. Any health
+     * checks already running are replaced.
+     *
+     * @param transport The transport to send health checks through
+     * @param interval The interval between checks
+     * @param unit The unit of the interval
+     */
+    public synchronized void startHealthChecks(final Transport transport,
+            final long interval, final TimeUnit unit) {
+        stopHealthChecks();
+        healthChecks = SCHEDULER.scheduleWithFixedDelay(
+                () -> checkHealth(transport), 0, interval, unit);
+    }
+
+    /**
+     * Stops checking the health of nodes in the background. Nodes which are
+     * down return to rotation once the ejection time has elapsed.
+     */
+    public synchronized void stopHealthChecks() {
+        if (healthChecks != null) {
+            healthChecks.cancel(false);
+            healthChecks = null;
+
+            final long until = System.currentTimeMillis() + ejectMillis;
+
+            for (Node node : nodes) {
+                node.onHealthChecksStopped(until);
+            }
+        }
+    }
+
+    /**
+     * Checks the health of every node once. A node passes if it answers
+     * <code>GET</code> {@link #HEALTH_CHECK_ADDRESS} with any status below
+     * 500 within {@link #HEALTH_CHECK_TIMEOUT_MILLIS}: the check needs no
+     * credentials, so an error such as 404 or 405 still shows the server is
+     * serving requests.
+     *
+     * @param transport The transport to send the checks through
+     * @return A future which completes once every node has been checked
+     */
+    public CompletableFuture<Void> checkHealth(final Transport transport) {
+        final List<CompletableFuture<?>> checks
+                = new ArrayList<CompletableFuture<?>>(nodes.size());
+
+        for (Node node : nodes) {
+            checks.add(checkHealth(transport, node));
+        }
+
+        return CompletableFuture.allOf(checks.toArray(
+                new CompletableFuture<?>[checks.size()]));
+    }
+
+    /**
+     * Checks the health of a single node.
+     *
+     * @param transport The transport to send the check through
+     * @param node The node to check
+     * @return A future which completes once the node has been checked
+     */
+    private CompletableFuture<Void> checkHealth(final Transport transport,
+            final Node node) {
+        final Request request;
+
+        try {
+            final Map<String, String> headers = new HashMap<String, String>();
+            headers.put("Accept", "application/json");
+            request = new Request("GET", new URI(node.getBaseUrl()
+                    + HEALTH_CHECK_ADDRESS), headers, null, Deadline.after(
+                    HEALTH_CHECK_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        } catch (URISyntaxException ex) {
+            node.onHealthCheckFailed();
+            return CompletableFuture.completedFuture(null);
+        }
+
+        final long startedAt = System.nanoTime();
+        final CompletableFuture<Void> check;
+
+        try {
+            check = transport.sendAsync(request).handle((response, ex) -> {
+                if (ex != null || response.getStatusCode() >= 500) {
+                    node.onHealthCheckFailed();
+                } else {
+                    node.onHealthCheckPassed(
+                            (System.nanoTime() - startedAt) / 1000L);
+                }
+
+                if (response != null) {
+                    try {
+                        response.close();
+                    } catch (IOException closeEx) {
+                        // The response is being discarded anyway
+                    }
+                }
+
+                return null;
+            });
+        } catch (RuntimeException ex) {
+            node.onHealthCheckFailed();
+            return CompletableFuture.completedFuture(null);
+        }
+
+        return check;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder("Cluster (")
+                .append(strategy).append(')');
+
+        for (Node node : nodes) {
+            builder.append(System.lineSeparator()).append("  ").append(node);
+        }
+
+        return builder.toString();
+    }
+
+}
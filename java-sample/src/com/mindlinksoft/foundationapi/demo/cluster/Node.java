@@ -0,0 +1,272 @@
+package com.mindlinksoft.foundationapi.demo.cluster;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A single Foundation API server within a {@link Cluster}, along with the
+ * live statistics the cluster uses to route requests to it: the number of
+ * requests outstanding, a moving average of its response latency, and
+ * whether it is currently believed to be up.
+ * <p>
+ * Agents report each request they send to a node through
+ * {@link #onRequestStarted()} and then exactly one of
+ * {@link #onRequestCompleted(long)}, {@link #onRequestFailed(long)} or
+ * {@link #onRequestCancelled()}.
+ */
+public class Node {
+
+    /** The weight given to each new latency sample in the moving average. */
+    private static final double LATENCY_DECAY = 0.2;
+
+    /** The cluster the node belongs to. */
+    private final Cluster cluster;
+
+    /** The base URL of the server. */
+    private final String baseUrl;
+
+    /**
+     * The parsed base URL, or <code>null</code> until it is first needed.
+     */
+    private volatile URI baseUri;
+
+    /** The number of requests sent which haven't yet completed. */
+    private final AtomicInteger outstanding = new AtomicInteger();
+
+    /** The number of requests sent to the node. */
+    private final AtomicLong requests = new AtomicLong();
+
+    /** The number of requests which failed without a response. */
+    private final AtomicLong failures = new AtomicLong();
+
+    /**
+     * The moving average response latency in milliseconds, or a negative
+     * value until the first response is received.
+     */
+    private double latencyMillis = -1;
+
+    /**
+     * The time until which the node is considered down, from
+     * {@link System#currentTimeMillis()}: 0 while it is up, and
+     * {@link Long#MAX_VALUE} if it stays down until a health check passes.
+     */
+    private volatile long downUntil;
+
+    /**
+     * Creates a new {@link Node}.
+     *
+     * @param cluster The cluster the node belongs to
+     * @param baseUrl The base URL of the server, without a trailing slash
+     */
+    Node(final Cluster cluster, final String baseUrl) {
+        this.cluster = cluster;
+        this.baseUrl = baseUrl;
+    }
+
+    /**
+     * Gets the base URL of the server, to which API addresses are appended.
+     *
+     * @return The base URL (e.g. <code>http://api1.company.com</code>)
+     */
+    public String getBaseUrl() {
+        return baseUrl;
+    }
+
+    /**
+     * Gets the base URL of the server, parsed once so that each request only
+     * has its own address to parse.
+     *
+     * @return The parsed base URL
+     * @throws URISyntaxException If the base URL isn't a valid URI
+     */
+    public URI getBaseUri() throws URISyntaxException {
+        URI uri = baseUri;
+
+        if (uri == null) {
+            uri = new URI(baseUrl);
+            baseUri = uri;
+        }
+
+        return uri;
+    }
+
+    /**
+     * Gets the number of requests sent to the node which haven't yet
+     * completed.
+     *
+     * @return The number of outstanding requests
+     */
+    public int getOutstanding() {
+        return outstanding.get();
+    }
+
+    /**
+     * Gets the total number of requests sent to the node.
+     *
+     * @return The number of requests
+     */
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * Gets the number of requests to the node (including health checks)
+     * which failed without a response.
+     *
+     * @return The number of failures
+     */
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    /**
+     * Gets the moving average of the node's response latency, including
+     * health checks.
+     *
+     * @return The average latency in milliseconds, or 0 if no response has
+     * been received yet
+     */
+    public synchronized double getLatencyMillis() {
+        return Math.max(latencyMillis, 0);
+    }
+
+    /**
+     * Determines whether the node is currently believed to be up. Nodes are
+     * taken out of rotation when a request to them fails without a response
+     * or a health check fails, and return once a health check passes or (if
+     * health checks aren't running) once the cluster's ejection time has
+     * elapsed.
+     *
+     * @return <code>true</code> if requests may be routed to the node
+     */
+    public boolean isHealthy() {
+        final long until = downUntil;
+        return until == 0 || System.currentTimeMillis() >= until;
+    }
+
+    /**
+     * Records that a request is being sent to the node.
+     */
+    public void onRequestStarted() {
+        outstanding.incrementAndGet();
+        requests.incrementAndGet();
+    }
+
+    /**
+     * Records that a request to the node received a response.
+     *
+     * @param elapsedMicros The time taken for the response to arrive
+     */
+    public void onRequestCompleted(final long elapsedMicros) {
+        outstanding.decrementAndGet();
+        recordLatency(elapsedMicros);
+    }
+
+    /**
+     * Records that a request to the node failed without a response, taking
+     * the node out of rotation for the cluster's ejection time.
+     *
+     * @param elapsedMicros The time taken for the request to fail
+     */
+    public void onRequestFailed(final long elapsedMicros) {
+        outstanding.decrementAndGet();
+        failures.incrementAndGet();
+        markDown(System.currentTimeMillis() + cluster.getEjectMillis());
+    }
+
+    /**
+     * Records that a request to the node was abandoned by its caller before
+     * a response arrived. Says nothing about the node's health.
+     */
+    public void onRequestCancelled() {
+        outstanding.decrementAndGet();
+    }
+
+    /**
+     * Gets the score used to route requests by latency: the average latency
+     * weighted by the load already on the node, so that requests spread
+     * across similarly fast nodes instead of all piling onto the fastest.
+     * Nodes which haven't responded yet score 0, so each is tried early on.
+     *
+     * @return The node's latency score (lower is better)
+     */
+    synchronized double getLatencyScore() {
+        return Math.max(latencyMillis, 0) * (outstanding.get() + 1);
+    }
+
+    /**
+     * Gets the time until which the node is considered down.
+     *
+     * @return The time from {@link System#currentTimeMillis()}, or 0 if the
+     * node is up
+     */
+    long getDownUntil() {
+        return downUntil;
+    }
+
+    /**
+     * Records a passed health check, putting the node back into rotation.
+     *
+     * @param elapsedMicros The time taken for the health check's response
+     */
+    void onHealthCheckPassed(final long elapsedMicros) {
+        recordLatency(elapsedMicros);
+        downUntil = 0;
+    }
+
+    /**
+     * Records a failed health check, taking the node out of rotation until a
+     * health check passes.
+     */
+    void onHealthCheckFailed() {
+        failures.incrementAndGet();
+        downUntil = Long.MAX_VALUE;
+    }
+
+    /**
+     * Limits how long a node which failed a health check stays out of
+     * rotation, now that no further check will return it.
+     *
+     * @param until The time from {@link System#currentTimeMillis()} at which
+     * the node returns to rotation
+     */
+    void onHealthChecksStopped(final long until) {
+        if (downUntil == Long.MAX_VALUE) {
+            downUntil = until;
+        }
+    }
+
+    /**
+     * Takes the node out of rotation until at least the given time.
+     *
+     * @param until The time from {@link System#currentTimeMillis()}
+     */
+    private void markDown(final long until) {
+        if (until > downUntil) {
+            downUntil = until;
+        }
+    }
+
+    /**
+     * Adds a latency sample to the moving average.
+     *
+     * @param elapsedMicros The latency in microseconds
+     */
+    private synchronized void recordLatency(final long elapsedMicros) {
+        final double sample = elapsedMicros / 1000.0;
+        latencyMillis = latencyMillis < 0 ? sample
+                : latencyMillis + LATENCY_DECAY * (sample - latencyMillis);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+        return String.format("%s (%s, %d outstanding, %.1f ms, %d requests, "
+                + "%d failures)", baseUrl, isHealthy() ? "up" : "down",
+                getOutstanding(), getLatencyMillis(), getRequestCount(),
+                getFailureCount());
+    }
+
+}
@@ -3,13 +3,17 @@ package com.mindlinksoft.foundationapi.demo.management;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
-import org.json.JSONTokener;
 
 import com.mindlinksoft.foundationapi.demo.AuthenticatingAgent;
+import com.mindlinksoft.foundationapi.demo.Session;
+import com.mindlinksoft.foundationapi.demo.UriTemplate;
+import com.mindlinksoft.foundationapi.demo.cluster.Cluster;
+import com.mindlinksoft.foundationapi.demo.transport.Transport;
 
 /**
  * An agent capable of interacting with the management services of the
@@ -17,6 +21,14 @@ import com.mindlinksoft.foundationapi.demo.AuthenticatingAgent;
  */
 public class ManagementAgent extends AuthenticatingAgent {
 
+    /** The address of a managed channel. */
+    private static final UriTemplate CHANNEL = UriTemplate.compile(
+            "/Management/v1/Channels/{channelId}");
+
+    /** The address of a managed channel's members. */
+    private static final UriTemplate MEMBERS = UriTemplate.compile(
+            "/Management/v1/Channels/{channelId}/Members");
+
     /**
      * Creates a new {@link ManagementAgent}.
      *
@@ -34,6 +46,54 @@ public class ManagementAgent extends AuthenticatingAgent {
         super(baseUrl, username, password, agent);
     }
 
+    /**
+     * Creates a new {@link ManagementAgent} which sends its requests through
+     * the given transport.
+     *
+     * @param baseUrl The base address for the Foundation API. The agent will
+     * append method names automatically. For example, a base URL of
+     * <code>http://api.company.com</code> will result in URLs constructed such
+     * as <code>http://api.company.com/Authentication/v1/Tokens</code>.
+     * @param username The username to give to the API when authenticating
+     * @param password The username to give to the API when authenticating
+     * @param agent The ID of the agent to use. May be an empty string if
+     * authenticating as a super user.
+     * @param transport The transport to send requests through
+     */
+    public ManagementAgent(final String baseUrl, final String username,
+            final String password, final String agent,
+            final Transport transport) {
+        super(baseUrl, username, password, agent, transport);
+    }
+
+    /**
+     * Creates a new {@link ManagementAgent} which spreads its requests across a
+     * cluster of API servers.
+     *
+     * @param cluster The API servers to send requests to
+     * @param username The username to give to the API when authenticating
+     * @param password The username to give to the API when authenticating
+     * @param agent The ID of the agent to use. May be an empty string if
+     * authenticating as a super user.
+     * @param transport The transport to send requests through
+     */
+    public ManagementAgent(final Cluster cluster, final String username,
+            final String password, final String agent,
+            final Transport transport) {
+        super(cluster, username, password, agent, transport);
+    }
+
+    /**
+     * Creates a new {@link ManagementAgent} which makes its requests in the
+     * given session, sharing its token, connections, limits and metrics with
+     * every other agent on the session.
+     *
+     * @param session The session to make requests in
+     */
+    public ManagementAgent(final Session session) {
+        super(session);
+    }
+
     /**
      * Gets the set of all provisioned agents.
      *
@@ -44,21 +104,28 @@ public class ManagementAgent extends AuthenticatingAgent {
      */
     public Collection<ManagedChannel> getManagedChannels() throws IOException {
         try {
-            final JSONArray response = new JSONArray(
-                    getResponse("/Management/v1/Channels", "GET", null));
+            final JSONArray response = getResponse(
+                    "/Management/v1/Channels", "GET", null, JSON_ARRAY);
 
-            final ManagedChannel[] res
-                    = new ManagedChannel[response.length()];
-            for (int i = 0; i < response.length(); i++) {
-                res[i] = getManagedChannel(response.optJSONObject(i));
-            }
-
-            return Arrays.asList(res);
+            return getManagedChannels(response);
         } catch (JSONException ex) {
             throw new IOException("Unable to deserialise JSON response", ex);
         }
     }
 
+    /**
+     * Gets the set of all managed channels without blocking the calling
+     * thread.
+     *
+     * @return A future which completes with one {@link ManagedChannel}
+     * corresponding to each channel
+     * @see #getManagedChannels()
+     */
+    public CompletableFuture<Collection<ManagedChannel>> getManagedChannelsAsync() {
+        return getResponseAsync("/Management/v1/Channels", "GET", null,
+                tokener -> getManagedChannels(new JSONArray(tokener)));
+    }
+
     /**
      * Gets the {@link ManagedChannel} with the given id.
      * @param id The ID of the channel
@@ -67,8 +134,8 @@ public class ManagementAgent extends AuthenticatingAgent {
      */
     public ManagedChannel getManagedChannel(final String id) throws IOException {
         try {
-            final JSONObject response = new JSONObject(
-                getResponse("/Management/v1/Channels/" + id, "GET", null));
+            final JSONObject response = getResponse(
+                CHANNEL.expand(id), "GET", null, JSON_OBJECT);
 
             return getManagedChannel(response);
         } catch (JSONException ex) {
@@ -76,6 +143,20 @@ public class ManagementAgent extends AuthenticatingAgent {
         }
     }
 
+    /**
+     * Gets the {@link ManagedChannel} with the given id without blocking the
+     * calling thread.
+     *
+     * @param id The ID of the channel
+     * @return A future which completes with the managed channel
+     * @see #getManagedChannel(String)
+     */
+    public CompletableFuture<ManagedChannel> getManagedChannelAsync(
+            final String id) {
+        return getResponseAsync(CHANNEL.expand(id), "GET", null,
+                tokener -> getManagedChannel(new JSONObject(tokener)));
+    }
+
     /**
      * Creates a new channel.
      *
@@ -98,10 +179,8 @@ public class ManagementAgent extends AuthenticatingAgent {
             object.put("Privacy", privacy.ordinal());
             object.put("Members", new JSONArray(members));
 
-            JSONTokener result = new JSONTokener(
-                getResponse("/Management/v1/Channels", "POST", object.toString()));
-
-            return (String)result.nextValue();
+            return (String) sendPayload("/Management/v1/Channels", "POST",
+                    object, JSON_VALUE);
         } catch (JSONException ex) {
             throw new IOException("Unable to construct JSON payload", ex);
         }
@@ -116,7 +195,7 @@ public class ManagementAgent extends AuthenticatingAgent {
      */
     public void deleteManagedChannel(final String id)
             throws IOException {
-        getResponse("/Management/v1/Channels/" + id, "DELETE", null);
+        getResponse(CHANNEL.expand(id), "DELETE", null);
     }
 
     /**
@@ -129,8 +208,8 @@ public class ManagementAgent extends AuthenticatingAgent {
     public Collection<ManagedCategory> getCategories()
             throws IOException {
         try {
-            final JSONArray response = new JSONArray(
-                    getResponse("/Management/v1/Categories", "GET", null));
+            final JSONArray response = getResponse(
+                    "/Management/v1/Categories", "GET", null, JSON_ARRAY);
             return getCategories(response);
         } catch (JSONException ex) {
             throw new IOException("Unable to deserialise JSON response", ex);
@@ -146,8 +225,8 @@ public class ManagementAgent extends AuthenticatingAgent {
      */
     public Collection<String> getChannelMembers(final String channelId) throws IOException {
         try {
-            final JSONArray response = new JSONArray(
-                    getResponse("/Management/v1/Channels/" + channelId + "/Members", "GET", null));
+            final JSONArray response = getResponse(
+                    MEMBERS.expand(channelId), "GET", null, JSON_ARRAY);
     
             final String[] res = new String[response.length()];
     
@@ -171,7 +250,30 @@ public class ManagementAgent extends AuthenticatingAgent {
     public void setChannelMembers(final String channelId, final Collection<String> members) throws IOException {
         final JSONArray object = new JSONArray(members);
 
-        getResponse("/Management/v1/Channels/" + channelId + "/Members", "PUT", object.toString());
+        try {
+            sendPayload(MEMBERS.expand(channelId), "PUT", object, null);
+        } catch (JSONException ex) {
+            throw new IOException("Unable to construct JSON payload", ex);
+        }
+    }
+
+    /**
+     * Utility method to convert a JSON array of channel objects into a
+     * collection of {@link ManagedChannel}s.
+     *
+     * @param array The array of channels to be converted
+     * @return A corresponding collection of {@link ManagedChannel}s
+     * @throws JSONException If the channels cannot be converted
+     */
+    protected Collection<ManagedChannel> getManagedChannels(
+            final JSONArray array) throws JSONException {
+        final ManagedChannel[] res = new ManagedChannel[array.length()];
+
+        for (int i = 0; i < array.length(); i++) {
+            res[i] = getManagedChannel(array.optJSONObject(i));
+        }
+
+        return Arrays.asList(res);
     }
 
     /**
@@ -0,0 +1,214 @@
+package com.mindlinksoft.foundationapi.demo.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The metrics recorded for a single API endpoint: how long requests took,
+ * how many bytes they moved, which status codes they received, and how many
+ * failed without a response, timed out or were cancelled. All counters are
+ * lock-free.
+ */
+public class EndpointMetrics {
+
+    /** The endpoint the metrics are for. */
+    private final String endpoint;
+
+    /** The latency of each request, from sending to the response closing. */
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    /** The number of request body bytes sent. */
+    private final LongAdder bytesSent = new LongAdder();
+
+    /** The number of response body bytes read. */
+    private final LongAdder bytesReceived = new LongAdder();
+
+    /** The number of responses received with each status code. */
+    private final AtomicLongArray statusCodes = new AtomicLongArray(600);
+
+    /** The number of requests which failed without a response. */
+    private final LongAdder errors = new LongAdder();
+
+    /** The number of those failures which were timeouts. */
+    private final LongAdder timeouts = new LongAdder();
+
+    /** The number of requests abandoned by the caller. */
+    private final LongAdder cancelled = new LongAdder();
+
+    /**
+     * Creates a new {@link EndpointMetrics}.
+     *
+     * @param endpoint The endpoint the metrics are for
+     */
+    public EndpointMetrics(final String endpoint) {
+        this.endpoint = endpoint;
+    }
+
+    /**
+     * Records a request which received a response.
+     *
+     * @param statusCode The status code of the response
+     * @param latencyMicros The time from sending the request to finishing
+     * with the response
+     * @param sent The number of request body bytes sent
+     * @param received The number of response body bytes read
+     */
+    public void recordResponse(final int statusCode, final long latencyMicros,
+            final long sent, final long received) {
+        latency.record(latencyMicros);
+        bytesSent.add(sent);
+        bytesReceived.add(received);
+
+        if (statusCode >= 0 && statusCode < statusCodes.length()) {
+            statusCodes.incrementAndGet(statusCode);
+        }
+    }
+
+    /**
+     * Records a request which failed without a response.
+     *
+     * @param latencyMicros The time from sending the request to it failing
+     * @param sent The number of request body bytes sent
+     */
+    public void recordError(final long latencyMicros, final long sent) {
+        latency.record(latencyMicros);
+        bytesSent.add(sent);
+        errors.increment();
+    }
+
+    /**
+     * Records a request which timed out, or whose deadline passed, before a
+     * response arrived. Timeouts also count as errors.
+     *
+     * @param latencyMicros The time from sending the request to it timing
+     * out
+     * @param sent The number of request body bytes sent
+     */
+    public void recordTimeout(final long latencyMicros, final long sent) {
+        recordError(latencyMicros, sent);
+        timeouts.increment();
+    }
+
+    /**
+     * Records a request which the caller abandoned before a response
+     * arrived, for example because the thread was interrupted or a hedged
+     * attempt answered first. Cancelled requests say nothing about the
+     * endpoint, so are neither errors nor included in the latencies.
+     *
+     * @param sent The number of request body bytes sent
+     */
+    public void recordCancelled(final long sent) {
+        bytesSent.add(sent);
+        cancelled.increment();
+    }
+
+    /**
+     * Gets the endpoint the metrics are for.
+     *
+     * @return The endpoint
+     */
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    /**
+     * Gets the histogram of request latencies.
+     *
+     * @return The latency histogram
+     */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    /**
+     * Gets the total number of requests recorded, other than those which
+     * were cancelled.
+     *
+     * @return The number of requests
+     */
+    public long getRequests() {
+        return latency.getCount();
+    }
+
+    /**
+     * Gets the number of request body bytes sent.
+     *
+     * @return The bytes sent
+     */
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    /**
+     * Gets the number of response body bytes read.
+     *
+     * @return The bytes received
+     */
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    /**
+     * Gets the number of responses received with each status code.
+     *
+     * @return A map of status code to count, containing only codes which
+     * were received
+     */
+    public Map<Integer, Long> getStatusCodes() {
+        final Map<Integer, Long> result = new TreeMap<Integer, Long>();
+
+        for (int i = 0; i < statusCodes.length(); i++) {
+            final long n = statusCodes.get(i);
+
+            if (n > 0) {
+                result.put(i, n);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Gets the number of requests which failed without a response.
+     *
+     * @return The number of errors
+     */
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    /**
+     * Gets the number of requests which timed out before a response arrived.
+     *
+     * @return The number of timeouts
+     */
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    /**
+     * Gets the number of requests which were abandoned by the caller before
+     * a response arrived.
+     *
+     * @return The number of cancelled requests
+     */
+    public long getCancelled() {
+        return cancelled.sum();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+        return String.format("%s: n=%d p50=%.1fms p99=%.1fms p999=%.1fms "
+                + "max=%.1fms sent=%dB received=%dB status=%s errors=%d "
+                + "timeouts=%d cancelled=%d",
+                endpoint, getRequests(), latency.getPercentile(50) / 1000.0,
+                latency.getPercentile(99) / 1000.0,
+                latency.getPercentile(99.9) / 1000.0,
+                latency.getMax() / 1000.0, getBytesSent(), getBytesReceived(),
+                getStatusCodes(), getErrors(), getTimeouts(), getCancelled());
+    }
+
+}
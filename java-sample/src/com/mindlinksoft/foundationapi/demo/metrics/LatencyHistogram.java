@@ -0,0 +1,161 @@
+package com.mindlinksoft.foundationapi.demo.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of latencies, recorded in microseconds.
+ * <p>
+ * Values are counted in log-linear buckets: each power of two is split into
+ * 16 equal sub-buckets, so any percentile is reported to within about 6% of
+ * the true value while the whole histogram occupies a fixed array of a few
+ * hundred counters. Recording a value is a handful of arithmetic operations
+ * and an atomic increment, so it can be called on every request from any
+ * number of threads without contention on a lock.
+ * <p>
+ * Percentiles are computed by walking the buckets, and are not an atomic
+ * snapshot if values are being recorded concurrently.
+ */
+public class LatencyHistogram {
+
+    /** The number of bits of precision kept within each power of two. */
+    private static final int SUB_BUCKET_BITS = 4;
+
+    /** The number of sub-buckets each power of two is split into. */
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /** The largest value which can be recorded (about 12 days). */
+    private static final long MAX_VALUE = (1L << 40) - 1;
+
+    /** The number of buckets needed to cover every value up to the max. */
+    private static final int BUCKETS = indexOf(MAX_VALUE) + 1;
+
+    /** The count of values recorded in each bucket. */
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    /** The total number of values recorded. */
+    private final LongAdder count = new LongAdder();
+
+    /** The sum of all values recorded. */
+    private final LongAdder sum = new LongAdder();
+
+    /** The largest value recorded. */
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a latency.
+     *
+     * @param micros The latency in microseconds
+     */
+    public void record(final long micros) {
+        final long value = Math.max(0, Math.min(MAX_VALUE, micros));
+        counts.incrementAndGet(indexOf(value));
+        count.increment();
+        sum.add(value);
+
+        long current = max.get();
+
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * Gets the number of values recorded.
+     *
+     * @return The count of recorded values
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * Gets the mean of the values recorded.
+     *
+     * @return The mean latency in microseconds, or 0 if none were recorded
+     */
+    public double getMean() {
+        final long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * Gets the largest value recorded.
+     *
+     * @return The maximum latency in microseconds
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Gets the value below which the given percentage of recorded values
+     * fall.
+     *
+     * @param percentile The percentile to find, between 0 and 100 (e.g. 99.9)
+     * @return The latency at that percentile in microseconds (the upper bound
+     * of the bucket it falls in), or 0 if nothing was recorded
+     */
+    public long getPercentile(final double percentile) {
+        long total = 0;
+
+        for (int i = 0; i < BUCKETS; i++) {
+            total += counts.get(i);
+        }
+
+        if (total == 0) {
+            return 0;
+        }
+
+        final long rank = Math.max(1,
+                (long) Math.ceil(total * Math.min(100, percentile) / 100));
+        long seen = 0;
+
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+
+            if (seen >= rank) {
+                return Math.min(upperBoundOf(i), getMax());
+            }
+        }
+
+        return getMax();
+    }
+
+    /**
+     * Gets the bucket a value is counted in.
+     *
+     * @param value The value (non-negative)
+     * @return The index of its bucket
+     */
+    private static int indexOf(final long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+
+        // The position of the highest set bit determines the power of two;
+        // the next SUB_BUCKET_BITS bits below it the sub-bucket
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        final int shift = exponent - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS
+                + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    /**
+     * Gets the largest value counted in a bucket.
+     *
+     * @param index The index of the bucket
+     * @return The bucket's upper bound
+     */
+    private static long upperBoundOf(final int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+
+        final int shift = index / SUB_BUCKETS - 1;
+        final long base = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return base + (1L << shift) - 1;
+    }
+
+}
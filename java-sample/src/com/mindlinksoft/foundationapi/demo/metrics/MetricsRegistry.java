@@ -0,0 +1,100 @@
+package com.mindlinksoft.foundationapi.demo.metrics;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Collects {@link EndpointMetrics} for each API endpoint requested. Endpoints
+ * are identified by method and normalised address (with IDs stripped), so
+ * requests for different channels or agents are aggregated together.
+ * <p>
+ * A single registry is normally shared by every agent in the process, in the
+ * same way as the {@link com.mindlinksoft.foundationapi.demo.transport.ConnectionPool}.
+ */
+public class MetricsRegistry {
+
+    /** The registry used by agents that aren't given one explicitly. */
+    private static MetricsRegistry defaultRegistry;
+
+    /** The metrics for each endpoint. */
+    private final ConcurrentMap<String, EndpointMetrics> endpoints
+            = new ConcurrentHashMap<String, EndpointMetrics>();
+
+    /**
+     * Gets the registry shared by all agents which were not explicitly given
+     * a registry of their own.
+     *
+     * @return The default metrics registry
+     */
+    public static synchronized MetricsRegistry getDefault() {
+        if (defaultRegistry == null) {
+            defaultRegistry = new MetricsRegistry();
+        }
+
+        return defaultRegistry;
+    }
+
+    /**
+     * Gets the metrics for an endpoint, creating them if necessary.
+     *
+     * @param endpoint The endpoint (e.g.
+     * <code>GET /Collaboration/v1/Channels/{id}</code>)
+     * @return The endpoint's metrics
+     */
+    public EndpointMetrics getEndpoint(final String endpoint) {
+        EndpointMetrics metrics = endpoints.get(endpoint);
+
+        if (metrics == null) {
+            final EndpointMetrics created = new EndpointMetrics(endpoint);
+            metrics = endpoints.putIfAbsent(endpoint, created);
+
+            if (metrics == null) {
+                metrics = created;
+            }
+        }
+
+        return metrics;
+    }
+
+    /**
+     * Gets the metrics of every endpoint which has been requested.
+     *
+     * @return The endpoints' metrics, sorted by endpoint
+     */
+    public List<EndpointMetrics> getEndpoints() {
+        final List<EndpointMetrics> result
+                = new ArrayList<EndpointMetrics>(endpoints.values());
+        Collections.sort(result, new Comparator<EndpointMetrics>() {
+            @Override
+            public int compare(final EndpointMetrics a,
+                    final EndpointMetrics b) {
+                return a.getEndpoint().compareTo(b.getEndpoint());
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Discards all recorded metrics.
+     */
+    public void reset() {
+        endpoints.clear();
+    }
+
+    /**
+     * Writes a summary of every endpoint's metrics, one per line.
+     *
+     * @param out The stream to write to
+     */
+    public void dump(final PrintStream out) {
+        for (EndpointMetrics metrics : getEndpoints()) {
+            out.println(metrics);
+        }
+    }
+
+}
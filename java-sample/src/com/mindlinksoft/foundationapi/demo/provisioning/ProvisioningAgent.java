@@ -4,13 +4,17 @@ import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
-import org.json.JSONTokener;
 
 import com.mindlinksoft.foundationapi.demo.AuthenticatingAgent;
+import com.mindlinksoft.foundationapi.demo.Session;
+import com.mindlinksoft.foundationapi.demo.UriTemplate;
+import com.mindlinksoft.foundationapi.demo.cluster.Cluster;
+import com.mindlinksoft.foundationapi.demo.transport.Transport;
 
 /**
  * An agent capable of interacting with the provisioning services of the
@@ -18,6 +22,34 @@ import com.mindlinksoft.foundationapi.demo.AuthenticatingAgent;
  */
 public class ProvisioningAgent extends AuthenticatingAgent {
 
+    /** The address of a provisioned agent. */
+    private static final UriTemplate AGENT = UriTemplate.compile(
+            "/Provisioning/v1/Agents/{agentId}");
+
+    /** The address of an agent's provisioned channels. */
+    private static final UriTemplate AGENT_CHANNELS = UriTemplate.compile(
+            "/Provisioning/v1/Agents/{agentId}/Channels");
+
+    /** The address of a channel provisioned to an agent. */
+    private static final UriTemplate AGENT_CHANNEL = UriTemplate.compile(
+            "/Provisioning/v1/Agents/{agentId}/Channels/{channelId}");
+
+    /** The address of an agent's metadata. */
+    private static final UriTemplate AGENT_META_DATA = UriTemplate.compile(
+            "/Provisioning/v1/Agents/{agentId}/MetaData");
+
+    /** The address of a single item of an agent's metadata. */
+    private static final UriTemplate AGENT_META_DATA_KEY = UriTemplate.compile(
+            "/Provisioning/v1/Agents/{agentId}/MetaData/{key}");
+
+    /** The address of a channel search. */
+    private static final UriTemplate CHANNEL_SEARCH = UriTemplate.compile(
+            "/Provisioning/v1/Channels?query={term}");
+
+    /** The address of a provisioned user. */
+    private static final UriTemplate USER = UriTemplate.compile(
+            "/Provisioning/v1/Users/{userId}");
+
     /**
      * Creates a new {@link ProvisioningAgent}.
      *
@@ -35,6 +67,54 @@ public class ProvisioningAgent extends AuthenticatingAgent {
         super(baseUrl, username, password, agent);
     }
 
+    /**
+     * Creates a new {@link ProvisioningAgent} which sends its requests through
+     * the given transport.
+     *
+     * @param baseUrl The base address for the Foundation API. The agent will
+     * append method names automatically. For example, a base URL of
+     * <code>http://api.company.com</code> will result in URLs constructed such
+     * as <code>http://api.company.com/Authentication/v1/Tokens</code>.
+     * @param username The username to give to the API when authenticating
+     * @param password The username to give to the API when authenticating
+     * @param agent The ID of the agent to use. May be an empty string if
+     * authenticating as a super user.
+     * @param transport The transport to send requests through
+     */
+    public ProvisioningAgent(final String baseUrl, final String username,
+            final String password, final String agent,
+            final Transport transport) {
+        super(baseUrl, username, password, agent, transport);
+    }
+
+    /**
+     * Creates a new {@link ProvisioningAgent} which spreads its requests across
+     * a cluster of API servers.
+     *
+     * @param cluster The API servers to send requests to
+     * @param username The username to give to the API when authenticating
+     * @param password The username to give to the API when authenticating
+     * @param agent The ID of the agent to use. May be an empty string if
+     * authenticating as a super user.
+     * @param transport The transport to send requests through
+     */
+    public ProvisioningAgent(final Cluster cluster, final String username,
+            final String password, final String agent,
+            final Transport transport) {
+        super(cluster, username, password, agent, transport);
+    }
+
+    /**
+     * Creates a new {@link ProvisioningAgent} which makes its requests in the
+     * given session, sharing its token, connections, limits and metrics with
+     * every other agent on the session.
+     *
+     * @param session The session to make requests in
+     */
+    public ProvisioningAgent(final Session session) {
+        super(session);
+    }
+
     /**
      * Gets the set of all provisioned agents.
      *
@@ -45,21 +125,28 @@ public class ProvisioningAgent extends AuthenticatingAgent {
      */
     public Collection<ProvisionedAgent> getAgents() throws IOException {
         try {
-            final JSONArray response = new JSONArray(
-                    getResponse("/Provisioning/v1/Agents", "GET", null));
+            final JSONArray response = getResponse(
+                    "/Provisioning/v1/Agents", "GET", null, JSON_ARRAY);
 
-            final ProvisionedAgent[] res
-                    = new ProvisionedAgent[response.length()];
-            for (int i = 0; i < response.length(); i++) {
-                res[i] = getAgent(response.optJSONObject(i));
-            }
-
-            return Arrays.asList(res);
+            return getAgents(response);
         } catch (JSONException ex) {
             throw new IOException("Unable to deserialise JSON response", ex);
         }
     }
 
+    /**
+     * Gets the set of all provisioned agents without blocking the calling
+     * thread.
+     *
+     * @return A future which completes with one {@link ProvisionedAgent}
+     * corresponding to each agent provisioned on the API
+     * @see #getAgents()
+     */
+    public CompletableFuture<Collection<ProvisionedAgent>> getAgentsAsync() {
+        return getResponseAsync("/Provisioning/v1/Agents", "GET", null,
+                tokener -> getAgents(new JSONArray(tokener)));
+    }
+
     /**
      * Gets an agent's information given its ID.
      *
@@ -72,15 +159,29 @@ public class ProvisioningAgent extends AuthenticatingAgent {
      */
     public ProvisionedAgent getAgent(final String agentId) throws IOException {
         try {
-            final JSONObject response = new JSONObject(
-                    getResponse("/Provisioning/v1/Agents/" + agentId, "GET",
-                    null));
+            final JSONObject response = getResponse(
+                    AGENT.expand(agentId), "GET", null, JSON_OBJECT);
             return getAgent(response);
         } catch (JSONException ex) {
             throw new IOException("Unable to deserialise JSON response", ex);
         }
     }
 
+    /**
+     * Gets an agent's information given its ID without blocking the calling
+     * thread.
+     *
+     * @param agentId The ID of the agent to retrieve
+     * @return A future which completes with a single {@link ProvisionedAgent}
+     * instance corresponding to the agent with the given ID
+     * @see #getAgent(String)
+     */
+    public CompletableFuture<ProvisionedAgent> getAgentAsync(
+            final String agentId) {
+        return getResponseAsync(AGENT.expand(agentId), "GET",
+                null, tokener -> getAgent(new JSONObject(tokener)));
+    }
+
     /**
      * Creates a new agent, or updates any existing agent with the same ID.
      *
@@ -102,8 +203,8 @@ public class ProvisioningAgent extends AuthenticatingAgent {
             object.put("Users", new JSONArray(agent.getUsers()));
             object.put("State", "0");
 
-            getResponse("/Provisioning/v1/Agents/" + agent.getId(), "PUT",
-                    object.toString());
+            sendPayload(AGENT.expand(agent.getId()), "PUT",
+                    object, null);
         } catch (JSONException ex) {
             throw new IOException("Unable to construct JSON payload", ex);
         }
@@ -117,7 +218,7 @@ public class ProvisioningAgent extends AuthenticatingAgent {
      * not parsed
      */
     public void deleteAgent(final String agentId) throws IOException {
-        getResponse("/Provisioning/v1/Agents/" + agentId, "DELETE", null);
+        getResponse(AGENT.expand(agentId), "DELETE", null);
     }
 
     /**
@@ -131,9 +232,8 @@ public class ProvisioningAgent extends AuthenticatingAgent {
     public ProvisionedChannel[] getChannels(final String agentId)
             throws IOException {
         try {
-            final JSONArray response = new JSONArray(
-                    getResponse("/Provisioning/v1/Agents/" + agentId
-                    + "/Channels", "GET", null));
+            final JSONArray response = getResponse(
+                    AGENT_CHANNELS.expand(agentId), "GET", null, JSON_ARRAY);
             return getProvisionedChannels(response);
         } catch (JSONException ex) {
             throw new IOException("Unable to deserialise JSON response", ex);
@@ -151,8 +251,8 @@ public class ProvisioningAgent extends AuthenticatingAgent {
     public void addChannel(final String agentId,
             final ProvisionedChannel channel) throws IOException {
         try {
-            getResponse("/Provisioning/v1/Agents/" + agentId + "/Channels/"
-                    + channel.getId(), "PUT", getChannel(channel).toString());
+            sendPayload(AGENT_CHANNEL.expand(agentId, channel.getId()), "PUT",
+                    getChannel(channel), null);
         } catch (JSONException ex) {
             throw new IOException("Unable to construct JSON payload", ex);
         }
@@ -169,8 +269,7 @@ public class ProvisioningAgent extends AuthenticatingAgent {
      */
     public void deleteChannel(final String agentId, final String channelId)
             throws IOException {
-        getResponse("/Provisioning/v1/Agents/" + agentId + "/Channels/"
-                + channelId, "DELETE", null);
+        getResponse(AGENT_CHANNEL.expand(agentId, channelId), "DELETE", null);
     }
 
     /**
@@ -186,9 +285,8 @@ public class ProvisioningAgent extends AuthenticatingAgent {
     public Map<String, String> getMetaData(final String agentId)
             throws IOException {
         try {
-            final JSONArray response = new JSONArray(
-                    getResponse("/Provisioning/v1/Agents/" + agentId
-                    + "/MetaData", "GET", null));
+            final JSONArray response = getResponse(
+                    AGENT_META_DATA.expand(agentId), "GET", null, JSON_ARRAY);
             return getMap(response);
         } catch (JSONException ex) {
             throw new IOException("Unable to deserialise JSON response", ex);
@@ -206,8 +304,8 @@ public class ProvisioningAgent extends AuthenticatingAgent {
     public void replaceMetaData(final String agentId,
             final Map<String, String> metaData) throws IOException {
         try {
-            getResponse("/Provisioning/v1/Agents/" + agentId + "/MetaData",
-                    "PUT", getDictionary(metaData).toString());
+            sendPayload(AGENT_META_DATA.expand(agentId),
+                    "PUT", getDictionary(metaData), null);
         } catch (JSONException ex) {
             throw new IOException("Unable to construct JSON payload", ex);
         }
@@ -227,12 +325,10 @@ public class ProvisioningAgent extends AuthenticatingAgent {
      */
     public String getMetaData(final String agentId, final String key)
             throws IOException {
-        final JSONTokener tokener = new JSONTokener(
-                getResponse("/Provisioning/v1/Agents/" + agentId + "/MetaData/"
-                + key, "GET", null));
-
         try {
-            return tokener.nextString(tokener.next());
+            return getResponse(AGENT_META_DATA_KEY.expand(agentId, key),
+                    "GET", null,
+                    tokener -> tokener.nextString(tokener.next()));
         } catch (JSONException ex) {
             throw new IOException("Unable to deserialise JSON response", ex);
         }
@@ -250,8 +346,8 @@ public class ProvisioningAgent extends AuthenticatingAgent {
      */
     public void deleteMetaData(final String agentId, final String key)
             throws IOException {
-        getResponse("/Provisioning/v1/Agents/" + agentId + "/MetaData/"
-                + key, "DELETE", null);
+        getResponse(AGENT_META_DATA_KEY.expand(agentId, key), "DELETE",
+                null);
     }
 
     /**
@@ -265,8 +361,8 @@ public class ProvisioningAgent extends AuthenticatingAgent {
      */
     public void setMetaData(final String agentId, final String key,
             final String value) throws IOException {
-        getResponse("/Provisioning/v1/Agents/" + agentId + "/MetaData/"
-                + key, "PUT", JSONObject.quote(value));
+        getResponse(AGENT_META_DATA_KEY.expand(agentId, key), "PUT",
+                JSONObject.quote(value));
     }
 
     /**
@@ -285,8 +381,8 @@ public class ProvisioningAgent extends AuthenticatingAgent {
     public Map<String, String> findChannels(final String term)
             throws IOException {
         try {
-            final JSONArray response = new JSONArray(getResponse(
-                    "/Provisioning/v1/Channels?query=" + term, "GET", null));
+            final JSONArray response = getResponse(
+                    CHANNEL_SEARCH.expand(term), "GET", null, JSON_ARRAY);
             return getMap(response);
         } catch (JSONException ex) {
             throw new IOException("Unable to deserialise JSON response", ex);
@@ -304,8 +400,8 @@ public class ProvisioningAgent extends AuthenticatingAgent {
      */
     public ProvisionedUser[] getUsers() throws IOException {
         try {
-            final JSONArray response = new JSONArray(
-                    getResponse("/Provisioning/v1/Users", "GET", null));
+            final JSONArray response = getResponse(
+                    "/Provisioning/v1/Users", "GET", null, JSON_ARRAY);
 
             final ProvisionedUser[] users
                     = new ProvisionedUser[response.length()];
@@ -330,9 +426,8 @@ public class ProvisioningAgent extends AuthenticatingAgent {
      */
     public ProvisionedUser getUser(final String userId) throws IOException {
         try {
-            final JSONObject response = new JSONObject(
-                    getResponse("/Provisioning/v1/Users/" + userId, "GET",
-                    null));
+            final JSONObject response = getResponse(
+                    USER.expand(userId), "GET", null, JSON_OBJECT);
             return getUser(response);
         } catch (JSONException ex) {
             throw new IOException("Unable to deserialise JSON response", ex);
@@ -348,8 +443,8 @@ public class ProvisioningAgent extends AuthenticatingAgent {
      */
     public void addOrUpdateUser(final ProvisionedUser user) throws IOException {
         try {
-            getResponse("/Provisioning/v1/Users/" + user.getId(), "PUT",
-                    getUser(user).toString());
+            sendPayload(USER.expand(user.getId()), "PUT",
+                    getUser(user), null);
         } catch (JSONException ex) {
             throw new IOException("Unable to construct JSON payload", ex);
         }
@@ -363,7 +458,7 @@ public class ProvisioningAgent extends AuthenticatingAgent {
      * not parsed
      */
     public void deleteUser(final String userId) throws IOException {
-        getResponse("/Provisioning/v1/Users/" + userId, "DELETE", null);
+        getResponse(USER.expand(userId), "DELETE", null);
     }
 
     /**
@@ -456,6 +551,25 @@ public class ProvisioningAgent extends AuthenticatingAgent {
         return array;
     }
 
+    /**
+     * Utility method to convert a JSON array of agent objects into a
+     * collection of {@link ProvisionedAgent}s.
+     *
+     * @param array The array of agents to be converted
+     * @return A corresponding collection of {@link ProvisionedAgent}s
+     * @throws JSONException If the agents cannot be converted
+     */
+    protected Collection<ProvisionedAgent> getAgents(final JSONArray array)
+            throws JSONException {
+        final ProvisionedAgent[] res = new ProvisionedAgent[array.length()];
+
+        for (int i = 0; i < array.length(); i++) {
+            res[i] = getAgent(array.optJSONObject(i));
+        }
+
+        return Arrays.asList(res);
+    }
+
     /**
      * Utility method to create a {@link ProvisionedAgent} from a JSON object
      * received from the API.
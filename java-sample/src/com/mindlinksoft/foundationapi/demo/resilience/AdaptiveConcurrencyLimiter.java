@@ -0,0 +1,316 @@
+package com.mindlinksoft.foundationapi.demo.resilience;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import com.mindlinksoft.foundationapi.demo.transport.ConnectionPool;
+
+/**
+ * Limits the number of requests in flight to a limit which adapts to what the
+ * server can sustain, using additive-increase/multiplicative-decrease (AIMD).
+ * <p>
+ * Each request that completes in good time while the limit is being used
+ * raises the limit by <code>1 / limit</code> - roughly one extra request per
+ * round of requests. Each request which is dropped (it fails, is throttled by
+ * the server, or takes longer than the latency threshold) cuts the limit by a
+ * fixed ratio. Requests beyond the limit wait for one in flight to complete;
+ * asynchronous requests wait without holding a thread.
+ * <p>
+ * Waiting requests are admitted by {@link Priority}, through a
+ * {@link FairQueue}: interactive requests overtake bulk ones, and bulk
+ * requests never occupy the whole limit.
+ */
+public class AdaptiveConcurrencyLimiter {
+
+    /**
+     * The default initial limit: as many requests as the default
+     * {@link ConnectionPool} sends to one host at once, so that a new limit
+     * neither holds back requests the pool could send nor admits requests
+     * which would only wait for a connection.
+     */
+    public static final int DEFAULT_INITIAL_LIMIT
+            = ConnectionPool.DEFAULT_MAX_CONNECTIONS_PER_HOST;
+
+    /** The default lower bound on the limit. */
+    public static final int DEFAULT_MIN_LIMIT = 1;
+
+    /** The default upper bound on the limit. */
+    public static final int DEFAULT_MAX_LIMIT = 64;
+
+    /** The default latency above which a request counts as dropped. */
+    public static final long DEFAULT_MAX_LATENCY_MILLIS = 2000;
+
+    /** The factor the limit is multiplied by when a request is dropped. */
+    private static final double BACKOFF_RATIO = 0.9;
+
+    /** The lower bound on the limit. */
+    private final int minLimit;
+
+    /** The upper bound on the limit. */
+    private final int maxLimit;
+
+    /** The latency above which a request counts as dropped. */
+    private final long maxLatencyMillis;
+
+    /** The current limit. */
+    private double limit;
+
+    /** The number of requests in flight. */
+    private int inFlight;
+
+    /** Requests waiting for the number in flight to fall below the limit. */
+    private final FairQueue<CompletableFuture<Void>> waiters
+            = new FairQueue<CompletableFuture<Void>>();
+
+    /** The number of requests which were dropped. */
+    private long dropped;
+
+    /** The number of requests which had to wait. */
+    private long queued;
+
+    /** The number of releases with no admitted request to match. */
+    private long unmatched;
+
+    /**
+     * Creates a new {@link AdaptiveConcurrencyLimiter} with the default
+     * settings.
+     */
+    public AdaptiveConcurrencyLimiter() {
+        this(DEFAULT_INITIAL_LIMIT, DEFAULT_MIN_LIMIT, DEFAULT_MAX_LIMIT,
+                DEFAULT_MAX_LATENCY_MILLIS);
+    }
+
+    /**
+     * Creates a new {@link AdaptiveConcurrencyLimiter}.
+     *
+     * @param initialLimit The limit to start at
+     * @param minLimit The lowest the limit may fall to
+     * @param maxLimit The highest the limit may rise to
+     * @param maxLatencyMillis The latency above which a request counts as
+     * dropped
+     */
+    public AdaptiveConcurrencyLimiter(final int initialLimit,
+            final int minLimit, final int maxLimit,
+            final long maxLatencyMillis) {
+        if (minLimit < 1 || maxLimit < minLimit || initialLimit < minLimit
+                || initialLimit > maxLimit) {
+            throw new IllegalArgumentException(
+                    "Limits must satisfy 1 <= min <= initial <= max");
+        }
+
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.maxLatencyMillis = maxLatencyMillis;
+    }
+
+    /**
+     * Admits a request of {@link Priority#NORMAL} priority, blocking while
+     * the limit has been reached. Each admitted request must be followed by
+     * a call to {@link #release(boolean, long)} or {@link #cancel()}.
+     *
+     * @throws InterruptedIOException If the thread is interrupted while
+     * waiting
+     */
+    public void acquire() throws InterruptedIOException {
+        acquire(Priority.NORMAL);
+    }
+
+    /**
+     * Admits a request, blocking while the limit has been reached. Each
+     * admitted request must be followed by a call to
+     * {@link #release(boolean, long)} or {@link #cancel()}.
+     *
+     * @param priority The request's priority
+     * @throws InterruptedIOException If the thread is interrupted while
+     * waiting
+     */
+    public void acquire(final Priority priority)
+            throws InterruptedIOException {
+        final CompletableFuture<Void> permit = acquireAsync(priority);
+
+        if (permit.isDone()) {
+            return;
+        }
+
+        try {
+            permit.get();
+        } catch (InterruptedException ex) {
+            if (!permit.cancel(false)) {
+                // The permit was granted as we were interrupted
+                cancel();
+            }
+
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(
+                    "Interrupted waiting for the concurrency limit");
+        } catch (ExecutionException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Admits a request of {@link Priority#NORMAL} priority without blocking.
+     * If the returned future is cancelled before it completes, the request is
+     * not admitted.
+     *
+     * @return A future which completes once the request is admitted
+     */
+    public CompletableFuture<Void> acquireAsync() {
+        return acquireAsync(Priority.NORMAL);
+    }
+
+    /**
+     * Admits a request without blocking. If the returned future is cancelled
+     * before it completes, the request is not admitted.
+     *
+     * @param priority The request's priority
+     * @return A future which completes once the request is admitted
+     */
+    public synchronized CompletableFuture<Void> acquireAsync(
+            final Priority priority) {
+        if (inFlight < priority.getCapacity((int) limit)
+                && !waiters.hasEligible(inFlight, (int) limit)) {
+            inFlight++;
+            return CompletableFuture.completedFuture(null);
+        }
+
+        queued++;
+
+        final CompletableFuture<Void> permit = new CompletableFuture<Void>();
+        waiters.add(priority, permit);
+        return permit;
+    }
+
+    /**
+     * Records the outcome of an admitted request and adjusts the limit.
+     *
+     * @param failed Whether the request failed, or was throttled by the server
+     * @param latencyMillis The time the request took
+     * @throws IllegalStateException If no requests are in flight, so the
+     * call can't match an admitted request (it is counted, see
+     * {@link #getUnmatchedCount()}, and has no effect)
+     */
+    public void release(final boolean failed, final long latencyMillis) {
+        synchronized (this) {
+            checkInFlight();
+
+            if (failed || latencyMillis > maxLatencyMillis) {
+                dropped++;
+                limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+            } else if (inFlight * 2 >= limit) {
+                // Only grow while the limit is actually being used
+                limit = Math.min(maxLimit, limit + 1 / limit);
+            }
+        }
+
+        cancel();
+    }
+
+    /**
+     * Releases an admitted request whose outcome says nothing about the
+     * server's capacity, such as one abandoned by the caller.
+     *
+     * @throws IllegalStateException If no requests are in flight, so the
+     * call can't match an admitted request (it is counted, see
+     * {@link #getUnmatchedCount()}, and has no effect)
+     */
+    public void cancel() {
+        synchronized (this) {
+            checkInFlight();
+            inFlight--;
+        }
+
+        while (true) {
+            final CompletableFuture<Void> next;
+
+            synchronized (this) {
+                next = waiters.poll(inFlight, (int) limit);
+
+                if (next == null) {
+                    return;
+                }
+
+                inFlight++;
+            }
+
+            if (!next.complete(null)) {
+                // The waiter gave up; hand its place back
+                synchronized (this) {
+                    inFlight--;
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks that a request is in flight for a release to match, so that an
+     * unmatched release can't let more requests in than the limit allows.
+     *
+     * @throws IllegalStateException If no requests are in flight
+     */
+    private void checkInFlight() {
+        if (inFlight <= 0) {
+            unmatched++;
+            throw new IllegalStateException(
+                    "Released more requests than were admitted");
+        }
+    }
+
+    /**
+     * Gets the current limit.
+     *
+     * @return The number of requests currently allowed in flight
+     */
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    /**
+     * Gets the number of requests in flight.
+     *
+     * @return The number of admitted requests not yet released
+     */
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * Gets the number of requests which were dropped, reducing the limit.
+     *
+     * @return The number of dropped requests
+     */
+    public synchronized long getDroppedCount() {
+        return dropped;
+    }
+
+    /**
+     * Gets the number of requests which had to wait to be admitted.
+     *
+     * @return The number of queued requests
+     */
+    public synchronized long getQueuedCount() {
+        return queued;
+    }
+
+    /**
+     * Gets the number of releases which matched no admitted request: each
+     * is a bug in the caller's accounting.
+     *
+     * @return The number of unmatched releases
+     */
+    public synchronized long getUnmatchedCount() {
+        return unmatched;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public synchronized String toString() {
+        return "AdaptiveConcurrencyLimiter{limit=" + (int) limit
+                + ", inFlight=" + inFlight + ", waiting=" + waiters.size()
+                + ", dropped=" + dropped + ", queued=" + queued
+                + ", unmatched=" + unmatched + '}';
+    }
+
+}
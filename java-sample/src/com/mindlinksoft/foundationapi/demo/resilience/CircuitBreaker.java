@@ -0,0 +1,183 @@
+package com.mindlinksoft.foundationapi.demo.resilience;
+
+/**
+ * Stops requests from being sent while the Foundation API appears to be down.
+ * <p>
+ * The breaker starts closed, letting every request through. Once a number of
+ * consecutive requests have failed (with an I/O error or a 5xx response) it
+ * opens, and requests fail immediately with a
+ * {@link CircuitBreakerOpenException} rather than waiting on a server which
+ * can't answer them. After a cool-down period the breaker lets a single trial
+ * request through: if that succeeds the breaker closes again, otherwise it
+ * re-opens for another cool-down period.
+ */
+public class CircuitBreaker {
+
+    /** The default number of consecutive failures which open the breaker. */
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+
+    /** The default time the breaker stays open before a trial request. */
+    public static final long DEFAULT_OPEN_MILLIS = 10000;
+
+    /**
+     * The states a circuit breaker can be in.
+     */
+    public enum State {
+
+        /** Requests are let through as normal. */
+        CLOSED,
+
+        /** Requests are refused. */
+        OPEN,
+
+        /** A single trial request is let through. */
+        HALF_OPEN
+
+    }
+
+    /** The number of consecutive failures which open the breaker. */
+    private final int failureThreshold;
+
+    /** The time the breaker stays open before a trial request. */
+    private final long openMillis;
+
+    /** The current state of the breaker. */
+    private State state = State.CLOSED;
+
+    /** The number of consecutive failures seen. */
+    private int failures;
+
+    /** The time at which the breaker last opened. */
+    private long openedAt;
+
+    /** Whether or not the trial request is in flight. */
+    private boolean trialInFlight;
+
+    /** The number of requests refused while open. */
+    private long rejected;
+
+    /** The number of times the breaker has opened. */
+    private long trips;
+
+    /**
+     * Creates a new {@link CircuitBreaker} with the default settings.
+     */
+    public CircuitBreaker() {
+        this(DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_MILLIS);
+    }
+
+    /**
+     * Creates a new {@link CircuitBreaker}.
+     *
+     * @param failureThreshold The number of consecutive failures which open
+     * the breaker
+     * @param openMillis The time the breaker stays open before letting a trial
+     * request through
+     */
+    public CircuitBreaker(final int failureThreshold, final long openMillis) {
+        if (failureThreshold < 1) {
+            throw new IllegalArgumentException(
+                    "failureThreshold must be at least 1");
+        }
+
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * Asks permission to send a request. Each permitted request must be
+     * followed by a call to {@link #onSuccess()}, {@link #onFailure()} or
+     * {@link #onCancelled()}.
+     *
+     * @throws CircuitBreakerOpenException If the breaker is open
+     */
+    public synchronized void acquire() throws CircuitBreakerOpenException {
+        if (state == State.OPEN) {
+            final long remaining = openedAt + openMillis
+                    - System.currentTimeMillis();
+
+            if (remaining > 0) {
+                rejected++;
+                throw new CircuitBreakerOpenException(remaining);
+            }
+
+            state = State.HALF_OPEN;
+        }
+
+        if (state == State.HALF_OPEN) {
+            if (trialInFlight) {
+                rejected++;
+                throw new CircuitBreakerOpenException(0);
+            }
+
+            trialInFlight = true;
+        }
+    }
+
+    /**
+     * Records that a permitted request succeeded.
+     */
+    public synchronized void onSuccess() {
+        failures = 0;
+        trialInFlight = false;
+        state = State.CLOSED;
+    }
+
+    /**
+     * Records that a permitted request was abandoned before its outcome was
+     * known, so says nothing about the API's health.
+     */
+    public synchronized void onCancelled() {
+        trialInFlight = false;
+    }
+
+    /**
+     * Records that a permitted request failed.
+     */
+    public synchronized void onFailure() {
+        failures++;
+        trialInFlight = false;
+
+        if (state == State.HALF_OPEN
+                || (state == State.CLOSED && failures >= failureThreshold)) {
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+            trips++;
+        }
+    }
+
+    /**
+     * Gets the current state of the breaker.
+     *
+     * @return The breaker's state
+     */
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * Gets the number of requests refused because the breaker was open.
+     *
+     * @return The number of refused requests
+     */
+    public synchronized long getRejectedCount() {
+        return rejected;
+    }
+
+    /**
+     * Gets the number of times the breaker has opened.
+     *
+     * @return The number of trips
+     */
+    public synchronized long getTripCount() {
+        return trips;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public synchronized String toString() {
+        return "CircuitBreaker{state=" + state + ", failures=" + failures
+                + ", trips=" + trips + ", rejected=" + rejected + '}';
+    }
+
+}
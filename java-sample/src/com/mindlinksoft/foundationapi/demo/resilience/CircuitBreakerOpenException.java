@@ -0,0 +1,37 @@
+package com.mindlinksoft.foundationapi.demo.resilience;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a request is refused without being sent because its
+ * {@link CircuitBreaker} is open.
+ */
+public class CircuitBreakerOpenException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The time remaining until the breaker lets a trial request through. */
+    private final long retryAfterMillis;
+
+    /**
+     * Creates a new {@link CircuitBreakerOpenException}.
+     *
+     * @param retryAfterMillis The time until the breaker will next allow a
+     * request through, in milliseconds
+     */
+    public CircuitBreakerOpenException(final long retryAfterMillis) {
+        super("The API is unavailable; not retrying for another "
+                + retryAfterMillis + " ms");
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    /**
+     * Gets the time until the breaker will next allow a request through.
+     *
+     * @return The remaining time in milliseconds
+     */
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+
+}
@@ -0,0 +1,403 @@
+package com.mindlinksoft.foundationapi.demo.resilience;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The time by which a call to the API must complete, and a way for another
+ * thread to abandon it sooner.
+ * <p>
+ * A deadline applies to everything the call does: waiting for a token, for
+ * the rate and concurrency limits and for a connection, connecting, reading
+ * the response, and any retries. The transport turns the time remaining into
+ * connect and read timeouts, so a stalled server can't hold a thread for
+ * longer than the deadline allows. Cancelling a deadline aborts any request
+ * in flight under it, including blocking reads.
+ * <p>
+ * Agent methods inherit the deadline of the calling thread:
+ *
+ * <pre>
+ * try (Deadline.Scope scope = Deadline.after(5, TimeUnit.SECONDS).enter()) {
+ *     agent.getChannels();
+ *     agent.sendMessage(channelId, message, false);
+ * }
+ * </pre>
+ *
+ * Asynchronous methods take the calling thread's deadline when they are
+ * called. Calls made outside any scope are bounded by the agent's own
+ * request timeout (see
+ * {@link com.mindlinksoft.foundationapi.demo.AuthenticatingAgent#setRequestTimeout(long, TimeUnit)}).
+ */
+public class Deadline {
+
+    /** The deadline of each thread's current scope. */
+    private static final ThreadLocal<Deadline> CURRENT
+            = new ThreadLocal<Deadline>();
+
+    /** Abandons waits when their deadlines pass. */
+    private static final ScheduledThreadPoolExecutor SCHEDULER;
+
+    static {
+        SCHEDULER = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "Deadlines");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        SCHEDULER.setRemoveOnCancelPolicy(true);
+    }
+
+    /** Whether or not the deadline has a time limit. */
+    private final boolean bounded;
+
+    /** The time the deadline passes, from {@link System#nanoTime()}. */
+    private final long expiresAt;
+
+    /** Whether or not the deadline has been cancelled. */
+    private volatile boolean cancelled;
+
+    /** Actions to run on cancellation (created on first use). */
+    private List<Runnable> cancellationActions;
+
+    /**
+     * Creates a new {@link Deadline}.
+     *
+     * @param bounded Whether or not the deadline has a time limit
+     * @param expiresAt The time the deadline passes, from
+     * {@link System#nanoTime()}
+     */
+    private Deadline(final boolean bounded, final long expiresAt) {
+        this.bounded = bounded;
+        this.expiresAt = expiresAt;
+    }
+
+    /**
+     * Creates a deadline which passes after the given time.
+     *
+     * @param timeout The time allowed
+     * @param unit The unit of the timeout
+     * @return The new deadline
+     */
+    public static Deadline after(final long timeout, final TimeUnit unit) {
+        return new Deadline(true, System.nanoTime() + unit.toNanos(timeout));
+    }
+
+    /**
+     * Creates a deadline with no time limit, which only ends if it is
+     * cancelled.
+     *
+     * @return The new deadline
+     */
+    public static Deadline none() {
+        return new Deadline(false, 0);
+    }
+
+    /**
+     * Gets the deadline of the calling thread's current scope.
+     *
+     * @return The current deadline, or <code>null</code> if the thread isn't
+     * within a scope
+     * @see #enter()
+     */
+    public static Deadline current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Creates a deadline which passes at the same time as this one but is
+     * cancelled separately, for one of several attempts at a call.
+     *
+     * @return The new deadline
+     */
+    public Deadline fork() {
+        return new Deadline(bounded, expiresAt);
+    }
+
+    /**
+     * Makes this the calling thread's current deadline until the returned
+     * scope is closed, so that the calls the thread makes in the meantime
+     * inherit it.
+     *
+     * @return The scope, which restores the previous deadline when closed
+     */
+    public Scope enter() {
+        final Scope scope = new Scope(CURRENT.get());
+        CURRENT.set(this);
+        return scope;
+    }
+
+    /**
+     * Determines whether the deadline has a time limit.
+     *
+     * @return <code>false</code> if the deadline only ends when cancelled
+     */
+    public boolean isBounded() {
+        return bounded;
+    }
+
+    /**
+     * Gets the time remaining until the deadline passes.
+     *
+     * @return The remaining time in nanoseconds, 0 if it has passed, or
+     * {@link Long#MAX_VALUE} if the deadline has no time limit
+     */
+    public long getRemainingNanos() {
+        return bounded
+                ? Math.max(0, expiresAt - System.nanoTime()) : Long.MAX_VALUE;
+    }
+
+    /**
+     * Gets the time remaining until the deadline passes, rounded up.
+     *
+     * @return The remaining time in milliseconds, 0 if it has passed, or
+     * {@link Long#MAX_VALUE} if the deadline has no time limit
+     */
+    public long getRemainingMillis() {
+        final long nanos = getRemainingNanos();
+        return nanos == Long.MAX_VALUE ? nanos
+                : (nanos + 999999L) / 1000000L;
+    }
+
+    /**
+     * Determines whether the deadline has passed.
+     *
+     * @return <code>true</code> if no time remains
+     */
+    public boolean isExpired() {
+        return bounded && expiresAt - System.nanoTime() <= 0;
+    }
+
+    /**
+     * Determines whether the deadline has been cancelled.
+     *
+     * @return <code>true</code> if {@link #cancel()} has been called
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Cancels the deadline, abandoning any calls made under it: waits end
+     * and requests in flight are aborted. Has no effect if the deadline has
+     * already been cancelled.
+     */
+    public void cancel() {
+        final List<Runnable> actions;
+
+        synchronized (this) {
+            if (cancelled) {
+                return;
+            }
+
+            cancelled = true;
+            actions = cancellationActions;
+            cancellationActions = null;
+        }
+
+        if (actions != null) {
+            for (Runnable action : actions) {
+                action.run();
+            }
+        }
+    }
+
+    /**
+     * Registers an action to abort an operation if the deadline is
+     * cancelled. The action is run straight away if it already has been.
+     *
+     * @param action The action to run on cancellation
+     * @return An action which deregisters the given one, to be run once the
+     * operation completes
+     */
+    public Runnable onCancel(final Runnable action) {
+        synchronized (this) {
+            if (!cancelled) {
+                if (cancellationActions == null) {
+                    cancellationActions = new ArrayList<Runnable>(2);
+                }
+
+                cancellationActions.add(action);
+                return () -> deregister(action);
+            }
+        }
+
+        action.run();
+        return () -> { };
+    }
+
+    /**
+     * Fails if the deadline has passed or been cancelled.
+     *
+     * @param what A description of what is about to be done
+     * @throws IOException If the call should be abandoned
+     */
+    public void check(final String what) throws IOException {
+        final IOException failure = getFailure(what);
+
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Gets the exception to abandon a call with, now that the deadline has
+     * passed or been cancelled. Used to report an operation which was
+     * aborted as a result in place of the error the abort itself caused.
+     *
+     * @param what A description of what was being done
+     * @return A {@link DeadlineExceededException} if the deadline has
+     * passed, an {@link InterruptedIOException} if it was cancelled, or
+     * <code>null</code> if neither
+     */
+    public IOException getFailure(final String what) {
+        if (cancelled) {
+            return new InterruptedIOException("Cancelled " + what);
+        }
+
+        if (isExpired()) {
+            return new DeadlineExceededException("Deadline exceeded " + what);
+        }
+
+        return null;
+    }
+
+    /**
+     * Bounds a wait by the deadline. The returned future completes with the
+     * given future's outcome, or exceptionally once the deadline passes or
+     * is cancelled; the given future itself is left to complete, so may be
+     * shared with other callers.
+     *
+     * @param <T> The type of the result
+     * @param future The future to wait for
+     * @param what A description of what is being waited for
+     * @return A future which completes by the deadline
+     */
+    public <T> CompletableFuture<T> bound(final CompletableFuture<T> future,
+            final String what) {
+        if (future.isDone()) {
+            return future;
+        }
+
+        final IOException failure = getFailure(what);
+
+        if (failure != null) {
+            return CompletableFuture.failedFuture(failure);
+        }
+
+        final CompletableFuture<T> result = new CompletableFuture<T>();
+        future.whenComplete((value, ex) -> {
+            if (ex == null) {
+                result.complete(value);
+            } else {
+                result.completeExceptionally(ex instanceof CompletionException
+                        && ex.getCause() != null ? ex.getCause() : ex);
+            }
+        });
+
+        final Runnable deregister = onCancel(() -> result.completeExceptionally(
+                new InterruptedIOException("Cancelled " + what)));
+        final ScheduledFuture<?> timer = bounded
+                ? SCHEDULER.schedule(() -> result.completeExceptionally(
+                        new DeadlineExceededException("Deadline exceeded "
+                        + what)), getRemainingNanos(), TimeUnit.NANOSECONDS)
+                : null;
+
+        result.whenComplete((value, ex) -> {
+            deregister.run();
+
+            if (timer != null) {
+                timer.cancel(false);
+            }
+        });
+
+        return result;
+    }
+
+    /**
+     * Waits for a future to complete, for no longer than the deadline allows.
+     *
+     * @param <T> The type of the result
+     * @param future The future to wait for
+     * @param what A description of what is being waited for
+     * @return The future's result
+     * @throws IOException If the future fails, the deadline passes or is
+     * cancelled, or the thread is interrupted
+     */
+    public <T> T await(final CompletableFuture<T> future, final String what)
+            throws IOException {
+        try {
+            return bound(future, what).get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted " + what);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+
+            throw new IOException("Failed " + what, ex.getCause());
+        }
+    }
+
+    /**
+     * Removes a registered cancellation action.
+     *
+     * @param action The action to remove
+     */
+    private synchronized void deregister(final Runnable action) {
+        if (cancellationActions != null) {
+            cancellationActions.remove(action);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+        return cancelled ? "Deadline (cancelled)" : bounded
+                ? "Deadline (" + getRemainingMillis() + " ms remaining)"
+                : "Deadline (none)";
+    }
+
+    /**
+     * The period during which a deadline is a thread's current deadline.
+     */
+    public static final class Scope implements AutoCloseable {
+
+        /** The deadline which was current before the scope was entered. */
+        private final Deadline previous;
+
+        /**
+         * Creates a new {@link Scope}.
+         *
+         * @param previous The deadline to restore on closing
+         */
+        private Scope(final Deadline previous) {
+            this.previous = previous;
+        }
+
+        /**
+         * Restores the thread's previous deadline.
+         */
+        @Override
+        public void close() {
+            if (previous == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(previous);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,22 @@
+package com.mindlinksoft.foundationapi.demo.resilience;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Thrown when a request is abandoned because its {@link Deadline} passed
+ * before the response arrived.
+ */
+public class DeadlineExceededException extends InterruptedIOException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Creates a new {@link DeadlineExceededException}.
+     *
+     * @param message A description of what was being waited for
+     */
+    public DeadlineExceededException(final String message) {
+        super(message);
+    }
+
+}
@@ -0,0 +1,181 @@
+package com.mindlinksoft.foundationapi.demo.resilience;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * A queue of waiting requests in several {@link Priority} classes, served by
+ * self-clocked weighted fair queueing.
+ * <p>
+ * Each request is stamped with a virtual finish time when it joins the queue:
+ * the later of the current virtual time and the finish time of the last
+ * request in its class, plus the reciprocal of its class's weight. Requests
+ * leave in order of finish time, and the virtual time advances to the finish
+ * time of each request served. A class with twice the weight therefore gets
+ * twice the turns while both have requests waiting, and a class which has
+ * been idle starts level with the others rather than owed a backlog of turns.
+ * Requests within a class leave in the order they arrived.
+ * <p>
+ * The queue is not thread-safe: its owner is expected to synchronise access,
+ * as it must anyway to account for the capacity being handed out.
+ *
+ * @param <T> The type of the waiting requests
+ */
+public class FairQueue<T> {
+
+    /** The requests waiting in each class, in order of arrival. */
+    private final Map<Priority, Deque<Entry<T>>> queues
+            = new EnumMap<Priority, Deque<Entry<T>>>(Priority.class);
+
+    /** The finish time of the last request queued in each class. */
+    private final Map<Priority, Double> lastFinish
+            = new EnumMap<Priority, Double>(Priority.class);
+
+    /** The finish time of the last request served. */
+    private double virtualTime;
+
+    /** The number of requests waiting. */
+    private int size;
+
+    /**
+     * A request waiting in the queue.
+     *
+     * @param <T> The type of the request
+     */
+    private static final class Entry<T> {
+
+        /** The request. */
+        private final T value;
+
+        /** The request's virtual finish time. */
+        private final double finish;
+
+        /**
+         * Creates a new {@link Entry}.
+         *
+         * @param value The request
+         * @param finish The request's virtual finish time
+         */
+        private Entry(final T value, final double finish) {
+            this.value = value;
+            this.finish = finish;
+        }
+
+    }
+
+    /**
+     * Creates a new {@link FairQueue}.
+     */
+    public FairQueue() {
+        for (Priority priority : Priority.values()) {
+            queues.put(priority, new ArrayDeque<Entry<T>>());
+            lastFinish.put(priority, 0.0);
+        }
+    }
+
+    /**
+     * Adds a request to the back of its class's queue.
+     *
+     * @param priority The request's priority
+     * @param value The request
+     */
+    public void add(final Priority priority, final T value) {
+        final double finish = Math.max(virtualTime, lastFinish.get(priority))
+                + 1.0 / priority.getWeight();
+        lastFinish.put(priority, finish);
+        queues.get(priority).add(new Entry<T>(value, finish));
+        size++;
+    }
+
+    /**
+     * Removes the next request to serve, skipping any class which has no
+     * capacity left.
+     *
+     * @param inFlight The number of requests in flight, not counting the one
+     * to be served
+     * @param limit The total capacity
+     * @return The next request, or <code>null</code> if no request may be
+     * served
+     * @see Priority#getCapacity(int)
+     */
+    public T poll(final int inFlight, final int limit) {
+        final Deque<Entry<T>> next = getNext(inFlight, limit);
+
+        if (next == null) {
+            return null;
+        }
+
+        final Entry<T> entry = next.poll();
+        virtualTime = entry.finish;
+        size--;
+        return entry.value;
+    }
+
+    /**
+     * Determines whether any waiting request could be served.
+     *
+     * @param inFlight The number of requests in flight
+     * @param limit The total capacity
+     * @return <code>true</code> if {@link #poll(int, int)} would return a
+     * request
+     */
+    public boolean hasEligible(final int inFlight, final int limit) {
+        return getNext(inFlight, limit) != null;
+    }
+
+    /**
+     * Determines whether the queue is empty.
+     *
+     * @return <code>true</code> if no requests are waiting
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Gets the number of requests waiting.
+     *
+     * @return The queue's size
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Gets the number of requests waiting in one class.
+     *
+     * @param priority The class
+     * @return The number of requests of that priority waiting
+     */
+    public int size(final Priority priority) {
+        return queues.get(priority).size();
+    }
+
+    /**
+     * Finds the class whose first request has the earliest finish time,
+     * among those with capacity left.
+     *
+     * @param inFlight The number of requests in flight
+     * @param limit The total capacity
+     * @return The class's queue, or <code>null</code> if no request may be
+     * served
+     */
+    private Deque<Entry<T>> getNext(final int inFlight, final int limit) {
+        Deque<Entry<T>> next = null;
+
+        for (Map.Entry<Priority, Deque<Entry<T>>> queue : queues.entrySet()) {
+            final Entry<T> head = queue.getValue().peek();
+
+            if (head != null
+                    && inFlight < queue.getKey().getCapacity(limit)
+                    && (next == null || head.finish < next.peek().finish)) {
+                next = queue.getValue();
+            }
+        }
+
+        return next;
+    }
+
+}
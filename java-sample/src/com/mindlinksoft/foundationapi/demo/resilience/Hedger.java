@@ -0,0 +1,160 @@
+package com.mindlinksoft.foundationapi.demo.resilience;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import com.mindlinksoft.foundationapi.demo.metrics.LatencyHistogram;
+
+/**
+ * Tracks the recent latency of one endpoint and the budget for hedging
+ * requests to it, following a {@link HedgingPolicy}.
+ * <p>
+ * Latency is recorded in two alternating windows of the policy's length. The
+ * hedging delay is taken from the last complete window, or from the current
+ * one until the first window completes, so it follows changes in the
+ * endpoint's latency without jumping about as each window starts. Nothing is
+ * hedged until {@link HedgingPolicy#MIN_SAMPLES} responses have been seen.
+ */
+public class Hedger {
+
+    /** The policy being followed. */
+    private final HedgingPolicy policy;
+
+    /** Caps the hedges sent to the endpoint. */
+    private final RetryBudget budget;
+
+    /** The number of hedges sent. */
+    private final LongAdder hedges = new LongAdder();
+
+    /** The number of hedges which answered before the original attempt. */
+    private final LongAdder wins = new LongAdder();
+
+    /** The latency of responses in the current window. */
+    private volatile LatencyHistogram current = new LatencyHistogram();
+
+    /** The latency of responses in the last complete window. */
+    private volatile LatencyHistogram previous;
+
+    /** The time the current window started, from System.nanoTime(). */
+    private volatile long windowStartedAt = System.nanoTime();
+
+    /**
+     * Creates a new {@link Hedger}.
+     *
+     * @param policy The policy to follow
+     */
+    public Hedger(final HedgingPolicy policy) {
+        this.policy = policy;
+        this.budget = new RetryBudget(policy.getBudgetRatio(),
+                policy.getBudgetCapacity());
+    }
+
+    /**
+     * Records that a request is being made, depositing a fraction of a hedge
+     * into the budget.
+     */
+    public void onRequest() {
+        budget.deposit();
+    }
+
+    /**
+     * Records the latency of an attempt which received a response.
+     *
+     * @param micros The time from sending the attempt to its response
+     */
+    public void record(final long micros) {
+        final long now = System.nanoTime();
+
+        if (now - windowStartedAt
+                >= policy.getWindowMillis() * 1000000L) {
+            synchronized (this) {
+                if (now - windowStartedAt
+                        >= policy.getWindowMillis() * 1000000L) {
+                    previous = current;
+                    current = new LatencyHistogram();
+                    windowStartedAt = now;
+                }
+            }
+        }
+
+        current.record(micros);
+    }
+
+    /**
+     * Gets the time after which an outstanding attempt should be hedged.
+     *
+     * @return The delay in milliseconds, or -1 if too few responses have been
+     * seen to tell which attempts are slow
+     */
+    public long getDelayMillis() {
+        final LatencyHistogram last = previous;
+        final LatencyHistogram window = last != null
+                && last.getCount() >= HedgingPolicy.MIN_SAMPLES
+                ? last : current;
+
+        if (window.getCount() < HedgingPolicy.MIN_SAMPLES) {
+            return -1;
+        }
+
+        final long micros = window.getPercentile(policy.getPercentile());
+        return Math.max(policy.getMinDelayMillis(), (micros + 999) / 1000);
+    }
+
+    /**
+     * Attempts to withdraw a hedge from the budget.
+     *
+     * @return <code>true</code> if the hedge may be sent;
+     * <code>false</code> if the budget is exhausted
+     */
+    public boolean tryHedge() {
+        if (!budget.tryWithdraw()) {
+            return false;
+        }
+
+        hedges.increment();
+        return true;
+    }
+
+    /**
+     * Records that a hedge answered before the attempt it was hedging.
+     */
+    public void onHedgeWon() {
+        wins.increment();
+    }
+
+    /**
+     * Gets the budget capping the hedges sent to the endpoint.
+     *
+     * @return The hedging budget
+     */
+    public RetryBudget getBudget() {
+        return budget;
+    }
+
+    /**
+     * Gets the number of hedges sent.
+     *
+     * @return The number of hedges
+     */
+    public long getHedges() {
+        return hedges.sum();
+    }
+
+    /**
+     * Gets the number of hedges which answered before the attempt they were
+     * hedging, and so saved the caller time.
+     *
+     * @return The number of winning hedges
+     */
+    public long getWins() {
+        return wins.sum();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+        return String.format("delay=%dms hedges=%d wins=%d budget=%.1f",
+                getDelayMillis(), getHedges(), getWins(),
+                budget.getBalance());
+    }
+
+}
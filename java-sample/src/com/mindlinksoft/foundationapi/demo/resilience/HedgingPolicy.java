@@ -0,0 +1,160 @@
+package com.mindlinksoft.foundationapi.demo.resilience;
+
+/**
+ * Decides when a slow GET request is hedged: sent a second time while the
+ * first attempt is still outstanding, with whichever response arrives first
+ * being used and the other attempt cancelled.
+ * <p>
+ * An attempt is hedged once it has taken longer than a percentile of the
+ * endpoint's recent latency (by default the 95th), so only the slowest few
+ * requests are sent twice. The extra load is further capped by a budget for
+ * each endpoint, in the same way as a {@link RetryBudget} caps retries: by
+ * default hedges add no more than 5% to the requests made to an endpoint.
+ * <p>
+ * Only GET requests are hedged, as sending them twice has no side effects.
+ * Hedging is off unless a policy is given to an agent.
+ *
+ * @see Hedger
+ */
+public class HedgingPolicy {
+
+    /** The default percentile of recent latency after which to hedge. */
+    public static final double DEFAULT_PERCENTILE = 95;
+
+    /** The default minimum time to wait before hedging, in milliseconds. */
+    public static final long DEFAULT_MIN_DELAY_MILLIS = 5;
+
+    /** The default proportion of requests which may be hedged. */
+    public static final double DEFAULT_BUDGET_RATIO = 0.05;
+
+    /** The default number of hedges an endpoint's budget can bank. */
+    public static final int DEFAULT_BUDGET_CAPACITY = 10;
+
+    /** The default period over which recent latency is measured. */
+    public static final long DEFAULT_WINDOW_MILLIS = 30000;
+
+    /** The number of responses needed before an endpoint is hedged. */
+    public static final int MIN_SAMPLES = 20;
+
+    /** The percentile of recent latency after which to hedge. */
+    private final double percentile;
+
+    /** The minimum time to wait before hedging, in milliseconds. */
+    private final long minDelayMillis;
+
+    /** The proportion of requests to an endpoint which may be hedged. */
+    private final double budgetRatio;
+
+    /** The number of hedges an endpoint's budget can bank. */
+    private final int budgetCapacity;
+
+    /** The period over which recent latency is measured. */
+    private final long windowMillis;
+
+    /**
+     * Creates a new {@link HedgingPolicy} which hedges after the default
+     * percentile of recent latency, within the default budget.
+     */
+    public HedgingPolicy() {
+        this(DEFAULT_PERCENTILE, DEFAULT_MIN_DELAY_MILLIS);
+    }
+
+    /**
+     * Creates a new {@link HedgingPolicy} with the default budget.
+     *
+     * @param percentile The percentile of recent latency after which to
+     * hedge, between 0 and 100 (e.g. 95)
+     * @param minDelayMillis The minimum time to wait before hedging
+     */
+    public HedgingPolicy(final double percentile, final long minDelayMillis) {
+        this(percentile, minDelayMillis, DEFAULT_BUDGET_RATIO,
+                DEFAULT_BUDGET_CAPACITY, DEFAULT_WINDOW_MILLIS);
+    }
+
+    /**
+     * Creates a new {@link HedgingPolicy}.
+     *
+     * @param percentile The percentile of recent latency after which to
+     * hedge, between 0 and 100 (e.g. 95)
+     * @param minDelayMillis The minimum time to wait before hedging
+     * @param budgetRatio The proportion of requests to each endpoint which
+     * may be hedged once its banked hedges are used up
+     * @param budgetCapacity The number of hedges each endpoint can bank
+     * @param windowMillis The period over which recent latency is measured
+     */
+    public HedgingPolicy(final double percentile, final long minDelayMillis,
+            final double budgetRatio, final int budgetCapacity,
+            final long windowMillis) {
+        if (percentile <= 0 || percentile > 100) {
+            throw new IllegalArgumentException(
+                    "percentile must be between 0 and 100");
+        }
+
+        if (minDelayMillis < 0 || windowMillis <= 0) {
+            throw new IllegalArgumentException(
+                    "minDelayMillis must not be negative, and windowMillis "
+                    + "must be positive");
+        }
+
+        this.percentile = percentile;
+        this.minDelayMillis = minDelayMillis;
+        this.budgetRatio = budgetRatio;
+        this.budgetCapacity = budgetCapacity;
+        this.windowMillis = windowMillis;
+    }
+
+    /**
+     * Gets the percentile of recent latency after which to hedge.
+     *
+     * @return The percentile, between 0 and 100
+     */
+    public double getPercentile() {
+        return percentile;
+    }
+
+    /**
+     * Gets the minimum time to wait before hedging.
+     *
+     * @return The minimum delay in milliseconds
+     */
+    public long getMinDelayMillis() {
+        return minDelayMillis;
+    }
+
+    /**
+     * Gets the proportion of requests to each endpoint which may be hedged.
+     *
+     * @return The budget ratio
+     */
+    public double getBudgetRatio() {
+        return budgetRatio;
+    }
+
+    /**
+     * Gets the number of hedges each endpoint's budget can bank.
+     *
+     * @return The budget capacity
+     */
+    public int getBudgetCapacity() {
+        return budgetCapacity;
+    }
+
+    /**
+     * Gets the period over which recent latency is measured.
+     *
+     * @return The window in milliseconds
+     */
+    public long getWindowMillis() {
+        return windowMillis;
+    }
+
+    /**
+     * Creates the state to hedge requests to a single endpoint with.
+     *
+     * @return A new hedger following this policy
+     */
+    public Hedger newHedger() {
+        return new Hedger(this);
+    }
+
+}
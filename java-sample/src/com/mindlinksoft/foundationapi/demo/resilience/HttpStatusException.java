@@ -0,0 +1,50 @@
+package com.mindlinksoft.foundationapi.demo.resilience;
+
+import java.io.IOException;
+import java.net.URI;
+
+/**
+ * Thrown when the Foundation API responds to a request with an error status.
+ */
+public class HttpStatusException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The status code of the response. */
+    private final int statusCode;
+
+    /** The URI which was requested. */
+    private final URI uri;
+
+    /**
+     * Creates a new {@link HttpStatusException}.
+     *
+     * @param statusCode The status code of the response
+     * @param uri The URI which was requested
+     */
+    public HttpStatusException(final int statusCode, final URI uri) {
+        super("Server returned HTTP response code: " + statusCode
+                + " for URL: " + uri);
+        this.statusCode = statusCode;
+        this.uri = uri;
+    }
+
+    /**
+     * Gets the status code the server responded with.
+     *
+     * @return The response's status code
+     */
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * Gets the URI which was requested.
+     *
+     * @return The request's URI
+     */
+    public URI getUri() {
+        return uri;
+    }
+
+}
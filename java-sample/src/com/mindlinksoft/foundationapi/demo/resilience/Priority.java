@@ -0,0 +1,74 @@
+package com.mindlinksoft.foundationapi.demo.resilience;
+
+/**
+ * The priority classes requests are scheduled in while they wait for the
+ * concurrency limit or a connection.
+ * <p>
+ * Waiting requests are admitted by weighted fair queueing (see
+ * {@link FairQueue}): each class gets a share of the capacity in proportion
+ * to its weight while it has requests waiting, so interactive requests
+ * overtake a queue of bulk requests without starving them entirely. Bulk
+ * requests are also held back from the last quarter of the capacity, so an
+ * interactive request arriving during a bulk job finds a free slot rather
+ * than a queue.
+ * <p>
+ * Each agent sends its requests with its own priority (see
+ * {@link com.mindlinksoft.foundationapi.demo.AuthenticatingAgent#setPriority(Priority)}).
+ * As agents built on one session share its limits and connections, a process
+ * mixing replies with background work can give each its own agent:
+ *
+ * <pre>
+ * SimpleCollaborationAgent replies = new SimpleCollaborationAgent(session);
+ * SimpleCollaborationAgent exports = new SimpleCollaborationAgent(session);
+ * exports.setPriority(Priority.BULK);
+ * </pre>
+ */
+public enum Priority {
+
+    /** Requests a person is waiting on, such as replies and alerts. */
+    INTERACTIVE(16, 1.0),
+
+    /** Requests with no particular urgency. */
+    NORMAL(4, 1.0),
+
+    /** Background work which should only use leftover capacity. */
+    BULK(1, 0.75);
+
+    /** The class's weight when sharing capacity with other classes. */
+    private final int weight;
+
+    /** The proportion of the capacity the class may occupy. */
+    private final double share;
+
+    /**
+     * Creates a new {@link Priority}.
+     *
+     * @param weight The class's weight when sharing capacity
+     * @param share The proportion of the capacity the class may occupy
+     */
+    private Priority(final int weight, final double share) {
+        this.weight = weight;
+        this.share = share;
+    }
+
+    /**
+     * Gets the class's weight when sharing capacity with other classes.
+     *
+     * @return The weight
+     */
+    public int getWeight() {
+        return weight;
+    }
+
+    /**
+     * Gets the number of requests in flight below which a request of this
+     * class may be admitted.
+     *
+     * @param limit The total capacity
+     * @return The capacity available to the class (at least 1)
+     */
+    public int getCapacity(final int limit) {
+        return Math.max(1, (int) (limit * share));
+    }
+
+}
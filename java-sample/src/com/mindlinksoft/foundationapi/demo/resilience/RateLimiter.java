@@ -0,0 +1,215 @@
+package com.mindlinksoft.foundationapi.demo.resilience;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket which limits the rate at which requests are sent. The
+ * bucket refills continuously at the given rate and holds at most a burst's
+ * worth of permits, so short bursts go out immediately while sustained load
+ * is smoothed to the configured rate.
+ * <p>
+ * Permits are reserved in the order they are requested: a caller which finds
+ * the bucket empty takes a permit from the future and waits until it would
+ * have been refilled. Blocking callers sleep for that time; asynchronous
+ * callers are resumed by a timer without holding a thread. A caller whose
+ * {@link Deadline} ends first gives its permit back.
+ */
+public class RateLimiter {
+
+    /** The number of permits added per nanosecond. */
+    private final double permitsPerNano;
+
+    /** The maximum number of permits the bucket holds. */
+    private final double burst;
+
+    /** The number of permits available (negative once reserved ahead). */
+    private double permits;
+
+    /** The time the bucket was last refilled, from {@link System#nanoTime()}. */
+    private long refilledAt;
+
+    /** The number of requests which had to wait for a permit. */
+    private long throttled;
+
+    /** The total time requests have been told to wait, in nanoseconds. */
+    private long totalWaitNanos;
+
+    /**
+     * Creates a new {@link RateLimiter}, initially full.
+     *
+     * @param permitsPerSecond The sustained rate of requests to allow
+     * @param burst The number of requests which may be sent at once after a
+     * quiet period
+     */
+    public RateLimiter(final double permitsPerSecond, final int burst) {
+        if (permitsPerSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException(
+                    "permitsPerSecond must be positive and burst at least 1");
+        }
+
+        this.permitsPerNano = permitsPerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.burst = burst;
+        this.permits = burst;
+        this.refilledAt = System.nanoTime();
+    }
+
+    /**
+     * Takes a permit, blocking until it becomes available.
+     *
+     * @throws InterruptedIOException If the thread is interrupted while
+     * waiting
+     */
+    public void acquire() throws InterruptedIOException {
+        final long wait = reserve();
+
+        if (wait > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(
+                        "Interrupted waiting for the rate limit");
+            }
+        }
+    }
+
+    /**
+     * Takes a permit, blocking until it becomes available or the deadline
+     * passes or is cancelled. If the permit won't be available before the
+     * deadline passes, fails straight away rather than waiting.
+     *
+     * @param deadline The deadline to wait for
+     * @throws IOException If the deadline passes or is cancelled, or the
+     * thread is interrupted while waiting
+     */
+    public void acquire(final Deadline deadline) throws IOException {
+        deadline.await(acquireAsync(deadline), "waiting for the rate limit");
+    }
+
+    /**
+     * Takes a permit without blocking.
+     *
+     * @return A future which completes once the permit becomes available
+     */
+    public CompletableFuture<Void> acquireAsync() {
+        final long wait = reserve();
+
+        if (wait <= 0) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        return delay(wait);
+    }
+
+    /**
+     * Takes a permit without blocking, giving it back if the deadline passes
+     * or is cancelled first. If the permit won't be available before the
+     * deadline passes, fails straight away rather than waiting.
+     *
+     * @param deadline The deadline to wait for
+     * @return A future which completes once the permit becomes available
+     */
+    public CompletableFuture<Void> acquireAsync(final Deadline deadline) {
+        final long wait = reserve();
+
+        if (wait <= 0) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        if (wait > deadline.getRemainingNanos()) {
+            refund();
+            return CompletableFuture.failedFuture(new DeadlineExceededException(
+                    "Deadline exceeded waiting for the rate limit"));
+        }
+
+        final CompletableFuture<Void> permit = deadline.bound(delay(wait),
+                "waiting for the rate limit");
+        permit.whenComplete((ignored, ex) -> {
+            if (ex != null) {
+                refund();
+            }
+        });
+        return permit;
+    }
+
+    /**
+     * Creates a future which completes after the given time.
+     *
+     * @param nanos The time to wait in nanoseconds
+     * @return The future
+     */
+    private static CompletableFuture<Void> delay(final long nanos) {
+        return CompletableFuture.runAsync(() -> { },
+                CompletableFuture.delayedExecutor(nanos,
+                TimeUnit.NANOSECONDS));
+    }
+
+    /**
+     * Gives back a permit which was reserved but not used, so that later
+     * callers needn't wait for it.
+     */
+    private synchronized void refund() {
+        permits = Math.min(burst, permits + 1);
+    }
+
+    /**
+     * Reserves the next permit.
+     *
+     * @return The time until the permit becomes available in nanoseconds, or
+     * 0 if it is available now
+     */
+    private synchronized long reserve() {
+        final long now = System.nanoTime();
+        permits = Math.min(burst, permits + (now - refilledAt) * permitsPerNano);
+        refilledAt = now;
+        permits--;
+
+        if (permits >= 0) {
+            return 0;
+        }
+
+        final long wait = (long) Math.ceil(-permits / permitsPerNano);
+        throttled++;
+        totalWaitNanos += wait;
+        return wait;
+    }
+
+    /**
+     * Gets the sustained rate this limiter allows.
+     *
+     * @return The rate in permits per second
+     */
+    public double getPermitsPerSecond() {
+        return permitsPerNano * TimeUnit.SECONDS.toNanos(1);
+    }
+
+    /**
+     * Gets the number of requests which had to wait for a permit.
+     *
+     * @return The number of throttled requests
+     */
+    public synchronized long getThrottledCount() {
+        return throttled;
+    }
+
+    /**
+     * Gets the total time requests have waited for permits.
+     *
+     * @return The total wait in milliseconds
+     */
+    public synchronized long getTotalWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(totalWaitNanos);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public synchronized String toString() {
+        return "RateLimiter{permitsPerSecond=" + getPermitsPerSecond()
+                + ", burst=" + (int) burst + ", throttled=" + throttled
+                + ", totalWaitMillis=" + getTotalWaitMillis() + '}';
+    }
+
+}
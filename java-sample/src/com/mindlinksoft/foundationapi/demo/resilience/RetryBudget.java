@@ -0,0 +1,79 @@
+package com.mindlinksoft.foundationapi.demo.resilience;
+
+/**
+ * Limits retries to an endpoint to a proportion of the requests made to it.
+ * Every request deposits a fraction of a retry into the budget, and every
+ * retry withdraws a whole one; the budget starts full and banks at most a
+ * fixed number of retries. While an endpoint is healthy this allows the odd
+ * failure to be retried freely, but during an outage retries add no more
+ * than the given ratio to the load on the server.
+ */
+public class RetryBudget {
+
+    /** The fraction of a retry deposited by each request. */
+    private final double ratio;
+
+    /** The maximum number of retries the budget can hold. */
+    private final double capacity;
+
+    /** The number of retries currently available. */
+    private double balance;
+
+    /** The number of retries refused because the budget was exhausted. */
+    private long exhausted;
+
+    /**
+     * Creates a new {@link RetryBudget}.
+     *
+     * @param ratio The fraction of a retry each request deposits
+     * @param capacity The maximum number of retries the budget can hold
+     */
+    public RetryBudget(final double ratio, final int capacity) {
+        this.ratio = ratio;
+        this.capacity = capacity;
+        this.balance = capacity;
+    }
+
+    /**
+     * Records that a request is being made.
+     */
+    public synchronized void deposit() {
+        balance = Math.min(capacity, balance + ratio);
+    }
+
+    /**
+     * Attempts to withdraw a retry from the budget.
+     *
+     * @return <code>true</code> if the retry may go ahead;
+     * <code>false</code> if the budget is exhausted
+     */
+    public synchronized boolean tryWithdraw() {
+        if (balance >= 1) {
+            balance--;
+            return true;
+        }
+
+        exhausted++;
+        return false;
+    }
+
+    /**
+     * Gets the number of retries currently available.
+     *
+     * @return The budget's balance
+     */
+    public synchronized double getBalance() {
+        return balance;
+    }
+
+    /**
+     * Gets the number of retries which were refused because the budget was
+     * exhausted.
+     *
+     * @return The number of refused retries
+     */
+    public synchronized long getExhaustedCount() {
+        return exhausted;
+    }
+
+}
@@ -0,0 +1,234 @@
+package com.mindlinksoft.foundationapi.demo.resilience;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.net.http.HttpConnectTimeoutException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides whether and when failed requests to the Foundation API are retried.
+ * <p>
+ * Requests which fail before they reach the server (the connection is
+ * refused or never accepted, or the host can't be resolved) are always safe
+ * to retry. Requests which may have reached the server - because the
+ * connection broke while waiting for a response, or the server replied that
+ * it was overloaded or unavailable - are only retried if their method is
+ * idempotent, so that a message is never posted twice.
+ * <p>
+ * Delays between attempts follow "decorrelated jitter": each delay is chosen
+ * at random between the base delay and three times the previous delay, capped
+ * at the maximum. This spreads out clients which failed at the same moment
+ * rather than having them retry in lock-step.
+ * <p>
+ * Retries are further limited by a {@link RetryBudget} for each endpoint, so
+ * that a sustained failure doesn't multiply the load on the server.
+ */
+public class RetryPolicy {
+
+    /** A policy which never retries. */
+    public static final RetryPolicy NONE = new RetryPolicy(1, 0, 0);
+
+    /** The default policy: up to 3 retries, from 100 ms up to 10 s apart. */
+    public static final RetryPolicy DEFAULT = new RetryPolicy(4, 100, 10000);
+
+    /** The default proportion of requests which may be retried. */
+    public static final double DEFAULT_BUDGET_RATIO = 0.1;
+
+    /** The default number of retries an endpoint's budget can bank. */
+    public static final int DEFAULT_BUDGET_CAPACITY = 10;
+
+    /** The maximum number of attempts, including the first. */
+    private final int maxAttempts;
+
+    /** The minimum delay between attempts, in milliseconds. */
+    private final long baseDelayMillis;
+
+    /** The maximum delay between attempts, in milliseconds. */
+    private final long maxDelayMillis;
+
+    /** The proportion of requests to an endpoint which may be retried. */
+    private final double budgetRatio;
+
+    /** The number of retries an endpoint's budget can bank. */
+    private final int budgetCapacity;
+
+    /**
+     * Creates a new {@link RetryPolicy} with the default retry budget.
+     *
+     * @param maxAttempts The maximum number of attempts at each request,
+     * including the first
+     * @param baseDelayMillis The minimum delay between attempts
+     * @param maxDelayMillis The maximum delay between attempts
+     */
+    public RetryPolicy(final int maxAttempts, final long baseDelayMillis,
+            final long maxDelayMillis) {
+        this(maxAttempts, baseDelayMillis, maxDelayMillis,
+                DEFAULT_BUDGET_RATIO, DEFAULT_BUDGET_CAPACITY);
+    }
+
+    /**
+     * Creates a new {@link RetryPolicy}.
+     *
+     * @param maxAttempts The maximum number of attempts at each request,
+     * including the first
+     * @param baseDelayMillis The minimum delay between attempts
+     * @param maxDelayMillis The maximum delay between attempts
+     * @param budgetRatio The proportion of requests to each endpoint which
+     * may be retried once its banked retries are used up
+     * @param budgetCapacity The number of retries each endpoint can bank
+     */
+    public RetryPolicy(final int maxAttempts, final long baseDelayMillis,
+            final long maxDelayMillis, final double budgetRatio,
+            final int budgetCapacity) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException(
+                    "maxAttempts must be at least 1");
+        }
+
+        if (baseDelayMillis < 0 || maxDelayMillis < baseDelayMillis) {
+            throw new IllegalArgumentException(
+                    "Delays must satisfy 0 <= baseDelay <= maxDelay");
+        }
+
+        this.maxAttempts = maxAttempts;
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.budgetRatio = budgetRatio;
+        this.budgetCapacity = budgetCapacity;
+    }
+
+    /**
+     * Gets the maximum number of attempts at each request.
+     *
+     * @return The maximum number of attempts, including the first
+     */
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * Gets the minimum delay between attempts.
+     *
+     * @return The base delay in milliseconds
+     */
+    public long getBaseDelayMillis() {
+        return baseDelayMillis;
+    }
+
+    /**
+     * Gets the maximum delay between attempts.
+     *
+     * @return The maximum delay in milliseconds
+     */
+    public long getMaxDelayMillis() {
+        return maxDelayMillis;
+    }
+
+    /**
+     * Creates an empty retry budget for an endpoint, sized according to this
+     * policy.
+     *
+     * @return A new retry budget
+     */
+    public RetryBudget newBudget() {
+        return new RetryBudget(budgetRatio, budgetCapacity);
+    }
+
+    /**
+     * Chooses the delay before the next attempt.
+     *
+     * @param previousDelayMillis The delay before the previous attempt, or 0
+     * if this is the first retry
+     * @return The delay before the next attempt in milliseconds
+     */
+    public long nextDelay(final long previousDelayMillis) {
+        final long upper = Math.min(maxDelayMillis,
+                Math.max(baseDelayMillis, previousDelayMillis) * 3);
+
+        if (upper <= baseDelayMillis) {
+            return baseDelayMillis;
+        }
+
+        return ThreadLocalRandom.current().nextLong(baseDelayMillis,
+                upper + 1);
+    }
+
+    /**
+     * Determines whether a request which failed with the given exception may
+     * be retried.
+     *
+     * @param method The HTTP method of the request
+     * @param ex The exception the request failed with
+     * @return <code>true</code> if the request may be retried
+     */
+    public boolean isRetryable(final String method, final IOException ex) {
+        if (ex instanceof CircuitBreakerOpenException
+                || ex instanceof HttpStatusException) {
+            return false;
+        }
+
+        if (ex instanceof InterruptedIOException
+                && !(ex instanceof SocketTimeoutException)) {
+            // The thread was interrupted or the call's deadline has passed
+            // or been cancelled - it wants to stop, not retry
+            return false;
+        }
+
+        if (ex instanceof ConnectException
+                || ex instanceof NoRouteToHostException
+                || ex instanceof UnknownHostException
+                || ex instanceof HttpConnectTimeoutException) {
+            // The request never reached the server
+            return true;
+        }
+
+        return isIdempotent(method);
+    }
+
+    /**
+     * Determines whether a request which received the given status code may
+     * be retried.
+     *
+     * @param method The HTTP method of the request
+     * @param statusCode The status code of the response
+     * @return <code>true</code> if the request may be retried
+     */
+    public boolean isRetryable(final String method, final int statusCode) {
+        switch (statusCode) {
+            case 429:
+            case 502:
+            case 503:
+            case 504:
+                return isIdempotent(method);
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Determines whether requests using the given method can safely be
+     * repeated.
+     *
+     * @param method The HTTP method
+     * @return <code>true</code> if the method is idempotent
+     */
+    public static boolean isIdempotent(final String method) {
+        return "GET".equals(method) || "HEAD".equals(method)
+                || "PUT".equals(method) || "DELETE".equals(method)
+                || "OPTIONS".equals(method);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+        return "RetryPolicy{maxAttempts=" + maxAttempts + ", baseDelayMillis="
+                + baseDelayMillis + ", maxDelayMillis=" + maxDelayMillis
+                + ", budgetRatio=" + budgetRatio + ", budgetCapacity="
+                + budgetCapacity + '}';
+    }
+
+}
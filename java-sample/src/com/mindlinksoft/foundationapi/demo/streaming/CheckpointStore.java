@@ -0,0 +1,41 @@
+package com.mindlinksoft.foundationapi.demo.streaming;
+
+import java.io.IOException;
+
+/**
+ * Keeps the ID of the last event handled for each subscription to the event
+ * stream, so that streaming resumes where it left off after a restart.
+ *
+ * @see StreamingCollaborationAgent#setCheckpointStore(CheckpointStore)
+ * @see MappedCheckpointStore
+ */
+public interface CheckpointStore {
+
+    /**
+     * Reads the checkpoint of a subscription.
+     *
+     * @param subscription The subscription's key
+     * @return The ID of the last event handled, or 0 if there is no
+     * checkpoint
+     * @throws IOException If the checkpoint can't be read
+     */
+    long load(String subscription) throws IOException;
+
+    /**
+     * Records the checkpoint of a subscription. This is called often, so
+     * implementations may defer making it durable until {@link #flush()}.
+     *
+     * @param subscription The subscription's key
+     * @param eventId The ID of the last event handled
+     * @throws IOException If the checkpoint can't be recorded
+     */
+    void store(String subscription, long eventId) throws IOException;
+
+    /**
+     * Makes every checkpoint recorded so far durable.
+     *
+     * @throws IOException If the checkpoints can't be written
+     */
+    void flush() throws IOException;
+
+}
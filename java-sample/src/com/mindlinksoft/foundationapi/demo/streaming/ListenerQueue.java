@@ -0,0 +1,463 @@
+package com.mindlinksoft.foundationapi.demo.streaming;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Passes events to one {@link EventListener} on its own thread, through a
+ * bounded queue, so that a slow listener only holds up itself.
+ * <p>
+ * When the queue is full, the listener's {@link OverflowPolicy} decides
+ * whether the agent waits for room or which event is discarded. The queue's
+ * depth, lag and the number of events discarded show how well the listener is
+ * keeping up.
+ * <p>
+ * An exception thrown by the listener is counted (see {@link #getErrors()})
+ * and passed to the queue's exception handler - by default the uncaught
+ * exception handler of the queue's thread, which prints it to
+ * <code>System.err</code> - and the listener is then passed the next event
+ * as normal.
+ *
+ * @see StreamingCollaborationAgent#addEventListener(EventListener, int,
+ * OverflowPolicy)
+ */
+public class ListenerQueue {
+
+    /**
+     * Gets the key events are coalesced on.
+     */
+    public interface KeyFunction {
+
+        /**
+         * Gets an event's key. Events with equal keys replace each other
+         * while waiting under {@link OverflowPolicy#COALESCE}.
+         *
+         * @param event The event
+         * @return The event's key, or <code>null</code> if it must never be
+         * coalesced
+         */
+        Object getKey(Event event);
+
+    }
+
+    /**
+     * The default key: metadata events are coalesced on their key and
+     * channel state events on their channel, as only the latest value
+     * matters. Messages are never coalesced.
+     */
+    public static final KeyFunction DEFAULT_KEY = new KeyFunction() {
+        @Override
+        public Object getKey(final Event event) {
+            if (event instanceof MetaDataEvent) {
+                return "MetaData " + ((MetaDataEvent) event).getKey();
+            } else if (event instanceof ChannelStateEvent) {
+                return "ChannelState "
+                        + ((ChannelStateEvent) event).getChannelId();
+            }
+
+            return null;
+        }
+    };
+
+    /**
+     * An event waiting in the queue.
+     */
+    private static final class Entry {
+
+        /** The event, replaced when a later one is coalesced into it. */
+        private Event event;
+
+        /** The event's key (or <code>null</code> if not coalesced). */
+        private final Object key;
+
+        /** The time the first event was queued, from System.nanoTime(). */
+        private final long queuedAt;
+
+        /**
+         * Creates a new {@link Entry}.
+         *
+         * @param event The event
+         * @param key The event's key
+         * @param queuedAt The time the event was queued
+         */
+        private Entry(final Event event, final Object key,
+                final long queuedAt) {
+            this.event = event;
+            this.key = key;
+            this.queuedAt = queuedAt;
+        }
+
+    }
+
+    /** The agent the events are received by. */
+    private final StreamingCollaborationAgent agent;
+
+    /** The listener events are passed to. */
+    private final EventListener listener;
+
+    /** The number of events which may wait. */
+    private final int capacity;
+
+    /** What happens to events which arrive while the queue is full. */
+    private final OverflowPolicy policy;
+
+    /** Gets the keys events are coalesced on. */
+    private final KeyFunction keyFunction;
+
+    /**
+     * The subscription the listener belongs to, or <code>null</code> if it
+     * receives the events asked for by
+     * {@link StreamingCollaborationAgent#startStreaming(String[], String,
+     * EventType...)}.
+     */
+    private final Subscription subscription;
+
+    /** The events waiting, oldest first. */
+    private final Deque<Entry> queue = new ArrayDeque<Entry>();
+
+    /** The waiting events which may be coalesced, keyed on key. */
+    private final Map<Object, Entry> keyed = new HashMap<Object, Entry>();
+
+    /** The thread passing events to the listener. */
+    private final Thread thread;
+
+    /** The event being handled by the listener (or <code>null</code>). */
+    private Event handling;
+
+    /** Whether the queue has been closed. */
+    private boolean closed;
+
+    /** The number of events passed to the listener. */
+    private long delivered;
+
+    /** The number of events discarded because the queue was full. */
+    private long dropped;
+
+    /** The number of events replaced by a later event with the same key. */
+    private long coalesced;
+
+    /** The number of events the listener threw an exception for. */
+    private long errors;
+
+    /**
+     * Handles exceptions thrown by the listener, or <code>null</code> to
+     * pass them to the thread's uncaught exception handler.
+     */
+    private volatile Thread.UncaughtExceptionHandler exceptionHandler;
+
+    /**
+     * Creates a new {@link ListenerQueue} and starts its thread.
+     *
+     * @param agent The agent the events are received by
+     * @param listener The listener to pass events to
+     * @param capacity The number of events which may wait
+     * @param policy What happens to events which arrive while the queue is
+     * full
+     * @param keyFunction Gets the keys events are coalesced on, if the policy
+     * is {@link OverflowPolicy#COALESCE}
+     * @param subscription The subscription the listener belongs to
+     * (may be <code>null</code>)
+     */
+    ListenerQueue(final StreamingCollaborationAgent agent,
+            final EventListener listener, final int capacity,
+            final OverflowPolicy policy, final KeyFunction keyFunction,
+            final Subscription subscription) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException(
+                    "capacity must be at least 1");
+        }
+
+        this.agent = agent;
+        this.listener = listener;
+        this.capacity = capacity;
+        this.policy = policy;
+        this.keyFunction = keyFunction;
+        this.subscription = subscription;
+        this.thread = new Thread(this::run, "Event listener " + listener);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Queues an event for the listener, applying the overflow policy if the
+     * queue is full.
+     *
+     * @param event The event
+     * @throws InterruptedException If the thread is interrupted while waiting
+     * for room
+     */
+    synchronized void offer(final Event event)
+            throws InterruptedException {
+        final Object key = policy == OverflowPolicy.COALESCE
+                ? keyFunction.getKey(event) : null;
+
+        if (key != null) {
+            final Entry existing = keyed.get(key);
+
+            if (existing != null) {
+                existing.event = event;
+                coalesced++;
+                return;
+            }
+        }
+
+        while (!closed && queue.size() >= capacity) {
+            if (policy == OverflowPolicy.BLOCK) {
+                wait();
+            } else if (policy == OverflowPolicy.DROP_NEWEST) {
+                dropped++;
+                return;
+            } else {
+                forget(queue.poll());
+                dropped++;
+            }
+        }
+
+        if (closed) {
+            return;
+        }
+
+        final Entry entry = new Entry(event, key, System.nanoTime());
+        queue.add(entry);
+
+        if (key != null) {
+            keyed.put(key, entry);
+        }
+
+        notifyAll();
+    }
+
+    /**
+     * Stops passing events to the listener, discarding any still waiting.
+     */
+    synchronized void close() {
+        closed = true;
+        queue.clear();
+        keyed.clear();
+        notifyAll();
+    }
+
+    /**
+     * Gets the listener events are passed to.
+     *
+     * @return The listener
+     */
+    public EventListener getListener() {
+        return listener;
+    }
+
+    /**
+     * Gets the subscription the listener belongs to.
+     *
+     * @return The subscription, or <code>null</code> if the listener receives
+     * the events asked for by
+     * {@link StreamingCollaborationAgent#startStreaming(String[], String,
+     * EventType...)}
+     */
+    public Subscription getSubscription() {
+        return subscription;
+    }
+
+    /**
+     * Gets the number of events which may wait.
+     *
+     * @return The queue's capacity
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Gets what happens to events which arrive while the queue is full.
+     *
+     * @return The overflow policy
+     */
+    public OverflowPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Gets the number of events waiting for the listener.
+     *
+     * @return The queue's depth
+     */
+    public synchronized int getDepth() {
+        return queue.size();
+    }
+
+    /**
+     * Gets how long the oldest waiting event has been waiting: how far the
+     * listener is behind the stream.
+     *
+     * @return The lag in milliseconds, or 0 if no events are waiting
+     */
+    public synchronized long getLagMillis() {
+        final Entry oldest = queue.peek();
+        return oldest == null
+                ? 0 : (System.nanoTime() - oldest.queuedAt) / 1000000;
+    }
+
+    /**
+     * Gets the number of events passed to the listener.
+     *
+     * @return The number of events delivered
+     */
+    public synchronized long getDelivered() {
+        return delivered;
+    }
+
+    /**
+     * Gets the number of events discarded because the queue was full.
+     *
+     * @return The number of events dropped
+     */
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * Gets the number of events replaced by a later event with the same key
+     * before the listener saw them.
+     *
+     * @return The number of events coalesced
+     */
+    public synchronized long getCoalesced() {
+        return coalesced;
+    }
+
+    /**
+     * Gets the number of events the listener threw an exception for.
+     *
+     * @return The number of errors
+     */
+    public synchronized long getErrors() {
+        return errors;
+    }
+
+    /**
+     * Sets what is done with exceptions thrown by the listener. The listener
+     * is passed the next event once the handler returns.
+     *
+     * @param handler The handler, called on the queue's thread, or
+     * <code>null</code> to pass exceptions to the thread's uncaught exception
+     * handler
+     */
+    public void setExceptionHandler(
+            final Thread.UncaughtExceptionHandler handler) {
+        this.exceptionHandler = handler;
+    }
+
+    /**
+     * Gets the ID of the earliest event the listener has still to finish
+     * with: every event before it has been handled, dropped or coalesced.
+     *
+     * @return The event ID, or {@link Long#MAX_VALUE} if no events are
+     * waiting or being handled
+     */
+    synchronized long getOldestPending() {
+        long oldest = handling == null
+                ? Long.MAX_VALUE : handling.getEventId();
+
+        for (Entry entry : queue) {
+            oldest = Math.min(oldest, entry.event.getEventId());
+        }
+
+        return oldest;
+    }
+
+    /**
+     * Passes each event to the listener in turn until the queue is closed.
+     */
+    private void run() {
+        while (true) {
+            final Event event;
+
+            synchronized (this) {
+                while (!closed && queue.isEmpty()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                }
+
+                if (closed) {
+                    return;
+                }
+
+                final Entry entry = queue.poll();
+                forget(entry);
+                event = entry.event;
+                handling = event;
+                delivered++;
+
+                // Make room for an agent waiting to queue an event
+                notifyAll();
+            }
+
+            RuntimeException failure = null;
+
+            try {
+                listener.eventReceived(agent, event);
+            } catch (RuntimeException ex) {
+                failure = ex;
+            }
+
+            synchronized (this) {
+                handling = null;
+
+                if (failure != null) {
+                    errors++;
+                }
+            }
+
+            if (failure != null) {
+                report(failure);
+            }
+        }
+    }
+
+    /**
+     * Passes an exception thrown by the listener to the exception handler.
+     *
+     * @param ex The exception
+     */
+    private void report(final RuntimeException ex) {
+        final Thread.UncaughtExceptionHandler handler = exceptionHandler;
+
+        try {
+            if (handler != null) {
+                handler.uncaughtException(thread, ex);
+            } else {
+                thread.getUncaughtExceptionHandler().uncaughtException(
+                        thread, ex);
+            }
+        } catch (RuntimeException handlerEx) {
+            // A failing handler mustn't stop events reaching the listener
+        }
+    }
+
+    /**
+     * Stops an entry which has left the queue from being coalesced into.
+     * The caller must hold the queue's lock.
+     *
+     * @param entry The entry
+     */
+    private void forget(final Entry entry) {
+        if (entry.key != null) {
+            keyed.remove(entry.key);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public synchronized String toString() {
+        return "ListenerQueue{listener=" + listener + ", policy=" + policy
+                + ", depth=" + queue.size() + ", delivered=" + delivered
+                + ", dropped=" + dropped + ", coalesced=" + coalesced
+                + ", errors=" + errors + '}';
+    }
+
+}
@@ -0,0 +1,453 @@
+package com.mindlinksoft.foundationapi.demo.streaming;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * A {@link CheckpointStore} which keeps checkpoints in a memory-mapped file.
+ * <p>
+ * Recording a checkpoint is a write to memory; the file is forced to disk at
+ * most once per flush interval, however many checkpoints are recorded, so a
+ * busy stream costs one sync a second rather than one per event. A crash
+ * loses at most the last interval's progress, and streaming then resumes a
+ * little early rather than skipping events.
+ * <p>
+ * Each subscription has a fixed-size slot holding its key and two copies of
+ * its checkpoint, each with a version number and checksum. Writes alternate
+ * between the copies, and the newest copy with a valid checksum is read, so
+ * a write torn by a crash leaves the previous checkpoint intact. Keys longer
+ * than {@link #MAX_KEY_BYTES} are stored as their SHA-256 digest.
+ * <p>
+ * The file is locked while open, so only one store (in any process) uses it
+ * at a time.
+ */
+public class MappedCheckpointStore implements CheckpointStore {
+
+    /** The default longest time a checkpoint waits to be synced to disk. */
+    public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 1000;
+
+    /** The longest key stored as it is. */
+    public static final int MAX_KEY_BYTES = 200;
+
+    /** Identifies a checkpoint file ("MLCK"). */
+    private static final int MAGIC = 0x4d4c434b;
+
+    /** The version of the file layout. */
+    private static final int FORMAT = 1;
+
+    /** The size of the file header: magic, format and slot count. */
+    private static final int HEADER_SIZE = 16;
+
+    /** The size of each subscription's slot. */
+    private static final int SLOT_SIZE = 256;
+
+    /** The offset within a slot of the first copy of the checkpoint. */
+    private static final int RECORD_OFFSET = 216;
+
+    /** The size of a copy of the checkpoint: ID, version and checksum. */
+    private static final int RECORD_SIZE = 20;
+
+    /** The number of slots in a new file. */
+    private static final int INITIAL_SLOTS = 16;
+
+    /** Syncs the files of all stores. */
+    private static final ScheduledThreadPoolExecutor SCHEDULER;
+
+    static {
+        SCHEDULER = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable,
+                        "Checkpoint flusher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /** The checkpoint file. */
+    private final Path file;
+
+    /** The longest time a checkpoint waits to be synced to disk. */
+    private final long flushIntervalMillis;
+
+    /** The open file. */
+    private final FileChannel channel;
+
+    /** The lock held on the file. */
+    private final FileLock lock;
+
+    /** The slot of each subscription, keyed on stored key. */
+    private final Map<String, Integer> slots = new HashMap<String, Integer>();
+
+    /** The file, mapped into memory. */
+    private MappedByteBuffer buffer;
+
+    /** The number of slots in the file. */
+    private int capacity;
+
+    /** The first slot after the last in use. */
+    private int nextSlot;
+
+    /** The scheduled sync of checkpoints recorded since the last. */
+    private ScheduledFuture<?> pendingFlush;
+
+    /** The number of times the file has been synced. */
+    private long flushes;
+
+    /** Whether the store has been closed. */
+    private boolean closed;
+
+    /**
+     * Creates a new {@link MappedCheckpointStore} which syncs at most once a
+     * second.
+     *
+     * @param file The checkpoint file. It is created if necessary.
+     * @throws IOException If the file can't be opened, isn't a checkpoint
+     * file, or is in use
+     */
+    public MappedCheckpointStore(final Path file) throws IOException {
+        this(file, DEFAULT_FLUSH_INTERVAL_MILLIS);
+    }
+
+    /**
+     * Creates a new {@link MappedCheckpointStore}.
+     *
+     * @param file The checkpoint file. It is created if necessary.
+     * @param flushIntervalMillis The longest time a checkpoint waits to be
+     * synced to disk
+     * @throws IOException If the file can't be opened, isn't a checkpoint
+     * file, or is in use
+     */
+    public MappedCheckpointStore(final Path file,
+            final long flushIntervalMillis) throws IOException {
+        this.file = file.toAbsolutePath().normalize();
+        this.flushIntervalMillis = flushIntervalMillis;
+
+        if (this.file.getParent() != null) {
+            Files.createDirectories(this.file.getParent());
+        }
+
+        channel = FileChannel.open(this.file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        FileLock acquired;
+
+        try {
+            acquired = channel.tryLock();
+        } catch (OverlappingFileLockException ex) {
+            // Open in another store within this process
+            acquired = null;
+        }
+
+        lock = acquired;
+
+        try {
+            if (lock == null) {
+                throw new IOException("Checkpoint file " + this.file
+                        + " is in use");
+            }
+
+            open();
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Gets the checkpoint file.
+     *
+     * @return The checkpoint file
+     */
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Gets the number of times the file has been synced to disk.
+     *
+     * @return The number of syncs
+     */
+    public synchronized long getFlushCount() {
+        return flushes;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public synchronized long load(final String subscription)
+            throws IOException {
+        checkOpen();
+        final Integer slot = slots.get(toStoredKey(subscription));
+        return slot == null ? 0 : read(slot);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public synchronized void store(final String subscription,
+            final long eventId) throws IOException {
+        checkOpen();
+        final String key = toStoredKey(subscription);
+        Integer slot = slots.get(key);
+
+        if (slot == null) {
+            slot = allocate(key);
+        }
+
+        final int base = HEADER_SIZE + slot * SLOT_SIZE + RECORD_OFFSET;
+        final long version = Math.max(buffer.getLong(base + 8),
+                buffer.getLong(base + RECORD_SIZE + 8)) + 1;
+        final int record = base + (int) (version & 1) * RECORD_SIZE;
+
+        buffer.putLong(record, eventId);
+        buffer.putLong(record + 8, version);
+        buffer.putInt(record + 16, checksum(key, eventId, version));
+
+        if (pendingFlush == null && !closed) {
+            pendingFlush = SCHEDULER.schedule(this::flushQuietly,
+                    flushIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public synchronized void flush() throws IOException {
+        checkOpen();
+
+        if (pendingFlush != null) {
+            pendingFlush.cancel(false);
+            pendingFlush = null;
+        }
+
+        buffer.force();
+        flushes++;
+    }
+
+    /**
+     * Syncs any outstanding checkpoints and closes the file.
+     *
+     * @throws IOException If the file can't be synced or closed
+     */
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+
+        try {
+            flush();
+        } finally {
+            closed = true;
+            buffer = null;
+            lock.release();
+            channel.close();
+        }
+    }
+
+    /**
+     * Reads the slots in the file, or initialises a new file.
+     *
+     * @throws IOException If the file can't be read or isn't a checkpoint
+     * file
+     */
+    private void open() throws IOException {
+        if (channel.size() == 0) {
+            map(INITIAL_SLOTS);
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, FORMAT);
+            buffer.putInt(8, INITIAL_SLOTS);
+            buffer.force();
+            return;
+        }
+
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+
+        while (header.hasRemaining()
+                && channel.read(header, header.position()) >= 0) {
+            // Keep reading until the header is complete
+        }
+
+        if (header.hasRemaining() || header.getInt(0) != MAGIC
+                || header.getInt(4) != FORMAT) {
+            throw new IOException(file + " is not a checkpoint file");
+        }
+
+        map(header.getInt(8));
+
+        for (int slot = 0; slot < capacity; slot++) {
+            final int base = HEADER_SIZE + slot * SLOT_SIZE;
+            final int length = buffer.getShort(base);
+
+            if (length > 0 && length <= MAX_KEY_BYTES) {
+                final byte[] key = new byte[length];
+                buffer.get(base + 2, key);
+                slots.put(new String(key, StandardCharsets.UTF_8), slot);
+                nextSlot = slot + 1;
+            }
+        }
+    }
+
+    /**
+     * Maps the file with the given number of slots, growing it if necessary.
+     *
+     * @param count The number of slots
+     * @throws IOException If the file can't be mapped
+     */
+    private void map(final int count) throws IOException {
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                HEADER_SIZE + (long) count * SLOT_SIZE);
+        capacity = count;
+    }
+
+    /**
+     * Claims a slot for a new subscription, doubling the file if it is full.
+     * The key is written last, so a slot torn by a crash reads as empty.
+     *
+     * @param key The stored key of the subscription
+     * @return The slot
+     * @throws IOException If the file can't be grown
+     */
+    private int allocate(final String key) throws IOException {
+        final int slot = nextSlot++;
+
+        if (slot == capacity) {
+            buffer.force();
+            map(capacity * 2);
+            buffer.putInt(8, capacity);
+        }
+
+        final int base = HEADER_SIZE + slot * SLOT_SIZE;
+        final byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+
+        for (int i = RECORD_OFFSET; i < SLOT_SIZE; i++) {
+            buffer.put(base + i, (byte) 0);
+        }
+
+        buffer.put(base + 2, bytes);
+        buffer.putShort(base, (short) bytes.length);
+        slots.put(key, slot);
+        return slot;
+    }
+
+    /**
+     * Reads the newest intact copy of a slot's checkpoint.
+     *
+     * @param slot The slot
+     * @return The checkpoint, or 0 if neither copy is intact
+     */
+    private long read(final int slot) {
+        final int base = HEADER_SIZE + slot * SLOT_SIZE;
+        final byte[] key = new byte[buffer.getShort(base)];
+        buffer.get(base + 2, key);
+        final String stored = new String(key, StandardCharsets.UTF_8);
+
+        long eventId = 0;
+        long newest = 0;
+
+        for (int copy = 0; copy < 2; copy++) {
+            final int record = base + RECORD_OFFSET + copy * RECORD_SIZE;
+            final long id = buffer.getLong(record);
+            final long version = buffer.getLong(record + 8);
+
+            if (version > newest && buffer.getInt(record + 16)
+                    == checksum(stored, id, version)) {
+                eventId = id;
+                newest = version;
+            }
+        }
+
+        return eventId;
+    }
+
+    /**
+     * Syncs the file from the scheduler, leaving any failure to be reported
+     * by the next explicit flush.
+     */
+    private synchronized void flushQuietly() {
+        pendingFlush = null;
+
+        if (!closed) {
+            buffer.force();
+            flushes++;
+        }
+    }
+
+    /**
+     * Checks that the store hasn't been closed.
+     *
+     * @throws IOException If it has
+     */
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Checkpoint store is closed");
+        }
+    }
+
+    /**
+     * Gets the key a subscription is stored under: the key itself, or its
+     * digest if it is too long.
+     *
+     * @param subscription The subscription's key
+     * @return The stored key
+     */
+    private static String toStoredKey(final String subscription) {
+        if (subscription.getBytes(StandardCharsets.UTF_8).length
+                <= MAX_KEY_BYTES) {
+            return subscription;
+        }
+
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-256")
+                    .digest(subscription.getBytes(StandardCharsets.UTF_8));
+            final StringBuilder builder = new StringBuilder("sha256:");
+
+            for (byte b : digest) {
+                builder.append(String.format("%02x", b & 0xff));
+            }
+
+            return builder.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Computes the checksum of a copy of a checkpoint.
+     *
+     * @param key The stored key of the subscription
+     * @param eventId The checkpoint
+     * @param version The copy's version
+     * @return The checksum
+     */
+    private static int checksum(final String key, final long eventId,
+            final long version) {
+        final CRC32 crc = new CRC32();
+        crc.update(key.getBytes(StandardCharsets.UTF_8));
+        crc.update(ByteBuffer.allocate(16).putLong(eventId).putLong(version)
+                .array());
+        return (int) crc.getValue();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public synchronized String toString() {
+        return "MappedCheckpointStore{file=" + file + ", subscriptions="
+                + slots.size() + ", flushes=" + flushes + '}';
+    }
+
+}
@@ -0,0 +1,31 @@
+package com.mindlinksoft.foundationapi.demo.streaming;
+
+/**
+ * What a {@link ListenerQueue} does with an event which arrives while it is
+ * full.
+ */
+public enum OverflowPolicy {
+
+    /**
+     * Wait for the listener to make room. Nothing is lost, but a listener
+     * which falls behind eventually holds up every other listener and then
+     * polling itself.
+     */
+    BLOCK,
+
+    /** Discard the oldest waiting event to make room for the new one. */
+    DROP_OLDEST,
+
+    /** Discard the new event. */
+    DROP_NEWEST,
+
+    /**
+     * Replace any waiting event with the same key (see
+     * {@link ListenerQueue.KeyFunction}) with the new one, whether or not the
+     * queue is full, so the listener only sees the latest of each. An event
+     * with no key, or none waiting with its key, is queued as normal; if the
+     * queue is full, the oldest waiting event is discarded.
+     */
+    COALESCE
+
+}
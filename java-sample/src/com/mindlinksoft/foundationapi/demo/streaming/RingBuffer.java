@@ -0,0 +1,356 @@
+package com.mindlinksoft.foundationapi.demo.streaming;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded ring buffer which passes values from a single producer thread to
+ * any number of consumers, each of which sees every value in order.
+ * <p>
+ * The buffer is an array of slots allocated up front, and each value is
+ * published by storing a reference to it in the next slot and advancing a
+ * volatile cursor, so the buffer itself allocates nothing per value and takes
+ * no locks (except to wake consumers using {@link WaitStrategy#BLOCKING}).
+ * The values are the producer's own: the streaming agent, for one, publishes
+ * each event's JSON as it was parsed, and its consumer builds an
+ * {@link Event} from each.
+ * <p>
+ * Each consumer tracks the last value it has finished with; the producer
+ * only overwrites a slot once every consumer has finished with it, so a full
+ * buffer holds the producer back rather than losing values. Consumers take
+ * every value published since they last looked in one go, so a consumer
+ * which has fallen behind catches up in large batches.
+ * <p>
+ * Slots keep their values until overwritten, so the buffer holds on to up to
+ * its capacity in values which have already been consumed.
+ *
+ * @param <T> The type of the values passed
+ */
+public class RingBuffer<T> {
+
+    /**
+     * How consumers wait for values to be published.
+     */
+    public enum WaitStrategy {
+
+        /**
+         * Spin on the cursor. The lowest latency, but occupies a CPU core
+         * per consumer even while idle.
+         */
+        BUSY_SPIN,
+
+        /** Spin briefly, then yield the CPU between checks. */
+        YIELDING,
+
+        /**
+         * Spin and yield briefly, then sleep for a few microseconds between
+         * checks. Low CPU use at the cost of some latency.
+         */
+        SLEEPING,
+
+        /**
+         * Wait on a lock which the producer signals after each value. The
+         * least CPU use while idle, at the cost of a lock per value.
+         */
+        BLOCKING
+
+    }
+
+    /** The number of times a waiting thread spins before backing off. */
+    private static final int SPIN_TRIES = 100;
+
+    /** The time a sleeping thread sleeps between checks. */
+    private static final long SLEEP_NANOS = 50000;
+
+    /**
+     * A consumer of the values in the buffer.
+     */
+    public final class Consumer {
+
+        /** The sequence number of the last value finished with. */
+        private volatile long sequence;
+
+        /**
+         * Creates a new {@link Consumer}.
+         *
+         * @param sequence The sequence number of the last value it needn't
+         * see
+         */
+        private Consumer(final long sequence) {
+            this.sequence = sequence;
+        }
+
+        /**
+         * Waits for a value to be published.
+         *
+         * @param next The sequence number of the value to wait for
+         * @return The sequence number of the last value published, which is at
+         * least <code>next</code>, or -1 if the buffer was halted
+         * @throws InterruptedException If the thread is interrupted while
+         * waiting
+         */
+        public long waitFor(final long next) throws InterruptedException {
+            long available;
+            int spins = 0;
+
+            while ((available = cursor) < next) {
+                if (halted) {
+                    return -1;
+                }
+
+                spins++;
+
+                switch (waitStrategy) {
+                    case BUSY_SPIN:
+                        Thread.onSpinWait();
+                        break;
+                    case YIELDING:
+                        if (spins < SPIN_TRIES) {
+                            Thread.onSpinWait();
+                        } else {
+                            Thread.yield();
+                        }
+                        break;
+                    case SLEEPING:
+                        if (spins < SPIN_TRIES) {
+                            Thread.onSpinWait();
+                        } else if (spins < SPIN_TRIES * 2) {
+                            Thread.yield();
+                        } else {
+                            LockSupport.parkNanos(SLEEP_NANOS);
+                        }
+                        break;
+                    default:
+                        lock.lockInterruptibly();
+
+                        try {
+                            while (cursor < next && !halted) {
+                                published.await();
+                            }
+                        } finally {
+                            lock.unlock();
+                        }
+                }
+
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+
+            return available;
+        }
+
+        /**
+         * Gets a published value. The value must not yet have been released.
+         *
+         * @param sequence The value's sequence number
+         * @return The value
+         */
+        @SuppressWarnings("unchecked")
+        public T get(final long sequence) {
+            return (T) slots[(int) (sequence & mask)];
+        }
+
+        /**
+         * Marks every value up to the given one as finished with, freeing
+         * their slots for the producer.
+         *
+         * @param sequence The sequence number of the last value finished with
+         */
+        public void release(final long sequence) {
+            this.sequence = sequence;
+        }
+
+        /**
+         * Gets the sequence number of the last value finished with.
+         *
+         * @return The consumer's sequence number (-1 before the first value)
+         */
+        public long getSequence() {
+            return sequence;
+        }
+
+        /**
+         * Gets the number of values published which the consumer hasn't
+         * finished with.
+         *
+         * @return The consumer's backlog
+         */
+        public int getBacklog() {
+            return (int) Math.max(0, cursor - sequence);
+        }
+
+    }
+
+    /** The slots, holding the last values published. */
+    private final Object[] slots;
+
+    /** Masks a sequence number to the index of its slot. */
+    private final int mask;
+
+    /** How consumers wait for values. */
+    private final WaitStrategy waitStrategy;
+
+    /** The consumers gating the producer. */
+    private final List<Consumer> consumers
+            = new CopyOnWriteArrayList<Consumer>();
+
+    /** Guards waiting with {@link WaitStrategy#BLOCKING}. */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /** Signalled when a value is published or the buffer is halted. */
+    private final Condition published = lock.newCondition();
+
+    /** The sequence number of the last value published. */
+    private volatile long cursor = -1;
+
+    /** Whether the buffer has been halted. */
+    private volatile boolean halted;
+
+    /**
+     * The slowest consumer's sequence number when the producer last looked,
+     * so that it needn't look again until it catches up with it. Only used
+     * by the producer.
+     */
+    private long gate = -1;
+
+    /**
+     * Creates a new {@link RingBuffer}.
+     *
+     * @param capacity The minimum number of slots; rounded up to a power of
+     * two
+     * @param waitStrategy How consumers wait for values
+     */
+    public RingBuffer(final int capacity, final WaitStrategy waitStrategy) {
+        if (capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException(
+                    "capacity must be between 1 and 2^30");
+        }
+
+        final int size = Integer.highestOneBit(capacity) == capacity
+                ? capacity : Integer.highestOneBit(capacity) << 1;
+        this.slots = new Object[size];
+        this.mask = size - 1;
+        this.waitStrategy = waitStrategy;
+    }
+
+    /**
+     * Adds a consumer, which sees every value published from now on. This
+     * should only be called from the producer thread, or before the first
+     * value is published.
+     *
+     * @return The new consumer
+     */
+    public Consumer addConsumer() {
+        final Consumer consumer = new Consumer(cursor);
+        consumers.add(consumer);
+        return consumer;
+    }
+
+    /**
+     * Removes a consumer, so that it no longer holds back the producer.
+     *
+     * @param consumer The consumer to remove
+     */
+    public void removeConsumer(final Consumer consumer) {
+        consumers.remove(consumer);
+    }
+
+    /**
+     * Publishes a value to the consumers, waiting while the buffer is full.
+     * Must only be called from the producer thread.
+     *
+     * @param value The value to publish
+     * @throws InterruptedException If the thread is interrupted while waiting
+     * for a slot
+     */
+    public void publish(final T value) throws InterruptedException {
+        final long next = cursor + 1;
+        final long wrap = next - slots.length;
+
+        if (wrap > gate) {
+            int spins = 0;
+
+            while (wrap > (gate = getSlowest(next - 1))) {
+                if (++spins < SPIN_TRIES) {
+                    Thread.onSpinWait();
+                } else {
+                    LockSupport.parkNanos(SLEEP_NANOS);
+                }
+
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+        }
+
+        slots[(int) (next & mask)] = value;
+        cursor = next;
+
+        if (waitStrategy == WaitStrategy.BLOCKING) {
+            signal();
+        }
+    }
+
+    /**
+     * Halts the buffer, so that waiting consumers give up. Values already
+     * published but not consumed are abandoned.
+     */
+    public void halt() {
+        halted = true;
+        signal();
+    }
+
+    /**
+     * Gets the number of slots in the buffer.
+     *
+     * @return The buffer's capacity
+     */
+    public int getCapacity() {
+        return slots.length;
+    }
+
+    /**
+     * Gets the sequence number of the last value published.
+     *
+     * @return The cursor (-1 before the first value)
+     */
+    public long getCursor() {
+        return cursor;
+    }
+
+    /**
+     * Gets the sequence number of the value the slowest consumer last
+     * finished with.
+     *
+     * @param published The sequence number of the last value published,
+     * returned if there are no consumers
+     * @return The slowest consumer's sequence number
+     */
+    private long getSlowest(final long published) {
+        long slowest = published;
+
+        for (Consumer consumer : consumers) {
+            slowest = Math.min(slowest, consumer.sequence);
+        }
+
+        return slowest;
+    }
+
+    /**
+     * Wakes any consumers waiting with {@link WaitStrategy#BLOCKING}.
+     */
+    private void signal() {
+        lock.lock();
+
+        try {
+            published.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+}
@@ -1,28 +1,174 @@
 package com.mindlinksoft.foundationapi.demo.streaming;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.PatternSyntaxException;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import com.mindlinksoft.foundationapi.demo.Session;
 import com.mindlinksoft.foundationapi.demo.SimpleCollaborationAgent;
+import com.mindlinksoft.foundationapi.demo.UriTemplate;
+import com.mindlinksoft.foundationapi.demo.cluster.Cluster;
+import com.mindlinksoft.foundationapi.demo.metrics.LatencyHistogram;
+import com.mindlinksoft.foundationapi.demo.resilience.CircuitBreakerOpenException;
+import com.mindlinksoft.foundationapi.demo.resilience.Deadline;
+import com.mindlinksoft.foundationapi.demo.resilience.RetryPolicy;
+import com.mindlinksoft.foundationapi.demo.transport.Transport;
 
 /**
  * An extension of {@link SimpleCollaborationAgent} which adds support for
- * streaming of events. This implementation will only support one concurrent
- * streaming request per agent.
+ * streaming of events. Each agent makes one streaming request at a time,
+ * which serves both the events asked for by
+ * {@link #startStreaming(String[], String, EventType...)} and any number of
+ * {@link Subscription}s (see
+ * {@link #subscribe(EventListener, String[], String, EventType...)}), each
+ * with its own channels, regular expression and event types. The request
+ * asks for every event any of them wants, and each event received is passed
+ * only to the listeners it is for.
+ * <p>
+ * Polling and dispatching are pipelined: as soon as a batch of events arrives
+ * the next poll is sent, and its events are published through a
+ * {@link RingBuffer} to a separate thread which passes them to the listeners.
+ * Slow listeners therefore don't delay the next poll, although once the
+ * buffer is full (see {@link #setEventBufferSize(int)}) polling waits for the
+ * listeners to catch up.
+ * <p>
+ * Each listener has its own queue and thread (see {@link ListenerQueue}), so
+ * listeners run alongside each other and one which falls behind doesn't
+ * hold up the rest. Each listener sees events one at a time, in the order
+ * they were received, subject to its {@link OverflowPolicy}.
+ * <p>
+ * With a {@link CheckpointStore} (see
+ * {@link #setCheckpointStore(CheckpointStore)}), the ID of the last event
+ * each subscription's listeners have finished with is recorded as streaming
+ * goes, and streaming resumes from it after a restart. Events handled after
+ * the last checkpoint are then delivered again, so listeners should tolerate
+ * seeing an event twice.
  */
 public class StreamingCollaborationAgent extends SimpleCollaborationAgent {
 
+    /** The default backoff between failed polls: from 1 s up to 1 minute. */
+    public static final RetryPolicy DEFAULT_POLL_BACKOFF
+            = new RetryPolicy(Integer.MAX_VALUE, 1000, 60000);
+
+    /**
+     * The default time allowed for each poll for events, which the server
+     * holds open until events arrive.
+     */
+    public static final long DEFAULT_POLL_TIMEOUT_MILLIS = 120000;
+
+    /**
+     * The default number of events which may be waiting for the listeners
+     * before polling pauses.
+     */
+    public static final int DEFAULT_EVENT_BUFFER_SIZE = 1024;
+
+    /** The default number of events which may wait for each listener. */
+    public static final int DEFAULT_LISTENER_QUEUE_SIZE = 1024;
+
+    /** The interval between checkpoints of the events handled. */
+    private static final long CHECKPOINT_INTERVAL_MILLIS = 200;
+
+    /** Records checkpoints for all agents. */
+    private static final ScheduledThreadPoolExecutor CHECKPOINTER;
+
+    static {
+        CHECKPOINTER = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable,
+                        "Streaming checkpointer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        CHECKPOINTER.setRemoveOnCancelPolicy(true);
+    }
+
+    /** The method to call to poll for events. */
+    private static final String EVENTS_METHOD = "/Collaboration/v1/Events";
+
+    /** The address of a poll for events. */
+    private static final UriTemplate EVENTS = UriTemplate.compile(
+            EVENTS_METHOD + "?last-event={lastEvent}&types={types}"
+            + "&channels={channels}&regex={regex}");
+
+    /** The backoff applied between failed polls. */
+    private volatile RetryPolicy pollBackoff = DEFAULT_POLL_BACKOFF;
+
+    /** The time allowed for each poll for events. */
+    private volatile long pollTimeoutMillis = DEFAULT_POLL_TIMEOUT_MILLIS;
+
     /** The thread which our polling task is currently executing on. */
     private volatile Thread thread;
 
-    /** Collection of registered event listeners. */
-    private final List<EventListener> listeners
-            = new CopyOnWriteArrayList<EventListener>();
+    /** The deadline of the poll in progress (or <code>null</code>). */
+    private volatile Deadline poll;
+
+    /** The time each successful poll took, from request to response. */
+    private final LatencyHistogram pollLatency = new LatencyHistogram();
+
+    /** The time taken to dispatch each batch of events to the listeners. */
+    private final LatencyHistogram dispatchLatency = new LatencyHistogram();
+
+    /** The number of events which may be waiting for the listeners. */
+    private volatile int eventBufferSize = DEFAULT_EVENT_BUFFER_SIZE;
+
+    /** How the dispatch thread waits for events. */
+    private volatile RingBuffer.WaitStrategy dispatchWaitStrategy
+            = RingBuffer.WaitStrategy.BLOCKING;
+
+    /** Keeps the position in the stream (or <code>null</code>). */
+    private volatile CheckpointStore checkpointStore;
+
+    /** The poller currently streaming (or <code>null</code>). */
+    private volatile EventPoller poller;
+
+    /** The queues of the registered event listeners and subscriptions. */
+    private final List<ListenerQueue> listeners
+            = new CopyOnWriteArrayList<ListenerQueue>();
+
+    /** The subscriptions, in the order they were made. */
+    private final List<Subscription> subscriptions
+            = new CopyOnWriteArrayList<Subscription>();
+
+    /**
+     * The events asked for by
+     * {@link #startStreaming(String[], String, EventType...)} (or
+     * <code>null</code> if not streaming).
+     */
+    private volatile Subscription streaming;
+
+    /**
+     * The poller whose events are being dispatched (or <code>null</code>
+     * before streaming first starts). Only one poller dispatches at a time.
+     */
+    private volatile EventPoller dispatching;
+
+    /**
+     * The poller most recently started, which the next one waits for (or
+     * <code>null</code>). Guarded by {@link #streamingLock}.
+     */
+    private EventPoller lastPoller;
+
+    /** Guards starting and stopping the poller. */
+    private final Object streamingLock = new Object();
 
     /**
      * Creates a new {@link StreamingCollaborationAgent}.
@@ -40,31 +186,436 @@ public class StreamingCollaborationAgent extends SimpleCollaborationAgent {
         super(baseUrl, username, password, agent);
     }
 
+    /**
+     * Creates a new {@link StreamingCollaborationAgent} which sends its
+     * requests through the given transport.
+     *
+     * @param baseUrl The base address for the Foundation API. The agent will
+     * append method names automatically. For example, a base URL of
+     * <code>http://api.company.com</code> will result in URLs constructed such
+     * as <code>http://api.company.com/Authentication/v1/Tokens</code>.
+     * @param username The username to give to the API when authenticating
+     * @param password The username to give to the API when authenticating
+     * @param agent The ID of the agent to use.
+     * @param transport The transport to send requests through
+     */
+    public StreamingCollaborationAgent(final String baseUrl,
+            final String username, final String password, final String agent,
+            final Transport transport) {
+        super(baseUrl, username, password, agent, transport);
+    }
+
+    /**
+     * Creates a new {@link StreamingCollaborationAgent} which spreads its
+     * requests across a cluster of API servers.
+     *
+     * @param cluster The API servers to send requests to
+     * @param username The username to give to the API when authenticating
+     * @param password The username to give to the API when authenticating
+     * @param agent The ID of the agent to use.
+     * @param transport The transport to send requests through
+     */
+    public StreamingCollaborationAgent(final Cluster cluster,
+            final String username, final String password, final String agent,
+            final Transport transport) {
+        super(cluster, username, password, agent, transport);
+    }
+
+    /**
+     * Creates a new {@link StreamingCollaborationAgent} which makes its
+     * requests in the given session, sharing its token, connections, limits and
+     * metrics with every other agent on the session.
+     *
+     * @param session The session to make requests in
+     */
+    public StreamingCollaborationAgent(final Session session) {
+        super(session);
+    }
+
     /**
      * Adds a new event listener to this agent. When any event is received
-     * from any future streaming request, the listener will be notified.
+     * from any future streaming request, the listener will be notified. If
+     * the listener falls {@link #DEFAULT_LISTENER_QUEUE_SIZE} events behind,
+     * the agent waits for it to catch up rather than discard events.
      *
      * @see #removeEventListener(EventListener)
      * @param listener The listener to be added
      */
     public void addEventListener(final EventListener listener) {
-        listeners.add(listener);
+        addEventListener(listener, DEFAULT_LISTENER_QUEUE_SIZE,
+                OverflowPolicy.BLOCK);
+    }
+
+    /**
+     * Adds a new event listener to this agent, with its own queue of the
+     * given size. Events under {@link OverflowPolicy#COALESCE} are coalesced
+     * on {@link ListenerQueue#DEFAULT_KEY}.
+     *
+     * @param listener The listener to be added
+     * @param capacity The number of events which may wait for the listener
+     * @param policy What happens to events which arrive while the listener's
+     * queue is full
+     * @return The listener's queue, which reports how well it is keeping up
+     * @see #removeEventListener(EventListener)
+     */
+    public ListenerQueue addEventListener(final EventListener listener,
+            final int capacity, final OverflowPolicy policy) {
+        return addEventListener(listener, capacity, policy,
+                ListenerQueue.DEFAULT_KEY);
+    }
+
+    /**
+     * Adds a new event listener to this agent, with its own queue of the
+     * given size.
+     *
+     * @param listener The listener to be added
+     * @param capacity The number of events which may wait for the listener
+     * @param policy What happens to events which arrive while the listener's
+     * queue is full
+     * @param keyFunction Gets the keys events are coalesced on under
+     * {@link OverflowPolicy#COALESCE}
+     * @return The listener's queue, which reports how well it is keeping up
+     * @see #removeEventListener(EventListener)
+     */
+    public ListenerQueue addEventListener(final EventListener listener,
+            final int capacity, final OverflowPolicy policy,
+            final ListenerQueue.KeyFunction keyFunction) {
+        final ListenerQueue queue = new ListenerQueue(this, listener,
+                capacity, policy, keyFunction, null);
+        listeners.add(queue);
+        return queue;
     }
 
     /**
      * Removes an event listener from this agent. The listener will not be
-     * notified of any future events.
+     * notified of any future events, and any events waiting for it are
+     * discarded. Subscriptions are not affected; see
+     * {@link #unsubscribe(Subscription)}.
      *
      * @see #addEventListener(EventListener)
      * @param listener The listener to be removed
      */
     public void removeEventListener(final EventListener listener) {
-        listeners.remove(listener);
+        for (ListenerQueue queue : listeners) {
+            if (queue.getSubscription() == null
+                    && queue.getListener().equals(listener)
+                    && listeners.remove(queue)) {
+                queue.close();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Gets the queues of the registered event listeners and subscriptions,
+     * which report how well each is keeping up.
+     *
+     * @return The listeners' queues, in the order they were added
+     */
+    public List<ListenerQueue> getListenerQueues() {
+        return new ArrayList<ListenerQueue>(listeners);
+    }
+
+    /**
+     * Subscribes a listener to the events in the given channels, of the
+     * given types and, for messages, matching the given regular expression.
+     * If the listener falls {@link #DEFAULT_LISTENER_QUEUE_SIZE} events
+     * behind, the agent waits for it to catch up rather than discard events.
+     *
+     * @param listener The listener to pass the events to
+     * @param channels The channels to receive events for
+     * (may be <code>null</code> for all channels)
+     * @param regex The regular expression to apply to messages
+     * (may be <code>null</code>)
+     * @param types The types of events to receive (none for all types)
+     * @return The subscription
+     * @throws PatternSyntaxException If the regular expression is malformed
+     * @see #unsubscribe(Subscription)
+     */
+    public Subscription subscribe(final EventListener listener,
+            final String[] channels, final String regex,
+            final EventType ... types) {
+        return subscribe(listener, DEFAULT_LISTENER_QUEUE_SIZE,
+                OverflowPolicy.BLOCK, channels, regex, types);
+    }
+
+    /**
+     * Subscribes a listener to the events in the given channels, of the
+     * given types and, for messages, matching the given regular expression,
+     * with its own queue of the given size.
+     * <p>
+     * Streaming starts, if it hasn't already, and continues until the last
+     * subscription is cancelled and {@link #stopStreaming()} is called. The
+     * agent keeps polling for events once, asking for every event that any
+     * subscription (or {@link #startStreaming(String[], String, EventType...)})
+     * wants; when that changes, the poll in progress is replaced by one with
+     * the new filter, carrying on from the last event dispatched.
+     * <p>
+     * The regular expression is applied by the agent, as well as by the
+     * server, when subscriptions with different regular expressions share a
+     * poll, so it should be one which Java and the server read the same way.
+     *
+     * @param listener The listener to pass the events to
+     * @param capacity The number of events which may wait for the listener
+     * @param policy What happens to events which arrive while the listener's
+     * queue is full
+     * @param channels The channels to receive events for
+     * (may be <code>null</code> for all channels)
+     * @param regex The regular expression to apply to messages
+     * (may be <code>null</code>)
+     * @param types The types of events to receive (none for all types)
+     * @return The subscription
+     * @throws PatternSyntaxException If the regular expression is malformed
+     * @see #unsubscribe(Subscription)
+     */
+    public Subscription subscribe(final EventListener listener,
+            final int capacity, final OverflowPolicy policy,
+            final String[] channels, final String regex,
+            final EventType ... types) {
+        final Subscription subscription = new Subscription(this, channels,
+                regex, types, listener, capacity, policy,
+                ListenerQueue.DEFAULT_KEY);
+
+        synchronized (streamingLock) {
+            listeners.add(subscription.getListenerQueue());
+            subscriptions.add(subscription);
+            restartStreaming();
+        }
+
+        return subscription;
+    }
+
+    /**
+     * Cancels a subscription. Its listener will not be notified of any future
+     * events, and any events waiting for it are discarded. The poll is
+     * narrowed to the events the remaining subscriptions want, or stopped if
+     * nothing wants any.
+     *
+     * @param subscription The subscription to cancel
+     */
+    public void unsubscribe(final Subscription subscription) {
+        synchronized (streamingLock) {
+            if (subscriptions.remove(subscription)) {
+                listeners.remove(subscription.getListenerQueue());
+                subscription.getListenerQueue().close();
+                restartStreaming();
+            }
+        }
+    }
+
+    /**
+     * Gets the subscriptions which haven't been cancelled.
+     *
+     * @return The subscriptions, in the order they were made
+     */
+    public List<Subscription> getSubscriptions() {
+        return new ArrayList<Subscription>(subscriptions);
+    }
+
+    /**
+     * Excludes the events long poll from the agent's rate and concurrency
+     * limits: it is held open by the server until events arrive, so would
+     * otherwise tie up a permit and look like a very slow request.
+     *
+     * @param address The address of the API method, including any GET
+     * parameters
+     * @return <code>true</code> if the request should be limited
+     */
+    @Override
+    protected boolean isThrottled(final String address) {
+        return !address.startsWith(EVENTS_METHOD);
+    }
+
+    /**
+     * Never hedges the events long poll: the server holds it open until
+     * events arrive, so it is always slow and a second poll would only wait
+     * alongside it.
+     *
+     * @param address The address of the API method, including any GET
+     * parameters
+     * @return <code>true</code> if the request may be hedged
+     */
+    @Override
+    protected boolean isHedged(final String address) {
+        return !address.startsWith(EVENTS_METHOD);
+    }
+
+    /**
+     * Sets the backoff applied between failed polls for events. Polling never
+     * gives up; the policy's delays determine how long it waits after each
+     * consecutive failure.
+     *
+     * @param pollBackoff The backoff policy to use
+     */
+    public void setPollBackoff(final RetryPolicy pollBackoff) {
+        this.pollBackoff = pollBackoff;
     }
 
     /**
-     * Begins streaming events from the API. Any previous streaming request from
-     * this agent will be stopped. Streaming will otherwise continue until the
+     * Gets the backoff applied between failed polls for events.
+     *
+     * @return The backoff policy
+     */
+    public RetryPolicy getPollBackoff() {
+        return pollBackoff;
+    }
+
+    /**
+     * Sets the time allowed for each poll for events. This should exceed the
+     * time the server holds a poll open while waiting for events; a poll
+     * which takes longer is abandoned and retried after the poll backoff.
+     *
+     * @param timeout The poll timeout
+     * @param unit The unit of the timeout
+     */
+    public void setPollTimeout(final long timeout, final TimeUnit unit) {
+        this.pollTimeoutMillis = unit.toMillis(timeout);
+    }
+
+    /**
+     * Gets the time allowed for each poll for events.
+     *
+     * @return The poll timeout in milliseconds
+     */
+    public long getPollTimeoutMillis() {
+        return pollTimeoutMillis;
+    }
+
+    /**
+     * Gets the time taken by each poll for events which returned a batch,
+     * from sending the request to parsing the response. As the server holds
+     * polls open until events arrive, this mostly measures how long the agent
+     * waited for events.
+     *
+     * @return The histogram of poll round-trip times
+     */
+    public LatencyHistogram getPollLatency() {
+        return pollLatency;
+    }
+
+    /**
+     * Gets the time taken to dispatch each batch of events, from building the
+     * first event to queueing the last for every listener. This includes any
+     * time spent waiting for room in the queue of a listener which has
+     * fallen behind.
+     *
+     * @return The histogram of dispatch times
+     */
+    public LatencyHistogram getDispatchLatency() {
+        return dispatchLatency;
+    }
+
+    /**
+     * Gets the number of events received but not yet dispatched. A backlog
+     * which stays high means the listeners can't keep up.
+     *
+     * @return The number of events waiting for the listeners
+     */
+    public int getDispatchBacklog() {
+        final EventPoller current = poller;
+        return current == null ? 0 : current.consumer.getBacklog();
+    }
+
+    /**
+     * Sets the number of events which may be waiting for the listeners
+     * before polling pauses. Takes effect from the next time the poll is
+     * started or changed.
+     *
+     * @param size The size of the event buffer; rounded up to a power of two
+     */
+    public void setEventBufferSize(final int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("size must be at least 1");
+        }
+
+        this.eventBufferSize = size;
+    }
+
+    /**
+     * Gets the number of events which may be waiting for the listeners.
+     *
+     * @return The size of the event buffer
+     */
+    public int getEventBufferSize() {
+        return eventBufferSize;
+    }
+
+    /**
+     * Sets how the dispatch thread waits for events. The default,
+     * {@link RingBuffer.WaitStrategy#BLOCKING}, uses no CPU while the stream
+     * is quiet; the spinning strategies deliver events sooner at the cost of
+     * keeping a core busy. Takes effect from the next time the poll is
+     * started or changed.
+     *
+     * @param waitStrategy The wait strategy to use
+     */
+    public void setDispatchWaitStrategy(
+            final RingBuffer.WaitStrategy waitStrategy) {
+        this.dispatchWaitStrategy = waitStrategy;
+    }
+
+    /**
+     * Gets how the dispatch thread waits for events.
+     *
+     * @return The wait strategy
+     */
+    public RingBuffer.WaitStrategy getDispatchWaitStrategy() {
+        return dispatchWaitStrategy;
+    }
+
+    /**
+     * Sets the store the position in the event stream is kept in. While
+     * streaming, the ID of the last event which every listener has finished
+     * with (or which was dropped by its queue) is recorded several times a
+     * second; when streaming next starts with the same channels, regular
+     * expression and event types, it resumes from there rather than from the
+     * start of the server's buffer. A position is kept for each subscription
+     * and for the filter given to
+     * {@link #startStreaming(String[], String, EventType...)}, so adding or
+     * cancelling a subscription doesn't lose the others' positions. The
+     * shared poll starts from the earliest of them, and each subscription is
+     * only passed the events after its own. Takes effect from the next time
+     * the poll is started or changed.
+     * <p>
+     * If a checkpoint can't be read, or there is none, that subscription
+     * starts from the beginning as it would without a store, or with the
+     * next event if it was added while streaming was under way.
+     *
+     * @param checkpointStore The store to use, or <code>null</code> to start
+     * from the beginning each time
+     */
+    public void setCheckpointStore(final CheckpointStore checkpointStore) {
+        this.checkpointStore = checkpointStore;
+    }
+
+    /**
+     * Gets the store the position in the event stream is kept in.
+     *
+     * @return The checkpoint store, or <code>null</code> if there is none
+     */
+    public CheckpointStore getCheckpointStore() {
+        return checkpointStore;
+    }
+
+    /**
+     * Gets the key a subscription's position is stored under in the
+     * checkpoint store.
+     *
+     * @param types The subscription's comma-separated event types
+     * @param channels The subscription's comma-separated channels
+     * @param regex The subscription's regular expression
+     * @return The subscription's key
+     */
+    protected String getCheckpointKey(final String types,
+            final String channels, final String regex) {
+        return getSession().getUsername() + " " + getSession().getAgent()
+                + " " + types + " " + channels + " " + regex;
+    }
+
+    /**
+     * Begins streaming events from the API to the registered event
+     * listeners. Any previous streaming request from this agent will be
+     * stopped. Streaming will otherwise continue until the
      * {@link #stopStreaming()} method is invoked on this agent.
      *
      * @param channels The channels to receive events for
@@ -75,22 +626,85 @@ public class StreamingCollaborationAgent extends SimpleCollaborationAgent {
      */
     public void startStreaming(final String channels[],
             final String regex, final EventType ... types) {
-        stopStreaming();
-        thread = new Thread(new EventPoller(
-                getCommaSeparatedString(types),
-                getCommaSeparatedString(channels),
-                regex == null ? "" : regex), "Streaming polling thread");
-        thread.start();
+        synchronized (streamingLock) {
+            streaming = new Subscription(channels, regex, types);
+
+            if (subscriptions.isEmpty()) {
+                stopPolling();
+            }
+
+            restartStreaming();
+        }
     }
 
     /**
-     * Stops any on-going streaming request.
+     * Stops streaming events to the registered event listeners, aborting the
+     * poll in progress. If there are subscriptions, polling carries on for
+     * them.
      */
     public void stopStreaming() {
-        if (thread != null) {
-            final Thread oldThread = thread;
-            thread = null;
-            oldThread.interrupt();
+        synchronized (streamingLock) {
+            streaming = null;
+            restartStreaming();
+        }
+    }
+
+    /**
+     * Starts a poll for the events the event listeners and subscriptions
+     * want, replacing the poll in progress unless it already asks for them,
+     * or stops polling if nothing wants any events. The new poll carries on
+     * from the last event the old one dispatched, once the old one has
+     * stopped dispatching, so that each listener still sees each event once
+     * and in order. The caller must hold
+     * {@link #streamingLock}.
+     */
+    private void restartStreaming() {
+        final List<Subscription> filters = new ArrayList<Subscription>();
+
+        if (streaming != null) {
+            filters.add(streaming);
+        }
+
+        filters.addAll(subscriptions);
+
+        if (filters.isEmpty()) {
+            stopPolling();
+            return;
+        }
+
+        final Subscription filter = Subscription.merge(filters);
+        final EventPoller current = poller;
+
+        if (current != null && current.filter.isSameFilter(filter)) {
+            current.setMembers(filters);
+            return;
+        }
+
+        stopPolling();
+        poller = new EventPoller(filter, filters, lastPoller,
+                current != null);
+        lastPoller = poller;
+        thread = new Thread(poller, "Streaming polling thread");
+        thread.start();
+    }
+
+    /**
+     * Stops the poller, aborting the poll in progress.
+     */
+    private void stopPolling() {
+        synchronized (streamingLock) {
+            if (thread != null) {
+                final Thread oldThread = thread;
+                final Deadline oldPoll = poll;
+                thread = null;
+                poller = null;
+
+                if (oldPoll != null) {
+                    oldPoll.cancel();
+                }
+
+                oldThread.interrupt();
+            }
         }
     }
 
@@ -133,15 +747,61 @@ public class StreamingCollaborationAgent extends SimpleCollaborationAgent {
     }
 
     /**
-     * Calls the
+     * Queues the event for each registered event listener and subscription
+     * it is for, as {@link #fireEventReceived(Event, Subscription)} does,
+     * taking it to have been polled with the filter currently streaming.
+     * Events received from the API are dispatched through this method.
+     *
+     * @param event The event to be passed to listeners
+     */
+    protected void fireEventReceived(final Event event) {
+        final EventPoller current = dispatching;
+        fireEventReceived(event, current == null ? null : current.filter);
+    }
+
+    /**
+     * Queues the event for each registered event listener and subscription
+     * it is for, whose
      * {@link EventListener#eventReceived(StreamingCollaborationAgent, Event)}
-     * method of each registered event listener.
+     * method is then called on the listener's own thread. Events at or
+     * before a subscription's checkpoint, which the poll may have started
+     * before to serve another subscription, are skipped. If the dispatch
+     * thread is interrupted while waiting for room in a queue, because
+     * streaming stopped or changed, the remaining listeners are skipped and
+     * the event isn't counted as dispatched, so the next poll delivers it
+     * again.
      *
      * @param event The event to be passed to listeners
+     * @param upstream The filter the event was polled with, or
+     * <code>null</code> to check every part of each listener's filter
      */
-    protected void fireEventReceived(Event event) {
-        for (EventListener listener : listeners) {
-            listener.eventReceived(this, event);
+    protected void fireEventReceived(final Event event,
+            final Subscription upstream) {
+        final Subscription streamed = streaming;
+        final EventPoller resumed = dispatching;
+
+        for (ListenerQueue listener : listeners) {
+            final Subscription filter = listener.getSubscription() == null
+                    ? streamed : listener.getSubscription();
+
+            if (filter == null || !filter.matches(event, upstream)
+                    || resumed != null && resumed.isHandled(filter, event)) {
+                continue;
+            }
+
+            try {
+                listener.offer(event);
+            } catch (InterruptedException ex) {
+                final EventPoller current = dispatching;
+
+                if (current != null
+                        && current.dispatcher == Thread.currentThread()) {
+                    current.incomplete = true;
+                }
+
+                Thread.currentThread().interrupt();
+                return;
+            }
         }
     }
 
@@ -185,12 +845,88 @@ public class StreamingCollaborationAgent extends SimpleCollaborationAgent {
     }
 
     /**
-     * Handles repeated polling for events.
+     * Handles repeated polling for events, publishing each event received to
+     * a dispatch thread.
      */
     private class EventPoller implements Runnable {
 
+        /** Passes events from the poller to the dispatch thread. */
+        private final RingBuffer<JSONObject> events
+                = new RingBuffer<JSONObject>(eventBufferSize,
+                        dispatchWaitStrategy);
+
+        /** The dispatch thread's place in the buffer. */
+        private final RingBuffer<JSONObject>.Consumer consumer
+                = events.addConsumer();
+
+        /** The thread polling for events. */
+        private volatile Thread polling;
+
+        /**
+         * The poller started before this one, which must stop dispatching
+         * before this one starts (or <code>null</code>).
+         */
+        private EventPoller previous;
+
+        /** Whether to carry on from where the previous poller stopped. */
+        private final boolean resume;
+
+        /** The thread dispatching events to the listeners. */
+        private Thread dispatcher;
+
+        /**
+         * Whether the dispatch thread was stopped before every listener had
+         * the event being dispatched. Only used by the dispatch thread.
+         */
+        private boolean incomplete;
+
+        /** Counted down once the poller has stopped dispatching. */
+        private final CountDownLatch finished = new CountDownLatch(1);
+
         /** The ID of the last event that was received. */
-        private long lastEvent = 0;
+        private long lastEvent;
+
+        /**
+         * The ID of the last event queued for every listener (-1 until the
+         * starting position is known).
+         */
+        private volatile long dispatched = -1;
+
+        /** Keeps the position in the stream (or <code>null</code>). */
+        private final CheckpointStore store = checkpointStore;
+
+        /**
+         * The key each subscription's position is stored under, including
+         * the filter given to {@link #startStreaming(String[], String,
+         * EventType...)}, which listens through the plain event listeners.
+         * Guarded by the poller's monitor.
+         */
+        private final Map<Subscription, String> keys
+                = new LinkedHashMap<Subscription, String>();
+
+        /**
+         * The checkpoint each subscription was resumed from, before which
+         * events aren't passed to it. Written before the dispatch thread
+         * starts, and only read afterwards.
+         */
+        private final Map<Subscription, Long> resumedFrom
+                = new HashMap<Subscription, Long>();
+
+        /** The ID of the last event recorded in the store, by key. */
+        private final Map<String, Long> acknowledged
+                = new HashMap<String, Long>();
+
+        /**
+         * The filter the plain event listeners listen through
+         * (or <code>null</code>). Guarded by the poller's monitor.
+         */
+        private Subscription streamed;
+
+        /** The delay after the last failed poll (0 if it succeeded). */
+        private long backoff = 0;
+
+        /** The filter polled with. */
+        private final Subscription filter;
 
         /** A comma-separated list of event types to poll for. */
         private final String types;
@@ -203,51 +939,410 @@ public class StreamingCollaborationAgent extends SimpleCollaborationAgent {
 
         /**
          * Creates a new {@link EventPoller}.
+         *
+         * @param filter The filter to poll with
+         * @param members The subscriptions merged into the filter
+         * @param previous The poller started before this one
+         * (may be <code>null</code>)
+         * @param resume Whether to carry on from where the previous poller
+         * stopped, rather than from the checkpoint (if there is a store) or
+         * the beginning
+         */
+        public EventPoller(final Subscription filter,
+                final List<Subscription> members, final EventPoller previous,
+                final boolean resume) {
+            setMembers(members);
+            this.filter = filter;
+            this.previous = previous;
+            this.resume = resume;
+            this.types = getCommaSeparatedString(filter.getTypeArray());
+            this.channels = getCommaSeparatedString(filter.getChannelArray());
+            this.regex = filter.getRegex();
+        }
+
+        /**
+         * Sets the subscriptions merged into the filter, which change without
+         * the filter changing when a subscription is added which asks for
+         * nothing new, or one is cancelled which asked for nothing the
+         * others don't.
+         *
+         * @param members The subscriptions merged into the filter
          */
-        public EventPoller(final String types, final String channels,
-                final String regex) {
-            this.types = types;
-            this.channels = channels;
-            this.regex = regex;
+        private synchronized void setMembers(
+                final List<Subscription> members) {
+            keys.clear();
+            streamed = null;
+
+            for (Subscription member : members) {
+                keys.put(member, getCheckpointKey(
+                        getCommaSeparatedString(member.getTypeArray()),
+                        getCommaSeparatedString(member.getChannelArray()),
+                        member.getRegex()));
+
+                if (member.getListenerQueue() == null) {
+                    streamed = member;
+                }
+            }
         }
 
         /**
          * Repeatedly polls the Events method until the {@link #thread}
          * property is changed. Retrieved events are passed to
-         * {@link #fireEventReceived(Event)}.
+         * {@link #fireEventReceived(Event)} on a dispatch thread.
          */
         @Override
         public void run() {
+            try {
+                stream();
+            } finally {
+                finished.countDown();
+            }
+        }
+
+        /**
+         * Finds where to start, then polls and dispatches events until
+         * streaming stops, and waits for the dispatch thread to finish.
+         */
+        private void stream() {
+            polling = Thread.currentThread();
+            ScheduledFuture<?> checkpoints = null;
+            final long resumed = previous == null || !resume
+                    ? -1 : previous.awaitFinished();
+            final Set<Subscription> carried = resumed < 0
+                    ? Collections.<Subscription>emptySet()
+                    : previous.getMembers();
+            previous = null;
+
+            if (resumed >= 0) {
+                lastEvent = resumed;
+            }
+
+            if (store != null) {
+                load(resumed, carried);
+            }
+
+            dispatched = lastEvent;
+            dispatching = this;
+
+            if (store != null) {
+                synchronized (this) {
+                    for (String key : keys.values()) {
+                        if (!acknowledged.containsKey(key)) {
+                            acknowledged.put(key, lastEvent);
+                        }
+                    }
+                }
+
+                checkpoints = CHECKPOINTER.scheduleWithFixedDelay(
+                        this::checkpoint, CHECKPOINT_INTERVAL_MILLIS,
+                        CHECKPOINT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            }
+
+            dispatcher = new Thread(this::dispatch,
+                    "Streaming dispatch thread");
+            dispatcher.start();
+
+            try {
+                poll();
+            } finally {
+                // Anything not yet dispatched is discarded, and a dispatcher
+                // waiting for room in a listener's queue gives up
+                events.halt();
+                dispatcher.interrupt();
+
+                while (dispatcher.isAlive()) {
+                    try {
+                        dispatcher.join();
+                    } catch (InterruptedException ex) {
+                        // Keep waiting: the next poller carries on from the
+                        // last event dispatched, so it must be final
+                    }
+                }
+
+                if (checkpoints != null) {
+                    checkpoints.cancel(false);
+                    checkpoint();
+
+                    try {
+                        store.flush();
+                    } catch (IOException ex) {
+                        // The next run resumes from an earlier checkpoint
+                    }
+                }
+            }
+        }
+
+        /**
+         * Finds where each subscription starts, and starts polling from the
+         * earliest of them. Subscriptions the previous poller served carry on
+         * from where it stopped; others resume from their checkpoints. One
+         * without a checkpoint (or whose checkpoint can't be read) starts
+         * with the next event if streaming was already under way, and
+         * otherwise from the beginning, as it would without a store.
+         *
+         * @param resumed The last event the previous poller dispatched, or
+         * -1 if not carrying on from it
+         * @param carried The subscriptions the previous poller served
+         */
+        private void load(final long resumed,
+                final Set<Subscription> carried) {
+            final Map<Subscription, String> members;
+            long earliest = Long.MAX_VALUE;
+
+            synchronized (this) {
+                members = new LinkedHashMap<Subscription, String>(keys);
+            }
+
+            for (Map.Entry<Subscription, String> entry : members.entrySet()) {
+                long position = 0;
+
+                if (carried.contains(entry.getKey())) {
+                    position = resumed;
+                } else {
+                    try {
+                        position = store.load(entry.getValue());
+                    } catch (IOException ex) {
+                        // No checkpoint to go on
+                    }
+
+                    if (position == 0 && resumed >= 0) {
+                        position = resumed;
+                    }
+                }
+
+                resumedFrom.put(entry.getKey(), position);
+                earliest = Math.min(earliest, position);
+
+                synchronized (this) {
+                    acknowledged.put(entry.getValue(), Math.min(position,
+                            acknowledged.containsKey(entry.getValue())
+                            ? acknowledged.get(entry.getValue())
+                            : Long.MAX_VALUE));
+                }
+            }
+
+            if (earliest < Long.MAX_VALUE) {
+                lastEvent = earliest;
+            }
+        }
+
+        /**
+         * Gets the subscriptions merged into the filter.
+         *
+         * @return The subscriptions
+         */
+        private synchronized Set<Subscription> getMembers() {
+            return new HashSet<Subscription>(keys.keySet());
+        }
+
+        /**
+         * Determines whether an event was already handled by a subscription
+         * before streaming resumed from its checkpoint.
+         *
+         * @param member The subscription
+         * @param event The event
+         * @return <code>true</code> if the event should be skipped
+         */
+        private boolean isHandled(final Subscription member,
+                final Event event) {
+            final Long position = resumedFrom.get(member);
+            return position != null && event.getEventId() <= position;
+        }
+
+        /**
+         * Waits for the poller to stop dispatching.
+         *
+         * @return The ID of the last event dispatched to every listener, or
+         * -1 if the poller stopped before finding where to start
+         */
+        private long awaitFinished() {
+            while (true) {
+                try {
+                    finished.await();
+                    return dispatched;
+                } catch (InterruptedException ex) {
+                    // Keep waiting: the poller stops promptly once replaced,
+                    // and an interrupted successor needs its position too
+                }
+            }
+        }
+
+        /**
+         * Records, for each subscription, the ID of the last event its
+         * listeners have finished with, if it has moved on since the last
+         * checkpoint.
+         */
+        private synchronized void checkpoint() {
+            final long position = dispatched;
+            final Map<String, Long> handled = new HashMap<String, Long>();
+
+            for (String key : keys.values()) {
+                handled.put(key, position);
+            }
+
+            for (ListenerQueue listener : listeners) {
+                final String key = keys.get(listener.getSubscription() == null
+                        ? streamed : listener.getSubscription());
+
+                if (key != null) {
+                    handled.put(key, Math.min(handled.get(key),
+                            listener.getOldestPending() - 1));
+                }
+            }
+
+            for (Map.Entry<String, Long> entry : handled.entrySet()) {
+                final Long recorded = acknowledged.get(entry.getKey());
+
+                if (recorded == null || entry.getValue() > recorded) {
+                    try {
+                        store.store(entry.getKey(), entry.getValue());
+                        acknowledged.put(entry.getKey(), entry.getValue());
+                    } catch (IOException ex) {
+                        // Try again at the next checkpoint
+                    }
+                }
+            }
+        }
+
+        /**
+         * Polls the Events method until streaming stops, publishing each
+         * event for dispatch and starting the next poll as soon as the last
+         * event ID is known.
+         */
+        private void poll() {
             while (Thread.currentThread() == thread) {
+                final Deadline deadline = Deadline.after(pollTimeoutMillis,
+                        TimeUnit.MILLISECONDS);
+                poll = deadline;
+
+                if (Thread.currentThread() != thread) {
+                    // Stopped before the deadline could be cancelled
+                    break;
+                }
+
                 try {
-                    final JSONArray response = new JSONArray(getResponse(
-                            "/Collaboration/v1/Events?last-event="
-                            + lastEvent + "&types=" + types + "&channels="
-                            + channels + "&regex=" + regex, "GET", null));
+                    final long startedAt = System.nanoTime();
+                    final JSONArray response;
+                    final Deadline.Scope scope = deadline.enter();
+
+                    try {
+                        response = getResponse(EVENTS.expand(lastEvent, types,
+                                channels, regex), "GET", null, JSON_ARRAY);
+                    } finally {
+                        scope.close();
+                    }
+
+                    pollLatency.record(
+                            (System.nanoTime() - startedAt) / 1000);
 
                     for (int i = 0; i < response.length(); i++) {
-                        final Event event = getEvent(response.getJSONObject(i));
-                        lastEvent = Math.max(lastEvent, event.getEventId());
-                        fireEventReceived(event);
+                        final JSONObject event = response.getJSONObject(i);
+                        lastEvent = Math.max(lastEvent,
+                                event.getLong("EventId"));
+                        events.publish(event);
                     }
+
+                    backoff = 0;
+                } catch (InterruptedException ex) {
+                    // Stopped while waiting for the listeners to catch up
+                    giveUp();
+                    return;
                 } catch (IOException ex) {
-                    // Hopefully just a transient issue - wait a short while
-                    // and try again. This should ideally be logged, and
-                    // should give up if the problem keeps happening.
+                    // Hopefully just a transient issue - back off for longer
+                    // after each consecutive failure, and at least until the
+                    // circuit breaker is willing to let a request through.
+                    backoff = pollBackoff.nextDelay(backoff);
+                    long delay = backoff;
+
+                    if (ex instanceof CircuitBreakerOpenException) {
+                        delay = Math.max(delay, ((CircuitBreakerOpenException)
+                                ex).getRetryAfterMillis());
+                    }
+
                     try {
-                        Thread.sleep(2000);
+                        Thread.sleep(delay);
                     } catch (InterruptedException iex) {
-                        thread = null;
+                        giveUp();
+                        return;
                     }
                 } catch (JSONException ex) {
                     // Give up - if we can't parse the response we can't get the
                     // event ID, so future requests aren't going to work
                     // properly
-                    thread = null;
+                    giveUp();
+                    return;
                 }
             }
         }
 
+        /**
+         * Stops polling, unless the poller has already been replaced.
+         */
+        private void giveUp() {
+            synchronized (streamingLock) {
+                if (thread == polling) {
+                    stopPolling();
+                }
+            }
+
+            if (Thread.currentThread() == polling) {
+                // Don't let the interrupt abort the final checkpoint
+                Thread.interrupted();
+            }
+        }
+
+        /**
+         * Passes each event to the listeners, in order, until streaming
+         * stops. Events published while the listeners were busy are
+         * dispatched together as one batch.
+         */
+        private void dispatch() {
+            long next = consumer.getSequence() + 1;
+
+            while (true) {
+                final long available;
+
+                try {
+                    available = consumer.waitFor(next);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+
+                if (available < 0 || thread != polling) {
+                    return;
+                }
+
+                final long startedAt = System.nanoTime();
+
+                try {
+                    for (; next <= available; next++) {
+                        if (thread != polling) {
+                            return;
+                        }
+
+                        final Event event = getEvent(consumer.get(next));
+                        fireEventReceived(event);
+
+                        if (incomplete) {
+                            // Stopped before every listener had the event, so
+                            // the next poller delivers it again
+                            return;
+                        }
+
+                        dispatched = event.getEventId();
+                        consumer.release(next);
+                    }
+                } catch (JSONException | IllegalArgumentException ex) {
+                    // Give up, as the poller would if it couldn't parse the
+                    // response, rather than skip events silently
+                    giveUp();
+                    return;
+                }
+
+                dispatchLatency.record((System.nanoTime() - startedAt) / 1000);
+            }
+        }
+
     }
 
 }
@@ -0,0 +1,285 @@
+package com.mindlinksoft.foundationapi.demo.streaming;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * A subscription to part of an agent's event stream: the events in a set of
+ * channels, of a set of types and, for messages, matching a regular
+ * expression. Each subscription has its own listener and queue.
+ * <p>
+ * However many subscriptions an agent has, it polls for events once, with a
+ * filter merging all of them, and passes each event received to the
+ * subscriptions it matches.
+ *
+ * @see StreamingCollaborationAgent#subscribe(EventListener, String[], String,
+ * EventType...)
+ */
+public class Subscription {
+
+    /** The channels, in the order given (empty for all channels). */
+    private final String[] channels;
+
+    /** The event types, in the order given (empty for all types). */
+    private final EventType[] types;
+
+    /** The channels, for matching. */
+    private final Set<String> channelSet;
+
+    /** The event types, for matching. */
+    private final Set<EventType> typeSet;
+
+    /** The regular expression messages must match (empty for none). */
+    private final String regex;
+
+    /** The compiled regular expression (or <code>null</code> until needed). */
+    private volatile Pattern pattern;
+
+    /** The queue events are passed to the listener through. */
+    private final ListenerQueue queue;
+
+    /**
+     * Creates a new {@link Subscription} which only describes a filter, with
+     * no listener of its own.
+     *
+     * @param channels The channels to receive events for
+     * (may be <code>null</code> for all channels)
+     * @param regex The regular expression to apply to messages
+     * (may be <code>null</code>)
+     * @param types The types of events to receive (empty for all types)
+     */
+    Subscription(final String[] channels, final String regex,
+            final EventType[] types) {
+        this(null, channels, regex, types, null, 0, null, null);
+    }
+
+    /**
+     * Creates a new {@link Subscription} and starts its listener's queue.
+     *
+     * @param agent The agent the events are received by, or
+     * <code>null</code> if the subscription only describes a filter
+     * @param channels The channels to receive events for
+     * (may be <code>null</code> for all channels)
+     * @param regex The regular expression to apply to messages
+     * (may be <code>null</code>)
+     * @param types The types of events to receive (empty for all types)
+     * @param listener The listener to pass events to
+     * @param capacity The number of events which may wait for the listener
+     * @param policy What happens to events which arrive while the listener's
+     * queue is full
+     * @param keyFunction Gets the keys events are coalesced on under
+     * {@link OverflowPolicy#COALESCE}
+     * @throws PatternSyntaxException If the regular expression is malformed
+     */
+    Subscription(final StreamingCollaborationAgent agent,
+            final String[] channels, final String regex,
+            final EventType[] types, final EventListener listener,
+            final int capacity, final OverflowPolicy policy,
+            final ListenerQueue.KeyFunction keyFunction) {
+        this.channels = channels == null ? new String[0] : channels.clone();
+        this.types = types == null ? new EventType[0] : types.clone();
+        this.channelSet = Collections.unmodifiableSet(
+                new LinkedHashSet<String>(Arrays.asList(this.channels)));
+        this.typeSet = this.types.length == 0
+                ? Collections.<EventType>emptySet()
+                : Collections.unmodifiableSet(
+                        EnumSet.copyOf(Arrays.asList(this.types)));
+        this.regex = regex == null ? "" : regex;
+
+        if (agent == null) {
+            this.queue = null;
+        } else {
+            this.pattern = this.regex.isEmpty()
+                    ? null : Pattern.compile(this.regex);
+            this.queue = new ListenerQueue(agent, listener, capacity, policy,
+                    keyFunction, this);
+        }
+    }
+
+    /**
+     * Merges filters into one which matches every event any of them does.
+     * The channels and types are the union of theirs (or all, if any of them
+     * asks for all), and the regular expression is theirs if they agree and
+     * otherwise none, leaving each filter to apply its own.
+     *
+     * @param filters The filters to merge; must not be empty
+     * @return The merged filter, which is the only filter if there is one
+     */
+    static Subscription merge(final List<Subscription> filters) {
+        if (filters.size() == 1) {
+            return filters.get(0);
+        }
+
+        final Set<String> channels = new TreeSet<String>();
+        final Set<EventType> types = EnumSet.noneOf(EventType.class);
+        boolean allChannels = false;
+        boolean allTypes = false;
+        String regex = filters.get(0).regex;
+
+        for (Subscription filter : filters) {
+            allChannels |= filter.channelSet.isEmpty();
+            allTypes |= filter.typeSet.isEmpty();
+            channels.addAll(filter.channelSet);
+            types.addAll(filter.typeSet);
+
+            if (!regex.equals(filter.regex)) {
+                regex = "";
+            }
+        }
+
+        return new Subscription(
+                allChannels ? null : channels.toArray(new String[0]), regex,
+                allTypes ? null : types.toArray(new EventType[0]));
+    }
+
+    /**
+     * Determines whether an event is for this subscription. Only the parts of
+     * the filter the event wasn't already polled with are checked, so a
+     * subscription served by a poll of its own relies entirely on the
+     * server's filtering.
+     *
+     * @param event The event
+     * @param upstream The filter the event was polled with, or
+     * <code>null</code> to check the whole filter
+     * @return <code>true</code> if the event should be passed to the listener
+     */
+    boolean matches(final Event event, final Subscription upstream) {
+        final EventType type;
+        final String channelId;
+
+        if (event instanceof MessageEvent) {
+            type = EventType.MESSAGE;
+            channelId = ((MessageEvent) event).getChannelId();
+        } else if (event instanceof ChannelStateEvent) {
+            type = EventType.CHANNEL_STATE;
+            channelId = ((ChannelStateEvent) event).getChannelId();
+        } else {
+            type = EventType.METADATA;
+            channelId = null;
+        }
+
+        if (!typeSet.isEmpty() && (upstream == null
+                || !typeSet.equals(upstream.typeSet))
+                && !typeSet.contains(type)) {
+            return false;
+        }
+
+        if (channelId != null && !channelSet.isEmpty() && (upstream == null
+                || !channelSet.equals(upstream.channelSet))
+                && !channelSet.contains(channelId)) {
+            return false;
+        }
+
+        if (type == EventType.MESSAGE && !regex.isEmpty()
+                && (upstream == null || !regex.equals(upstream.regex))) {
+            try {
+                return getPattern().matcher(
+                        ((MessageEvent) event).getContent()).find();
+            } catch (PatternSyntaxException ex) {
+                // Not a pattern Java understands, so leave it to the server
+                // and pass on everything polled
+                return true;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Determines whether another filter asks for exactly the same events.
+     *
+     * @param other The other filter
+     * @return <code>true</code> if the filters are the same
+     */
+    boolean isSameFilter(final Subscription other) {
+        return channelSet.equals(other.channelSet)
+                && typeSet.equals(other.typeSet) && regex.equals(other.regex);
+    }
+
+    /**
+     * Gets the channels, in the order given.
+     *
+     * @return The channels (empty for all channels)
+     */
+    String[] getChannelArray() {
+        return channels.clone();
+    }
+
+    /**
+     * Gets the event types, in the order given.
+     *
+     * @return The event types (empty for all types)
+     */
+    EventType[] getTypeArray() {
+        return types.clone();
+    }
+
+    /**
+     * Gets the channels events are received for.
+     *
+     * @return The channels, or an empty set for all channels
+     */
+    public Set<String> getChannels() {
+        return channelSet;
+    }
+
+    /**
+     * Gets the types of events received.
+     *
+     * @return The event types, or an empty set for all types
+     */
+    public Set<EventType> getTypes() {
+        return typeSet;
+    }
+
+    /**
+     * Gets the regular expression messages must match.
+     *
+     * @return The regular expression, or an empty string if there is none
+     */
+    public String getRegex() {
+        return regex;
+    }
+
+    /**
+     * Gets the queue events are passed to the listener through, which
+     * reports how well it is keeping up.
+     *
+     * @return The listener's queue
+     */
+    public ListenerQueue getListenerQueue() {
+        return queue;
+    }
+
+    /**
+     * Gets the compiled regular expression, compiling it the first time.
+     *
+     * @return The pattern
+     * @throws PatternSyntaxException If the regular expression is malformed
+     */
+    private Pattern getPattern() {
+        Pattern compiled = pattern;
+
+        if (compiled == null) {
+            compiled = Pattern.compile(regex);
+            pattern = compiled;
+        }
+
+        return compiled;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+        return "Subscription{channels=" + channelSet + ", types=" + typeSet
+                + ", regex=" + regex + '}';
+    }
+
+}
@@ -0,0 +1,253 @@
+package com.mindlinksoft.foundationapi.demo.transport;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects individual lookups made within a short window and loads them
+ * together as a batch. The first lookup of a batch starts the window; every
+ * lookup made before it closes (or before the batch reaches its maximum size)
+ * joins the batch, which is then handed to a {@link BatchFunction} in a
+ * single call. Lookups of the same key within one batch share a result.
+ * <p>
+ * Results aren't cached once a batch completes, so a lookup never returns a
+ * value older than the window. Each caller gets its own future, so one
+ * cancelling can't affect the others.
+ *
+ * @param <K> The type of the keys looked up
+ * @param <V> The type of the values loaded
+ */
+public class BatchLoader<K, V> {
+
+    /**
+     * Loads a batch of keys.
+     *
+     * @param <K> The type of the keys
+     * @param <V> The type of the values
+     */
+    public interface BatchFunction<K, V> {
+
+        /**
+         * Starts loading the values for a batch of keys. Keys may succeed or
+         * fail individually; a key missing from the result fails.
+         *
+         * @param keys The distinct keys in the batch, in the order they were
+         * first looked up
+         * @return A future for the value of each key
+         */
+        Map<K, CompletableFuture<V>> load(Set<K> keys);
+
+    }
+
+    /** Closes the windows of all loaders. */
+    private static final ScheduledThreadPoolExecutor SCHEDULER;
+
+    static {
+        SCHEDULER = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "Batch loader");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        SCHEDULER.setRemoveOnCancelPolicy(true);
+    }
+
+    /** Loads each batch. */
+    private final BatchFunction<K, V> function;
+
+    /** The time a batch waits for more lookups, in nanoseconds. */
+    private final long windowNanos;
+
+    /** The number of keys at which a batch is loaded straight away. */
+    private final int maxBatchSize;
+
+    /** The lookups waiting in the current batch, keyed on key. */
+    private Map<K, CompletableFuture<V>> pending
+            = new LinkedHashMap<K, CompletableFuture<V>>();
+
+    /** The scheduled close of the current batch's window. */
+    private ScheduledFuture<?> flush;
+
+    /** The number of lookups made. */
+    private final AtomicLong lookups = new AtomicLong();
+
+    /** The number of batches loaded. */
+    private final AtomicLong batches = new AtomicLong();
+
+    /**
+     * Creates a new {@link BatchLoader}.
+     *
+     * @param function Loads each batch
+     * @param window The time to wait for more lookups after the first of a
+     * batch
+     * @param unit The unit of the window
+     * @param maxBatchSize The number of distinct keys at which a batch is
+     * loaded without waiting for the window to close
+     */
+    public BatchLoader(final BatchFunction<K, V> function, final long window,
+            final TimeUnit unit, final int maxBatchSize) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException(
+                    "maxBatchSize must be at least 1");
+        }
+
+        this.function = function;
+        this.windowNanos = unit.toNanos(window);
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Looks up a key, joining the current batch or starting a new one.
+     *
+     * @param key The key to look up
+     * @return A future which completes with the key's value
+     */
+    public CompletableFuture<V> load(final K key) {
+        final CompletableFuture<V> result;
+        Map<K, CompletableFuture<V>> full = null;
+
+        lookups.incrementAndGet();
+
+        synchronized (this) {
+            CompletableFuture<V> existing = pending.get(key);
+
+            if (existing == null) {
+                existing = new CompletableFuture<V>();
+                pending.put(key, existing);
+
+                if (pending.size() >= maxBatchSize) {
+                    full = takeBatch();
+                } else if (flush == null) {
+                    flush = SCHEDULER.schedule(this::flush, windowNanos,
+                            TimeUnit.NANOSECONDS);
+                }
+            }
+
+            result = existing;
+        }
+
+        if (full != null) {
+            dispatch(full);
+        }
+
+        return result.thenApply(value -> value);
+    }
+
+    /**
+     * Loads the current batch straight away, without waiting for its window
+     * to close.
+     */
+    public void flush() {
+        final Map<K, CompletableFuture<V>> batch;
+
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                return;
+            }
+
+            batch = takeBatch();
+        }
+
+        dispatch(batch);
+    }
+
+    /**
+     * Gets the number of lookups made.
+     *
+     * @return The number of lookups
+     */
+    public long getLookups() {
+        return lookups.get();
+    }
+
+    /**
+     * Gets the number of batches loaded. Each lookup beyond one per batch
+     * was a request saved.
+     *
+     * @return The number of batches
+     */
+    public long getBatches() {
+        return batches.get();
+    }
+
+    /**
+     * Removes the current batch, so that later lookups start a new one. The
+     * caller must hold the loader's lock.
+     *
+     * @return The lookups in the batch
+     */
+    private Map<K, CompletableFuture<V>> takeBatch() {
+        final Map<K, CompletableFuture<V>> batch = pending;
+        pending = new LinkedHashMap<K, CompletableFuture<V>>();
+
+        if (flush != null) {
+            flush.cancel(false);
+            flush = null;
+        }
+
+        return batch;
+    }
+
+    /**
+     * Hands a batch to the batch function and completes each lookup with its
+     * key's result.
+     *
+     * @param batch The lookups in the batch
+     */
+    private void dispatch(final Map<K, CompletableFuture<V>> batch) {
+        batches.incrementAndGet();
+
+        final Map<K, CompletableFuture<V>> results;
+
+        try {
+            results = function.load(Collections.unmodifiableSet(
+                    batch.keySet()));
+        } catch (RuntimeException ex) {
+            for (CompletableFuture<V> lookup : batch.values()) {
+                lookup.completeExceptionally(ex);
+            }
+
+            return;
+        }
+
+        for (Map.Entry<K, CompletableFuture<V>> lookup : batch.entrySet()) {
+            final CompletableFuture<V> value = results.get(lookup.getKey());
+
+            if (value == null) {
+                lookup.getValue().completeExceptionally(new IOException(
+                        "No result loaded for " + lookup.getKey()));
+                continue;
+            }
+
+            value.whenComplete((loaded, ex) -> {
+                if (ex == null) {
+                    lookup.getValue().complete(loaded);
+                } else {
+                    lookup.getValue().completeExceptionally(
+                            ex instanceof CompletionException
+                            && ex.getCause() != null ? ex.getCause() : ex);
+                }
+            });
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public synchronized String toString() {
+        return "BatchLoader{lookups=" + lookups + ", batches=" + batches
+                + ", pending=" + pending.size() + '}';
+    }
+
+}
@@ -0,0 +1,933 @@
+package com.mindlinksoft.foundationapi.demo.transport;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpConnectTimeoutException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.mindlinksoft.foundationapi.demo.resilience.Deadline;
+import com.mindlinksoft.foundationapi.demo.resilience.FairQueue;
+import com.mindlinksoft.foundationapi.demo.resilience.Priority;
+
+/**
+ * A pool of persistent (keep-alive) HTTP connections to the Foundation API.
+ * A single pool is normally shared by every agent in the process, so that
+ * collaboration, provisioning and management requests all reuse the same
+ * sockets rather than paying connection setup on each request.
+ * <p>
+ * The number of connections open to any one host is bounded: requests beyond
+ * that limit wait for a connection to be released, and are handed one in
+ * order of their {@link Priority}. Every response is fully
+ * drained before its connection is released - including error responses - so
+ * that the JDK keep-alive cache can hand the socket to the next request.
+ * That cache holds up to <code>http.maxConnections</code> idle sockets per
+ * host (five unless configured) and evicts those which stay idle for longer
+ * than the server's advertised keep-alive timeout, or five seconds if the
+ * server doesn't advertise one. The property is shared by everything in the
+ * process which uses {@link HttpURLConnection}, so the pool leaves it alone:
+ * an application using more connections per host than the cache holds should
+ * raise it to the pool's limit at startup, or the connections beyond the
+ * cache's size are closed and reopened instead of being reused.
+ * <p>
+ * Blocking requests are sent with {@link HttpURLConnection}; asynchronous
+ * requests use a non-blocking {@link HttpClient} so that queued and in-flight
+ * requests don't each occupy a thread. Both count towards the same per-host
+ * connection limit.
+ * <p>
+ * Responses are requested with <code>Accept-Encoding: gzip, deflate</code>
+ * and decompressed as they are read, so compressed bodies are never buffered
+ * in full. Request bodies can optionally be gzipped too, once they exceed
+ * a configurable size (see {@link #setRequestCompressionThreshold(int)}).
+ * <p>
+ * Every request is sent with a connect and a read timeout, so a server which
+ * stops responding can't hold a connection (or a thread) indefinitely. A
+ * request with a {@link Deadline} is further limited to the time remaining
+ * until it, including any time spent waiting for a connection, and is
+ * aborted if the deadline is cancelled.
+ */
+public class ConnectionPool implements Transport {
+
+    /**
+     * The default maximum number of connections to open to one host. Against
+     * a local stand-in server (see <code>ConnectionPoolBenchmark</code>),
+     * 32 threads sharing a pool sent 32% more requests a second with 16
+     * connections than with 8, but only 7% more again with 32.
+     */
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 16;
+
+    /** The default time allowed to establish a connection. */
+    public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 10000;
+
+    /**
+     * The default longest wait for data from the server: longer than any
+     * long poll is held open.
+     */
+    public static final int DEFAULT_READ_TIMEOUT_MILLIS = 300000;
+
+    /** The system property controlling the size of the keep-alive cache. */
+    private static final String IDLE_CONNECTIONS_PROPERTY
+            = "http.maxConnections";
+
+    /** The size of the keep-alive cache if the property isn't set. */
+    private static final int DEFAULT_IDLE_CONNECTIONS = 5;
+
+    /**
+     * Runs the asynchronous client's work and the pool's own background
+     * tasks for all pools; threads are created as needed and exit once idle.
+     */
+    private static final ExecutorService EXECUTOR;
+
+    static {
+        EXECUTOR = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60,
+                TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable,
+                        "Connection pool worker");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /** The pool used by agents that aren't given one explicitly. */
+    private static ConnectionPool defaultPool;
+
+    /** The maximum number of connections to open to one host. */
+    private final int maxConnectionsPerHost;
+
+    /** Connection accounting for each host, keyed on scheme/host/port. */
+    private final ConcurrentMap<String, Host> hosts
+            = new ConcurrentHashMap<String, Host>();
+
+    /** The non-blocking client used for asynchronous requests. */
+    private HttpClient client;
+
+    /** The total number of requests sent through the pool. */
+    private final AtomicLong requests = new AtomicLong();
+
+    /** The number of requests which had to wait for a connection. */
+    private final AtomicLong waits = new AtomicLong();
+
+    /** The total time requests have spent waiting for a connection. */
+    private final AtomicLong waitNanos = new AtomicLong();
+
+    /** The number of request body bytes sent, after compression. */
+    private final AtomicLong bytesSent = new AtomicLong();
+
+    /** The number of request body bytes sent, before compression. */
+    private final AtomicLong uncompressedBytesSent = new AtomicLong();
+
+    /** The number of response body bytes received on the wire. */
+    private final AtomicLong bytesReceived = new AtomicLong();
+
+    /** The number of response body bytes read, after decompression. */
+    private final AtomicLong bytesDecoded = new AtomicLong();
+
+    /** Whether or not to ask the server to compress responses. */
+    private volatile boolean responseCompression = true;
+
+    /** The size above which request bodies are gzipped (-1 to disable). */
+    private volatile int requestCompressionThreshold = -1;
+
+    /** The time allowed to establish a connection (0 for no limit). */
+    private volatile int connectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+
+    /** The longest wait for data from the server (0 for no limit). */
+    private volatile int readTimeoutMillis = DEFAULT_READ_TIMEOUT_MILLIS;
+
+    /**
+     * Creates a new {@link ConnectionPool} with the default maximum number of
+     * connections per host.
+     */
+    public ConnectionPool() {
+        this(DEFAULT_MAX_CONNECTIONS_PER_HOST);
+    }
+
+    /**
+     * Creates a new {@link ConnectionPool}.
+     *
+     * @param maxConnectionsPerHost The maximum number of connections to open
+     * to any one host
+     */
+    public ConnectionPool(final int maxConnectionsPerHost) {
+        if (maxConnectionsPerHost < 1) {
+            throw new IllegalArgumentException(
+                    "maxConnectionsPerHost must be at least 1");
+        }
+
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+    }
+
+    /**
+     * Gets the pool shared by all agents which were not explicitly given a
+     * pool of their own.
+     *
+     * @return The default connection pool
+     */
+    public static synchronized ConnectionPool getDefault() {
+        if (defaultPool == null) {
+            defaultPool = new ConnectionPool();
+        }
+
+        return defaultPool;
+    }
+
+    /**
+     * Sends the given request over a pooled connection, waiting for a
+     * connection to become available if the host's limit has been reached.
+     * The connection remains leased until the returned response is closed.
+     *
+     * @param request The request to send
+     * @return The response, whose body has not yet been read
+     * @throws IOException If the request could not be sent, timed out, or
+     * its deadline passed or was cancelled, or the thread was interrupted
+     * while waiting for a connection
+     */
+    @Override
+    public Response send(final Request original) throws IOException {
+        final Request request = encode(original);
+        final Deadline deadline = request.getDeadline();
+
+        if (deadline != null) {
+            deadline.check(describe(request));
+        }
+
+        final Host host = getHost(request.getUri());
+        host.acquire(deadline, request.getPriority());
+
+        Runnable abort = null;
+
+        try {
+            requests.incrementAndGet();
+
+            final HttpURLConnection connection = (HttpURLConnection)
+                    request.getUri().toURL().openConnection();
+            connection.setRequestMethod(request.getMethod());
+            connection.setUseCaches(false);
+            connection.setConnectTimeout(getTimeout(connectTimeoutMillis,
+                    deadline));
+            connection.setReadTimeout(getTimeout(readTimeoutMillis,
+                    deadline));
+
+            if (deadline != null) {
+                // Closing the socket wakes a thread blocked reading from it
+                abort = deadline.onCancel(new Runnable() {
+                    @Override
+                    public void run() {
+                        connection.disconnect();
+                    }
+                });
+            }
+
+            for (Map.Entry<String, String> header
+                    : request.getHeaders().entrySet()) {
+                connection.setRequestProperty(header.getKey(),
+                        header.getValue());
+            }
+
+            try {
+                connection.connect();
+            } catch (SocketTimeoutException ex) {
+                // The server never accepted the connection: report it as the
+                // asynchronous client does, so the request can fail over
+                final HttpConnectTimeoutException timeout
+                        = new HttpConnectTimeoutException(
+                        "Timed out connecting to " + request.getUri());
+                timeout.initCause(ex);
+                throw timeout;
+            }
+
+            final byte[] body = request.getBody();
+
+            if (body != null) {
+                connection.setDoOutput(true);
+                connection.setFixedLengthStreamingMode(body.length);
+
+                final OutputStream out = connection.getOutputStream();
+                out.write(body);
+                out.close();
+            }
+
+            final int status = connection.getResponseCode();
+            InputStream in = status >= 400
+                    ? connection.getErrorStream()
+                    : connection.getInputStream();
+
+            if (in == null) {
+                in = new ByteArrayInputStream(new byte[0]);
+            }
+
+            final InputStream decoded;
+
+            try {
+                decoded = decode(connection.getContentEncoding(), in);
+            } catch (IOException ex) {
+                in.close();
+                throw ex;
+            }
+
+            final Runnable deregister = abort;
+
+            return new Response(status, decoded, new Runnable() {
+                @Override
+                public void run() {
+                    if (deregister != null) {
+                        deregister.run();
+                    }
+
+                    host.release();
+                }
+            });
+        } catch (IOException | RuntimeException ex) {
+            if (abort != null) {
+                abort.run();
+            }
+
+            host.release();
+
+            if (deadline != null && ex instanceof IOException) {
+                final IOException failure = deadline.getFailure(
+                        describe(request));
+
+                if (failure != null) {
+                    failure.initCause(ex);
+                    throw failure;
+                }
+            }
+
+            throw ex;
+        }
+    }
+
+    /**
+     * Sends the given request over a pooled connection without blocking the
+     * calling thread. If the host's connection limit has been reached, the
+     * request is queued (without occupying a thread) until a connection is
+     * released. The body of the returned response has already been received
+     * in full, so its connection is released as soon as the future completes.
+     *
+     * @param request The request to send
+     * @return A future which completes with the response, or completes
+     * exceptionally with an {@link IOException} if the request fails, times
+     * out, or its deadline passes or is cancelled
+     */
+    @Override
+    public CompletableFuture<Response> sendAsync(final Request original) {
+        final Request request = encode(original);
+        final Deadline deadline = request.getDeadline();
+
+        if (deadline != null) {
+            final IOException failure = deadline.getFailure(
+                    describe(request));
+
+            if (failure != null) {
+                return CompletableFuture.failedFuture(failure);
+            }
+        }
+
+        final Host host = getHost(request.getUri());
+        final HttpRequest.Builder builder = HttpRequest.newBuilder(
+                request.getUri());
+        final int timeout = getTimeout(readTimeoutMillis, deadline);
+
+        if (timeout > 0) {
+            builder.timeout(Duration.ofMillis(timeout));
+        }
+
+        for (Map.Entry<String, String> header
+                : request.getHeaders().entrySet()) {
+            builder.header(header.getKey(), header.getValue());
+        }
+
+        builder.method(request.getMethod(), request.getBody() == null
+                ? HttpRequest.BodyPublishers.noBody()
+                : HttpRequest.BodyPublishers.ofByteArray(request.getBody()));
+
+        final HttpRequest httpRequest = builder.build();
+
+        final CompletableFuture<Response> response = host.acquireAsync(
+                deadline, request.getPriority()).thenCompose(lease -> {
+            requests.incrementAndGet();
+
+            final CompletableFuture<HttpResponse<byte[]>> future;
+
+            try {
+                future = getClient().sendAsync(httpRequest,
+                        HttpResponse.BodyHandlers.ofByteArray());
+            } catch (RuntimeException ex) {
+                host.release();
+                throw ex;
+            }
+
+            final Runnable abort = deadline == null ? null
+                    : deadline.onCancel(() -> future.cancel(true));
+
+            return future.whenComplete((received, ex) -> {
+                if (abort != null) {
+                    abort.run();
+                }
+
+                host.release();
+            });
+        }).thenApply(received -> {
+            try {
+                return new Response(received.statusCode(), decode(
+                        received.headers().firstValue("Content-Encoding")
+                        .orElse(null),
+                        new ByteArrayInputStream(received.body())), null);
+            } catch (IOException ex) {
+                throw new CompletionException(ex);
+            }
+        });
+
+        if (deadline == null) {
+            return response;
+        }
+
+        // Report requests abandoned at the deadline as such, rather than as
+        // the timeout or cancellation which abandoned them
+        return response.handle((received, ex) -> {
+            if (ex == null) {
+                return CompletableFuture.completedFuture(received);
+            }
+
+            final Throwable cause = ex instanceof CompletionException
+                    && ex.getCause() != null ? ex.getCause() : ex;
+            final IOException failure = deadline.getFailure(
+                    describe(request));
+
+            if (failure != null) {
+                failure.initCause(cause);
+                return CompletableFuture.<Response>failedFuture(failure);
+            }
+
+            return CompletableFuture.<Response>failedFuture(cause);
+        }).thenCompose(future -> future);
+    }
+
+    /**
+     * Gets the timeout to apply to an operation of a request.
+     *
+     * @param limit The pool's timeout for the operation in milliseconds, or 0
+     * for no limit
+     * @param deadline The request's deadline (may be <code>null</code>)
+     * @return The timeout in milliseconds: the lower of the limit and the
+     * time remaining until the deadline, or 0 for no limit
+     */
+    private static int getTimeout(final int limit, final Deadline deadline) {
+        if (deadline == null || !deadline.isBounded()) {
+            return limit;
+        }
+
+        final long remaining = Math.max(1, deadline.getRemainingMillis());
+        return (int) (limit == 0 ? Math.min(remaining, Integer.MAX_VALUE)
+                : Math.min(limit, remaining));
+    }
+
+    /**
+     * Describes a request, for the exception thrown if it is abandoned.
+     *
+     * @param request The request
+     * @return The description
+     */
+    private static String describe(final Request request) {
+        return "requesting " + request.getUri();
+    }
+
+    /**
+     * Opens connections to a host ahead of the first real requests, so that
+     * they don't pay for connection setup (and the TLS handshake) after a
+     * restart. The given number of concurrent <code>GET</code> requests is
+     * sent both as blocking and as asynchronous requests, since the two kinds
+     * of request keep separate idle connections; each response is drained so
+     * its connection stays open for reuse. Connections which the host closes
+     * before they are used are simply reopened.
+     *
+     * @param uri An address on the host which answers <code>GET</code>
+     * cheaply, whatever its status
+     * @param connections The number of connections to open, up to the
+     * per-host limit
+     * @throws IOException If no connection could be opened, or the thread was
+     * interrupted while waiting for them
+     */
+    public void preconnect(final URI uri, final int connections)
+            throws IOException {
+        final int count = Math.min(connections, maxConnectionsPerHost);
+        final Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Accept", "application/json");
+
+        final Request request = new Request("GET", uri, headers, null);
+        final List<CompletableFuture<Void>> warmUps
+                = new ArrayList<CompletableFuture<Void>>(2 * count);
+
+        for (int i = 0; i < count; i++) {
+            warmUps.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return send(request);
+                } catch (IOException ex) {
+                    throw new CompletionException(ex);
+                }
+            }, EXECUTOR).thenAccept(ConnectionPool::drain));
+            warmUps.add(sendAsync(request).thenAccept(ConnectionPool::drain));
+        }
+
+        Throwable failure = null;
+        boolean connected = false;
+
+        for (CompletableFuture<Void> warmUp : warmUps) {
+            try {
+                warmUp.get();
+                connected = true;
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(
+                        "Interrupted while opening connections");
+            } catch (ExecutionException ex) {
+                failure = ex.getCause();
+            }
+        }
+
+        if (!connected && failure != null) {
+            throw failure instanceof IOException ? (IOException) failure
+                    : new IOException("Unable to open connections to "
+                            + uri.getHost(), failure);
+        }
+    }
+
+    /**
+     * Closes a warm-up response, draining it so its connection is kept.
+     *
+     * @param response The response
+     */
+    private static void drain(final Response response) {
+        try {
+            response.close();
+        } catch (IOException ex) {
+            throw new CompletionException(ex);
+        }
+    }
+
+    /**
+     * Prepares a request for sending: advertises the content codings the pool
+     * can decode, and compresses the body if it is large enough.
+     *
+     * @param request The request as built by the caller
+     * @return The request to send
+     */
+    private Request encode(final Request request) {
+        final Map<String, String> headers = new LinkedHashMap<String, String>(
+                request.getHeaders());
+        byte[] body = request.getBody();
+
+        if (responseCompression && !containsHeader(headers,
+                "Accept-Encoding")) {
+            headers.put("Accept-Encoding", ContentEncoding.ACCEPTED_ENCODINGS);
+        }
+
+        if (body != null) {
+            uncompressedBytesSent.addAndGet(body.length);
+
+            final int threshold = requestCompressionThreshold;
+
+            if (threshold >= 0 && body.length > threshold
+                    && !containsHeader(headers, "Content-Encoding")) {
+                body = ContentEncoding.gzip(body);
+                headers.put("Content-Encoding", "gzip");
+            }
+
+            bytesSent.addAndGet(body.length);
+        }
+
+        return new Request(request.getMethod(), request.getUri(), headers,
+                body, request.getDeadline(), request.getPriority());
+    }
+
+    /**
+     * Wraps a response body so that it is decompressed (if necessary) and
+     * counted as it is read.
+     *
+     * @param encoding The response's <code>Content-Encoding</code> header
+     * @param in The body as received on the wire
+     * @return A stream of the decoded body
+     * @throws IOException If the body's encoding isn't supported
+     */
+    private InputStream decode(final String encoding, final InputStream in)
+            throws IOException {
+        if (ContentEncoding.isIdentity(encoding)) {
+            return new CountingInputStream(in, bytesReceived,
+                    bytesDecoded);
+        }
+
+        return new CountingInputStream(ContentEncoding.decode(
+                encoding, new CountingInputStream(in,
+                bytesReceived)), bytesDecoded);
+    }
+
+    /**
+     * Determines whether the given headers contain the named header, ignoring
+     * case.
+     *
+     * @param headers The headers to search
+     * @param name The name of the header
+     * @return <code>true</code> if the header is present
+     */
+    private static boolean containsHeader(final Map<String, String> headers,
+            final String name) {
+        for (String header : headers.keySet()) {
+            if (header.equalsIgnoreCase(name)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Gets the non-blocking client used for asynchronous requests, creating
+     * it on first use.
+     *
+     * @return The pool's asynchronous HTTP client
+     */
+    private synchronized HttpClient getClient() {
+        if (client == null) {
+            final HttpClient.Builder builder = HttpClient.newBuilder()
+                    .version(HttpClient.Version.HTTP_1_1)
+                    .followRedirects(HttpClient.Redirect.NORMAL)
+                    .executor(EXECUTOR);
+
+            if (connectTimeoutMillis > 0) {
+                builder.connectTimeout(Duration.ofMillis(connectTimeoutMillis));
+            }
+
+            client = builder.build();
+        }
+
+        return client;
+    }
+
+    /**
+     * Gets the maximum number of connections this pool will open to any one
+     * host.
+     *
+     * @return The per-host connection limit
+     */
+    public int getMaxConnectionsPerHost() {
+        return maxConnectionsPerHost;
+    }
+
+    /**
+     * Gets the time allowed to establish a connection.
+     *
+     * @return The connect timeout in milliseconds, or 0 for no limit
+     */
+    public int getConnectTimeoutMillis() {
+        return connectTimeoutMillis;
+    }
+
+    /**
+     * Sets the time allowed to establish a connection. Defaults to
+     * {@link #DEFAULT_CONNECT_TIMEOUT_MILLIS}. Asynchronous requests pick up
+     * the new timeout on their next connection, blocking requests
+     * immediately.
+     *
+     * @param timeout The connect timeout, or 0 for no limit
+     * @param unit The unit of the timeout
+     */
+    public void setConnectTimeout(final long timeout, final TimeUnit unit) {
+        connectTimeoutMillis = (int) Math.min(unit.toMillis(timeout),
+                Integer.MAX_VALUE);
+
+        synchronized (this) {
+            client = null;
+        }
+    }
+
+    /**
+     * Gets the longest the pool waits for data from the server.
+     *
+     * @return The read timeout in milliseconds, or 0 for no limit
+     */
+    public int getReadTimeoutMillis() {
+        return readTimeoutMillis;
+    }
+
+    /**
+     * Sets the longest the pool waits for data from the server. For blocking
+     * requests this bounds each read from the connection; for asynchronous
+     * requests it bounds the wait for the response. Defaults to
+     * {@link #DEFAULT_READ_TIMEOUT_MILLIS}, which is long enough for a long
+     * poll of the Events method: requests expected to complete quickly
+     * should be given a {@link Deadline}.
+     *
+     * @param timeout The read timeout, or 0 for no limit
+     * @param unit The unit of the timeout
+     */
+    public void setReadTimeout(final long timeout, final TimeUnit unit) {
+        readTimeoutMillis = (int) Math.min(unit.toMillis(timeout),
+                Integer.MAX_VALUE);
+    }
+
+    /**
+     * Sets whether or not the server is asked to compress responses. Enabled
+     * by default.
+     *
+     * @param enabled <code>true</code> to send
+     * <code>Accept-Encoding: gzip, deflate</code> with each request
+     */
+    public void setResponseCompression(final boolean enabled) {
+        this.responseCompression = enabled;
+    }
+
+    /**
+     * Sets the size above which request bodies are gzipped before they are
+     * sent. Disabled by default, as not every server accepts compressed
+     * requests; enable it for large provisioning updates where the server
+     * is known to.
+     *
+     * @param bytes The body size in bytes above which to compress, or -1 to
+     * never compress request bodies
+     */
+    public void setRequestCompressionThreshold(final int bytes) {
+        this.requestCompressionThreshold = bytes;
+    }
+
+    /**
+     * Takes a snapshot of the pool's current statistics.
+     *
+     * @return The pool's statistics
+     */
+    public PoolStatistics getStatistics() {
+        final Map<String, Integer> leased = new HashMap<String, Integer>();
+        int peak = 0;
+
+        for (Map.Entry<String, Host> entry : hosts.entrySet()) {
+            leased.put(entry.getKey(), entry.getValue().getLeased());
+            peak = Math.max(peak, entry.getValue().getPeakLeased());
+        }
+
+        return new PoolStatistics(maxConnectionsPerHost,
+                Integer.getInteger(IDLE_CONNECTIONS_PROPERTY,
+                DEFAULT_IDLE_CONNECTIONS), leased, peak, requests.get(),
+                waits.get(), waitNanos.get() / 1000000L, bytesSent.get(),
+                uncompressedBytesSent.get(), bytesReceived.get(),
+                bytesDecoded.get());
+    }
+
+    /**
+     * Gets the accounting entry for the host the given URI refers to.
+     *
+     * @param uri The URI being requested
+     * @return The corresponding host entry
+     */
+    private Host getHost(final URI uri) {
+        final String key = uri.getScheme() + "://" + uri.getHost() + ":"
+                + uri.getPort();
+        Host host = hosts.get(key);
+
+        if (host == null) {
+            final Host created = new Host();
+            host = hosts.putIfAbsent(key, created);
+
+            if (host == null) {
+                host = created;
+            }
+        }
+
+        return host;
+    }
+
+    /**
+     * Tracks the connections leased to a single host. Leases are granted by
+     * weighted fair queueing between priorities (see {@link FairQueue}), and
+     * in the order they were requested within a priority, whether the
+     * requester is waiting on a thread or on a future.
+     */
+    private class Host {
+
+        /** The number of connections currently leased. */
+        private int leased;
+
+        /** The highest number of connections leased at once. */
+        private int peak;
+
+        /** Requests waiting for a connection to be released. */
+        private final FairQueue<CompletableFuture<Void>> waiters
+                = new FairQueue<CompletableFuture<Void>>();
+
+        /**
+         * Leases a connection, blocking until one is released if necessary.
+         *
+         * @param deadline The deadline to give up waiting at (may be
+         * <code>null</code>)
+         * @param priority The priority of the request
+         * @throws InterruptedIOException If interrupted while waiting, or the
+         * deadline passes or is cancelled
+         */
+        public void acquire(final Deadline deadline, final Priority priority)
+                throws InterruptedIOException {
+            final CompletableFuture<Void> lease = acquireAsync(priority);
+
+            if (lease.isDone()) {
+                return;
+            }
+
+            try {
+                if (deadline == null) {
+                    lease.get();
+                } else {
+                    deadline.bound(lease, "waiting for a connection").get();
+                }
+            } catch (InterruptedException ex) {
+                if (!lease.cancel(false)) {
+                    // The connection was handed to us as we were interrupted
+                    release();
+                }
+
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(
+                        "Interrupted waiting for a connection");
+            } catch (ExecutionException ex) {
+                if (!(ex.getCause() instanceof InterruptedIOException)) {
+                    throw new IllegalStateException(ex);
+                }
+
+                // The deadline ended the wait
+                if (!lease.cancel(false)) {
+                    release();
+                }
+
+                throw (InterruptedIOException) ex.getCause();
+            }
+        }
+
+        /**
+         * Leases a connection without blocking, giving up if the deadline
+         * passes or is cancelled first.
+         *
+         * @param deadline The deadline to give up waiting at (may be
+         * <code>null</code>)
+         * @param priority The priority of the request
+         * @return A future which completes when the lease is granted
+         */
+        public CompletableFuture<Void> acquireAsync(final Deadline deadline,
+                final Priority priority) {
+            final CompletableFuture<Void> lease = acquireAsync(priority);
+
+            if (deadline == null || lease.isDone()) {
+                return lease;
+            }
+
+            return deadline.bound(lease, "waiting for a connection")
+                    .whenComplete((ignored, ex) -> {
+                if (ex != null && !lease.cancel(false)) {
+                    // The connection was leased as the deadline ended
+                    release();
+                }
+            });
+        }
+
+        /**
+         * Leases a connection without blocking. The returned future completes
+         * once a connection has been leased to the caller; if it is cancelled
+         * before then, no connection is leased.
+         *
+         * @param priority The priority of the request
+         * @return A future which completes when the lease is granted
+         */
+        public CompletableFuture<Void> acquireAsync(final Priority priority) {
+            synchronized (this) {
+                if (leased < priority.getCapacity(maxConnectionsPerHost)
+                        && !waiters.hasEligible(leased,
+                        maxConnectionsPerHost)) {
+                    leased++;
+                    peak = Math.max(peak, leased);
+                    return CompletableFuture.completedFuture(null);
+                }
+
+                waits.incrementAndGet();
+
+                final long start = System.nanoTime();
+                final CompletableFuture<Void> lease
+                        = new CompletableFuture<Void>();
+                lease.thenRun(new Runnable() {
+                    @Override
+                    public void run() {
+                        waitNanos.addAndGet(System.nanoTime() - start);
+                    }
+                });
+                waiters.add(priority, lease);
+                return lease;
+            }
+        }
+
+        /**
+         * Releases a previously leased connection, handing it directly to the
+         * next waiting request if there is one.
+         */
+        public void release() {
+            while (true) {
+                final CompletableFuture<Void> next;
+
+                synchronized (this) {
+                    next = waiters.poll(leased - 1, maxConnectionsPerHost);
+
+                    if (next == null) {
+                        leased--;
+                        return;
+                    }
+                }
+
+                if (next.complete(null)) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Gets the number of connections currently leased.
+         *
+         * @return The number of leased connections
+         */
+        public synchronized int getLeased() {
+            return leased;
+        }
+
+        /**
+         * Gets the highest number of connections leased at once.
+         *
+         * @return The peak number of leased connections
+         */
+        public synchronized int getPeakLeased() {
+            return peak;
+        }
+
+    }
+
+}
@@ -0,0 +1,133 @@
+package com.mindlinksoft.foundationapi.demo.transport;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Handles the HTTP content codings supported by the transport: responses are
+ * decompressed as they are read, and large request bodies may be compressed
+ * before they are sent.
+ */
+public final class ContentEncoding {
+
+    /** The value sent in the <code>Accept-Encoding</code> header. */
+    public static final String ACCEPTED_ENCODINGS = "gzip, deflate";
+
+    /** The size of the buffers used when inflating response bodies. */
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * Prevents instantiation of {@link ContentEncoding}.
+     */
+    private ContentEncoding() {
+    }
+
+    /**
+     * Determines whether the given content coding leaves the body unchanged.
+     *
+     * @param encoding The value of a <code>Content-Encoding</code> header (may
+     * be <code>null</code>)
+     * @return <code>true</code> if the body is not compressed
+     */
+    public static boolean isIdentity(final String encoding) {
+        return encoding == null || encoding.trim().isEmpty()
+                || encoding.trim().equalsIgnoreCase("identity");
+    }
+
+    /**
+     * Wraps a response body so that it is decompressed as it is read.
+     *
+     * @param encoding The value of the response's
+     * <code>Content-Encoding</code> header (may be <code>null</code>)
+     * @param in The body as received on the wire
+     * @return A stream of the decoded body
+     * @throws IOException If the encoding isn't supported, or the compressed
+     * stream's header can't be read
+     */
+    public static InputStream decode(final String encoding,
+            final InputStream in) throws IOException {
+        if (isIdentity(encoding)) {
+            return in;
+        }
+
+        final String coding = encoding.trim().toLowerCase();
+        final boolean gzip = coding.equals("gzip") || coding.equals("x-gzip");
+
+        if (!gzip && !coding.equals("deflate")) {
+            throw new IOException("Unsupported content encoding: " + encoding);
+        }
+
+        // Peek at the start of the body: some servers send an empty body
+        // despite the header, and some send raw DEFLATE data rather than the
+        // zlib-wrapped form the "deflate" coding calls for.
+        final PushbackInputStream peek = new PushbackInputStream(in, 2);
+        final byte[] header = new byte[2];
+        int length = 0;
+        int read;
+
+        while (length < 2
+                && (read = peek.read(header, length, 2 - length)) != -1) {
+            length += read;
+        }
+
+        if (length == 0) {
+            return peek;
+        }
+
+        peek.unread(header, 0, length);
+
+        if (gzip) {
+            return new GZIPInputStream(peek, BUFFER_SIZE);
+        }
+
+        final boolean zlib = length == 2 && (header[0] & 0x0F) == 8
+                && (((header[0] & 0xFF) << 8) | (header[1] & 0xFF)) % 31 == 0;
+        return new InflaterInputStream(peek, new Inflater(!zlib), BUFFER_SIZE);
+    }
+
+    /**
+     * Decodes a response body which has already been received in full.
+     *
+     * @param encoding The value of the response's
+     * <code>Content-Encoding</code> header (may be <code>null</code>)
+     * @param body The body as received on the wire
+     * @return A stream of the decoded body
+     * @throws IOException If the encoding isn't supported, or the body isn't
+     * validly compressed
+     */
+    public static InputStream decode(final String encoding, final byte[] body)
+            throws IOException {
+        return decode(encoding, new ByteArrayInputStream(body));
+    }
+
+    /**
+     * Compresses a request body with gzip.
+     *
+     * @param body The body to compress
+     * @return The compressed body
+     */
+    public static byte[] gzip(final byte[] body) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(
+                Math.max(64, body.length / 4));
+
+        try {
+            final GZIPOutputStream gzip = new GZIPOutputStream(out,
+                    BUFFER_SIZE);
+            gzip.write(body);
+            gzip.close();
+        } catch (IOException ex) {
+            // Writing to memory can't fail
+            throw new IllegalStateException(ex);
+        }
+
+        return out.toByteArray();
+    }
+
+}
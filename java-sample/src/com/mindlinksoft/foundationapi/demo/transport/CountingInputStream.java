@@ -0,0 +1,97 @@
+package com.mindlinksoft.foundationapi.demo.transport;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An input stream which counts the number of bytes read through it, adding
+ * them to any number of shared counters as well as its own total.
+ */
+public class CountingInputStream extends FilterInputStream {
+
+    /** The shared counters to add to. */
+    private final AtomicLong[] counters;
+
+    /** The number of bytes read through this stream. */
+    private long count;
+
+    /**
+     * Creates a new {@link CountingInputStream}.
+     *
+     * @param in The stream to count
+     * @param counters Shared counters to add bytes read to
+     */
+    public CountingInputStream(final InputStream in,
+            final AtomicLong... counters) {
+        super(in);
+        this.counters = counters;
+    }
+
+    /**
+     * Gets the number of bytes read through this stream.
+     *
+     * @return The byte count
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int read() throws IOException {
+        final int b = super.read();
+
+        if (b != -1) {
+            count(1);
+        }
+
+        return b;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int read(final byte[] buffer, final int offset, final int length)
+            throws IOException {
+        final int read = super.read(buffer, offset, length);
+
+        if (read > 0) {
+            count(read);
+        }
+
+        return read;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long skip(final long n) throws IOException {
+        final long skipped = super.skip(n);
+
+        if (skipped > 0) {
+            count(skipped);
+        }
+
+        return skipped;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    /**
+     * Adds to the stream's count and each of the shared counters.
+     *
+     * @param bytes The number of bytes read
+     */
+    private void count(final long bytes) {
+        count += bytes;
+
+        for (AtomicLong counter : counters) {
+            counter.addAndGet(bytes);
+        }
+    }
+
+}
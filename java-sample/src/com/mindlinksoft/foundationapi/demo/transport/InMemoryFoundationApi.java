@@ -0,0 +1,1403 @@
+package com.mindlinksoft.foundationapi.demo.transport;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import com.mindlinksoft.foundationapi.demo.resilience.Deadline;
+
+/**
+ * An in-process stand-in for the Foundation API, implementing the
+ * Authentication, Collaboration, Provisioning and Management methods used by
+ * the sample agents. Agents constructed with this transport never touch the
+ * network, so they can be exercised, load-tested and benchmarked offline.
+ * <p>
+ * The stand-in keeps its state in memory: channels and their messages,
+ * managed categories, provisioned agents and users, and the agent's
+ * metadata. Messages sent through it, and changes made with
+ * {@link #postMessage(String, String, String)},
+ * {@link #setMetaData(String, String)} and
+ * {@link #setChannelActive(String, boolean)}, raise events which are
+ * delivered to long polls of the Events method. Polls which find no events
+ * are held open without occupying a thread until an event arrives or the
+ * poll timeout elapses.
+ * <p>
+ * Requests must carry a token issued by the Tokens method, and are rejected
+ * with a 401 otherwise (see {@link #expireTokens()}). To make load tests more
+ * representative, a fixed latency can be added to every request and a
+ * fraction of requests can be failed with a 503.
+ */
+public class InMemoryFoundationApi implements Transport {
+
+    /** The default time a poll of the Events method waits for an event. */
+    public static final long DEFAULT_POLL_TIMEOUT_MILLIS = 30000;
+
+    /** The maximum number of events retained for polls to catch up on. */
+    private static final int MAX_EVENTS = 10000;
+
+    /** The suffix of the <code>__type</code> of collaboration events. */
+    private static final String COLLABORATION_SCHEMA
+            = ":http://schemas.fcg.im/foundation/v1/collaboration";
+
+    /** The areas of the API, which identify where a request's path starts. */
+    private static final Set<String> AREAS = new HashSet<String>(
+            Arrays.asList("Authentication", "Collaboration", "Provisioning",
+            "Management"));
+
+    /** The username tokens are issued to, or <code>null</code> for any. */
+    private final String username;
+
+    /** The password tokens are issued for, or <code>null</code> for any. */
+    private final String password;
+
+    /** The agent ID each issued token belongs to, keyed on token. */
+    private final Map<String, String> tokens
+            = new ConcurrentHashMap<String, String>();
+
+    /** Channels, keyed on ID. */
+    private final Map<String, FakeChannel> channels
+            = new LinkedHashMap<String, FakeChannel>();
+
+    /** Managed channel categories: names keyed on ID. */
+    private final Map<String, String> categories
+            = new LinkedHashMap<String, String>();
+
+    /** The agent's metadata. */
+    private final Map<String, String> metaData
+            = new LinkedHashMap<String, String>();
+
+    /** Provisioned agents, keyed on ID. */
+    private final Map<String, JSONObject> agents
+            = new LinkedHashMap<String, JSONObject>();
+
+    /** Provisioned users, keyed on ID. */
+    private final Map<String, JSONObject> users
+            = new LinkedHashMap<String, JSONObject>();
+
+    /** Recent events, oldest first. */
+    private final Deque<JSONObject> events = new ArrayDeque<JSONObject>();
+
+    /** Polls of the Events method waiting for a matching event. */
+    private final List<Poll> polls = new ArrayList<Poll>();
+
+    /** The ID of the next event raised. */
+    private long nextEventId = 1;
+
+    /** The numeric part of the ID of the next message or channel created. */
+    private long nextId = 1;
+
+    /** The time added to every request, in milliseconds. */
+    private volatile long latencyMillis;
+
+    /** The fraction of requests failed with a 503. */
+    private volatile double errorRate;
+
+    /** The time a poll of the Events method waits for an event. */
+    private volatile long pollTimeoutMillis = DEFAULT_POLL_TIMEOUT_MILLIS;
+
+    /** The number of requests received. */
+    private final AtomicLong requests = new AtomicLong();
+
+    /** The number of tokens issued. */
+    private final AtomicLong authentications = new AtomicLong();
+
+    /**
+     * Creates a new {@link InMemoryFoundationApi} which issues tokens for
+     * any credentials.
+     */
+    public InMemoryFoundationApi() {
+        this(null, null);
+    }
+
+    /**
+     * Creates a new {@link InMemoryFoundationApi} which only issues tokens
+     * for the given credentials.
+     *
+     * @param username The username to accept
+     * @param password The password to accept
+     */
+    public InMemoryFoundationApi(final String username,
+            final String password) {
+        this.username = username;
+        this.password = password;
+    }
+
+    /**
+     * Handles a request on the calling thread, after sleeping for the
+     * configured latency. Polls of the Events method block until an event
+     * arrives or the poll times out. The request's deadline is honoured as
+     * it would be by a real server's connection.
+     *
+     * @param request The request to handle
+     * @return The response, whose body is held in memory
+     * @throws IOException If the thread is interrupted, or the request's
+     * deadline passes or is cancelled
+     */
+    @Override
+    public Response send(final Request request) throws IOException {
+        requests.incrementAndGet();
+
+        final Deadline deadline = request.getDeadline();
+        final long latency = deadline == null ? latencyMillis
+                : Math.min(latencyMillis, deadline.getRemainingMillis());
+
+        if (latency > 0) {
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(
+                        "Interrupted sending request");
+            }
+        }
+
+        if (deadline != null) {
+            deadline.check("requesting " + request.getUri());
+        }
+
+        final CompletableFuture<Response> response = dispatch(request);
+
+        if (deadline != null) {
+            try {
+                return deadline.await(response,
+                        "requesting " + request.getUri());
+            } finally {
+                // Stop holding a poll open once nobody is waiting for it
+                response.cancel(false);
+            }
+        }
+
+        try {
+            return response.get();
+        } catch (InterruptedException ex) {
+            response.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for events");
+        } catch (ExecutionException ex) {
+            throw new IOException(ex.getCause());
+        }
+    }
+
+    /**
+     * Handles a request without blocking. The configured latency is
+     * simulated with a timer rather than a sleeping thread.
+     *
+     * @param request The request to handle
+     * @return A future which completes with the response
+     */
+    @Override
+    public CompletableFuture<Response> sendAsync(final Request request) {
+        requests.incrementAndGet();
+
+        final long latency = latencyMillis;
+        final CompletableFuture<Response> response = latency <= 0
+                ? dispatch(request)
+                : CompletableFuture.supplyAsync(() -> request,
+                        CompletableFuture.delayedExecutor(latency,
+                        TimeUnit.MILLISECONDS)).thenCompose(this::dispatch);
+        final Deadline deadline = request.getDeadline();
+
+        if (deadline == null || response.isDone()) {
+            return response;
+        }
+
+        return deadline.bound(response, "requesting " + request.getUri())
+                .whenComplete((received, ex) -> response.cancel(false));
+    }
+
+    /**
+     * Adds a channel, or renames it if it already exists.
+     *
+     * @param id The ID of the channel (e.g. <code>chat-room:abc</code>)
+     * @param name The display name of the channel
+     */
+    public synchronized void addChannel(final String id, final String name) {
+        FakeChannel channel = channels.get(id);
+
+        if (channel == null) {
+            channel = new FakeChannel(id);
+            channels.put(id, channel);
+        }
+
+        channel.name = name;
+    }
+
+    /**
+     * Adds a category for managed channels.
+     *
+     * @param id The ID of the category
+     * @param name The name of the category
+     */
+    public synchronized void addCategory(final String id, final String name) {
+        categories.put(id, name);
+    }
+
+    /**
+     * Posts a message to a channel as if another user had sent it, raising a
+     * message event.
+     *
+     * @param channelId The ID of the channel
+     * @param senderId The ID of the sender
+     * @param text The text of the message
+     * @throws IllegalArgumentException If the channel doesn't exist
+     */
+    public synchronized void postMessage(final String channelId,
+            final String senderId, final String text) {
+        final FakeChannel channel = channels.get(channelId);
+
+        if (channel == null) {
+            throw new IllegalArgumentException("Unknown channel: " + channelId);
+        }
+
+        try {
+            addMessage(channel, senderId, null, text, false);
+        } catch (JSONException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Sets a value in the agent's metadata, raising a metadata event.
+     *
+     * @param key The metadata key
+     * @param value The new value
+     */
+    public synchronized void setMetaData(final String key,
+            final String value) {
+        metaData.put(key, value);
+
+        try {
+            final JSONObject event = newEvent("MetaDataEvent");
+            event.put("Key", key);
+            event.put("Value", value);
+            raise(event);
+        } catch (JSONException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Changes whether a channel is active, raising a channel state event.
+     *
+     * @param channelId The ID of the channel
+     * @param active Whether or not the channel is active
+     * @throws IllegalArgumentException If the channel doesn't exist
+     */
+    public synchronized void setChannelActive(final String channelId,
+            final boolean active) {
+        if (!channels.containsKey(channelId)) {
+            throw new IllegalArgumentException("Unknown channel: " + channelId);
+        }
+
+        try {
+            final JSONObject event = newEvent("ChannelStateEvent");
+            event.put("ChannelId", channelId);
+            event.put("Active", active);
+            raise(event);
+        } catch (JSONException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Revokes every token issued so far, so that the next request from each
+     * agent is rejected with a 401 and it must authenticate again.
+     */
+    public void expireTokens() {
+        tokens.clear();
+    }
+
+    /**
+     * Sets the time added to every request, simulating network and server
+     * latency. Zero by default.
+     *
+     * @param latency The latency
+     * @param unit The unit of the latency
+     */
+    public void setLatency(final long latency, final TimeUnit unit) {
+        this.latencyMillis = unit.toMillis(latency);
+    }
+
+    /**
+     * Sets the fraction of requests which fail with a 503 Service
+     * Unavailable. Zero by default.
+     *
+     * @param rate The fraction of requests to fail, between 0 and 1
+     */
+    public void setErrorRate(final double rate) {
+        this.errorRate = rate;
+    }
+
+    /**
+     * Sets the time a poll of the Events method waits for an event before
+     * returning an empty array. Defaults to
+     * {@link #DEFAULT_POLL_TIMEOUT_MILLIS}.
+     *
+     * @param timeout The poll timeout
+     * @param unit The unit of the timeout
+     */
+    public void setPollTimeout(final long timeout, final TimeUnit unit) {
+        this.pollTimeoutMillis = unit.toMillis(timeout);
+    }
+
+    /**
+     * Gets the number of requests received.
+     *
+     * @return The number of requests
+     */
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * Gets the number of tokens issued.
+     *
+     * @return The number of successful authentications
+     */
+    public long getAuthenticationCount() {
+        return authentications.get();
+    }
+
+    /**
+     * Handles a request, turning any failure into an error response as a
+     * real server would.
+     *
+     * @param request The request to handle
+     * @return A future which completes with the response
+     */
+    private CompletableFuture<Response> dispatch(final Request request) {
+        final double rate = errorRate;
+
+        if (rate > 0 && ThreadLocalRandom.current().nextDouble() < rate) {
+            return respond(503, null);
+        }
+
+        try {
+            return route(request);
+        } catch (JSONException ex) {
+            return respond(400, JSONObject.quote(String.valueOf(
+                    ex.getMessage())));
+        } catch (IOException | RuntimeException ex) {
+            return respond(500, JSONObject.quote(String.valueOf(ex)));
+        }
+    }
+
+    /**
+     * Passes a request to the handler for its endpoint.
+     *
+     * @param request The request to handle
+     * @return A future which completes with the response
+     * @throws IOException If the request body can't be decoded
+     * @throws JSONException If the request body is malformed
+     */
+    private CompletableFuture<Response> route(final Request request)
+            throws IOException, JSONException {
+        final URI uri = request.getUri();
+        final List<String> path = getPath(uri.getPath());
+
+        if (path.isEmpty()) {
+            return respond(404, null);
+        }
+
+        final String method = request.getMethod();
+        final String body = getBody(request);
+
+        if ("Authentication".equals(path.get(0))) {
+            return authenticate(method, path, body);
+        }
+
+        final String agentId = getAgentId(request);
+
+        if (agentId == null) {
+            return respond(401, null);
+        }
+
+        // Identifiers sit at every other segment after the collection name,
+        // as in /Area/v1/Collection/id/Collection/id
+        final StringBuilder endpoint = new StringBuilder(method).append(' ');
+        final List<String> ids = new ArrayList<String>();
+
+        for (int i = 0; i < path.size(); i++) {
+            endpoint.append('/');
+
+            if (i >= 3 && i % 2 == 1 && !"Search".equals(path.get(i))) {
+                endpoint.append("{id}");
+                ids.add(path.get(i));
+            } else {
+                endpoint.append(path.get(i));
+            }
+        }
+
+        final Map<String, String> query = getQuery(uri.getRawQuery());
+
+        if ("GET /Collaboration/v1/Events".equals(endpoint.toString())) {
+            return poll(query);
+        }
+
+        synchronized (this) {
+            return handle(endpoint.toString(), ids, query, body, agentId);
+        }
+    }
+
+    /**
+     * Handles the Tokens method, issuing a token if the credentials are
+     * accepted.
+     *
+     * @param method The HTTP method of the request
+     * @param path The segments of the request path
+     * @param body The request body
+     * @return A future which completes with the response
+     * @throws JSONException If the request body is malformed
+     */
+    private CompletableFuture<Response> authenticate(final String method,
+            final List<String> path, final String body) throws JSONException {
+        if (!"POST".equals(method) || path.size() != 3
+                || !"Tokens".equals(path.get(2))) {
+            return respond(404, null);
+        }
+
+        final JSONObject credentials = new JSONObject(body);
+
+        if ((username != null
+                && !username.equals(credentials.optString("Username")))
+                || (password != null
+                && !password.equals(credentials.optString("Password")))) {
+            return respond(401, null);
+        }
+
+        final String token = UUID.randomUUID().toString();
+        tokens.put(token, credentials.optString("AgentId"));
+        authentications.incrementAndGet();
+        return respond(200, JSONObject.quote(token));
+    }
+
+    /**
+     * Handles a request to any endpoint other than the Tokens and Events
+     * methods. Must be called while holding the lock on this object.
+     *
+     * @param endpoint The request method and normalised path (e.g.
+     * <code>GET /Collaboration/v1/Channels/{id}</code>)
+     * @param ids The identifiers in the path, in order
+     * @param query The query parameters
+     * @param body The request body (or <code>null</code>)
+     * @param agentId The ID of the agent making the request
+     * @return A future which completes with the response
+     * @throws JSONException If the request body is malformed
+     */
+    private CompletableFuture<Response> handle(final String endpoint,
+            final List<String> ids, final Map<String, String> query,
+            final String body, final String agentId) throws JSONException {
+        switch (endpoint) {
+        case "GET /Collaboration/v1/MetaData":
+            return respond(200, getDictionary(metaData).toString());
+        case "GET /Collaboration/v1/Channels":
+            final JSONArray list = new JSONArray();
+
+            for (FakeChannel channel : channels.values()) {
+                list.put(channel.toJson());
+            }
+
+            return respond(200, list.toString());
+        case "POST /Collaboration/v1/Channels/Search":
+            return respond(200, search(new JSONObject(body)).toString());
+        case "GET /Collaboration/v1/Channels/{id}":
+            return getChannel(ids.get(0)) == null ? respond(404, null)
+                    : respond(200, getChannel(ids.get(0)).toJson().toString());
+        case "GET /Collaboration/v1/Channels/{id}/State":
+            return getChannel(ids.get(0)) == null ? respond(404, null)
+                    : respond(200, getChannel(ids.get(0)).toStateJson()
+                    .toString());
+        case "GET /Collaboration/v1/Channels/{id}/Messages":
+            return getMessages(ids.get(0), query.get("take"),
+                    query.get("before"));
+        case "POST /Collaboration/v1/Channels/{id}/Messages":
+            return sendMessage(ids.get(0), new JSONObject(body), agentId);
+        case "POST /Collaboration/v1/Channels/{id}/Me":
+            return respond(getChannel(ids.get(0)) == null ? 404 : 200, null);
+        case "GET /Provisioning/v1/Agents":
+            return respond(200, new JSONArray(agents.values()).toString());
+        case "GET /Provisioning/v1/Agents/{id}":
+            return respondWith(agents.get(ids.get(0)));
+        case "PUT /Provisioning/v1/Agents/{id}":
+            final JSONObject agent = new JSONObject(body);
+            agent.put("Id", ids.get(0));
+            agents.put(ids.get(0), agent);
+            return respond(200, null);
+        case "DELETE /Provisioning/v1/Agents/{id}":
+            return respond(agents.remove(ids.get(0)) == null ? 404 : 200, null);
+        case "GET /Provisioning/v1/Agents/{id}/Channels":
+            return agents.containsKey(ids.get(0))
+                    ? respondWith(getArray(agents.get(ids.get(0)), "Channels"))
+                    : respond(404, null);
+        case "PUT /Provisioning/v1/Agents/{id}/Channels/{id}":
+        case "DELETE /Provisioning/v1/Agents/{id}/Channels/{id}":
+            return updateEntry(ids, "Channels", "Id", body == null ? null
+                    : new JSONObject(body));
+        case "GET /Provisioning/v1/Agents/{id}/MetaData":
+            return agents.containsKey(ids.get(0))
+                    ? respondWith(getArray(agents.get(ids.get(0)), "MetaData"))
+                    : respond(404, null);
+        case "PUT /Provisioning/v1/Agents/{id}/MetaData":
+            if (!agents.containsKey(ids.get(0))) {
+                return respond(404, null);
+            }
+
+            agents.get(ids.get(0)).put("MetaData", new JSONArray(body));
+            return respond(200, null);
+        case "GET /Provisioning/v1/Agents/{id}/MetaData/{id}":
+            return getAgentMetaData(ids);
+        case "PUT /Provisioning/v1/Agents/{id}/MetaData/{id}":
+        case "DELETE /Provisioning/v1/Agents/{id}/MetaData/{id}":
+            JSONObject entry = null;
+
+            if (body != null) {
+                entry = new JSONObject();
+                entry.put("Key", ids.get(1));
+                entry.put("Value", String.valueOf(
+                        new JSONTokener(body).nextValue()));
+            }
+
+            return updateEntry(ids, "MetaData", "Key", entry);
+        case "GET /Provisioning/v1/Channels":
+            return respond(200, findChannels(query.get("query")).toString());
+        case "GET /Provisioning/v1/Users":
+            return respond(200, new JSONArray(users.values()).toString());
+        case "GET /Provisioning/v1/Users/{id}":
+            return respondWith(users.get(ids.get(0)));
+        case "PUT /Provisioning/v1/Users/{id}":
+            final JSONObject user = new JSONObject(body);
+            user.put("UserId", ids.get(0));
+            users.put(ids.get(0), user);
+            return respond(200, null);
+        case "DELETE /Provisioning/v1/Users/{id}":
+            return respond(users.remove(ids.get(0)) == null ? 404 : 200, null);
+        case "GET /Management/v1/Channels":
+            final JSONArray managed = new JSONArray();
+
+            for (FakeChannel channel : channels.values()) {
+                managed.put(channel.toManagedJson());
+            }
+
+            return respond(200, managed.toString());
+        case "POST /Management/v1/Channels":
+            return createChannel(new JSONObject(body));
+        case "GET /Management/v1/Channels/{id}":
+            return getChannel(ids.get(0)) == null ? respond(404, null)
+                    : respond(200, getChannel(ids.get(0)).toManagedJson()
+                    .toString());
+        case "DELETE /Management/v1/Channels/{id}":
+            return respond(channels.remove(ids.get(0)) == null ? 404 : 200,
+                    null);
+        case "GET /Management/v1/Channels/{id}/Members":
+            return getChannel(ids.get(0)) == null ? respond(404, null)
+                    : respond(200, new JSONArray(getChannel(ids.get(0))
+                    .members).toString());
+        case "PUT /Management/v1/Channels/{id}/Members":
+            final FakeChannel channel = getChannel(ids.get(0));
+
+            if (channel == null) {
+                return respond(404, null);
+            }
+
+            final JSONArray members = new JSONArray(body);
+            channel.members.clear();
+
+            for (int i = 0; i < members.length(); i++) {
+                channel.members.add(members.getString(i));
+            }
+
+            return respond(200, null);
+        case "GET /Management/v1/Categories":
+            final JSONArray array = new JSONArray();
+
+            for (Map.Entry<String, String> category : categories.entrySet()) {
+                final JSONObject object = new JSONObject();
+                object.put("Id", category.getKey());
+                object.put("Name", category.getValue());
+                array.put(object);
+            }
+
+            return respond(200, array.toString());
+        default:
+            return respond(404, null);
+        }
+    }
+
+    /**
+     * Gets a channel.
+     *
+     * @param id The ID of the channel
+     * @return The channel, or <code>null</code> if it doesn't exist
+     */
+    private FakeChannel getChannel(final String id) {
+        return channels.get(id);
+    }
+
+    /**
+     * Handles a request for the most recent messages in a channel.
+     *
+     * @param channelId The ID of the channel
+     * @param take The number of messages to return (or <code>null</code>
+     * for all)
+     * @param before The token of the message to return messages before (or
+     * <code>null</code> for the latest messages)
+     * @return A future which completes with the response
+     */
+    private CompletableFuture<Response> getMessages(final String channelId,
+            final String take, final String before) {
+        final FakeChannel channel = getChannel(channelId);
+
+        if (channel == null) {
+            return respond(404, null);
+        }
+
+        int end = channel.messages.size();
+
+        if (before != null) {
+            while (end > 0 && !before.equals(channel.messages.get(end - 1)
+                    .optString("Token"))) {
+                end--;
+            }
+
+            end = Math.max(0, end - 1);
+        }
+
+        final int count = take == null ? end
+                : Math.min(end, Integer.parseInt(take));
+
+        return respond(200, new JSONArray(channel.messages.subList(
+                end - count, end)).toString());
+    }
+
+    /**
+     * Handles a message sent by an agent.
+     *
+     * @param channelId The ID of the channel
+     * @param payload The message payload
+     * @param agentId The ID of the sending agent
+     * @return A future which completes with the response
+     * @throws JSONException If the message can't be recorded
+     */
+    private CompletableFuture<Response> sendMessage(final String channelId,
+            final JSONObject payload, final String agentId)
+            throws JSONException {
+        final FakeChannel channel = getChannel(channelId);
+
+        if (channel == null) {
+            return respond(404, null);
+        }
+
+        String text = payload.optString("Text", null);
+
+        if (text == null) {
+            // Messages sent as parts are stored with their parts' text
+            final StringBuilder builder = new StringBuilder();
+            final JSONArray parts = payload.optJSONArray("MessageParts");
+
+            for (int i = 0; parts != null && i < parts.length(); i++) {
+                final JSONObject part = parts.getJSONObject(i);
+                builder.append(part.optString("Text", part.optString(
+                        "Hashtag", part.optString("CodeBlock"))));
+            }
+
+            text = builder.toString();
+        }
+
+        addMessage(channel, agentId, payload.optString("Subject", null), text,
+                payload.optBoolean("IsAlert"));
+        return respond(200, null);
+    }
+
+    /**
+     * Records a message in a channel and raises a message event for it.
+     *
+     * @param channel The channel
+     * @param senderId The ID of the sender
+     * @param subject The subject of the message (or <code>null</code>)
+     * @param text The text of the message
+     * @param alert Whether or not the message is an alert
+     * @throws JSONException If the message can't be recorded
+     */
+    private void addMessage(final FakeChannel channel, final String senderId,
+            final String subject, final String text, final boolean alert)
+            throws JSONException {
+        final long now = System.currentTimeMillis();
+        final String id = String.valueOf(nextId++);
+        final JSONObject message = new JSONObject();
+        message.put("Id", id);
+        message.put("Token", id);
+        message.put("ChannelId", channel.id);
+        message.put("SenderId", senderId);
+        message.put("SenderAlias", senderId);
+        message.put("Subject", subject);
+        message.put("Text", text);
+        message.put("IsAlert", alert);
+        message.put("Timestamp", now);
+        channel.messages.add(message);
+
+        final JSONObject event = newEvent("MessageEvent");
+        event.put("ChannelId", channel.id);
+        event.put("Sender", senderId);
+        event.put("SenderAlias", senderId);
+        event.put("Subject", subject);
+        event.put("Content", text);
+        event.put("IsAlert", alert);
+        raise(event);
+    }
+
+    /**
+     * Searches channels' messages for a term.
+     *
+     * @param criteria The search criteria
+     * @return A result set for each channel with matching messages
+     * @throws JSONException If the criteria are malformed
+     */
+    private JSONArray search(final JSONObject criteria) throws JSONException {
+        final boolean matchCase = criteria.optBoolean("MatchCase");
+        final String term = matchCase ? criteria.optString("SearchTerm")
+                : criteria.optString("SearchTerm").toLowerCase();
+        final int limit = criteria.optInt("Limit", Integer.MAX_VALUE);
+        final JSONArray channelIds = criteria.optJSONArray("ChannelIds");
+        final JSONArray results = new JSONArray();
+
+        for (FakeChannel channel : channels.values()) {
+            if (channelIds != null && channelIds.length() > 0
+                    && !contains(channelIds, channel.id)) {
+                continue;
+            }
+
+            final JSONArray matches = new JSONArray();
+
+            for (int i = channel.messages.size() - 1;
+                    i >= 0 && matches.length() < limit; i--) {
+                final JSONObject message = channel.messages.get(i);
+                final String text = matchCase ? message.getString("Text")
+                        : message.getString("Text").toLowerCase();
+
+                if (text.contains(term)) {
+                    matches.put(message);
+                }
+            }
+
+            if (matches.length() > 0) {
+                final JSONObject result = new JSONObject();
+                result.put("ChannelId", channel.id);
+                result.put("Count", matches.length());
+                result.put("MaxMessageId", matches.getJSONObject(0)
+                        .getString("Id"));
+                result.put("MinMessageId", matches.getJSONObject(
+                        matches.length() - 1).getString("Id"));
+                result.put("Messages", matches);
+                results.put(result);
+            }
+        }
+
+        return results;
+    }
+
+    /**
+     * Finds channels whose names contain a term, for the Provisioning
+     * Channels method.
+     *
+     * @param term The term to search for (or <code>null</code> for all)
+     * @return A dictionary of channel IDs to names
+     * @throws JSONException If the dictionary can't be built
+     */
+    private JSONArray findChannels(final String term) throws JSONException {
+        final Map<String, String> found = new LinkedHashMap<String, String>();
+
+        for (FakeChannel channel : channels.values()) {
+            if (term == null || channel.name.toLowerCase().contains(
+                    term.toLowerCase())) {
+                found.put(channel.id, channel.name);
+            }
+        }
+
+        return getDictionary(found);
+    }
+
+    /**
+     * Creates a managed channel.
+     *
+     * @param payload The channel's details
+     * @return A future which completes with the response containing the new
+     * channel's ID
+     * @throws JSONException If the payload is malformed
+     */
+    private CompletableFuture<Response> createChannel(final JSONObject payload)
+            throws JSONException {
+        final FakeChannel channel = new FakeChannel("chat-room:" + nextId++);
+        channel.name = payload.getString("Name");
+        channel.description = payload.optString("Description");
+        channel.categoryId = payload.optString("CategoryId");
+        channel.privacy = payload.optInt("Privacy");
+
+        final JSONArray members = payload.optJSONArray("Members");
+
+        for (int i = 0; members != null && i < members.length(); i++) {
+            channel.members.add(members.getString(i));
+        }
+
+        channels.put(channel.id, channel);
+        return respond(200, JSONObject.quote(channel.id));
+    }
+
+    /**
+     * Handles a request for a single metadata value of a provisioned agent.
+     *
+     * @param ids The agent's ID and the metadata key
+     * @return A future which completes with the response
+     * @throws JSONException If the agent's metadata is malformed
+     */
+    private CompletableFuture<Response> getAgentMetaData(final List<String> ids)
+            throws JSONException {
+        final JSONObject agent = agents.get(ids.get(0));
+
+        if (agent != null) {
+            final JSONArray entries = getArray(agent, "MetaData");
+
+            for (int i = 0; i < entries.length(); i++) {
+                if (ids.get(1).equals(entries.getJSONObject(i)
+                        .optString("Key"))) {
+                    return respond(200, JSONObject.quote(entries
+                            .getJSONObject(i).optString("Value")));
+                }
+            }
+        }
+
+        return respond(404, null);
+    }
+
+    /**
+     * Adds, replaces or removes an entry in one of a provisioned agent's
+     * arrays (its channels or metadata).
+     *
+     * @param ids The agent's ID and the entry's ID
+     * @param property The array property of the agent
+     * @param key The property identifying each entry
+     * @param entry The new entry, or <code>null</code> to remove it
+     * @return A future which completes with the response
+     * @throws JSONException If the agent is malformed
+     */
+    private CompletableFuture<Response> updateEntry(final List<String> ids,
+            final String property, final String key, final JSONObject entry)
+            throws JSONException {
+        final JSONObject agent = agents.get(ids.get(0));
+
+        if (agent == null) {
+            return respond(404, null);
+        }
+
+        final JSONArray entries = getArray(agent, property);
+        final JSONArray updated = new JSONArray();
+        boolean found = false;
+
+        for (int i = 0; i < entries.length(); i++) {
+            if (ids.get(1).equals(entries.getJSONObject(i).optString(key))) {
+                found = true;
+            } else {
+                updated.put(entries.get(i));
+            }
+        }
+
+        if (entry != null) {
+            entry.put(key, ids.get(1));
+            updated.put(entry);
+        }
+
+        agent.put(property, updated);
+        return respond(found || entry != null ? 200 : 404, null);
+    }
+
+    /**
+     * Handles a poll of the Events method, responding immediately if there
+     * are matching events and otherwise holding the poll open.
+     *
+     * @param query The query parameters of the poll
+     * @return A future which completes with the matching events
+     */
+    private CompletableFuture<Response> poll(final Map<String, String> query) {
+        final Poll poll;
+
+        try {
+            poll = new Poll(query);
+        } catch (NumberFormatException | PatternSyntaxException ex) {
+            return respond(400, JSONObject.quote(String.valueOf(
+                    ex.getMessage())));
+        }
+
+        synchronized (this) {
+            final JSONArray matching = poll.getMatching(events);
+
+            if (matching.length() > 0) {
+                return respond(200, matching.toString());
+            }
+
+            polls.add(poll);
+        }
+
+        poll.future.completeOnTimeout(new Response(200,
+                new ByteArrayInputStream("[]".getBytes(
+                StandardCharsets.UTF_8)), null), pollTimeoutMillis,
+                TimeUnit.MILLISECONDS);
+        poll.future.whenComplete((response, ex) -> {
+            synchronized (InMemoryFoundationApi.this) {
+                polls.remove(poll);
+            }
+        });
+        return poll.future;
+    }
+
+    /**
+     * Creates an event with the next event ID.
+     *
+     * @param type The type of the event (e.g. <code>MessageEvent</code>)
+     * @return The event
+     * @throws JSONException If the event can't be built
+     */
+    private JSONObject newEvent(final String type) throws JSONException {
+        final JSONObject event = new JSONObject();
+        event.put("__type", type + COLLABORATION_SCHEMA);
+        event.put("EventId", nextEventId++);
+        event.put("Time", System.currentTimeMillis());
+        return event;
+    }
+
+    /**
+     * Records an event and wakes any polls waiting for it. Must be called
+     * while holding the lock on this object.
+     *
+     * @param event The event
+     */
+    private void raise(final JSONObject event) {
+        events.add(event);
+
+        if (events.size() > MAX_EVENTS) {
+            events.poll();
+        }
+
+        for (Poll poll : new ArrayList<Poll>(polls)) {
+            if (poll.matches(event)) {
+                final String body = poll.getMatching(events).toString();
+                polls.remove(poll);
+
+                // Completed on another thread, so the poller's callbacks
+                // don't run while this lock is held
+                poll.future.completeAsync(() -> new Response(200,
+                        new ByteArrayInputStream(body.getBytes(
+                        StandardCharsets.UTF_8)), null));
+            }
+        }
+    }
+
+    /**
+     * Gets the agent ID a request's token was issued to.
+     *
+     * @param request The request
+     * @return The agent ID, or <code>null</code> if the request doesn't carry
+     * a valid token
+     */
+    private String getAgentId(final Request request) {
+        for (Map.Entry<String, String> header
+                : request.getHeaders().entrySet()) {
+            if ("Authorization".equalsIgnoreCase(header.getKey())
+                    && header.getValue().startsWith("FCF ")) {
+                return tokens.get(header.getValue().substring(4));
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Gets a request's body as a string, decompressing it if necessary.
+     *
+     * @param request The request
+     * @return The body, or <code>null</code> if the request has none
+     * @throws IOException If the body can't be decompressed
+     */
+    private static String getBody(final Request request) throws IOException {
+        if (request.getBody() == null) {
+            return null;
+        }
+
+        String encoding = null;
+
+        for (Map.Entry<String, String> header
+                : request.getHeaders().entrySet()) {
+            if ("Content-Encoding".equalsIgnoreCase(header.getKey())) {
+                encoding = header.getValue();
+            }
+        }
+
+        try (InputStream in = ContentEncoding.decode(encoding,
+                request.getBody())) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Splits a request path into segments, starting from the API area so
+     * that any path the base URL adds is ignored.
+     *
+     * @param path The decoded path of the request
+     * @return The segments from the area onwards, or an empty list if the
+     * path isn't in a known area
+     */
+    private static List<String> getPath(final String path) {
+        final List<String> segments = Arrays.asList(path.split("/"));
+
+        for (int i = 0; i < segments.size(); i++) {
+            if (AREAS.contains(segments.get(i))) {
+                return segments.subList(i, segments.size());
+            }
+        }
+
+        return Collections.emptyList();
+    }
+
+    /**
+     * Parses a query string.
+     *
+     * @param query The raw query string (or <code>null</code>)
+     * @return The query parameters
+     */
+    private static Map<String, String> getQuery(final String query) {
+        final Map<String, String> result = new HashMap<String, String>();
+
+        if (query != null) {
+            for (String parameter : query.split("&")) {
+                final int equals = parameter.indexOf('=');
+
+                if (equals > 0) {
+                    result.put(URLDecoder.decode(parameter.substring(0, equals),
+                            StandardCharsets.UTF_8), URLDecoder.decode(
+                            parameter.substring(equals + 1),
+                            StandardCharsets.UTF_8));
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Gets an array property of an object, or an empty array if it has none.
+     *
+     * @param object The object
+     * @param property The property
+     * @return The array
+     */
+    private static JSONArray getArray(final JSONObject object,
+            final String property) {
+        final JSONArray array = object.optJSONArray(property);
+        return array == null ? new JSONArray() : array;
+    }
+
+    /**
+     * Determines whether a JSON array contains a string.
+     *
+     * @param array The array
+     * @param value The string
+     * @return <code>true</code> if the array contains the string
+     */
+    private static boolean contains(final JSONArray array, final String value) {
+        for (int i = 0; i < array.length(); i++) {
+            if (value.equals(array.optString(i))) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Serialises a map as a JSON dictionary: an array of key/value objects.
+     *
+     * @param map The map
+     * @return The dictionary
+     * @throws JSONException If the dictionary can't be built
+     */
+    private static JSONArray getDictionary(final Map<String, String> map)
+            throws JSONException {
+        final JSONArray array = new JSONArray();
+
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            final JSONObject object = new JSONObject();
+            object.put("Key", entry.getKey());
+            object.put("Value", entry.getValue());
+            array.put(object);
+        }
+
+        return array;
+    }
+
+    /**
+     * Creates a response with the given object as its body.
+     *
+     * @param value The body, or <code>null</code> to respond with a 404
+     * @return A completed future of the response
+     */
+    private static CompletableFuture<Response> respondWith(final Object value) {
+        return value == null ? respond(404, null)
+                : respond(200, value.toString());
+    }
+
+    /**
+     * Creates a response.
+     *
+     * @param status The status code
+     * @param body The body (or <code>null</code> for an empty body)
+     * @return A completed future of the response
+     */
+    private static CompletableFuture<Response> respond(final int status,
+            final String body) {
+        return CompletableFuture.completedFuture(new Response(status,
+                new ByteArrayInputStream(body == null ? new byte[0]
+                : body.getBytes(StandardCharsets.UTF_8)), null));
+    }
+
+    /**
+     * A channel held by the stand-in, which serves both the Collaboration
+     * and Management views of it.
+     */
+    private static class FakeChannel {
+
+        /** The ID of the channel. */
+        private final String id;
+
+        /** The display name of the channel. */
+        private String name;
+
+        /** The description of the channel. */
+        private String description = "";
+
+        /** The ID of the channel's category. */
+        private String categoryId = "";
+
+        /** The channel's privacy setting (a {@code ChannelPrivacy} ordinal). */
+        private int privacy;
+
+        /** The IDs of the channel's members. */
+        private final List<String> members = new ArrayList<String>();
+
+        /** The channel's messages, oldest first. */
+        private final List<JSONObject> messages = new ArrayList<JSONObject>();
+
+        /**
+         * Creates a new {@link FakeChannel}.
+         *
+         * @param id The ID of the channel
+         */
+        FakeChannel(final String id) {
+            this.id = id;
+            this.name = id;
+        }
+
+        /**
+         * Serialises the channel's Collaboration information.
+         *
+         * @return The channel information
+         * @throws JSONException If the object can't be built
+         */
+        JSONObject toJson() throws JSONException {
+            final JSONObject object = new JSONObject();
+            object.put("Id", id);
+            object.put("DisplayName", name);
+            object.put("Description", description);
+            object.put("Subject", "");
+            object.put("EmailAddress", "");
+            object.put("IsReadOnly", false);
+            object.put("CanAcceptFiles", false);
+            object.put("MetaData", new JSONArray());
+            return object;
+        }
+
+        /**
+         * Serialises the channel's state.
+         *
+         * @return The channel state
+         * @throws JSONException If the object can't be built
+         */
+        JSONObject toStateJson() throws JSONException {
+            final JSONObject object = new JSONObject();
+            object.put("Subject", "");
+            object.put("PresenceState", 100);
+            object.put("PresenceText", "");
+            return object;
+        }
+
+        /**
+         * Serialises the channel's Management information.
+         *
+         * @return The managed channel
+         * @throws JSONException If the object can't be built
+         */
+        JSONObject toManagedJson() throws JSONException {
+            final JSONObject object = new JSONObject();
+            object.put("Id", id);
+            object.put("Name", name);
+            object.put("Description", description);
+            object.put("CategoryId", categoryId);
+            object.put("Privacy", privacy);
+            return object;
+        }
+
+    }
+
+    /**
+     * A poll of the Events method, with its filters.
+     */
+    private static class Poll {
+
+        /** The ID of the last event the poller has seen. */
+        private final long lastEvent;
+
+        /** The event types requested (empty for all). */
+        private final Set<String> types = new HashSet<String>();
+
+        /** The channels requested (empty for all). */
+        private final Set<String> channels = new HashSet<String>();
+
+        /** The pattern messages must match (or <code>null</code>). */
+        private final Pattern regex;
+
+        /** Completes with the response to the poll. */
+        private final CompletableFuture<Response> future
+                = new CompletableFuture<Response>();
+
+        /**
+         * Creates a new {@link Poll}.
+         *
+         * @param query The query parameters of the poll
+         * @throws NumberFormatException If the last event ID is malformed
+         * @throws PatternSyntaxException If the regex is malformed
+         */
+        Poll(final Map<String, String> query) {
+            final String last = query.get("last-event");
+            this.lastEvent = last == null || last.isEmpty() ? 0
+                    : Long.parseLong(last);
+            addAll(types, query.get("types"));
+            addAll(channels, query.get("channels"));
+
+            final String pattern = query.get("regex");
+            this.regex = pattern == null || pattern.isEmpty() ? null
+                    : Pattern.compile(pattern);
+        }
+
+        /**
+         * Gets the events after the poller's last event which it asked for.
+         *
+         * @param events The recorded events, oldest first
+         * @return The matching events
+         */
+        JSONArray getMatching(final Deque<JSONObject> events) {
+            final JSONArray result = new JSONArray();
+
+            for (JSONObject event : events) {
+                if (matches(event)) {
+                    result.put(event);
+                }
+            }
+
+            return result;
+        }
+
+        /**
+         * Determines whether the poller asked for an event.
+         *
+         * @param event The event
+         * @return <code>true</code> if the event should be returned
+         */
+        boolean matches(final JSONObject event) {
+            if (event.optLong("EventId") <= lastEvent) {
+                return false;
+            }
+
+            final String type = event.optString("__type");
+            final String channelId = event.optString("ChannelId", null);
+
+            if (type.startsWith("MessageEvent")) {
+                return isTypeRequested("message")
+                        && isChannelRequested(channelId)
+                        && (regex == null || regex.matcher(
+                        event.optString("Content")).find());
+            } else if (type.startsWith("ChannelStateEvent")) {
+                return isTypeRequested("channel-state")
+                        && isChannelRequested(channelId);
+            }
+
+            return isTypeRequested("meta-data");
+        }
+
+        /**
+         * Determines whether the poller asked for an event type.
+         *
+         * @param type The event type's request form (e.g.
+         * <code>message</code>)
+         * @return <code>true</code> if the type was requested, or the poller
+         * didn't filter on type
+         */
+        private boolean isTypeRequested(final String type) {
+            return types.isEmpty() || types.contains(type);
+        }
+
+        /**
+         * Determines whether the poller asked for events in a channel.
+         *
+         * @param channelId The ID of the channel
+         * @return <code>true</code> if the channel was requested, or the
+         * poller didn't filter on channel
+         */
+        private boolean isChannelRequested(final String channelId) {
+            return channels.isEmpty() || channels.contains(channelId);
+        }
+
+        /**
+         * Adds the items of a comma-separated list to a set.
+         *
+         * @param set The set
+         * @param list The list (or <code>null</code>)
+         */
+        private static void addAll(final Set<String> set, final String list) {
+            if (list != null) {
+                for (String item : list.split(",")) {
+                    if (!item.isEmpty()) {
+                        set.add(item);
+                    }
+                }
+            }
+        }
+
+    }
+
+}
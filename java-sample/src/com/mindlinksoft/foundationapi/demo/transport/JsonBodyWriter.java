@@ -0,0 +1,385 @@
+package com.mindlinksoft.foundationapi.demo.transport;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONString;
+
+/**
+ * Serialises JSON payloads straight to UTF-8 request body bytes.
+ * <p>
+ * Calling <code>toString()</code> on a payload and encoding the result
+ * builds the body three times over: once as a string for every quoted key
+ * and value, once as the whole document, and once more as bytes. This writer
+ * walks the payload and encodes each character directly into a byte buffer,
+ * so the only allocation per request is the body itself, whose exact length
+ * is then known before it is sent. Output is identical to the payload's own
+ * <code>toString()</code>, including org.json's escaping rules and its
+ * handling of values which aren't JSON types: maps, collections and arrays
+ * are expanded, and any other object is written as its quoted
+ * <code>toString()</code>.
+ * <p>
+ * Each thread reuses a single buffer. Buffers which grow beyond
+ * {@link #MAX_POOLED_CAPACITY} to hold an unusually large payload are
+ * discarded afterwards rather than being held on to.
+ */
+public final class JsonBodyWriter {
+
+    /** The largest buffer kept for reuse once a payload has been written. */
+    public static final int MAX_POOLED_CAPACITY = 64 * 1024;
+
+    /** The initial size of each thread's buffer. */
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /** Hexadecimal digits, for <code>\\u</code> escapes. */
+    private static final byte[] HEX = "0123456789abcdef".getBytes(
+            StandardCharsets.US_ASCII);
+
+    /** The buffer belonging to each thread. */
+    private static final ThreadLocal<JsonBodyWriter> POOL
+            = ThreadLocal.withInitial(JsonBodyWriter::new);
+
+    /** The buffer the payload is written to. */
+    private byte[] buffer = new byte[INITIAL_CAPACITY];
+
+    /** The number of bytes written to the buffer. */
+    private int count;
+
+    /** Whether the buffer is currently being written to. */
+    private boolean inUse;
+
+    /**
+     * Prevents instantiation of {@link JsonBodyWriter} other than by the
+     * pool.
+     */
+    private JsonBodyWriter() {
+    }
+
+    /**
+     * Serialises a JSON value (normally a {@link JSONObject} or
+     * {@link JSONArray}) to UTF-8.
+     *
+     * @param value The value to serialise
+     * @return The UTF-8 encoded JSON text
+     * @throws JSONException If the value contains a non-finite number, or a
+     * {@link JSONString} which fails to serialise
+     */
+    public static byte[] toBytes(final Object value) throws JSONException {
+        JsonBodyWriter writer = POOL.get();
+
+        if (writer.inUse) {
+            // Only if a JSONString serialises itself with this class
+            writer = new JsonBodyWriter();
+        }
+
+        writer.inUse = true;
+
+        try {
+            writer.writeValue(value);
+            return Arrays.copyOf(writer.buffer, writer.count);
+        } finally {
+            writer.count = 0;
+            writer.inUse = false;
+
+            if (writer.buffer.length > MAX_POOLED_CAPACITY) {
+                writer.buffer = new byte[INITIAL_CAPACITY];
+            }
+        }
+    }
+
+    /**
+     * Writes any value org.json can serialise, as
+     * {@link JSONObject#valueToString(Object)} would: maps, collections and
+     * arrays are expanded, and any other object is written as its quoted
+     * <code>toString()</code>.
+     *
+     * @param value The value
+     * @throws JSONException If the value can't be serialised
+     */
+    private void writeValue(final Object value) throws JSONException {
+        if (value == null || value.equals(null)) {
+            writeAscii("null");
+        } else if (value instanceof JSONObject) {
+            writeObject((JSONObject) value);
+        } else if (value instanceof JSONArray) {
+            writeArray((JSONArray) value);
+        } else if (value instanceof String) {
+            writeString((String) value);
+        } else if (value instanceof JSONString) {
+            final Object text;
+
+            try {
+                text = ((JSONString) value).toJSONString();
+            } catch (Exception ex) {
+                throw new JSONException(ex);
+            }
+
+            if (!(text instanceof String)) {
+                throw new JSONException("Bad value from toJSONString: "
+                        + text);
+            }
+
+            writeRaw((String) text);
+        } else if (value instanceof Integer || value instanceof Long
+                || value instanceof Short || value instanceof Byte) {
+            writeLong(((Number) value).longValue());
+        } else if (value instanceof Number) {
+            writeAscii(JSONObject.numberToString((Number) value));
+        } else if (value instanceof Boolean) {
+            writeAscii(value.toString());
+        } else if (value instanceof Map) {
+            writeObject(new JSONObject((Map<?, ?>) value));
+        } else if (value instanceof Collection) {
+            writeArray(new JSONArray((Collection<?>) value));
+        } else if (value.getClass().isArray()) {
+            writeArray(new JSONArray(value));
+        } else {
+            writeString(value.toString());
+        }
+    }
+
+    /**
+     * Writes a JSON object, in the order of its keys.
+     *
+     * @param object The object
+     * @throws JSONException If a value can't be serialised
+     */
+    private void writeObject(final JSONObject object) throws JSONException {
+        final Iterator<?> keys = object.keys();
+        boolean first = true;
+        write('{');
+
+        while (keys.hasNext()) {
+            final String key = keys.next().toString();
+
+            if (!first) {
+                write(',');
+            }
+
+            writeString(key);
+            write(':');
+            writeValue(object.opt(key));
+            first = false;
+        }
+
+        write('}');
+    }
+
+    /**
+     * Writes a JSON array.
+     *
+     * @param array The array
+     * @throws JSONException If a value can't be serialised
+     */
+    private void writeArray(final JSONArray array) throws JSONException {
+        write('[');
+
+        for (int i = 0; i < array.length(); i++) {
+            if (i > 0) {
+                write(',');
+            }
+
+            writeValue(array.opt(i));
+        }
+
+        write(']');
+    }
+
+    /**
+     * Writes a quoted, escaped JSON string, escaping the same characters as
+     * {@link JSONObject#quote(String)}.
+     *
+     * @param string The string
+     */
+    private void writeString(final String string) {
+        final int length = string.length();
+        ensureCapacity(length + 2);
+        write('"');
+
+        char c = 0;
+
+        for (int i = 0; i < length; i++) {
+            final char previous = c;
+            c = string.charAt(i);
+
+            switch (c) {
+            case '\\':
+            case '"':
+                write('\\');
+                write(c);
+                break;
+            case '/':
+                if (previous == '<') {
+                    write('\\');
+                }
+
+                write(c);
+                break;
+            case '\b':
+                writeEscape('b');
+                break;
+            case '\t':
+                writeEscape('t');
+                break;
+            case '\n':
+                writeEscape('n');
+                break;
+            case '\f':
+                writeEscape('f');
+                break;
+            case '\r':
+                writeEscape('r');
+                break;
+            default:
+                if (c < ' ' || (c >= '\u0080' && c < '\u00a0')
+                        || (c >= '\u2000' && c < '\u2100')) {
+                    ensureCapacity(6);
+                    buffer[count++] = '\\';
+                    buffer[count++] = 'u';
+                    buffer[count++] = HEX[(c >> 12) & 0xF];
+                    buffer[count++] = HEX[(c >> 8) & 0xF];
+                    buffer[count++] = HEX[(c >> 4) & 0xF];
+                    buffer[count++] = HEX[c & 0xF];
+                } else {
+                    i = writeChar(string, i);
+                }
+            }
+        }
+
+        write('"');
+    }
+
+    /**
+     * Writes text which is already valid JSON, encoding it as UTF-8.
+     *
+     * @param text The text
+     */
+    private void writeRaw(final String text) {
+        for (int i = 0; i < text.length(); i++) {
+            i = writeChar(text, i);
+        }
+    }
+
+    /**
+     * Writes text known to be ASCII.
+     *
+     * @param text The text
+     */
+    private void writeAscii(final String text) {
+        ensureCapacity(text.length());
+
+        for (int i = 0; i < text.length(); i++) {
+            buffer[count++] = (byte) text.charAt(i);
+        }
+    }
+
+    /**
+     * Writes an integer's decimal digits.
+     *
+     * @param value The integer
+     */
+    private void writeLong(final long value) {
+        if (value == Long.MIN_VALUE) {
+            writeAscii(Long.toString(value));
+            return;
+        }
+
+        // At most 19 digits and a sign
+        ensureCapacity(20);
+
+        long remaining = Math.abs(value);
+        int digits = 1;
+
+        for (long n = remaining; n >= 10; n /= 10) {
+            digits++;
+        }
+
+        if (value < 0) {
+            buffer[count++] = '-';
+        }
+
+        for (int i = count + digits - 1; i >= count; i--) {
+            buffer[i] = (byte) ('0' + remaining % 10);
+            remaining /= 10;
+        }
+
+        count += digits;
+    }
+
+    /**
+     * Encodes the character at an index of a string as UTF-8. A valid
+     * surrogate pair is encoded as a single code point; an unpaired surrogate
+     * is replaced with <code>?</code>, as {@link String#getBytes} does.
+     *
+     * @param string The string
+     * @param index The index of the character
+     * @return The index of the last character consumed
+     */
+    private int writeChar(final String string, final int index) {
+        final char c = string.charAt(index);
+        ensureCapacity(4);
+
+        if (c < 0x80) {
+            buffer[count++] = (byte) c;
+        } else if (c < 0x800) {
+            buffer[count++] = (byte) (0xC0 | (c >> 6));
+            buffer[count++] = (byte) (0x80 | (c & 0x3F));
+        } else if (Character.isHighSurrogate(c) && index + 1 < string.length()
+                && Character.isLowSurrogate(string.charAt(index + 1))) {
+            final int codePoint = Character.toCodePoint(c,
+                    string.charAt(index + 1));
+            buffer[count++] = (byte) (0xF0 | (codePoint >> 18));
+            buffer[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+            buffer[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+            buffer[count++] = (byte) (0x80 | (codePoint & 0x3F));
+            return index + 1;
+        } else if (Character.isSurrogate(c)) {
+            buffer[count++] = '?';
+        } else {
+            buffer[count++] = (byte) (0xE0 | (c >> 12));
+            buffer[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+            buffer[count++] = (byte) (0x80 | (c & 0x3F));
+        }
+
+        return index;
+    }
+
+    /**
+     * Writes a two-character escape sequence.
+     *
+     * @param c The character following the backslash
+     */
+    private void writeEscape(final char c) {
+        write('\\');
+        write(c);
+    }
+
+    /**
+     * Writes a single ASCII character.
+     *
+     * @param c The character
+     */
+    private void write(final char c) {
+        ensureCapacity(1);
+        buffer[count++] = (byte) c;
+    }
+
+    /**
+     * Grows the buffer if necessary so that it can hold more bytes.
+     *
+     * @param additional The number of bytes about to be written
+     */
+    private void ensureCapacity(final int additional) {
+        if (count + additional > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2,
+                    count + additional));
+        }
+    }
+
+}
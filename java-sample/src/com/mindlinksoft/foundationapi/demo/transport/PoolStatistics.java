@@ -0,0 +1,163 @@
+package com.mindlinksoft.foundationapi.demo.transport;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * A point-in-time snapshot of the statistics of a {@link ConnectionPool}.
+ */
+public class PoolStatistics {
+
+    private final int maxConnectionsPerHost;
+    private final int maxIdleConnectionsPerHost;
+    private final Map<String, Integer> leasedConnections;
+    private final int peakLeasedConnections;
+    private final long requests;
+    private final long waitedRequests;
+    private final long totalWaitMillis;
+    private final long bytesSent;
+    private final long uncompressedBytesSent;
+    private final long bytesReceived;
+    private final long bytesDecoded;
+
+    /**
+     * Creates a new instance of {@link PoolStatistics}.
+     */
+    protected PoolStatistics(final int maxConnectionsPerHost,
+            final int maxIdleConnectionsPerHost,
+            final Map<String, Integer> leasedConnections,
+            final int peakLeasedConnections, final long requests,
+            final long waitedRequests, final long totalWaitMillis,
+            final long bytesSent, final long uncompressedBytesSent,
+            final long bytesReceived, final long bytesDecoded) {
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+        this.maxIdleConnectionsPerHost = maxIdleConnectionsPerHost;
+        this.leasedConnections = leasedConnections;
+        this.peakLeasedConnections = peakLeasedConnections;
+        this.requests = requests;
+        this.waitedRequests = waitedRequests;
+        this.totalWaitMillis = totalWaitMillis;
+        this.bytesSent = bytesSent;
+        this.uncompressedBytesSent = uncompressedBytesSent;
+        this.bytesReceived = bytesReceived;
+        this.bytesDecoded = bytesDecoded;
+    }
+
+    /**
+     * Gets the maximum number of connections the pool opens to one host.
+     *
+     * @return The per-host connection limit
+     */
+    public int getMaxConnectionsPerHost() {
+        return maxConnectionsPerHost;
+    }
+
+    /**
+     * Gets the number of idle connections kept alive for each host.
+     *
+     * @return The size of the per-host keep-alive cache
+     */
+    public int getMaxIdleConnectionsPerHost() {
+        return maxIdleConnectionsPerHost;
+    }
+
+    /**
+     * Gets the number of connections currently leased to each host.
+     *
+     * @return A map of host (<code>scheme://host:port</code>) to the number of
+     * connections currently in use
+     */
+    public Map<String, Integer> getLeasedConnections() {
+        return Collections.unmodifiableMap(leasedConnections);
+    }
+
+    /**
+     * Gets the highest number of connections leased to a single host at once.
+     *
+     * @return The peak number of leased connections
+     */
+    public int getPeakLeasedConnections() {
+        return peakLeasedConnections;
+    }
+
+    /**
+     * Gets the total number of requests sent through the pool.
+     *
+     * @return The number of requests
+     */
+    public long getRequests() {
+        return requests;
+    }
+
+    /**
+     * Gets the number of requests which had to wait for a connection because
+     * the per-host limit had been reached.
+     *
+     * @return The number of requests that waited
+     */
+    public long getWaitedRequests() {
+        return waitedRequests;
+    }
+
+    /**
+     * Gets the total time requests have spent waiting for a connection.
+     *
+     * @return The total wait time in milliseconds
+     */
+    public long getTotalWaitMillis() {
+        return totalWaitMillis;
+    }
+
+    /**
+     * Gets the number of request body bytes sent on the wire.
+     *
+     * @return The number of bytes sent, after any compression
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * Gets the number of request body bytes sent, before compression.
+     *
+     * @return The number of bytes the request bodies would have taken
+     * uncompressed
+     */
+    public long getUncompressedBytesSent() {
+        return uncompressedBytesSent;
+    }
+
+    /**
+     * Gets the number of response body bytes received on the wire. Bodies
+     * which are discarded unread are not counted.
+     *
+     * @return The number of bytes received, before decompression
+     */
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    /**
+     * Gets the number of response body bytes read after decompression.
+     *
+     * @return The number of decoded bytes
+     */
+    public long getBytesDecoded() {
+        return bytesDecoded;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+        return "PoolStatistics{maxConnectionsPerHost=" + maxConnectionsPerHost
+                + ", maxIdleConnectionsPerHost=" + maxIdleConnectionsPerHost
+                + ", leasedConnections=" + leasedConnections
+                + ", peakLeasedConnections=" + peakLeasedConnections
+                + ", requests=" + requests + ", waitedRequests="
+                + waitedRequests + ", totalWaitMillis=" + totalWaitMillis
+                + ", bytesSent=" + bytesSent + ", uncompressedBytesSent="
+                + uncompressedBytesSent + ", bytesReceived=" + bytesReceived
+                + ", bytesDecoded=" + bytesDecoded + '}';
+    }
+
+}
@@ -0,0 +1,137 @@
+package com.mindlinksoft.foundationapi.demo.transport;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.mindlinksoft.foundationapi.demo.resilience.Deadline;
+import com.mindlinksoft.foundationapi.demo.resilience.Priority;
+
+/**
+ * A request to be sent to the Foundation API.
+ */
+public class Request {
+
+    private final String method;
+    private final URI uri;
+    private final Map<String, String> headers;
+    private final byte[] body;
+    private final Deadline deadline;
+    private final Priority priority;
+
+    /**
+     * Creates a new instance of {@link Request} with no deadline.
+     *
+     * @param method The HTTP method to use (GET, POST, etc)
+     * @param uri The absolute URI to request
+     * @param headers The request headers to send
+     * @param body The encoded body to send, or <code>null</code> for no body
+     */
+    public Request(final String method, final URI uri,
+            final Map<String, String> headers, final byte[] body) {
+        this(method, uri, headers, body, null);
+    }
+
+    /**
+     * Creates a new instance of {@link Request}.
+     *
+     * @param method The HTTP method to use (GET, POST, etc)
+     * @param uri The absolute URI to request
+     * @param headers The request headers to send
+     * @param body The encoded body to send, or <code>null</code> for no body
+     * @param deadline The time by which the response must arrive, or
+     * <code>null</code> to rely on the transport's own timeouts
+     */
+    public Request(final String method, final URI uri,
+            final Map<String, String> headers, final byte[] body,
+            final Deadline deadline) {
+        this(method, uri, headers, body, deadline, Priority.NORMAL);
+    }
+
+    /**
+     * Creates a new instance of {@link Request}.
+     *
+     * @param method The HTTP method to use (GET, POST, etc)
+     * @param uri The absolute URI to request
+     * @param headers The request headers to send
+     * @param body The encoded body to send, or <code>null</code> for no body
+     * @param deadline The time by which the response must arrive, or
+     * <code>null</code> to rely on the transport's own timeouts
+     * @param priority The priority to schedule the request with while it
+     * waits for a connection
+     */
+    public Request(final String method, final URI uri,
+            final Map<String, String> headers, final byte[] body,
+            final Deadline deadline, final Priority priority) {
+        this.method = method;
+        this.uri = uri;
+        this.headers = new LinkedHashMap<String, String>(headers);
+        this.body = body;
+        this.deadline = deadline;
+        this.priority = priority;
+    }
+
+    /**
+     * Gets the HTTP method of the request.
+     *
+     * @return The request's method
+     */
+    public String getMethod() {
+        return method;
+    }
+
+    /**
+     * Gets the absolute URI being requested.
+     *
+     * @return The request's URI
+     */
+    public URI getUri() {
+        return uri;
+    }
+
+    /**
+     * Gets the headers to send with the request.
+     *
+     * @return The request's headers
+     */
+    public Map<String, String> getHeaders() {
+        return Collections.unmodifiableMap(headers);
+    }
+
+    /**
+     * Gets the encoded body of the request.
+     *
+     * @return The request's body, or <code>null</code> if it has no body
+     */
+    public byte[] getBody() {
+        return body;
+    }
+
+    /**
+     * Gets the time by which the response must arrive. Transports use the
+     * time remaining as the request's connect and read timeouts, and abort
+     * the request if the deadline is cancelled.
+     *
+     * @return The request's deadline, or <code>null</code> if it has none
+     */
+    public Deadline getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * Gets the priority the request is scheduled with.
+     *
+     * @return The request's priority
+     */
+    public Priority getPriority() {
+        return priority;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+        return "Request{method=" + method + ", uri=" + uri + '}';
+    }
+
+}
@@ -0,0 +1,303 @@
+package com.mindlinksoft.foundationapi.demo.transport;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import com.mindlinksoft.foundationapi.demo.resilience.Deadline;
+
+/**
+ * Shares the response to a request among every caller which makes an
+ * identical request while it is in flight ("single flight"). The first caller
+ * for a key sends the request; callers arriving before it completes wait for
+ * and receive the same response body rather than sending their own. Once the
+ * request completes the key is forgotten, so responses are never served
+ * stale - this only collapses concurrent duplicates.
+ * <p>
+ * Only requests which are safe to share should be coalesced: in practice,
+ * GETs, keyed on the method and full URI.
+ * <p>
+ * Each caller waits for a shared response within its own {@link Deadline}.
+ * If the caller which sent the request gives up on it - its deadline passes
+ * or is cancelled, or it is interrupted - the others don't fail with it:
+ * one of them sends the request again.
+ */
+public class RequestCoalescer {
+
+    /** A description of a caller's wait for another's response. */
+    private static final String WAITING = "waiting for a shared response";
+
+    /**
+     * Sends a request whose response may be shared.
+     */
+    public interface Loader {
+
+        /**
+         * Sends the request on the calling thread.
+         *
+         * @return The body of the response
+         * @throws IOException If the request fails
+         */
+        byte[] load() throws IOException;
+
+    }
+
+    /** Requests currently in flight, keyed on method and URI. */
+    private final ConcurrentMap<String, CompletableFuture<byte[]>> inFlight
+            = new ConcurrentHashMap<String, CompletableFuture<byte[]>>();
+
+    /** The number of requests which shared another's response. */
+    private final AtomicLong hits = new AtomicLong();
+
+    /** The number of requests which were actually sent. */
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Sends a request, or waits for an identical one already in flight,
+     * within the calling thread's current deadline (if any).
+     *
+     * @param key The key identifying the request (method and URI)
+     * @param loader Sends the request if none is in flight
+     * @return The body of the response
+     * @throws IOException If the request fails, or the thread is interrupted
+     * while waiting for another caller's request
+     * @see #execute(String, Deadline, Loader)
+     */
+    public byte[] execute(final String key, final Loader loader)
+            throws IOException {
+        return execute(key, Deadline.current(), loader);
+    }
+
+    /**
+     * Sends a request, or waits for an identical one already in flight. If
+     * this caller sends the request, it does so on the calling thread.
+     *
+     * @param key The key identifying the request (method and URI)
+     * @param deadline The caller's deadline, which bounds any wait for
+     * another caller's request (may be <code>null</code>)
+     * @param loader Sends the request if none is in flight
+     * @return The body of the response
+     * @throws IOException If the request fails, the deadline passes or is
+     * cancelled, or the thread is interrupted while waiting for another
+     * caller's request
+     */
+    public byte[] execute(final String key, final Deadline deadline,
+            final Loader loader) throws IOException {
+        final CompletableFuture<byte[]> created
+                = new CompletableFuture<byte[]>();
+        CompletableFuture<byte[]> existing;
+
+        while ((existing = inFlight.putIfAbsent(key, created)) != null) {
+            hits.incrementAndGet();
+
+            try {
+                return (deadline == null ? Deadline.none() : deadline).await(
+                        existing, WAITING);
+            } catch (IOException | CancellationException ex) {
+                if (!isAbandoned(existing)) {
+                    throw ex;
+                }
+            }
+
+            // The caller which sent it gave up, so try again
+            inFlight.remove(key, existing);
+
+            if (deadline != null) {
+                deadline.check(WAITING);
+            }
+        }
+
+        misses.incrementAndGet();
+
+        try {
+            final byte[] body = loader.load();
+            created.complete(body);
+            return body;
+        } catch (IOException | RuntimeException ex) {
+            created.completeExceptionally(ex);
+            throw ex;
+        } finally {
+            inFlight.remove(key, created);
+        }
+    }
+
+    /**
+     * Sends a request without blocking, or shares an identical one already in
+     * flight, within the calling thread's current deadline (if any).
+     *
+     * @param key The key identifying the request (method and URI)
+     * @param loader Sends the request if none is in flight
+     * @return A future which completes with the body of the response
+     * @see #executeAsync(String, Deadline, Supplier)
+     */
+    public CompletableFuture<byte[]> executeAsync(final String key,
+            final Supplier<CompletableFuture<byte[]>> loader) {
+        return executeAsync(key, Deadline.current(), loader);
+    }
+
+    /**
+     * Sends a request without blocking, or shares an identical one already in
+     * flight. Should the request be sent again on the caller's behalf, that
+     * happens within the caller's deadline.
+     *
+     * @param key The key identifying the request (method and URI)
+     * @param deadline The caller's deadline, which bounds any wait for
+     * another caller's request (may be <code>null</code>)
+     * @param loader Sends the request if none is in flight
+     * @return A future which completes with the body of the response
+     */
+    public CompletableFuture<byte[]> executeAsync(final String key,
+            final Deadline deadline,
+            final Supplier<CompletableFuture<byte[]>> loader) {
+        final CompletableFuture<byte[]> created
+                = new CompletableFuture<byte[]>();
+        final CompletableFuture<byte[]> existing = inFlight.putIfAbsent(key,
+                created);
+
+        if (existing != null) {
+            hits.incrementAndGet();
+
+            final CompletableFuture<byte[]> shared = deadline == null
+                    ? existing : deadline.bound(existing, WAITING);
+
+            // A dependent future, so that this caller cancelling can't
+            // affect the others
+            return shared.handle((body, ex) -> {
+                if (ex == null) {
+                    return CompletableFuture.completedFuture(body);
+                }
+
+                if (isAbandoned(existing)) {
+                    inFlight.remove(key, existing);
+                    return retryAsync(key, deadline, loader);
+                }
+
+                return CompletableFuture.<byte[]>failedFuture(
+                        ex instanceof CompletionException
+                        && ex.getCause() != null ? ex.getCause() : ex);
+            }).thenCompose(result -> result);
+        }
+
+        misses.incrementAndGet();
+
+        CompletableFuture<byte[]> request;
+
+        try {
+            request = loader.get();
+        } catch (RuntimeException ex) {
+            request = CompletableFuture.failedFuture(ex);
+        }
+
+        request.whenComplete((body, ex) -> {
+            inFlight.remove(key, created);
+
+            if (ex == null) {
+                created.complete(body);
+            } else {
+                created.completeExceptionally(ex instanceof CompletionException
+                        && ex.getCause() != null ? ex.getCause() : ex);
+            }
+        });
+
+        // Callers get a dependent future, so one cancelling can't affect
+        // the others
+        return created.thenApply(body -> body);
+    }
+
+    /**
+     * Sends a request again after the caller which sent it gave up, from
+     * within the deadline of the caller now sending it.
+     *
+     * @param key The key identifying the request (method and URI)
+     * @param deadline The caller's deadline (may be <code>null</code>)
+     * @param loader Sends the request if none is in flight
+     * @return A future which completes with the body of the response
+     */
+    private CompletableFuture<byte[]> retryAsync(final String key,
+            final Deadline deadline,
+            final Supplier<CompletableFuture<byte[]>> loader) {
+        if (deadline == null) {
+            return executeAsync(key, null, loader);
+        }
+
+        final IOException failure = deadline.getFailure(WAITING);
+
+        if (failure != null) {
+            return CompletableFuture.failedFuture(failure);
+        }
+
+        final Deadline.Scope scope = deadline.enter();
+
+        try {
+            return executeAsync(key, deadline, loader);
+        } finally {
+            scope.close();
+        }
+    }
+
+    /**
+     * Determines whether a request failed because the caller which sent it
+     * gave up on it, rather than because of the request itself: a failure
+     * which the other callers waiting for it shouldn't share.
+     *
+     * @param future The request's future
+     * @return <code>true</code> if the request was abandoned by its sender
+     */
+    private static boolean isAbandoned(final CompletableFuture<byte[]> future) {
+        if (!future.isCompletedExceptionally()) {
+            return false;
+        }
+
+        try {
+            future.getNow(null);
+            return false;
+        } catch (CancellationException ex) {
+            return true;
+        } catch (CompletionException ex) {
+            // Includes DeadlineExceededException
+            return ex.getCause() instanceof InterruptedIOException
+                    || ex.getCause() instanceof CancellationException;
+        }
+    }
+
+    /**
+     * Gets the number of requests which shared another caller's response.
+     *
+     * @return The number of coalesced requests
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Gets the number of requests which were actually sent.
+     *
+     * @return The number of requests sent
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Gets the number of distinct requests currently in flight.
+     *
+     * @return The number of requests in flight
+     */
+    public int getInFlight() {
+        return inFlight.size();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+        return "RequestCoalescer{hits=" + hits + ", misses=" + misses
+                + ", inFlight=" + inFlight.size() + '}';
+    }
+
+}
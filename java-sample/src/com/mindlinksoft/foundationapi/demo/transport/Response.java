@@ -0,0 +1,111 @@
+package com.mindlinksoft.foundationapi.demo.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A response received from the Foundation API whose body has not yet been
+ * read. The response holds on to its underlying connection until it is
+ * closed, at which point any unread content is drained so that the connection
+ * can be returned to its pool and reused.
+ */
+public class Response implements Closeable {
+
+    /** The maximum number of unread bytes to drain when closing. */
+    private static final int MAX_DRAIN_BYTES = 64 * 1024;
+
+    /** The HTTP status code of the response. */
+    private final int statusCode;
+
+    /** The stream the response body can be read from. */
+    private final InputStream body;
+
+    /** Called once the response has been closed (may be <code>null</code>). */
+    private final Runnable onClose;
+
+    /** Whether or not the response has been closed yet. */
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    /**
+     * Creates a new {@link Response}.
+     *
+     * @param statusCode The HTTP status code of the response
+     * @param body The stream the response body can be read from
+     * @param onClose Callback to invoke once the response has been closed
+     * (may be <code>null</code>)
+     */
+    public Response(final int statusCode, final InputStream body,
+            final Runnable onClose) {
+        this.statusCode = statusCode;
+        this.body = body;
+        this.onClose = onClose;
+    }
+
+    /**
+     * Gets the HTTP status code of the response.
+     *
+     * @return The response's status code
+     */
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * Determines whether the response indicates success (a 2xx status).
+     *
+     * @return <code>true</code> if the request succeeded; <code>false</code>
+     * otherwise
+     */
+    public boolean isSuccessful() {
+        return statusCode >= 200 && statusCode < 300;
+    }
+
+    /**
+     * Gets the stream the response body can be read from. The stream should
+     * not be closed directly; close the response instead.
+     *
+     * @return The response body
+     */
+    public InputStream getBody() {
+        return body;
+    }
+
+    /**
+     * Closes the response. Up to 64 KiB of unread content is drained so that
+     * the underlying connection may be kept alive; larger remainders cause the
+     * connection to be discarded instead.
+     *
+     * @throws IOException If the body stream cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            final byte[] buffer = new byte[4096];
+            int drained = 0;
+            int read;
+
+            while (drained < MAX_DRAIN_BYTES
+                    && (read = body.read(buffer)) != -1) {
+                drained += read;
+            }
+        } catch (IOException ex) {
+            // The connection can't be reused, but that's no reason to fail
+            // a request that has otherwise completed.
+        } finally {
+            try {
+                body.close();
+            } finally {
+                if (onClose != null) {
+                    onClose.run();
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,38 @@
+package com.mindlinksoft.foundationapi.demo.transport;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Sends requests to the Foundation API on behalf of an agent. Agents build
+ * each request (URI, headers and encoded body) and hand it to their transport;
+ * everything above the transport - authentication, retries, circuit breaking,
+ * limits and metrics - is unaware of how the request actually reaches the
+ * server.
+ * <p>
+ * {@link ConnectionPool} sends requests over HTTP.
+ * {@link InMemoryFoundationApi} answers them in-process, so agents can be
+ * exercised, load-tested and benchmarked without a server.
+ */
+public interface Transport {
+
+    /**
+     * Sends a request, blocking until the response's status is known. The
+     * caller must close the returned response once it has read the body.
+     *
+     * @param request The request to send
+     * @return The response, whose body may not yet have been read
+     * @throws IOException If the request could not be sent
+     */
+    Response send(Request request) throws IOException;
+
+    /**
+     * Sends a request without blocking the calling thread.
+     *
+     * @param request The request to send
+     * @return A future which completes with the response, or completes
+     * exceptionally with an {@link IOException} if the request fails
+     */
+    CompletableFuture<Response> sendAsync(Request request);
+
+}
@@ -0,0 +1,81 @@
+package com.mindlinksoft.foundationapi.demo;
+
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Assertions for the sample's tests (see {@link TestRunner}). Each throws an
+ * {@link AssertionError} describing what was expected.
+ */
+public final class Assert {
+
+    /** How long {@link #waitFor(String, BooleanSupplier)} waits. */
+    private static final long WAIT_MILLIS = 10000;
+
+    /**
+     * Not instantiated.
+     */
+    private Assert() {
+    }
+
+    /**
+     * Fails the test.
+     *
+     * @param message What went wrong
+     */
+    public static void fail(final String message) {
+        throw new AssertionError(message);
+    }
+
+    /**
+     * Checks that a condition holds.
+     *
+     * @param message What the condition means
+     * @param condition The condition
+     */
+    public static void assertTrue(final String message,
+            final boolean condition) {
+        if (!condition) {
+            fail(message);
+        }
+    }
+
+    /**
+     * Checks that a value is as expected.
+     *
+     * @param message What the value is
+     * @param expected The expected value
+     * @param actual The actual value
+     */
+    public static void assertEquals(final String message,
+            final Object expected, final Object actual) {
+        if (!Objects.equals(expected, actual)) {
+            fail(message + ": expected <" + expected + "> but was <" + actual
+                    + ">");
+        }
+    }
+
+    /**
+     * Waits for a condition which is expected to come about on another
+     * thread, failing if it doesn't within ten seconds.
+     *
+     * @param message What the condition means
+     * @param condition The condition
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public static void waitFor(final String message,
+            final BooleanSupplier condition) throws InterruptedException {
+        final long end = System.nanoTime()
+                + TimeUnit.MILLISECONDS.toNanos(WAIT_MILLIS);
+
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() - end > 0) {
+                fail("Timed out waiting until " + message);
+            }
+
+            Thread.sleep(10);
+        }
+    }
+
+}
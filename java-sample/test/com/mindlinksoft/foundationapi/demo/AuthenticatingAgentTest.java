@@ -0,0 +1,178 @@
+package com.mindlinksoft.foundationapi.demo;
+
+import static com.mindlinksoft.foundationapi.demo.Assert.assertEquals;
+import static com.mindlinksoft.foundationapi.demo.Assert.assertTrue;
+import static com.mindlinksoft.foundationapi.demo.Assert.fail;
+import static com.mindlinksoft.foundationapi.demo.Assert.waitFor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+import com.mindlinksoft.foundationapi.demo.resilience.AdaptiveConcurrencyLimiter;
+import com.mindlinksoft.foundationapi.demo.resilience.CircuitBreaker;
+import com.mindlinksoft.foundationapi.demo.resilience.CircuitBreakerOpenException;
+import com.mindlinksoft.foundationapi.demo.resilience.Deadline;
+import com.mindlinksoft.foundationapi.demo.resilience.DeadlineExceededException;
+import com.mindlinksoft.foundationapi.demo.resilience.RetryPolicy;
+import com.mindlinksoft.foundationapi.demo.transport.InMemoryFoundationApi;
+
+/**
+ * Tests the accounting of an agent's concurrency limiter and circuit breaker
+ * against {@link InMemoryFoundationApi}.
+ */
+public class AuthenticatingAgentTest {
+
+    /** The base URL the agents are given; never contacted. */
+    private static final String BASE_URL = "http://localhost";
+
+    /** The stand-in API. */
+    private final InMemoryFoundationApi api
+            = new InMemoryFoundationApi("user", "pass");
+
+    /** The agent under test. */
+    private final SimpleCollaborationAgent agent;
+
+    /**
+     * Creates the agent, with a few channels to look up.
+     */
+    public AuthenticatingAgentTest() {
+        for (int i = 0; i < 8; i++) {
+            api.addChannel("chat-room:" + i, "Channel " + i);
+        }
+
+        agent = new SimpleCollaborationAgent(BASE_URL, "user", "pass",
+                "agent", api);
+    }
+
+    /**
+     * Requests refused at admission, because their deadline passed while
+     * waiting for the limiter, release nothing and don't count as failures.
+     *
+     * @throws Exception If the test fails
+     */
+    public void testRefusedAdmissionsLeaveAccountingBalanced()
+            throws Exception {
+        agent.getChannels();
+
+        final AdaptiveConcurrencyLimiter limiter
+                = new AdaptiveConcurrencyLimiter(2, 2, 2, 100000);
+        agent.setConcurrencyLimiter(limiter);
+        api.setLatency(300, TimeUnit.MILLISECONDS);
+
+        final List<CompletableFuture<Channel>> admitted
+                = new ArrayList<CompletableFuture<Channel>>();
+        final List<CompletableFuture<Channel>> refused
+                = new ArrayList<CompletableFuture<Channel>>();
+        admitted.add(agent.getChannelInformationAsync("chat-room:0"));
+        admitted.add(agent.getChannelInformationAsync("chat-room:1"));
+
+        for (int i = 2; i < 6; i++) {
+            final Deadline.Scope scope = Deadline.after(50,
+                    TimeUnit.MILLISECONDS).enter();
+
+            try {
+                refused.add(agent.getChannelInformationAsync(
+                        "chat-room:" + i));
+            } finally {
+                scope.close();
+            }
+        }
+
+        for (CompletableFuture<Channel> future : refused) {
+            try {
+                future.join();
+                fail("Request should not have been admitted");
+            } catch (CompletionException ex) {
+                assertTrue("Refused with " + ex.getCause(),
+                        ex.getCause() instanceof DeadlineExceededException);
+            }
+        }
+
+        for (CompletableFuture<Channel> future : admitted) {
+            future.join();
+        }
+
+        waitFor("every permit is released",
+                () -> limiter.getInFlight() == 0);
+        assertEquals("unmatched releases", 0L, limiter.getUnmatchedCount());
+        assertEquals("dropped", 0L, limiter.getDroppedCount());
+        assertEquals("breaker", CircuitBreaker.State.CLOSED,
+                agent.getCircuitBreaker().getState());
+    }
+
+    /**
+     * Concurrent requests which all succeed give back every permit.
+     *
+     * @throws Exception If the test fails
+     */
+    public void testConcurrentRequestsReleaseEveryPermit() throws Exception {
+        final AdaptiveConcurrencyLimiter limiter
+                = new AdaptiveConcurrencyLimiter(4, 1, 16, 100000);
+        agent.setConcurrencyLimiter(limiter);
+        api.setLatency(5, TimeUnit.MILLISECONDS);
+
+        final List<CompletableFuture<Channel>> futures
+                = new ArrayList<CompletableFuture<Channel>>();
+
+        for (int i = 0; i < 64; i++) {
+            futures.add(agent.getChannelInformationAsync(
+                    "chat-room:" + (i % 8)));
+        }
+
+        for (int i = 0; i < futures.size(); i++) {
+            assertEquals("channel", "chat-room:" + (i % 8),
+                    futures.get(i).join().getId());
+        }
+
+        waitFor("every permit is released",
+                () -> limiter.getInFlight() == 0);
+        assertEquals("unmatched releases", 0L, limiter.getUnmatchedCount());
+        assertEquals("breaker", CircuitBreaker.State.CLOSED,
+                agent.getCircuitBreaker().getState());
+    }
+
+    /**
+     * Consecutive failures open the circuit breaker, which then refuses
+     * requests without sending them or holding a permit.
+     *
+     * @throws Exception If the test fails
+     */
+    public void testFailuresOpenCircuitBreaker() throws Exception {
+        final AdaptiveConcurrencyLimiter limiter
+                = new AdaptiveConcurrencyLimiter();
+        agent.setConcurrencyLimiter(limiter);
+        agent.setRetryPolicy(new RetryPolicy(1, 10, 10));
+        agent.getChannels();
+        api.setErrorRate(1.0);
+
+        for (int i = 0; i < CircuitBreaker.DEFAULT_FAILURE_THRESHOLD; i++) {
+            try {
+                agent.getChannels();
+                fail("Request should have failed");
+            } catch (IOException ex) {
+                assertTrue("Failed with " + ex,
+                        !(ex instanceof CircuitBreakerOpenException));
+            }
+        }
+
+        assertEquals("breaker", CircuitBreaker.State.OPEN,
+                agent.getCircuitBreaker().getState());
+
+        final long sent = api.getRequestCount();
+
+        try {
+            agent.getChannels();
+            fail("Request should have been refused");
+        } catch (CircuitBreakerOpenException ex) {
+            assertEquals("requests sent", sent, api.getRequestCount());
+        }
+
+        assertEquals("in flight", 0, limiter.getInFlight());
+        assertEquals("unmatched releases", 0L, limiter.getUnmatchedCount());
+    }
+
+}
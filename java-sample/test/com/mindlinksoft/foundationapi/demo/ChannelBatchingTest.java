@@ -0,0 +1,222 @@
+package com.mindlinksoft.foundationapi.demo;
+
+import static com.mindlinksoft.foundationapi.demo.Assert.assertEquals;
+import static com.mindlinksoft.foundationapi.demo.Assert.assertTrue;
+import static com.mindlinksoft.foundationapi.demo.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.mindlinksoft.foundationapi.demo.cluster.Cluster;
+import com.mindlinksoft.foundationapi.demo.transport.InMemoryFoundationApi;
+import com.mindlinksoft.foundationapi.demo.transport.Request;
+import com.mindlinksoft.foundationapi.demo.transport.Response;
+import com.mindlinksoft.foundationapi.demo.transport.Transport;
+
+/**
+ * Tests how batched channel lookups are loaded: from one listing of the
+ * agent's channels when a batch asks for enough of them, and otherwise one
+ * channel at a time.
+ */
+public class ChannelBatchingTest {
+
+    /** The number of channels the agent is provisioned for. */
+    private static final int CHANNELS = 100;
+
+    /** The address of the listing of channels. */
+    private static final String LISTING = "/Collaboration/v1/Channels";
+
+    /** The stand-in API. */
+    private final InMemoryFoundationApi api
+            = new InMemoryFoundationApi("user", "pass");
+
+    /** The number of listings requested. */
+    private final AtomicLong listings = new AtomicLong();
+
+    /** The number of single channels requested. */
+    private final AtomicLong fetches = new AtomicLong();
+
+    /** Whether requests for the listing fail. */
+    private volatile boolean listingFails;
+
+    /** Counts requests for channels, and fails listings if asked to. */
+    private final Transport transport = new Transport() {
+        @Override
+        public Response send(final Request request) throws IOException {
+            if (count(request)) {
+                throw new IOException("Listing unavailable");
+            }
+
+            return api.send(request);
+        }
+
+        @Override
+        public CompletableFuture<Response> sendAsync(final Request request) {
+            if (count(request)) {
+                return CompletableFuture.failedFuture(
+                        new IOException("Listing unavailable"));
+            }
+
+            return api.sendAsync(request);
+        }
+    };
+
+    /** The agent under test. */
+    private final SimpleCollaborationAgent agent = new SimpleCollaborationAgent(
+            new Cluster("http://localhost"), "user", "pass", "agent",
+            transport);
+
+    /**
+     * Creates the channels, and enables batching with a window long enough
+     * for each test's lookups to share a batch.
+     */
+    public ChannelBatchingTest() {
+        for (int i = 0; i < CHANNELS; i++) {
+            api.addChannel("chat-room:" + i, "Channel " + i);
+        }
+
+        agent.setChannelBatching(200, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * A lone lookup fetches its channel, as there's nothing to share a
+     * listing with.
+     *
+     * @throws Exception If the test fails
+     */
+    public void testSingleLookupIsFetched() throws Exception {
+        assertEquals("channel", "Channel 7",
+                agent.getChannelInformation("chat-room:7").getDisplayName());
+        assertEquals("listings", 0L, listings.get());
+        assertEquals("fetches", 1L, fetches.get());
+    }
+
+    /**
+     * Before the agent has seen how many channels there are, a batch is
+     * loaded from a listing. Afterwards, batches asking for fewer than a
+     * twentieth of the channels listed fetch each one, and larger batches
+     * are loaded from a listing again.
+     *
+     * @throws Exception If the test fails
+     */
+    public void testListingUsedForLargeBatches() throws Exception {
+        lookUp(0, 2);
+        assertEquals("first batch listings", 1L, listings.get());
+        assertEquals("first batch fetches", 0L, fetches.get());
+
+        final int threshold = CHANNELS / 20;
+        lookUp(10, threshold - 1);
+        assertEquals("small batch listings", 1L, listings.get());
+        assertEquals("small batch fetches", threshold - 1L, fetches.get());
+
+        lookUp(20, threshold);
+        assertEquals("large batch listings", 2L, listings.get());
+        assertEquals("large batch fetches", threshold - 1L, fetches.get());
+
+        assertEquals("batches", 3L, agent.getChannelLoader().getBatches());
+        assertEquals("lookups", 2L + 2 * threshold - 1,
+                agent.getChannelLoader().getLookups());
+    }
+
+    /**
+     * A channel missing from the listing is fetched on its own, and fails
+     * just as it would unbatched, without failing the rest of the batch.
+     *
+     * @throws Exception If the test fails
+     */
+    public void testMissingChannelFailsAsUnbatched() throws Exception {
+        final CompletableFuture<Channel> known
+                = agent.getChannelInformationAsync("chat-room:1");
+        final CompletableFuture<Channel> missing
+                = agent.getChannelInformationAsync("chat-room:missing");
+        assertEquals("known", "chat-room:1", known.join().getId());
+
+        final Throwable batched = getFailure(missing);
+        assertEquals("listings", 1L, listings.get());
+        assertEquals("fetches", 1L, fetches.get());
+
+        agent.setChannelBatching(0, TimeUnit.MILLISECONDS);
+        final Throwable unbatched = getFailure(
+                agent.getChannelInformationAsync("chat-room:missing"));
+        assertEquals("failure", unbatched.getClass(), batched.getClass());
+        assertEquals("message", unbatched.getMessage(), batched.getMessage());
+    }
+
+    /**
+     * Should the listing fail, every channel in the batch is fetched on its
+     * own rather than failing with it.
+     *
+     * @throws Exception If the test fails
+     */
+    public void testFailedListingFallsBackToFetches() throws Exception {
+        listingFails = true;
+        lookUp(0, 3);
+        assertTrue("listing attempted", listings.get() >= 1);
+        assertEquals("fetches", 3L, fetches.get());
+    }
+
+    /**
+     * Looks up a run of channels in one batch, and checks each result.
+     *
+     * @param first The number of the first channel
+     * @param count The number of channels to look up
+     */
+    private void lookUp(final int first, final int count) {
+        final List<CompletableFuture<Channel>> lookups
+                = new ArrayList<CompletableFuture<Channel>>();
+
+        for (int i = first; i < first + count; i++) {
+            lookups.add(agent.getChannelInformationAsync("chat-room:" + i));
+        }
+
+        for (int i = 0; i < count; i++) {
+            assertEquals("channel " + (first + i), "Channel " + (first + i),
+                    lookups.get(i).join().getDisplayName());
+        }
+    }
+
+    /**
+     * Waits for a lookup which should fail.
+     *
+     * @param lookup The lookup
+     * @return The reason it failed
+     */
+    private static Throwable getFailure(
+            final CompletableFuture<Channel> lookup) {
+        try {
+            lookup.join();
+            fail("The lookup should fail");
+            return null;
+        } catch (CompletionException ex) {
+            return ex.getCause();
+        }
+    }
+
+    /**
+     * Counts a request for the listing or for a single channel.
+     *
+     * @param request The request
+     * @return <code>true</code> if the request is for the listing and
+     * should fail
+     */
+    private boolean count(final Request request) {
+        final String path = request.getUri().getPath();
+
+        if (path.equals(LISTING)) {
+            listings.incrementAndGet();
+            return listingFails;
+        }
+
+        if (path.startsWith(LISTING + "/")) {
+            fetches.incrementAndGet();
+        }
+
+        return false;
+    }
+
+}
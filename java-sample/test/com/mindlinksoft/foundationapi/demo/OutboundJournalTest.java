@@ -0,0 +1,106 @@
+package com.mindlinksoft.foundationapi.demo;
+
+import static com.mindlinksoft.foundationapi.demo.Assert.assertEquals;
+import static com.mindlinksoft.foundationapi.demo.Assert.waitFor;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.mindlinksoft.foundationapi.demo.resilience.RetryPolicy;
+import com.mindlinksoft.foundationapi.demo.transport.InMemoryFoundationApi;
+
+/**
+ * Tests that messages sent through an {@link OutboundJournal} survive a
+ * restart, against {@link InMemoryFoundationApi}.
+ */
+public class OutboundJournalTest {
+
+    /** The base URL the agents are given; never contacted. */
+    private static final String BASE_URL = "http://localhost";
+
+    /** Retries deliveries quickly, so the test doesn't wait long. */
+    private static final RetryPolicy RETRY_POLICY
+            = new RetryPolicy(Integer.MAX_VALUE, 20, 100);
+
+    /**
+     * Messages which couldn't be delivered before the journal was closed are
+     * delivered, in order, once it is opened again by a new agent; a record
+     * torn by a crash while it was written is ignored.
+     *
+     * @throws Exception If the test fails
+     */
+    public void testUndeliveredMessagesAreReplayedAfterRestart()
+            throws Exception {
+        final Path file = Files.createTempDirectory("journal")
+                .resolve("outbound.journal");
+        final InMemoryFoundationApi api
+                = new InMemoryFoundationApi("user", "pass");
+        api.addChannel("chat-room:a", "A");
+        api.addChannel("chat-room:b", "B");
+
+        final SimpleCollaborationAgent first = new SimpleCollaborationAgent(
+                BASE_URL, "user", "pass", "agent", api);
+        first.getChannels();
+        api.setErrorRate(1.0);
+
+        final OutboundJournal journal = new OutboundJournal(file,
+                RETRY_POLICY);
+        first.setOutboundJournal(journal);
+
+        for (int i = 0; i < 5; i++) {
+            first.sendMessage("chat-room:a", "a" + i);
+            first.sendMessage("chat-room:b", "b" + i);
+        }
+
+        assertEquals("waiting", 10, journal.getDepth());
+        first.setOutboundJournal(null);
+        Files.write(file, "{\"Seq\":99,\"Chan".getBytes(
+                StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        api.setErrorRate(0);
+
+        final SimpleCollaborationAgent second = new SimpleCollaborationAgent(
+                BASE_URL, "user", "pass", "agent", api);
+        final OutboundJournal reopened = new OutboundJournal(file,
+                RETRY_POLICY);
+        second.setOutboundJournal(reopened);
+
+        try {
+            waitFor("every message is delivered",
+                    () -> reopened.getDepth() == 0);
+            assertEquals("delivered", 10L, reopened.getDelivered());
+            assertEquals("chat-room:a", Arrays.asList("a0", "a1", "a2",
+                    "a3", "a4"), getHistory(second, "chat-room:a"));
+            assertEquals("chat-room:b", Arrays.asList("b0", "b1", "b2",
+                    "b3", "b4"), getHistory(second, "chat-room:b"));
+        } finally {
+            second.setOutboundJournal(null);
+        }
+    }
+
+    /**
+     * Gets the text of the messages in a channel, oldest first.
+     *
+     * @param agent The agent to read the channel with
+     * @param channelId The channel
+     * @return The text of each message
+     * @throws Exception If the history can't be read
+     */
+    private static List<String> getHistory(
+            final SimpleCollaborationAgent agent, final String channelId)
+            throws Exception {
+        final List<String> texts = new ArrayList<String>();
+
+        for (Message message : agent.getChannelHistory(channelId, 20, null)) {
+            texts.add(message.getText());
+        }
+
+        return texts;
+    }
+
+}
@@ -0,0 +1,104 @@
+package com.mindlinksoft.foundationapi.demo;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Runs the sample's tests without any test framework, so that they build
+ * with nothing but the JDK. A test is a public, no-argument method whose
+ * name starts with <code>test</code>, on a class whose name ends with
+ * <code>Test</code>; each is run on a new instance of its class, and fails
+ * by throwing.
+ * <p>
+ * Run with <code>ant test</code>, or directly with the directory the tests
+ * were compiled to as the only argument. The process exits with status 1 if
+ * any test fails.
+ */
+public final class TestRunner {
+
+    /**
+     * Not instantiated.
+     */
+    private TestRunner() {
+    }
+
+    /**
+     * Runs every test compiled to the given directory.
+     *
+     * @param args The directory the tests were compiled to
+     * @throws IOException If the directory can't be read
+     * @throws ReflectiveOperationException If a test class can't be loaded
+     */
+    public static void main(final String[] args)
+            throws IOException, ReflectiveOperationException {
+        final Path root = Paths.get(args.length > 0 ? args[0] : "build-test");
+        final List<String> failures = new ArrayList<String>();
+        int run = 0;
+
+        for (String className : findTestClasses(root)) {
+            final Class<?> type = Class.forName(className);
+            final Method[] methods = type.getMethods();
+            Arrays.sort(methods, Comparator.comparing(Method::getName));
+
+            for (Method method : methods) {
+                if (!method.getName().startsWith("test")
+                        || method.getParameterCount() != 0
+                        || Modifier.isStatic(method.getModifiers())) {
+                    continue;
+                }
+
+                final String name = type.getSimpleName() + "."
+                        + method.getName();
+                final long startedAt = System.nanoTime();
+                run++;
+
+                try {
+                    method.invoke(type.getDeclaredConstructor().newInstance());
+                    System.out.printf("PASS %s (%d ms)%n", name,
+                            (System.nanoTime() - startedAt) / 1000000);
+                } catch (InvocationTargetException ex) {
+                    failures.add(name);
+                    System.out.println("FAIL " + name);
+                    ex.getCause().printStackTrace(System.out);
+                }
+            }
+        }
+
+        System.out.printf("%d tests, %d failed%n", run, failures.size());
+
+        if (!failures.isEmpty()) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Finds the test classes compiled to a directory.
+     *
+     * @param root The directory
+     * @return The names of the test classes, in alphabetical order
+     * @throws IOException If the directory can't be read
+     */
+    private static List<String> findTestClasses(final Path root)
+            throws IOException {
+        try (Stream<Path> files = Files.walk(root)) {
+            return files.map(file -> root.relativize(file).toString())
+                    .filter(file -> file.endsWith("Test.class"))
+                    .map(file -> file.substring(0, file.length() - 6)
+                            .replace(root.getFileSystem().getSeparator(), "."))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+}
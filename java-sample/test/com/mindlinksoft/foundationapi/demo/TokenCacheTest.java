@@ -0,0 +1,239 @@
+package com.mindlinksoft.foundationapi.demo;
+
+import static com.mindlinksoft.foundationapi.demo.Assert.assertEquals;
+import static com.mindlinksoft.foundationapi.demo.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.mindlinksoft.foundationapi.demo.cluster.Cluster;
+import com.mindlinksoft.foundationapi.demo.transport.InMemoryFoundationApi;
+
+/**
+ * Tests the expiry of tokens in a {@link TokenCache}, its locking against
+ * other threads and processes sharing the file, and restoring a session's
+ * token from it.
+ */
+public class TokenCacheTest {
+
+    /** The number of tokens each writer stores. */
+    private static final int TOKENS_PER_WRITER = 40;
+
+    /** The cache file. */
+    private final Path file;
+
+    /**
+     * Creates a directory for the cache file.
+     *
+     * @throws Exception If the directory can't be created
+     */
+    public TokenCacheTest() throws Exception {
+        file = Files.createTempDirectory("tokens").resolve("tokens.json");
+    }
+
+    /**
+     * Stores tokens in a cache shared with other processes; run by
+     * {@link TokenCacheTest#testConcurrentProcessesLoseNothing()}.
+     */
+    public static class Writer {
+
+        /**
+         * Stores tokens under keys of the form <code>name i</code>.
+         *
+         * @param args The cache file and the writer's name
+         * @throws Exception If a token can't be stored
+         */
+        public static void main(final String[] args) throws Exception {
+            store(new TokenCache(Paths.get(args[0])), args[1]);
+        }
+
+    }
+
+    /**
+     * Tokens are handed back under their own key until they reach the
+     * cache's maximum age, and never from a missing file.
+     *
+     * @throws Exception If the test fails
+     */
+    public void testTokensExpire() throws Exception {
+        final TokenCache cache = new TokenCache(file, 60000);
+        final long now = System.currentTimeMillis();
+        assertEquals("no file", null, cache.load("a"));
+
+        cache.store("a", "token-a", now);
+        cache.store("b", "token-b", now - 59000);
+        cache.store("c", "token-c", now - 60000);
+
+        assertEquals("a", "token-a", cache.load("a").getToken());
+        assertEquals("a issued", now, cache.load("a").getIssuedAt());
+        assertEquals("b", "token-b", cache.load("b").getToken());
+        assertEquals("c expired", null, cache.load("c"));
+        assertEquals("unknown", null, cache.load("d"));
+        assertEquals("shorter max age", null,
+                new TokenCache(file, 30000).load("b"));
+
+        cache.remove("a");
+        assertEquals("removed", null, cache.load("a"));
+        assertEquals("b kept", "token-b", cache.load("b").getToken());
+    }
+
+    /**
+     * Writing the cache discards every expired token, so the file doesn't
+     * grow without bound.
+     *
+     * @throws Exception If the test fails
+     */
+    public void testExpiredTokensAreDiscarded() throws Exception {
+        final TokenCache cache = new TokenCache(file, 60000);
+        final long now = System.currentTimeMillis();
+        cache.store("old", "token-old", now - 120000);
+        cache.store("new", "token-new", now);
+
+        final String contents = new String(Files.readAllBytes(file),
+                StandardCharsets.UTF_8);
+        assertTrue("old token discarded: " + contents,
+                !contents.contains("token-old"));
+        assertTrue("new token kept: " + contents,
+                contents.contains("token-new"));
+    }
+
+    /**
+     * A file which can't be parsed, such as one torn by a crash, is
+     * treated as empty and then replaced.
+     *
+     * @throws Exception If the test fails
+     */
+    public void testCorruptFileIsReplaced() throws Exception {
+        Files.write(file, "{\"a\":{\"Token\":\"tor".getBytes(
+                StandardCharsets.UTF_8));
+        final TokenCache cache = new TokenCache(file);
+        assertEquals("torn", null, cache.load("a"));
+
+        cache.store("a", "token-a", System.currentTimeMillis());
+        assertEquals("replaced", "token-a", cache.load("a").getToken());
+    }
+
+    /**
+     * Threads storing through separate caches on one file, alongside other
+     * processes doing the same, lose none of each other's tokens.
+     *
+     * @throws Exception If the test fails
+     */
+    public void testConcurrentProcessesLoseNothing() throws Exception {
+        final List<Process> processes = new ArrayList<Process>();
+
+        for (int i = 0; i < 2; i++) {
+            processes.add(new ProcessBuilder(Paths.get(
+                    System.getProperty("java.home"), "bin", "java")
+                    .toString(), "-cp", System.getProperty(
+                    "java.class.path"), Writer.class.getName(),
+                    file.toString(), "process" + i).inheritIO().start());
+        }
+
+        final List<Thread> threads = new ArrayList<Thread>();
+
+        for (int i = 0; i < 4; i++) {
+            final String name = "thread" + i;
+            final Thread thread = new Thread(() -> {
+                try {
+                    store(new TokenCache(file), name);
+                } catch (Exception ex) {
+                    throw new IllegalStateException(ex);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        for (Process process : processes) {
+            assertTrue("writer finishes", process.waitFor(60,
+                    TimeUnit.SECONDS));
+            assertEquals("writer's exit status", 0, process.exitValue());
+        }
+
+        final TokenCache cache = new TokenCache(file);
+        final List<String> names = new ArrayList<String>();
+
+        for (int i = 0; i < 2; i++) {
+            names.add("process" + i);
+        }
+
+        for (int i = 0; i < 4; i++) {
+            names.add("thread" + i);
+        }
+
+        for (String name : names) {
+            for (int i = 0; i < TOKENS_PER_WRITER; i++) {
+                final TokenCache.CachedToken cached = cache.load(
+                        name + " " + i);
+                assertTrue(name + " " + i + " kept", cached != null);
+                assertEquals(name + " " + i, "token " + name + " " + i,
+                        cached.getToken());
+            }
+        }
+    }
+
+    /**
+     * A new session sharing the cache carries on with the token an earlier
+     * session obtained, rather than authenticating again, until it expires.
+     *
+     * @throws Exception If the test fails
+     */
+    public void testSessionRestoresCachedToken() throws Exception {
+        final InMemoryFoundationApi api
+                = new InMemoryFoundationApi("user", "pass");
+        api.addChannel("chat-room:a", "A");
+
+        createAgent(api, new TokenCache(file)).getChannels();
+        assertEquals("first session authenticates", 1L,
+                api.getAuthenticationCount());
+
+        createAgent(api, new TokenCache(file)).getChannels();
+        assertEquals("second session restores the token", 1L,
+                api.getAuthenticationCount());
+
+        createAgent(api, new TokenCache(file, 0)).getChannels();
+        assertEquals("expired token is replaced", 2L,
+                api.getAuthenticationCount());
+    }
+
+    /**
+     * Creates an agent on a new session which caches its tokens.
+     *
+     * @param api The stand-in API
+     * @param cache The token cache
+     * @return The agent
+     */
+    private static SimpleCollaborationAgent createAgent(
+            final InMemoryFoundationApi api, final TokenCache cache) {
+        final Session session = new Session(new Cluster("http://localhost"),
+                "user", "pass", "agent", api);
+        session.setTokenCache(cache);
+        return new SimpleCollaborationAgent(session);
+    }
+
+    /**
+     * Stores {@link #TOKENS_PER_WRITER} tokens, each under its own key.
+     *
+     * @param cache The cache to store them in
+     * @param name The writer's name, which prefixes each key
+     * @throws Exception If a token can't be stored
+     */
+    private static void store(final TokenCache cache, final String name)
+            throws Exception {
+        for (int i = 0; i < TOKENS_PER_WRITER; i++) {
+            cache.store(name + " " + i, "token " + name + " " + i,
+                    System.currentTimeMillis());
+        }
+    }
+
+}
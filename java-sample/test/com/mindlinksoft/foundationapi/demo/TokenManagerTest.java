@@ -0,0 +1,214 @@
+package com.mindlinksoft.foundationapi.demo;
+
+import static com.mindlinksoft.foundationapi.demo.Assert.assertEquals;
+import static com.mindlinksoft.foundationapi.demo.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.mindlinksoft.foundationapi.demo.transport.InMemoryFoundationApi;
+import com.mindlinksoft.foundationapi.demo.transport.Request;
+import com.mindlinksoft.foundationapi.demo.transport.Response;
+import com.mindlinksoft.foundationapi.demo.transport.Transport;
+
+/**
+ * Tests that a {@link TokenManager} authenticates once for many callers,
+ * both through an agent talking to {@link InMemoryFoundationApi} and on its
+ * own.
+ */
+public class TokenManagerTest {
+
+    /** The number of callers racing for a token. */
+    private static final int CALLERS = 16;
+
+    /** The stand-in API. */
+    private final InMemoryFoundationApi api
+            = new InMemoryFoundationApi("user", "pass");
+
+    /** The number of requests made to the Tokens method. */
+    private final AtomicInteger authentications = new AtomicInteger();
+
+    /** The agent under test, which counts its authentication requests. */
+    private final SimpleCollaborationAgent agent;
+
+    /**
+     * Creates the agent, with a few channels to look up.
+     */
+    public TokenManagerTest() {
+        for (int i = 0; i < 8; i++) {
+            api.addChannel("chat-room:" + i, "Channel " + i);
+        }
+
+        agent = new SimpleCollaborationAgent("http://localhost", "user",
+                "pass", "agent", new Transport() {
+                    @Override
+                    public Response send(final Request request)
+                            throws IOException {
+                        count(request);
+                        return api.send(request);
+                    }
+
+                    @Override
+                    public CompletableFuture<Response> sendAsync(
+                            final Request request) {
+                        count(request);
+                        return api.sendAsync(request);
+                    }
+                });
+    }
+
+    /**
+     * Concurrent first calls, blocking and asynchronous, all wait for a
+     * single authentication request.
+     *
+     * @throws Exception If the test fails
+     */
+    public void testConcurrentFirstCallsAuthenticateOnce() throws Exception {
+        api.setLatency(100, TimeUnit.MILLISECONDS);
+        callConcurrently();
+
+        assertEquals("authentication requests", 1, authentications.get());
+        assertEquals("tokens issued", 1L, api.getAuthenticationCount());
+        assertEquals("authentications", 1L,
+                agent.getTokenManager().getAuthenticationCount());
+    }
+
+    /**
+     * A token which is rejected by many requests at once is replaced with a
+     * single authentication request.
+     *
+     * @throws Exception If the test fails
+     */
+    public void testRejectedTokenReauthenticatesOnce() throws Exception {
+        agent.getChannels();
+        assertEquals("first authentication", 1, authentications.get());
+
+        api.expireTokens();
+        api.setLatency(100, TimeUnit.MILLISECONDS);
+        callConcurrently();
+
+        assertEquals("authentication requests", 2, authentications.get());
+        assertEquals("tokens issued", 2L, api.getAuthenticationCount());
+    }
+
+    /**
+     * A token in use is refreshed in the background, and callers keep using
+     * the old token without waiting until the new one arrives.
+     *
+     * @throws Exception If the test fails
+     */
+    public void testTokenInUseIsRefreshedInBackground() throws Exception {
+        final LinkedBlockingQueue<CompletableFuture<String>> requests
+                = new LinkedBlockingQueue<CompletableFuture<String>>();
+        final TokenManager tokens = new TokenManager(() -> {
+            final CompletableFuture<String> request
+                    = new CompletableFuture<String>();
+            requests.add(request);
+            return request;
+        });
+        tokens.setRefreshInterval(50, TimeUnit.MILLISECONDS);
+
+        final CompletableFuture<String> first = tokens.getTokenAsync();
+        requests.take().complete("first");
+        assertEquals("first token", "first", first.join());
+        assertEquals("token in use", "first", tokens.getToken());
+
+        final CompletableFuture<String> refresh = requests.poll(10,
+                TimeUnit.SECONDS);
+        assertTrue("token refreshed", refresh != null);
+        assertEquals("authentications", 2L,
+                tokens.getAuthenticationCount());
+
+        final CompletableFuture<String> during = tokens.getTokenAsync();
+        assertTrue("old token handed out", during.isDone());
+        assertEquals("old token", "first", during.join());
+
+        refresh.complete("second");
+        assertEquals("new token", "second", tokens.getToken());
+    }
+
+    /**
+     * A token which isn't used after it is obtained is left to lapse rather
+     * than refreshed.
+     *
+     * @throws Exception If the test fails
+     */
+    public void testUnusedTokenIsNotRefreshed() throws Exception {
+        final LinkedBlockingQueue<CompletableFuture<String>> requests
+                = new LinkedBlockingQueue<CompletableFuture<String>>();
+        final TokenManager tokens = new TokenManager(() -> {
+            final CompletableFuture<String> request
+                    = new CompletableFuture<String>();
+            requests.add(request);
+            return request;
+        });
+        tokens.setRefreshInterval(50, TimeUnit.MILLISECONDS);
+
+        final CompletableFuture<String> first = tokens.getTokenAsync();
+        // Issued strictly after it was last asked for
+        Thread.sleep(20);
+        requests.take().complete("first");
+        assertEquals("first token", "first", first.join());
+
+        Thread.sleep(300);
+        assertEquals("authentications", 1L,
+                tokens.getAuthenticationCount());
+        assertTrue("no refresh requested", requests.isEmpty());
+    }
+
+    /**
+     * Makes {@link #CALLERS} blocking calls from separate threads and as
+     * many asynchronous calls, all at once, and checks they succeed.
+     *
+     * @throws Exception If a call fails
+     */
+    private void callConcurrently() throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<CompletableFuture<Channel>> calls
+                = new ArrayList<CompletableFuture<Channel>>();
+
+        for (int i = 0; i < CALLERS; i++) {
+            final String id = "chat-room:" + (i % 8);
+            calls.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    start.await();
+                    return agent.getChannelInformation(id);
+                } catch (Exception ex) {
+                    throw new IllegalStateException(ex);
+                }
+            }, command -> new Thread(command).start()));
+        }
+
+        start.countDown();
+
+        for (int i = 0; i < CALLERS; i++) {
+            calls.add(agent.getChannelInformationAsync(
+                    "chat-room:" + (i % 8)));
+        }
+
+        for (int i = 0; i < calls.size(); i++) {
+            assertEquals("channel", "chat-room:" + (i % 8),
+                    calls.get(i).join().getId());
+        }
+    }
+
+    /**
+     * Counts a request if it is to the Tokens method.
+     *
+     * @param request The request being sent
+     */
+    private void count(final Request request) {
+        if ("POST".equals(request.getMethod())
+                && "/Authentication/v1/Tokens".equals(
+                request.getUri().getPath())) {
+            authentications.incrementAndGet();
+        }
+    }
+
+}
@@ -0,0 +1,185 @@
+package com.mindlinksoft.foundationapi.demo;
+
+import static com.mindlinksoft.foundationapi.demo.Assert.assertEquals;
+import static com.mindlinksoft.foundationapi.demo.Assert.assertTrue;
+import static com.mindlinksoft.foundationapi.demo.Assert.fail;
+
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+
+import com.mindlinksoft.foundationapi.demo.cluster.Cluster;
+import com.mindlinksoft.foundationapi.demo.cluster.Node;
+import com.mindlinksoft.foundationapi.demo.transport.InMemoryFoundationApi;
+
+/**
+ * Tests the encoding of {@link UriTemplate} values, and how an agent
+ * resolves the resulting addresses against a node's base URL.
+ */
+public class UriTemplateTest {
+
+    /** Values which must be encoded to survive in a path or query. */
+    private static final String[] AWKWARD = {
+        "a/b",
+        "a&b=c",
+        "1+1",
+        "#top",
+        "two words",
+        "%20",
+        "caf\u00e9 \u20ac",
+        "\ud83d\ude00",
+    };
+
+    /** A template with a path parameter and two query parameters. */
+    private static final UriTemplate TEMPLATE = UriTemplate.compile(
+            "/Things/{id}/Items?q={q}&fixed=a b&r={r}");
+
+    /**
+     * Values containing delimiters, spaces and non-ASCII characters come
+     * back unchanged from both the path and the query.
+     *
+     * @throws Exception If the test fails
+     */
+    public void testValuesRoundTrip() throws Exception {
+        for (String value : AWKWARD) {
+            final URI uri = new URI("http://localhost"
+                    + TEMPLATE.expand(value, value, value));
+
+            assertEquals("fragment of " + value, null, uri.getRawFragment());
+            assertEquals("path of " + value, "/Things/" + value + "/Items",
+                    uri.getPath());
+            assertEquals("segments of " + value, 4,
+                    uri.getRawPath().split("/").length);
+            assertEquals("query of " + value, "q=" + encoded(value)
+                    + "&fixed=a%20b&r=" + encoded(value), uri.getRawQuery());
+
+            final String[] pairs = uri.getRawQuery().split("&");
+            assertEquals("pairs in " + value, 3, pairs.length);
+            assertEquals("q", value, decode(pairs[0], "q"));
+            assertEquals("fixed", "a b", decode(pairs[1], "fixed"));
+            assertEquals("r", value, decode(pairs[2], "r"));
+        }
+    }
+
+    /**
+     * An unpaired surrogate, which has no UTF-8 encoding, is sent as
+     * <code>?</code> (encoded, so it doesn't start a query) rather than
+     * breaking the address.
+     *
+     * @throws Exception If the test fails
+     */
+    public void testUnpairedSurrogates() throws Exception {
+        final String address = TEMPLATE.expand("a\ud800b", "\udc00", null);
+        assertEquals("address", "/Things/a%3Fb/Items?q=%3F&fixed=a%20b",
+                address);
+
+        final URI uri = new URI("http://localhost" + address);
+        assertEquals("path", "/Things/a?b/Items", uri.getPath());
+    }
+
+    /**
+     * Query parameters whose value is <code>null</code> are left out, along
+     * with their name, however many of them there are.
+     *
+     * @throws Exception If the test fails
+     */
+    public void testNullQueryValuesAreOmitted() throws Exception {
+        assertEquals("first omitted", "/Things/1/Items?fixed=a%20b&r=2",
+                TEMPLATE.expand(1, null, 2));
+        assertEquals("last omitted", "/Things/1/Items?q=2&fixed=a%20b",
+                TEMPLATE.expand(1, 2, null));
+
+        final UriTemplate optional = UriTemplate.compile(
+                "/Things?skip={skip}&take={take}");
+        assertEquals("all omitted", "/Things", optional.expand(null, null));
+        assertEquals("first omitted", "/Things?take=5",
+                optional.expand(null, 5));
+    }
+
+    /**
+     * Expanding a template with too few or too many values, or without a
+     * value for a path parameter, is refused.
+     *
+     * @throws Exception If the test fails
+     */
+    public void testWrongArgumentsAreRejected() throws Exception {
+        final Object[][] wrong = {
+            {},
+            {1, 2},
+            {1, 2, 3, 4},
+            {null, 2, 3},
+        };
+
+        for (Object[] values : wrong) {
+            try {
+                TEMPLATE.expand(values);
+                fail("Expected " + values.length + " values to be refused");
+            } catch (IllegalArgumentException ex) {
+                assertTrue("message names the template",
+                        ex.getMessage().contains(TEMPLATE.getTemplate()));
+            }
+        }
+    }
+
+    /**
+     * Addresses are resolved against the whole of a node's base URL,
+     * including its port and path, and are encoded if they weren't expanded
+     * from a template.
+     *
+     * @throws Exception If the test fails
+     */
+    public void testAddressesResolveAgainstBaseUrl() throws Exception {
+        final Node node = new Cluster("http://localhost:8080/api/")
+                .getNodes().get(0);
+        final SimpleCollaborationAgent agent = new SimpleCollaborationAgent(
+                "http://localhost", "user", "pass", "agent",
+                new InMemoryFoundationApi("user", "pass"));
+
+        assertEquals("expanded", new URI("http://localhost:8080/api"
+                + "/Things/a%2Fb/Items?q=%23&fixed=a%20b"),
+                agent.toUri(node, TEMPLATE.expand("a/b", "#", null)));
+        assertEquals("encoded", new URI("http://localhost:8080/api"
+                + "/Things/a%20%5Bb%5D?q=caf%C3%A9"),
+                agent.toUri(node, "/Things/a [b]?q=caf\u00e9"));
+        assertEquals("repeated", agent.toUri(node, "/Things/1"),
+                agent.toUri(node, "/Things/1"));
+    }
+
+    /**
+     * Percent-encodes a value as a query value should be.
+     *
+     * @param value The value
+     * @return The encoded value
+     */
+    private static String encoded(final String value) {
+        final StringBuilder builder = new StringBuilder();
+
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            final int c = b & 0xFF;
+
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+                    || (c >= '0' && c <= '9') || "-._~!$'()*,;:@/?"
+                    .indexOf(c) >= 0) {
+                builder.append((char) c);
+            } else {
+                builder.append(String.format("%%%02X", c));
+            }
+        }
+
+        return builder.toString();
+    }
+
+    /**
+     * Decodes a query parameter, checking its name.
+     *
+     * @param pair The encoded <code>name=value</code> pair
+     * @param name The expected name
+     * @return The decoded value
+     */
+    private static String decode(final String pair, final String name) {
+        assertTrue(pair + " is " + name, pair.startsWith(name + "="));
+        return URLDecoder.decode(pair.substring(name.length() + 1),
+                StandardCharsets.UTF_8);
+    }
+
+}
@@ -0,0 +1,414 @@
+package com.mindlinksoft.foundationapi.demo.cluster;
+
+import static com.mindlinksoft.foundationapi.demo.Assert.assertEquals;
+import static com.mindlinksoft.foundationapi.demo.Assert.assertTrue;
+import static com.mindlinksoft.foundationapi.demo.Assert.fail;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.mindlinksoft.foundationapi.demo.Channel;
+import com.mindlinksoft.foundationapi.demo.SimpleCollaborationAgent;
+import com.mindlinksoft.foundationapi.demo.resilience.CircuitBreaker;
+import com.mindlinksoft.foundationapi.demo.resilience.RetryPolicy;
+import com.mindlinksoft.foundationapi.demo.transport.ConnectionPool;
+import com.mindlinksoft.foundationapi.demo.transport.InMemoryFoundationApi;
+import com.mindlinksoft.foundationapi.demo.transport.Request;
+import com.mindlinksoft.foundationapi.demo.transport.Response;
+import com.mindlinksoft.foundationapi.demo.transport.Transport;
+
+/**
+ * Tests failing over between the nodes of a {@link Cluster}, with
+ * {@link InMemoryFoundationApi} standing in for every node but one which
+ * can't be reached: either because it refuses connections, or because it
+ * never accepts them.
+ */
+public class ClusterTest {
+
+    /** The node which refuses connections. */
+    private static final String DOWN = "http://down.example";
+
+    /** The node which answers. */
+    private static final String UP = "http://up.example";
+
+    /** The stand-in API behind the node which answers. */
+    private final InMemoryFoundationApi api
+            = new InMemoryFoundationApi("user", "pass");
+
+    /** The number of requests sent to the node which refuses them. */
+    private final AtomicLong refused = new AtomicLong();
+
+    /**
+     * Whether {@link #DOWN} still authenticates, as if it went down after
+     * authenticating the agent.
+     */
+    private volatile boolean downAuthenticates;
+
+    /** Refuses connections to {@link #DOWN}, and passes on the rest. */
+    private final Transport transport = new Transport() {
+        @Override
+        public Response send(final Request request) throws IOException {
+            if (isDown(request)) {
+                throw new ConnectException("Connection refused");
+            }
+
+            return api.send(request);
+        }
+
+        @Override
+        public CompletableFuture<Response> sendAsync(final Request request) {
+            if (isDown(request)) {
+                return CompletableFuture.failedFuture(
+                        new ConnectException("Connection refused"));
+            }
+
+            return api.sendAsync(request);
+        }
+    };
+
+    /**
+     * Creates the channels the tests look up.
+     */
+    public ClusterTest() {
+        for (int i = 0; i < 4; i++) {
+            api.addChannel("chat-room:" + i, "Channel " + i);
+        }
+    }
+
+    /**
+     * Blocking requests routed to a node which can't be reached are resent
+     * to another, and the unreachable node is taken out of rotation.
+     *
+     * @throws Exception If the test fails
+     */
+    public void testUnreachableNodeFailsOver() throws Exception {
+        final Cluster cluster = new Cluster(DOWN, UP);
+        final SimpleCollaborationAgent agent = new SimpleCollaborationAgent(
+                cluster, "user", "pass", "agent", transport);
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals("channels", 4, agent.getChannels().size());
+        }
+
+        assertFailedOver(cluster);
+    }
+
+    /**
+     * Asynchronous requests routed to a node which can't be reached are
+     * resent to another, and the unreachable node is taken out of rotation.
+     *
+     * @throws Exception If the test fails
+     */
+    public void testUnreachableNodeFailsOverAsync() throws Exception {
+        final Cluster cluster = new Cluster(DOWN, UP);
+        final SimpleCollaborationAgent agent = new SimpleCollaborationAgent(
+                cluster, "user", "pass", "agent", transport);
+        final List<CompletableFuture<Channel>> futures
+                = new ArrayList<CompletableFuture<Channel>>();
+
+        for (int i = 0; i < 10; i++) {
+            futures.add(agent.getChannelInformationAsync(
+                    "chat-room:" + (i % 4)));
+        }
+
+        for (int i = 0; i < futures.size(); i++) {
+            assertEquals("channel", "chat-room:" + (i % 4),
+                    futures.get(i).join().getId());
+        }
+
+        assertFailedOver(cluster);
+    }
+
+    /**
+     * Requests which fail over from a node which can't be reached don't
+     * count against the circuit breaker, so a node which is down can't open
+     * it for the whole cluster while another node answers. The node is
+     * returned to rotation straight away and the other node answers slowly,
+     * so many requests of a burst are sent to the dead node and fail there
+     * before any succeeds.
+     *
+     * @throws Exception If the test fails
+     */
+    public void testUnreachableNodeLeavesBreakerClosed() throws Exception {
+        final Cluster cluster = new Cluster(DOWN, UP);
+        cluster.setEjectMillis(0);
+        downAuthenticates = true;
+        final SimpleCollaborationAgent agent = new SimpleCollaborationAgent(
+                cluster, "user", "pass", "agent", transport);
+        agent.setRetryPolicy(RetryPolicy.NONE);
+        agent.getChannels();
+        api.setLatency(100, TimeUnit.MILLISECONDS);
+
+        final List<CompletableFuture<Channel>> futures
+                = new ArrayList<CompletableFuture<Channel>>();
+
+        for (int i = 0; i < 50; i++) {
+            futures.add(agent.getChannelInformationAsync(
+                    "chat-room:" + (i % 4)));
+        }
+
+        for (int i = 0; i < futures.size(); i++) {
+            assertEquals("channel", "chat-room:" + (i % 4),
+                    futures.get(i).join().getId());
+        }
+
+        assertTrue("the unreachable node was tried repeatedly",
+                refused.get() > CircuitBreaker.DEFAULT_FAILURE_THRESHOLD);
+        assertEquals("breaker", CircuitBreaker.State.CLOSED,
+                agent.getCircuitBreaker().getState());
+        assertEquals("trips", 0L, agent.getCircuitBreaker().getTripCount());
+    }
+
+    /**
+     * Requests which can reach no node of the cluster at all still count
+     * against the circuit breaker, once each.
+     *
+     * @throws Exception If the test fails
+     */
+    public void testUnreachableClusterOpensBreaker() throws Exception {
+        final Cluster cluster = new Cluster(DOWN, DOWN + ":8080");
+        final SimpleCollaborationAgent agent = new SimpleCollaborationAgent(
+                cluster, "user", "pass", "agent", transport);
+        agent.setRetryPolicy(RetryPolicy.NONE);
+
+        for (int i = 0; i < CircuitBreaker.DEFAULT_FAILURE_THRESHOLD; i++) {
+            try {
+                agent.getChannels();
+                fail("Request should have failed");
+            } catch (ConnectException ex) {
+                assertEquals("breaker after " + (i + 1) + " requests",
+                        i + 1 < CircuitBreaker.DEFAULT_FAILURE_THRESHOLD
+                        ? CircuitBreaker.State.CLOSED
+                        : CircuitBreaker.State.OPEN,
+                        agent.getCircuitBreaker().getState());
+            }
+        }
+    }
+
+    /**
+     * Blocking requests routed to a node which never accepts the connection
+     * time out connecting and are resent to another, like those to a node
+     * which refuses it. Retries are disabled, so only failing over can save
+     * the request.
+     *
+     * @throws Exception If the test fails
+     */
+    public void testBlackholedNodeFailsOver() throws Exception {
+        final List<Socket> backlog = new ArrayList<Socket>();
+
+        try (ServerSocket blackhole = createBlackhole(backlog)) {
+            final Cluster cluster = new Cluster(getUri(blackhole), UP);
+            final SimpleCollaborationAgent agent = new SimpleCollaborationAgent(
+                    cluster, "user", "pass", "agent",
+                    createBlackholeTransport(blackhole));
+            agent.setRetryPolicy(RetryPolicy.NONE);
+
+            for (int i = 0; i < 10; i++) {
+                assertEquals("channels", 4, agent.getChannels().size());
+            }
+
+            assertFailedOver(cluster);
+        } finally {
+            close(backlog);
+        }
+    }
+
+    /**
+     * Asynchronous requests routed to a node which never accepts the
+     * connection time out connecting and are resent to another.
+     *
+     * @throws Exception If the test fails
+     */
+    public void testBlackholedNodeFailsOverAsync() throws Exception {
+        final List<Socket> backlog = new ArrayList<Socket>();
+
+        try (ServerSocket blackhole = createBlackhole(backlog)) {
+            final Cluster cluster = new Cluster(getUri(blackhole), UP);
+            final SimpleCollaborationAgent agent = new SimpleCollaborationAgent(
+                    cluster, "user", "pass", "agent",
+                    createBlackholeTransport(blackhole));
+            agent.setRetryPolicy(RetryPolicy.NONE);
+            final List<CompletableFuture<Channel>> futures
+                    = new ArrayList<CompletableFuture<Channel>>();
+
+            for (int i = 0; i < 10; i++) {
+                futures.add(agent.getChannelInformationAsync(
+                        "chat-room:" + (i % 4)));
+            }
+
+            for (int i = 0; i < futures.size(); i++) {
+                assertEquals("channel", "chat-room:" + (i % 4),
+                        futures.get(i).join().getId());
+            }
+
+            assertFailedOver(cluster);
+        } finally {
+            close(backlog);
+        }
+    }
+
+    /**
+     * Creates a server which never accepts connections, and fills its
+     * backlog so that the operating system stops completing them for it.
+     *
+     * @param backlog Collects the connections filling the backlog
+     * @return The server
+     * @throws IOException If the server can't be created
+     */
+    private static ServerSocket createBlackhole(final List<Socket> backlog)
+            throws IOException {
+        final ServerSocket server = new ServerSocket(0, 1,
+                InetAddress.getLoopbackAddress());
+        final InetSocketAddress address = new InetSocketAddress(
+                server.getInetAddress(), server.getLocalPort());
+
+        for (int i = 0; i < 16; i++) {
+            final Socket socket = new Socket();
+
+            try {
+                socket.connect(address, 200);
+            } catch (SocketTimeoutException ex) {
+                socket.close();
+                return server;
+            }
+
+            backlog.add(socket);
+        }
+
+        server.close();
+        throw new IOException("The backlog never filled");
+    }
+
+    /**
+     * Creates a transport which sends requests for a server which never
+     * accepts connections through a {@link ConnectionPool}, with a short
+     * connect timeout, and passes on the rest. Authentication with the
+     * server succeeds, as if it went dark after authenticating the agent, so
+     * that blocking requests meet it rather than only the asynchronous
+     * authentication.
+     *
+     * @param blackhole The server which never accepts connections
+     * @return The transport
+     */
+    private Transport createBlackholeTransport(final ServerSocket blackhole) {
+        final String down = getUri(blackhole);
+        final ConnectionPool pool = new ConnectionPool();
+        pool.setConnectTimeout(200, TimeUnit.MILLISECONDS);
+
+        return new Transport() {
+            @Override
+            public Response send(final Request request) throws IOException {
+                if (!isAuthentication(request) && isFor(request, down)) {
+                    return pool.send(request);
+                }
+
+                return api.send(request);
+            }
+
+            @Override
+            public CompletableFuture<Response> sendAsync(
+                    final Request request) {
+                if (!isAuthentication(request) && isFor(request, down)) {
+                    return pool.sendAsync(request);
+                }
+
+                return api.sendAsync(request);
+            }
+        };
+    }
+
+    /**
+     * Determines whether a request is for a session token.
+     *
+     * @param request The request
+     * @return <code>true</code> if the request authenticates
+     */
+    private static boolean isAuthentication(final Request request) {
+        return request.getUri().getPath().equals(
+                "/Authentication/v1/Tokens");
+    }
+
+    /**
+     * Gets the base URL of a local server.
+     *
+     * @param server The server
+     * @return Its base URL
+     */
+    private static String getUri(final ServerSocket server) {
+        return "http://127.0.0.1:" + server.getLocalPort();
+    }
+
+    /**
+     * Closes sockets, ignoring any errors.
+     *
+     * @param sockets The sockets to close
+     */
+    private static void close(final List<Socket> sockets) {
+        for (Socket socket : sockets) {
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                // Only the test's own connections
+            }
+        }
+    }
+
+    /**
+     * Checks that the unreachable node was tried, then ejected, and that
+     * everything was answered by the other.
+     *
+     * @param cluster The cluster
+     */
+    private void assertFailedOver(final Cluster cluster) {
+        final Node down = cluster.getNodes().get(0);
+        final Node up = cluster.getNodes().get(1);
+
+        assertTrue("the unreachable node was tried", refused.get() > 0);
+        assertTrue("the unreachable node was ejected", !down.isHealthy());
+        assertEquals("failures", refused.get(), down.getFailureCount());
+        assertTrue("the other node is healthy", up.isHealthy());
+        assertEquals("failures", 0L, up.getFailureCount());
+        assertEquals("outstanding", 0, down.getOutstanding()
+                + up.getOutstanding());
+    }
+
+    /**
+     * Determines whether a request is for the node which refuses
+     * connections, counting it if so.
+     *
+     * @param request The request
+     * @return <code>true</code> if the request should be refused
+     */
+    private boolean isDown(final Request request) {
+        return !(downAuthenticates && isAuthentication(request))
+                && isFor(request, DOWN);
+    }
+
+    /**
+     * Determines whether a request is for the given node, counting it as
+     * sent to an unreachable node if so.
+     *
+     * @param request The request
+     * @param baseUrl The base URL of the unreachable node
+     * @return <code>true</code> if the request is for the node
+     */
+    private boolean isFor(final Request request, final String baseUrl) {
+        if (!request.getUri().toString().startsWith(baseUrl)) {
+            return false;
+        }
+
+        refused.incrementAndGet();
+        return true;
+    }
+
+}
@@ -0,0 +1,141 @@
+package com.mindlinksoft.foundationapi.demo.metrics;
+
+import static com.mindlinksoft.foundationapi.demo.Assert.assertEquals;
+import static com.mindlinksoft.foundationapi.demo.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests the percentiles and totals reported by a {@link LatencyHistogram}.
+ */
+public class LatencyHistogramTest {
+
+    /** The percentiles checked against the exact values. */
+    private static final double[] PERCENTILES = {
+        0, 1, 25, 50, 75, 90, 95, 99, 99.9, 99.99, 100,
+    };
+
+    /**
+     * An empty histogram reports zero for everything.
+     *
+     * @throws Exception If the test fails
+     */
+    public void testEmpty() throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals("count", 0L, histogram.getCount());
+        assertEquals("mean", 0.0, histogram.getMean());
+        assertEquals("max", 0L, histogram.getMax());
+        assertEquals("p99", 0L, histogram.getPercentile(99));
+    }
+
+    /**
+     * Values below the number of sub-buckets are counted exactly.
+     *
+     * @throws Exception If the test fails
+     */
+    public void testSmallValuesAreExact() throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram();
+
+        for (int i = 1; i <= 10; i++) {
+            histogram.record(i);
+        }
+
+        assertEquals("count", 10L, histogram.getCount());
+        assertEquals("mean", 5.5, histogram.getMean());
+        assertEquals("max", 10L, histogram.getMax());
+        assertEquals("p0", 1L, histogram.getPercentile(0));
+        assertEquals("p50", 5L, histogram.getPercentile(50));
+        assertEquals("p90", 9L, histogram.getPercentile(90));
+        assertEquals("p100", 10L, histogram.getPercentile(100));
+    }
+
+    /**
+     * Each percentile of a wide spread of values is reported no lower than
+     * the true value and within a sixteenth above it, and the largest value
+     * exactly.
+     *
+     * @throws Exception If the test fails
+     */
+    public void testPercentilesWithinPrecision() throws Exception {
+        final Random random = new Random(9);
+
+        for (int run = 0; run < 20; run++) {
+            final LatencyHistogram histogram = new LatencyHistogram();
+            final int n = 1 + random.nextInt(20000);
+            final long[] values = new long[n];
+
+            for (int i = 0; i < n; i++) {
+                // Log-normal-ish: mostly milliseconds, with a long tail
+                values[i] = (long) Math.exp(7 + 2 * random.nextGaussian());
+                histogram.record(values[i]);
+            }
+
+            Arrays.sort(values);
+
+            for (double percentile : PERCENTILES) {
+                final long rank = Math.max(1,
+                        (long) Math.ceil(n * percentile / 100));
+                final long exact = values[(int) rank - 1];
+                final long reported = histogram.getPercentile(percentile);
+
+                assertTrue("p" + percentile + " of " + n + " values: "
+                        + reported + " for " + exact, reported >= exact
+                        && reported <= exact + exact / 16);
+            }
+
+            assertEquals("max", values[n - 1], histogram.getMax());
+            assertEquals("p100", values[n - 1], histogram.getPercentile(100));
+            assertEquals("count", (long) n, histogram.getCount());
+        }
+    }
+
+    /**
+     * Values outside the range the histogram covers are clamped to it.
+     *
+     * @throws Exception If the test fails
+     */
+    public void testOutOfRangeValuesAreClamped() throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        assertEquals("negative", 0L, histogram.getPercentile(100));
+
+        histogram.record(Long.MAX_VALUE);
+        assertEquals("max", (1L << 40) - 1, histogram.getMax());
+        assertEquals("p100", (1L << 40) - 1, histogram.getPercentile(100));
+        assertEquals("p50", 0L, histogram.getPercentile(50));
+    }
+
+    /**
+     * Values recorded from many threads at once are all counted.
+     *
+     * @throws Exception If the test fails
+     */
+    public void testConcurrentRecording() throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        final List<Thread> threads = new ArrayList<Thread>();
+
+        for (int t = 0; t < 8; t++) {
+            final int offset = t;
+            final Thread thread = new Thread(() -> {
+                for (int i = 0; i < 100000; i++) {
+                    histogram.record(1000 + offset);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals("count", 800000L, histogram.getCount());
+        assertEquals("mean", 1003.5, histogram.getMean());
+        assertEquals("max", 1007L, histogram.getMax());
+        assertEquals("p100", 1007L, histogram.getPercentile(100));
+    }
+
+}
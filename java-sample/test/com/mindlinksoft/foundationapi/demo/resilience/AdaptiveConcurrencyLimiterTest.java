@@ -0,0 +1,75 @@
+package com.mindlinksoft.foundationapi.demo.resilience;
+
+import static com.mindlinksoft.foundationapi.demo.Assert.assertEquals;
+import static com.mindlinksoft.foundationapi.demo.Assert.assertTrue;
+import static com.mindlinksoft.foundationapi.demo.Assert.fail;
+
+import java.util.concurrent.CompletableFuture;
+
+import com.mindlinksoft.foundationapi.demo.transport.ConnectionPool;
+
+/**
+ * Tests the accounting of an {@link AdaptiveConcurrencyLimiter}.
+ */
+public class AdaptiveConcurrencyLimiterTest {
+
+    /**
+     * A new limiter admits as many requests as the default pool sends to
+     * one host, and queues the next.
+     *
+     * @throws Exception If the test fails
+     */
+    public void testDefaultLimitMatchesPool() throws Exception {
+        final AdaptiveConcurrencyLimiter limiter
+                = new AdaptiveConcurrencyLimiter();
+
+        for (int i = 0; i < ConnectionPool.DEFAULT_MAX_CONNECTIONS_PER_HOST;
+                i++) {
+            assertTrue("request " + i + " is admitted",
+                    limiter.acquireAsync().isDone());
+        }
+
+        final CompletableFuture<Void> queued = limiter.acquireAsync();
+        assertTrue("the next request waits", !queued.isDone());
+
+        limiter.cancel();
+        assertTrue("the waiting request is admitted", queued.isDone());
+        assertEquals("in flight",
+                ConnectionPool.DEFAULT_MAX_CONNECTIONS_PER_HOST,
+                limiter.getInFlight());
+    }
+
+    /**
+     * Releasing a request which was never admitted is refused and counted,
+     * and lets no extra request in.
+     *
+     * @throws Exception If the test fails
+     */
+    public void testUnmatchedReleaseIsRefused() throws Exception {
+        final AdaptiveConcurrencyLimiter limiter
+                = new AdaptiveConcurrencyLimiter(1, 1, 1, 1000);
+        limiter.acquire();
+        limiter.release(false, 1);
+
+        try {
+            limiter.release(false, 1);
+            fail("An unmatched release should be refused");
+        } catch (IllegalStateException ex) {
+            assertEquals("unmatched", 1L, limiter.getUnmatchedCount());
+        }
+
+        try {
+            limiter.cancel();
+            fail("An unmatched cancellation should be refused");
+        } catch (IllegalStateException ex) {
+            assertEquals("unmatched", 2L, limiter.getUnmatchedCount());
+        }
+
+        assertEquals("in flight", 0, limiter.getInFlight());
+        assertTrue("one request is admitted",
+                limiter.acquireAsync().isDone());
+        assertTrue("a second request waits",
+                !limiter.acquireAsync().isDone());
+    }
+
+}
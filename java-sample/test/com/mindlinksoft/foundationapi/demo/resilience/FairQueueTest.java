@@ -0,0 +1,162 @@
+package com.mindlinksoft.foundationapi.demo.resilience;
+
+import static com.mindlinksoft.foundationapi.demo.Assert.assertEquals;
+import static com.mindlinksoft.foundationapi.demo.Assert.assertTrue;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Tests the order in which a {@link FairQueue} serves requests of each
+ * {@link Priority}, and the capacity it holds back from bulk requests.
+ */
+public class FairQueueTest {
+
+    /** The capacity the tests serve requests from. */
+    private static final int LIMIT = 100;
+
+    /**
+     * Requests in one class leave in the order they arrived.
+     *
+     * @throws Exception If the test fails
+     */
+    public void testClassIsFirstInFirstOut() throws Exception {
+        final FairQueue<String> queue = new FairQueue<String>();
+
+        for (int i = 0; i < 5; i++) {
+            queue.add(Priority.NORMAL, "request " + i);
+        }
+
+        for (int i = 0; i < 5; i++) {
+            assertEquals("request " + i, "request " + i,
+                    queue.poll(0, LIMIT));
+        }
+
+        assertTrue("empty", queue.isEmpty());
+        assertEquals("nothing left", null, queue.poll(0, LIMIT));
+    }
+
+    /**
+     * While every class has requests waiting, each is served in proportion
+     * to its weight, whichever arrived first.
+     *
+     * @throws Exception If the test fails
+     */
+    public void testClassesShareByWeight() throws Exception {
+        final FairQueue<Priority> queue = new FairQueue<Priority>();
+
+        for (Priority priority : new Priority[] {Priority.BULK,
+                Priority.NORMAL, Priority.INTERACTIVE}) {
+            for (int i = 0; i < 40; i++) {
+                queue.add(priority, priority);
+            }
+        }
+
+        assertEquals("waiting", 120, queue.size());
+
+        for (int round = 0; round < 2; round++) {
+            final Map<Priority, Integer> served
+                    = new EnumMap<Priority, Integer>(Priority.class);
+
+            for (int i = 0; i < 21; i++) {
+                served.merge(queue.poll(0, LIMIT), 1, Integer::sum);
+            }
+
+            for (Priority priority : Priority.values()) {
+                assertEquals(priority + " served in round " + round,
+                        priority.getWeight(), served.get(priority));
+            }
+        }
+
+        assertEquals("interactive left", 8, queue.size(Priority.INTERACTIVE));
+        assertEquals("normal left", 32, queue.size(Priority.NORMAL));
+        assertEquals("bulk left", 38, queue.size(Priority.BULK));
+    }
+
+    /**
+     * An interactive request joining a backlog of bulk requests is served
+     * next, and the backlog still gets its turn.
+     *
+     * @throws Exception If the test fails
+     */
+    public void testInteractiveOvertakesBulkBacklog() throws Exception {
+        final FairQueue<String> queue = new FairQueue<String>();
+
+        for (int i = 0; i < 50; i++) {
+            queue.add(Priority.BULK, "bulk");
+        }
+
+        assertEquals("first bulk", "bulk", queue.poll(0, LIMIT));
+
+        for (int i = 0; i < 20; i++) {
+            queue.add(Priority.INTERACTIVE, "interactive " + i);
+        }
+
+        for (int i = 0; i < 16; i++) {
+            assertEquals("served " + i, "interactive " + i,
+                    queue.poll(0, LIMIT));
+        }
+
+        assertEquals("bulk's turn", "bulk", queue.poll(0, LIMIT));
+        assertEquals("interactive again", "interactive 16",
+                queue.poll(0, LIMIT));
+    }
+
+    /**
+     * A class which has been idle starts level with the others, rather than
+     * owed the turns it didn't use.
+     *
+     * @throws Exception If the test fails
+     */
+    public void testIdleClassIsNotOwedTurns() throws Exception {
+        final FairQueue<Priority> queue = new FairQueue<Priority>();
+
+        for (int i = 0; i < 64; i++) {
+            queue.add(Priority.INTERACTIVE, Priority.INTERACTIVE);
+        }
+
+        for (int i = 0; i < 32; i++) {
+            queue.poll(0, LIMIT);
+        }
+
+        for (int i = 0; i < 10; i++) {
+            queue.add(Priority.BULK, Priority.BULK);
+        }
+
+        for (int i = 0; i < 16; i++) {
+            assertEquals("served " + i, Priority.INTERACTIVE,
+                    queue.poll(0, LIMIT));
+        }
+
+        assertEquals("bulk's first turn", Priority.BULK, queue.poll(0, LIMIT));
+        assertEquals("interactive again", Priority.INTERACTIVE,
+                queue.poll(0, LIMIT));
+    }
+
+    /**
+     * Bulk requests are held back from the last quarter of the capacity,
+     * while other classes may use all of it.
+     *
+     * @throws Exception If the test fails
+     */
+    public void testBulkLeavesCapacityFree() throws Exception {
+        final FairQueue<String> queue = new FairQueue<String>();
+        queue.add(Priority.BULK, "bulk");
+
+        assertTrue("bulk below three quarters", queue.hasEligible(5, 8));
+        assertTrue("bulk at three quarters", !queue.hasEligible(6, 8));
+        assertEquals("bulk held back", null, queue.poll(6, 8));
+
+        queue.add(Priority.NORMAL, "normal");
+        queue.add(Priority.INTERACTIVE, "interactive");
+        assertEquals("interactive", "interactive", queue.poll(6, 8));
+        assertEquals("normal", "normal", queue.poll(7, 8));
+        assertTrue("none at the limit", !queue.hasEligible(8, 8));
+        assertEquals("bulk waits", 1, queue.size());
+
+        assertEquals("bulk with capacity", "bulk", queue.poll(5, 8));
+        assertEquals("lone bulk request of a limit of one", 1,
+                Priority.BULK.getCapacity(1));
+    }
+
+}
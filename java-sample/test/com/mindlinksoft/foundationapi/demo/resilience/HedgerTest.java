@@ -0,0 +1,229 @@
+package com.mindlinksoft.foundationapi.demo.resilience;
+
+import static com.mindlinksoft.foundationapi.demo.Assert.assertEquals;
+import static com.mindlinksoft.foundationapi.demo.Assert.assertTrue;
+import static com.mindlinksoft.foundationapi.demo.Assert.fail;
+import static com.mindlinksoft.foundationapi.demo.Assert.waitFor;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.mindlinksoft.foundationapi.demo.SimpleCollaborationAgent;
+import com.mindlinksoft.foundationapi.demo.cluster.Cluster;
+import com.mindlinksoft.foundationapi.demo.transport.InMemoryFoundationApi;
+import com.mindlinksoft.foundationapi.demo.transport.Request;
+import com.mindlinksoft.foundationapi.demo.transport.Response;
+import com.mindlinksoft.foundationapi.demo.transport.Transport;
+
+/**
+ * Tests the delay after which a {@link Hedger} hedges a request, the budget
+ * capping its hedges, and hedged requests sent by an agent.
+ */
+public class HedgerTest {
+
+    /** How long the slow attempt takes to answer. */
+    private static final long SLOW_MILLIS = 500;
+
+    /** The stand-in API. */
+    private final InMemoryFoundationApi api
+            = new InMemoryFoundationApi("user", "pass");
+
+    /** Whether to hold back the response to the next request for a list. */
+    private final AtomicBoolean slowNext = new AtomicBoolean();
+
+    /**
+     * Holds back the response to a request for the list of channels by
+     * {@link #SLOW_MILLIS} when {@link #slowNext} is set, and passes on the
+     * rest.
+     */
+    private final Transport transport = new Transport() {
+        @Override
+        public Response send(final Request request) throws IOException {
+            return api.send(request);
+        }
+
+        @Override
+        public CompletableFuture<Response> sendAsync(final Request request) {
+            if (request.getUri().getPath().endsWith("/Channels")
+                    && slowNext.compareAndSet(true, false)) {
+                return CompletableFuture.supplyAsync(() -> null,
+                        CompletableFuture.delayedExecutor(SLOW_MILLIS,
+                        TimeUnit.MILLISECONDS)).thenCompose(
+                        ignored -> api.sendAsync(request));
+            }
+
+            return api.sendAsync(request);
+        }
+    };
+
+    /**
+     * Creates the channels the tests list.
+     */
+    public HedgerTest() {
+        api.addChannel("chat-room:a", "A");
+    }
+
+    /**
+     * Nothing is hedged until enough responses have been seen, and then
+     * requests are hedged after the chosen percentile of their latency.
+     *
+     * @throws Exception If the test fails
+     */
+    public void testDelayFollowsPercentile() throws Exception {
+        final Hedger hedger = new HedgingPolicy(95, 1).newHedger();
+
+        for (int i = 1; i < HedgingPolicy.MIN_SAMPLES; i++) {
+            hedger.record(i == 1 ? 100000 : 10000);
+            assertEquals("delay after " + i, -1L, hedger.getDelayMillis());
+        }
+
+        hedger.record(10000);
+        final long delay = hedger.getDelayMillis();
+        assertTrue("p95 of mostly 10ms: " + delay, delay >= 10 && delay <= 11);
+
+        hedger.record(100000);
+        hedger.record(100000);
+        assertTrue("p95 with a slow tail: " + hedger.getDelayMillis(),
+                hedger.getDelayMillis() >= 100);
+    }
+
+    /**
+     * Requests are never hedged sooner than the minimum delay, however fast
+     * the endpoint usually answers.
+     *
+     * @throws Exception If the test fails
+     */
+    public void testMinimumDelay() throws Exception {
+        final Hedger hedger = new HedgingPolicy(95, 5).newHedger();
+
+        for (int i = 0; i < HedgingPolicy.MIN_SAMPLES; i++) {
+            hedger.record(100);
+        }
+
+        assertEquals("delay", 5L, hedger.getDelayMillis());
+    }
+
+    /**
+     * Once a window closes, the delay follows the latency seen in it rather
+     * than the few responses seen since.
+     *
+     * @throws Exception If the test fails
+     */
+    public void testDelayFollowsLastCompleteWindow() throws Exception {
+        final Hedger hedger = new HedgingPolicy(50, 1, 0.05, 10, 50)
+                .newHedger();
+
+        for (int i = 0; i < HedgingPolicy.MIN_SAMPLES; i++) {
+            hedger.record(20000);
+        }
+
+        Thread.sleep(60);
+        hedger.record(500);
+        final long delay = hedger.getDelayMillis();
+        assertTrue("delay from the closed window: " + delay,
+                delay >= 20 && delay <= 22);
+
+        for (int i = 1; i < HedgingPolicy.MIN_SAMPLES; i++) {
+            hedger.record(500);
+        }
+
+        Thread.sleep(60);
+        hedger.record(500);
+        assertEquals("delay from the next window", 1L,
+                hedger.getDelayMillis());
+    }
+
+    /**
+     * Hedges are drawn from the banked budget until it runs out, and then
+     * only as requests top it up.
+     *
+     * @throws Exception If the test fails
+     */
+    public void testBudgetCapsHedges() throws Exception {
+        final Hedger hedger = new HedgingPolicy(95, 5, 0.5, 2, 30000)
+                .newHedger();
+        assertTrue("first banked hedge", hedger.tryHedge());
+        assertTrue("second banked hedge", hedger.tryHedge());
+        assertTrue("budget exhausted", !hedger.tryHedge());
+
+        hedger.onRequest();
+        assertTrue("half a hedge earned", !hedger.tryHedge());
+        hedger.onRequest();
+        assertTrue("a hedge earned", hedger.tryHedge());
+
+        for (int i = 0; i < 10; i++) {
+            hedger.onRequest();
+        }
+
+        assertEquals("balance capped", 2.0, hedger.getBudget().getBalance());
+        assertEquals("hedges", 3L, hedger.getHedges());
+        assertEquals("refused", 2L, hedger.getBudget().getExhaustedCount());
+    }
+
+    /**
+     * Policies outside the supported range are refused.
+     *
+     * @throws Exception If the test fails
+     */
+    public void testInvalidPolicyIsRejected() throws Exception {
+        for (double percentile : new double[] {0, -1, 100.5}) {
+            try {
+                new HedgingPolicy(percentile, 5);
+                fail("Percentile " + percentile + " should be rejected");
+            } catch (IllegalArgumentException ex) {
+                // Expected
+            }
+        }
+
+        try {
+            new HedgingPolicy(95, 5, 0.05, 10, 0);
+            fail("An empty window should be rejected");
+        } catch (IllegalArgumentException ex) {
+            // Expected
+        }
+    }
+
+    /**
+     * An agent hedges a request which is slower than usual, answering with
+     * whichever response arrives first, until the budget runs out; after
+     * that, a slow request is waited for.
+     *
+     * @throws Exception If the test fails
+     */
+    public void testAgentHedgesSlowRequests() throws Exception {
+        final SimpleCollaborationAgent agent = new SimpleCollaborationAgent(
+                new Cluster("http://localhost"), "user", "pass", "agent",
+                transport);
+        agent.setHedgingPolicy(new HedgingPolicy(95, 5, 0, 1, 30000));
+
+        for (int i = 0; i < HedgingPolicy.MIN_SAMPLES; i++) {
+            agent.getChannels();
+        }
+
+        assertEquals("hedgers", 1, agent.getHedgers().size());
+        final Hedger hedger = agent.getHedgers().values().iterator().next();
+        assertEquals("hedges while warming up", 0L, hedger.getHedges());
+
+        slowNext.set(true);
+        long startedAt = System.nanoTime();
+        assertEquals("hedged channels", 1, agent.getChannels().size());
+        long millis = (System.nanoTime() - startedAt) / 1000000L;
+        assertTrue("hedge answers first (" + millis + "ms)",
+                millis < SLOW_MILLIS / 2);
+        assertEquals("hedges", 1L, hedger.getHedges());
+        // The win is counted just after the caller is handed the response
+        waitFor("hedge won", () -> hedger.getWins() == 1);
+
+        slowNext.set(true);
+        startedAt = System.nanoTime();
+        assertEquals("channels", 1, agent.getChannelsAsync().join().size());
+        millis = (System.nanoTime() - startedAt) / 1000000L;
+        assertTrue("slow attempt waited for (" + millis + "ms)",
+                millis >= SLOW_MILLIS - 50);
+        assertEquals("hedges over budget", 1L, hedger.getHedges());
+        assertEquals("refused", 1L, hedger.getBudget().getExhaustedCount());
+    }
+
+}
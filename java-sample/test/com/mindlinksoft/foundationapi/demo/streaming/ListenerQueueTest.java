@@ -0,0 +1,260 @@
+package com.mindlinksoft.foundationapi.demo.streaming;
+
+import static com.mindlinksoft.foundationapi.demo.Assert.assertEquals;
+import static com.mindlinksoft.foundationapi.demo.Assert.assertTrue;
+import static com.mindlinksoft.foundationapi.demo.Assert.waitFor;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests each {@link OverflowPolicy} of a {@link ListenerQueue}, and the
+ * statistics it keeps, with a listener which holds on to the first event
+ * until it is let go.
+ */
+public class ListenerQueueTest {
+
+    /** The number of events which may wait in each queue. */
+    private static final int CAPACITY = 2;
+
+    /**
+     * A listener which records the ID of each event and then waits to be
+     * let go.
+     */
+    private static class BlockingListener implements EventListener {
+
+        /** The IDs of the events received, in order. */
+        private final List<Long> received = new CopyOnWriteArrayList<Long>();
+
+        /** Counted down to let the listener go. */
+        private final CountDownLatch gate = new CountDownLatch(1);
+
+        /** {@inheritDoc} */
+        @Override
+        public void eventReceived(final StreamingCollaborationAgent agent,
+                final Event event) {
+            received.add(event.getEventId());
+
+            try {
+                gate.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+    }
+
+    /** The listener under test. */
+    private final BlockingListener listener = new BlockingListener();
+
+    /**
+     * A full queue holds up the agent until the listener makes room, and
+     * loses nothing.
+     *
+     * @throws Exception If the test fails
+     */
+    public void testBlockWaitsForRoom() throws Exception {
+        final ListenerQueue queue = fill(OverflowPolicy.BLOCK);
+        final Thread offering = new Thread(() -> {
+            try {
+                queue.offer(event(4, "a"));
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        offering.start();
+        offering.join(200);
+
+        try {
+            assertTrue("agent waits for room", offering.isAlive());
+            assertEquals("depth", CAPACITY, queue.getDepth());
+        } finally {
+            listener.gate.countDown();
+        }
+
+        offering.join(10000);
+        assertTrue("agent is let in", !offering.isAlive());
+        drain(queue, 4);
+        assertEquals("received", Arrays.asList(1L, 2L, 3L, 4L),
+                listener.received);
+        assertEquals("dropped", 0L, queue.getDropped());
+        queue.close();
+    }
+
+    /**
+     * A full queue discards its oldest event to make room.
+     *
+     * @throws Exception If the test fails
+     */
+    public void testDropOldestDiscardsOldest() throws Exception {
+        final ListenerQueue queue = fill(OverflowPolicy.DROP_OLDEST);
+        queue.offer(event(4, "a"));
+        queue.offer(event(5, "a"));
+
+        assertEquals("depth", CAPACITY, queue.getDepth());
+        assertEquals("dropped", 2L, queue.getDropped());
+
+        listener.gate.countDown();
+        drain(queue, 3);
+        assertEquals("received", Arrays.asList(1L, 4L, 5L),
+                listener.received);
+        queue.close();
+    }
+
+    /**
+     * A full queue discards the new event.
+     *
+     * @throws Exception If the test fails
+     */
+    public void testDropNewestDiscardsNewest() throws Exception {
+        final ListenerQueue queue = fill(OverflowPolicy.DROP_NEWEST);
+        queue.offer(event(4, "a"));
+        queue.offer(event(5, "a"));
+
+        assertEquals("depth", CAPACITY, queue.getDepth());
+        assertEquals("dropped", 2L, queue.getDropped());
+
+        listener.gate.countDown();
+        drain(queue, 3);
+        assertEquals("received", Arrays.asList(1L, 2L, 3L),
+                listener.received);
+        queue.close();
+    }
+
+    /**
+     * A waiting event is replaced in place by a later one with the same
+     * key, and an event with no waiting match discards the oldest if the
+     * queue is full.
+     *
+     * @throws Exception If the test fails
+     */
+    public void testCoalesceReplacesByKey() throws Exception {
+        final ListenerQueue queue = fill(OverflowPolicy.COALESCE);
+        queue.offer(event(4, "b"));
+
+        assertEquals("depth", CAPACITY, queue.getDepth());
+        assertEquals("coalesced", 1L, queue.getCoalesced());
+        assertEquals("dropped", 0L, queue.getDropped());
+        assertEquals("oldest pending", 1L, queue.getOldestPending());
+
+        queue.offer(event(5, "d"));
+        assertEquals("dropped", 1L, queue.getDropped());
+
+        listener.gate.countDown();
+        drain(queue, 3);
+        assertEquals("received", Arrays.asList(1L, 3L, 5L),
+                listener.received);
+        queue.close();
+    }
+
+    /**
+     * Depth and lag show how far behind the listener is, and return to 0
+     * once it catches up.
+     *
+     * @throws Exception If the test fails
+     */
+    public void testDepthAndLag() throws Exception {
+        final ListenerQueue queue = fill(OverflowPolicy.BLOCK);
+
+        try {
+            assertEquals("depth", CAPACITY, queue.getDepth());
+            assertEquals("delivered", 1L, queue.getDelivered());
+            Thread.sleep(100);
+            assertTrue("lag of " + queue.getLagMillis() + " ms",
+                    queue.getLagMillis() >= 100);
+        } finally {
+            listener.gate.countDown();
+        }
+
+        drain(queue, 3);
+        assertEquals("depth", 0, queue.getDepth());
+        assertEquals("lag", 0L, queue.getLagMillis());
+        assertEquals("oldest pending", Long.MAX_VALUE,
+                queue.getOldestPending());
+        queue.close();
+    }
+
+    /**
+     * An exception thrown by the listener is counted and passed to the
+     * exception handler, and the listener carries on with the next event.
+     *
+     * @throws Exception If the test fails
+     */
+    public void testListenerExceptionsAreReported() throws Exception {
+        final List<Throwable> reported = new CopyOnWriteArrayList<Throwable>();
+        final List<Long> received = new CopyOnWriteArrayList<Long>();
+        final ListenerQueue queue = new ListenerQueue(null,
+                (agent, event) -> {
+                    received.add(event.getEventId());
+
+                    if (event.getEventId() == 2) {
+                        throw new IllegalStateException("listener failed");
+                    }
+                }, CAPACITY, OverflowPolicy.BLOCK, ListenerQueue.DEFAULT_KEY,
+                null);
+        queue.setExceptionHandler((thread, ex) -> reported.add(ex));
+
+        for (long id = 1; id <= 3; id++) {
+            queue.offer(event(id, "a"));
+        }
+
+        drain(queue, 3);
+        assertEquals("received", Arrays.asList(1L, 2L, 3L), received);
+        assertEquals("errors", 1L, queue.getErrors());
+        assertEquals("reported", 1, reported.size());
+        assertEquals("exception", "listener failed",
+                reported.get(0).getMessage());
+        queue.close();
+    }
+
+    /**
+     * Creates a queue for the blocking listener, waits for the listener to
+     * take the first event, and then fills the queue behind it.
+     *
+     * @param policy The queue's overflow policy
+     * @return The queue, holding events 2 and 3 with keys "b" and "c"
+     * @throws Exception If the queue can't be filled
+     */
+    private ListenerQueue fill(final OverflowPolicy policy)
+            throws Exception {
+        final ListenerQueue queue = new ListenerQueue(null, listener,
+                CAPACITY, policy, ListenerQueue.DEFAULT_KEY, null);
+        queue.offer(event(1, "a"));
+        waitFor("listener takes the first event",
+                () -> listener.received.size() == 1);
+        queue.offer(event(2, "b"));
+        queue.offer(event(3, "c"));
+        return queue;
+    }
+
+    /**
+     * Waits for the listener to finish with a number of events.
+     *
+     * @param queue The queue
+     * @param count The number of events it should be passed
+     * @throws Exception If they aren't passed in time
+     */
+    private static void drain(final ListenerQueue queue, final long count)
+            throws Exception {
+        waitFor(count + " events are delivered",
+                () -> queue.getDelivered() == count
+                && queue.getOldestPending() == Long.MAX_VALUE);
+        TimeUnit.MILLISECONDS.sleep(50);
+        assertEquals("delivered", count, queue.getDelivered());
+    }
+
+    /**
+     * Creates a metadata event, which is coalesced on its key.
+     *
+     * @param id The event ID
+     * @param key The metadata key
+     * @return The event
+     */
+    private static Event event(final long id, final String key) {
+        return new MetaDataEvent(id, 0, key, "value " + id);
+    }
+
+}
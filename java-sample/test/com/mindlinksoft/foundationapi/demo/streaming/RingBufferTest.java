@@ -0,0 +1,228 @@
+package com.mindlinksoft.foundationapi.demo.streaming;
+
+import static com.mindlinksoft.foundationapi.demo.Assert.assertEquals;
+import static com.mindlinksoft.foundationapi.demo.Assert.assertTrue;
+import static com.mindlinksoft.foundationapi.demo.Assert.fail;
+import static com.mindlinksoft.foundationapi.demo.Assert.waitFor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tests that a {@link RingBuffer} passes every value to every consumer in
+ * order with each {@link RingBuffer.WaitStrategy}, and never overwrites a
+ * value a consumer hasn't finished with.
+ */
+public class RingBufferTest {
+
+    /** The number of values published by each test. */
+    private static final int VALUES = 20000;
+
+    /**
+     * Every consumer sees every value, in order, with each wait strategy,
+     * while the producer laps the ring many times.
+     *
+     * @throws Exception If the test fails
+     */
+    public void testEveryStrategyDeliversInOrder() throws Exception {
+        for (RingBuffer.WaitStrategy strategy
+                : RingBuffer.WaitStrategy.values()) {
+            final RingBuffer<Integer> ring
+                    = new RingBuffer<Integer>(16, strategy);
+            final List<Thread> threads = new ArrayList<Thread>();
+            final AtomicReference<String> failure
+                    = new AtomicReference<String>();
+
+            for (int i = 0; i < 2; i++) {
+                threads.add(consume(ring, ring.addConsumer(), VALUES, 0,
+                        failure));
+            }
+
+            for (int i = 0; i < VALUES; i++) {
+                ring.publish(i);
+            }
+
+            join(threads, strategy + " consumers");
+            assertEquals(strategy + " failure", null, failure.get());
+            assertEquals(strategy + " cursor", VALUES - 1L,
+                    ring.getCursor());
+        }
+    }
+
+    /**
+     * A slow consumer holds the producer back once the ring is full, and
+     * the producer then reuses each slot as soon as it is released.
+     *
+     * @throws Exception If the test fails
+     */
+    public void testSlowConsumerHoldsBackProducer() throws Exception {
+        final RingBuffer<Integer> ring = new RingBuffer<Integer>(3,
+                RingBuffer.WaitStrategy.BLOCKING);
+        final RingBuffer<Integer>.Consumer consumer = ring.addConsumer();
+        assertEquals("capacity", 4, ring.getCapacity());
+
+        for (int i = 0; i < ring.getCapacity(); i++) {
+            ring.publish(i);
+        }
+
+        final AtomicInteger published = new AtomicInteger();
+        final Thread producer = new Thread(() -> {
+            try {
+                for (int i = 4; i < 8; i++) {
+                    ring.publish(i);
+                    published.incrementAndGet();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        producer.start();
+        producer.join(200);
+
+        assertTrue("producer waits for a slot", producer.isAlive());
+        assertEquals("published while full", 0, published.get());
+        assertEquals("backlog", 4, consumer.getBacklog());
+
+        assertEquals("available", 3L, consumer.waitFor(0));
+        assertEquals("first value", Integer.valueOf(0), consumer.get(0));
+        consumer.release(0);
+
+        waitFor("the freed slot is reused", () -> ring.getCursor() == 4);
+        assertEquals("wrapped value", Integer.valueOf(4), consumer.get(4));
+        assertEquals("unreleased value", Integer.valueOf(1),
+                consumer.get(1));
+        assertTrue("producer waits again", producer.isAlive());
+
+        consumer.release(3);
+        producer.join(10000);
+        assertTrue("producer finishes", !producer.isAlive());
+        assertEquals("available", 7L, consumer.waitFor(4));
+
+        for (long sequence = 4; sequence < 8; sequence++) {
+            assertEquals("value " + sequence, Integer.valueOf((int) sequence),
+                    consumer.get(sequence));
+        }
+    }
+
+    /**
+     * A consumer which falls behind sees every value in order, and is never
+     * more than the ring's capacity behind.
+     *
+     * @throws Exception If the test fails
+     */
+    public void testSlowConsumerSeesEveryValue() throws Exception {
+        final RingBuffer<Integer> ring = new RingBuffer<Integer>(8,
+                RingBuffer.WaitStrategy.SLEEPING);
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        final List<Thread> threads = new ArrayList<Thread>();
+        threads.add(consume(ring, ring.addConsumer(), 500, 20, failure));
+        threads.add(consume(ring, ring.addConsumer(), 500, 0, failure));
+
+        for (int i = 0; i < 500; i++) {
+            ring.publish(i);
+        }
+
+        join(threads, "consumers");
+        assertEquals("failure", null, failure.get());
+    }
+
+    /**
+     * Halting the buffer wakes consumers waiting with each strategy.
+     *
+     * @throws Exception If the test fails
+     */
+    public void testHaltWakesConsumers() throws Exception {
+        for (RingBuffer.WaitStrategy strategy
+                : RingBuffer.WaitStrategy.values()) {
+            final RingBuffer<Integer> ring
+                    = new RingBuffer<Integer>(4, strategy);
+            final RingBuffer<Integer>.Consumer consumer = ring.addConsumer();
+            final AtomicReference<Long> result = new AtomicReference<Long>();
+            final Thread waiting = new Thread(() -> {
+                try {
+                    result.set(consumer.waitFor(0));
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            waiting.start();
+            waiting.join(50);
+            assertTrue(strategy + " consumer waits", waiting.isAlive());
+
+            ring.halt();
+            waiting.join(10000);
+            assertTrue(strategy + " consumer wakes", !waiting.isAlive());
+            assertEquals(strategy + " result", -1L, result.get());
+        }
+    }
+
+    /**
+     * Starts a thread which consumes values, checking that they arrive in
+     * order and that the consumer is never more than a ring behind.
+     *
+     * @param ring The ring
+     * @param consumer The consumer to read with
+     * @param count The number of values to read
+     * @param everyMillis How long to spend on each batch of values
+     * @param failure Set to the first thing which went wrong
+     * @return The thread
+     */
+    private static Thread consume(final RingBuffer<Integer> ring,
+            final RingBuffer<Integer>.Consumer consumer, final int count,
+            final long everyMillis, final AtomicReference<String> failure) {
+        final Thread thread = new Thread(() -> {
+            long next = 0;
+
+            try {
+                while (next < count) {
+                    final long available = consumer.waitFor(next);
+
+                    if (consumer.getBacklog() > ring.getCapacity()) {
+                        failure.compareAndSet(null, "Backlog of "
+                                + consumer.getBacklog());
+                    }
+
+                    for (; next <= available; next++) {
+                        final Integer value = consumer.get(next);
+
+                        if (value == null || value != next) {
+                            failure.compareAndSet(null, "Expected " + next
+                                    + " but got " + value);
+                        }
+                    }
+
+                    if (everyMillis > 0) {
+                        Thread.sleep(everyMillis);
+                    }
+
+                    consumer.release(available);
+                }
+            } catch (InterruptedException ex) {
+                failure.compareAndSet(null, "Interrupted");
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Waits for threads to finish.
+     *
+     * @param threads The threads
+     * @param what What the threads are
+     * @throws InterruptedException If interrupted while waiting
+     */
+    private static void join(final List<Thread> threads, final String what)
+            throws InterruptedException {
+        for (Thread thread : threads) {
+            thread.join(30000);
+
+            if (thread.isAlive()) {
+                fail(what + " didn't finish");
+            }
+        }
+    }
+
+}
@@ -0,0 +1,278 @@
+package com.mindlinksoft.foundationapi.demo.streaming;
+
+import static com.mindlinksoft.foundationapi.demo.Assert.assertEquals;
+import static com.mindlinksoft.foundationapi.demo.Assert.waitFor;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.mindlinksoft.foundationapi.demo.transport.InMemoryFoundationApi;
+
+/**
+ * Tests the order events are delivered in, and resuming from checkpoints,
+ * against {@link InMemoryFoundationApi}.
+ */
+public class StreamingCollaborationAgentTest {
+
+    /** The base URL the agents are given; never contacted. */
+    private static final String BASE_URL = "http://localhost";
+
+    /** The stand-in API. */
+    private final InMemoryFoundationApi api
+            = new InMemoryFoundationApi("user", "pass");
+
+    /**
+     * Creates the channels the tests stream from.
+     */
+    public StreamingCollaborationAgentTest() {
+        api.addChannel("chat-room:a", "A");
+        api.addChannel("chat-room:b", "B");
+    }
+
+    /**
+     * A listener sees every event once and in order, even with a small
+     * queue and while the poll is replaced by subscriptions coming and
+     * going.
+     *
+     * @throws Exception If the test fails
+     */
+    public void testEventsArriveOnceAndInOrder() throws Exception {
+        final StreamingCollaborationAgent agent = createAgent();
+        final List<String> received = new CopyOnWriteArrayList<String>();
+        agent.addEventListener((source, event) -> {
+            received.add(((MessageEvent) event).getContent());
+            sleep(1);
+        }, 2, OverflowPolicy.BLOCK);
+        agent.startStreaming(new String[] {"chat-room:a"}, null,
+                EventType.MESSAGE);
+
+        final Thread poster = new Thread(() -> {
+            for (int i = 0; i < 100; i++) {
+                api.postMessage("chat-room:a", "bob", "m" + i);
+                sleep(1);
+            }
+        });
+        poster.start();
+
+        try {
+            for (int i = 0; i < 5; i++) {
+                final Subscription other = agent.subscribe((source, event) -> {
+                }, new String[] {"chat-room:b"}, null, EventType.MESSAGE);
+                sleep(15);
+                agent.unsubscribe(other);
+                sleep(15);
+            }
+
+            poster.join();
+            waitFor("every event is delivered", () -> received.size() >= 100);
+            sleep(200);
+            assertEquals("events", range("m", 0, 100), received);
+        } finally {
+            agent.stopStreaming();
+        }
+    }
+
+    /**
+     * Streaming resumes after the last event handled before a restart.
+     *
+     * @throws Exception If the test fails
+     */
+    public void testResumesFromCheckpoint() throws Exception {
+        final Path file = Files.createTempDirectory("checkpoints")
+                .resolve("checkpoints.bin");
+        post("chat-room:a", "a", 0, 5);
+
+        assertEquals("first run", range("a", 0, 5), stream(file, 5, 5));
+        post("chat-room:a", "a", 5, 8);
+        assertEquals("second run", range("a", 5, 8), stream(file, 3, 8));
+    }
+
+    /**
+     * Each subscription resumes from its own checkpoint: one added beside
+     * another sends the shared poll back to where it left off, without the
+     * other seeing any event twice.
+     *
+     * @throws Exception If the test fails
+     */
+    public void testSubscriptionsKeepTheirOwnCheckpoints() throws Exception {
+        final Path file = Files.createTempDirectory("checkpoints")
+                .resolve("checkpoints.bin");
+        post("chat-room:a", "a", 0, 3);
+        post("chat-room:b", "b", 0, 3);
+
+        MappedCheckpointStore store = new MappedCheckpointStore(file, 50);
+        StreamingCollaborationAgent agent = createAgent();
+        agent.setCheckpointStore(store);
+
+        final List<String> a = new CopyOnWriteArrayList<String>();
+        final List<String> b = new CopyOnWriteArrayList<String>();
+        Subscription first = subscribe(agent, "chat-room:a", a);
+        Subscription second = subscribe(agent, "chat-room:b", b);
+        waitFor("chat-room:a is caught up", () -> a.size() == 3);
+        waitFor("chat-room:b is caught up", () -> b.size() == 3);
+        agent.unsubscribe(first);
+        agent.unsubscribe(second);
+        awaitCheckpoint(store, "chat-room:a", 5);
+        awaitCheckpoint(store, "chat-room:b", 6);
+        store.close();
+
+        post("chat-room:a", "a", 3, 5);
+        post("chat-room:b", "b", 3, 5);
+        a.clear();
+        b.clear();
+
+        store = new MappedCheckpointStore(file, 50);
+        agent = createAgent();
+        agent.setCheckpointStore(store);
+
+        try {
+            first = subscribe(agent, "chat-room:a", a);
+            waitFor("chat-room:a has resumed", () -> a.size() == 2);
+            second = subscribe(agent, "chat-room:b", b);
+            waitFor("chat-room:b has resumed", () -> b.size() == 2);
+            sleep(200);
+
+            assertEquals("chat-room:a", range("a", 3, 5), a);
+            assertEquals("chat-room:b", range("b", 3, 5), b);
+        } finally {
+            agent.unsubscribe(first);
+            agent.unsubscribe(second);
+            store.close();
+        }
+    }
+
+    /**
+     * Streams the messages in <code>chat-room:a</code> with a checkpoint
+     * store, until the given number have arrived.
+     *
+     * @param file The checkpoint file
+     * @param count The number of messages to wait for
+     * @param lastEventId The ID of the last of them
+     * @return The messages received
+     * @throws Exception If the messages don't arrive
+     */
+    private List<String> stream(final Path file, final int count,
+            final long lastEventId) throws Exception {
+        final MappedCheckpointStore store = new MappedCheckpointStore(file,
+                50);
+        final StreamingCollaborationAgent agent = createAgent();
+        final List<String> received = new CopyOnWriteArrayList<String>();
+        agent.setCheckpointStore(store);
+        agent.addEventListener((source, event) -> received.add(
+                ((MessageEvent) event).getContent()));
+
+        try {
+            agent.startStreaming(new String[] {"chat-room:a"}, null,
+                    EventType.MESSAGE);
+            waitFor(count + " messages arrive",
+                    () -> received.size() >= count);
+            sleep(200);
+            agent.stopStreaming();
+            awaitCheckpoint(store, "chat-room:a", lastEventId);
+            return new ArrayList<String>(received);
+        } finally {
+            store.close();
+        }
+    }
+
+    /**
+     * Waits for the checkpoint of the messages in a channel to reach an
+     * event.
+     *
+     * @param store The checkpoint store
+     * @param channelId The channel
+     * @param eventId The event ID the checkpoint should reach
+     * @throws Exception If the checkpoint isn't recorded
+     */
+    private static void awaitCheckpoint(final MappedCheckpointStore store,
+            final String channelId, final long eventId) throws Exception {
+        final String key = "user agent message " + channelId + " ";
+
+        waitFor("the checkpoint of " + channelId + " reaches " + eventId,
+                () -> {
+            try {
+                return store.load(key) >= eventId;
+            } catch (IOException ex) {
+                return false;
+            }
+        });
+    }
+
+    /**
+     * Subscribes to the messages in a channel.
+     *
+     * @param agent The agent
+     * @param channelId The channel
+     * @param received Collects the content of each message
+     * @return The subscription
+     */
+    private static Subscription subscribe(
+            final StreamingCollaborationAgent agent, final String channelId,
+            final List<String> received) {
+        return agent.subscribe((source, event) -> received.add(
+                ((MessageEvent) event).getContent()),
+                new String[] {channelId}, null, EventType.MESSAGE);
+    }
+
+    /**
+     * Creates an agent streaming from the stand-in API.
+     *
+     * @return The agent
+     */
+    private StreamingCollaborationAgent createAgent() {
+        return new StreamingCollaborationAgent(BASE_URL, "user", "pass",
+                "agent", api);
+    }
+
+    /**
+     * Posts numbered messages to a channel.
+     *
+     * @param channelId The channel
+     * @param prefix The text before each message's number
+     * @param from The first number
+     * @param to The number after the last
+     */
+    private void post(final String channelId, final String prefix,
+            final int from, final int to) {
+        for (int i = from; i < to; i++) {
+            api.postMessage(channelId, "bob", prefix + i);
+        }
+    }
+
+    /**
+     * Lists numbered messages.
+     *
+     * @param prefix The text before each message's number
+     * @param from The first number
+     * @param to The number after the last
+     * @return The messages
+     */
+    private static List<String> range(final String prefix, final int from,
+            final int to) {
+        final List<String> texts = new ArrayList<String>();
+
+        for (int i = from; i < to; i++) {
+            texts.add(prefix + i);
+        }
+
+        return texts;
+    }
+
+    /**
+     * Sleeps, restoring the interrupt flag if interrupted.
+     *
+     * @param millis The time to sleep for
+     */
+    private static void sleep(final long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
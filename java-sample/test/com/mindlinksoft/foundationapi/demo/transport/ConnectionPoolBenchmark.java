@@ -0,0 +1,271 @@
+package com.mindlinksoft.foundationapi.demo.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Measures the throughput of a {@link ConnectionPool} against a local
+ * stand-in for the Foundation API, and the number of connections it opens.
+ * <p>
+ * Each run sends a fixed mix of requests from a number of threads for a fixed
+ * time: a channel listing, and every fourth request a lookup of a channel
+ * which doesn't exist, so that error responses are drained as well. The
+ * baseline sends every request with <code>Connection: close</code>, which is
+ * what a client that doesn't reuse connections costs the server.
+ * <p>
+ * Run with <code>ant benchmark</code>, or directly with the thread counts,
+ * per-host connection limits and seconds per run as arguments, e.g.
+ * <code>8,32 8,16,32 5</code>. The JDK keep-alive cache is sized to the
+ * largest limit, as an application using the larger limits should do.
+ */
+public final class ConnectionPoolBenchmark {
+
+    /** The connections the stand-in server has accepted. */
+    private static final Set<String> CONNECTIONS = Collections.newSetFromMap(
+            new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * Not instantiated.
+     */
+    private ConnectionPoolBenchmark() {
+    }
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args The thread counts, the per-host connection limits and the
+     * seconds per run
+     * @throws Exception If the stand-in server can't be started or a run
+     * fails
+     */
+    public static void main(final String[] args) throws Exception {
+        final int[] threadCounts = parse(args.length > 0 ? args[0] : "8,32");
+        final int[] limits = parse(args.length > 1 ? args[1] : "8,16,32");
+        final int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        int largest = 0;
+
+        for (int limit : limits) {
+            largest = Math.max(largest, limit);
+        }
+
+        if (System.getProperty("http.maxConnections") == null) {
+            System.setProperty("http.maxConnections",
+                    String.valueOf(largest));
+        }
+
+        // Without this, the stand-in server's responses wait out the client's
+        // delayed acknowledgement between the headers and the body
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+
+        final ExecutorService handlers = Executors.newFixedThreadPool(64);
+        final HttpServer server = startServer(handlers);
+        final URI base = URI.create("http://127.0.0.1:"
+                + server.getAddress().getPort());
+
+        try {
+            for (int threads : threadCounts) {
+                run("no reuse", new ConnectionPool(threads), base, threads,
+                        seconds, true);
+
+                for (int limit : limits) {
+                    run("limit " + limit, new ConnectionPool(limit), base,
+                            threads, seconds, false);
+                }
+            }
+        } finally {
+            server.stop(0);
+            handlers.shutdown();
+        }
+    }
+
+    /**
+     * Runs the request mix against the stand-in server and prints the
+     * results.
+     *
+     * @param name The name of the configuration
+     * @param pool The pool to send requests through
+     * @param base The stand-in server's address
+     * @param threads The number of threads sending requests
+     * @param seconds The time to send requests for, after a warm-up
+     * @param close Whether to ask for each connection to be closed
+     * @throws InterruptedException If interrupted while waiting for the run
+     */
+    private static void run(final String name, final ConnectionPool pool,
+            final URI base, final int threads, final int seconds,
+            final boolean close) throws InterruptedException {
+        final Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Accept", "application/json");
+
+        if (close) {
+            headers.put("Connection", "close");
+        }
+
+        final Request listing = new Request("GET",
+                base.resolve("/Collaboration/v1/Channels"), headers, null);
+        final Request missing = new Request("GET",
+                base.resolve("/Collaboration/v1/Channels/missing"), headers,
+                null);
+
+        // Warm up the JIT and the pool before anything is counted
+        send(pool, listing, missing, threads, TimeUnit.SECONDS.toNanos(1),
+                new AtomicLong());
+        CONNECTIONS.clear();
+
+        final AtomicLong completed = new AtomicLong();
+        final long start = System.nanoTime();
+        send(pool, listing, missing, threads,
+                TimeUnit.SECONDS.toNanos(seconds), completed);
+        final double elapsed = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("%2d threads, %-9s %7.0f req/s, %5d connections%n",
+                threads, name + ":", completed.get() / elapsed,
+                CONNECTIONS.size());
+    }
+
+    /**
+     * Sends the request mix from a number of threads for a fixed time.
+     *
+     * @param pool The pool to send requests through
+     * @param listing The channel listing request
+     * @param missing The request for a channel which doesn't exist
+     * @param threads The number of threads sending requests
+     * @param nanos The time to send requests for
+     * @param completed Counts the requests completed
+     * @throws InterruptedException If interrupted while waiting for the
+     * threads
+     */
+    private static void send(final ConnectionPool pool, final Request listing,
+            final Request missing, final int threads, final long nanos,
+            final AtomicLong completed) throws InterruptedException {
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final AtomicBoolean failed = new AtomicBoolean();
+        final long end = System.nanoTime() + nanos;
+
+        for (int i = 0; i < threads; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (long n = 0; System.nanoTime() < end; n++) {
+                            exchange(pool, n % 4 == 3 ? missing : listing);
+                            completed.incrementAndGet();
+                        }
+                    } catch (IOException ex) {
+                        if (failed.compareAndSet(false, true)) {
+                            ex.printStackTrace();
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+
+        done.await();
+        executor.shutdown();
+    }
+
+    /**
+     * Sends a request and reads its response in full.
+     *
+     * @param pool The pool to send the request through
+     * @param request The request
+     * @throws IOException If the request fails
+     */
+    private static void exchange(final ConnectionPool pool,
+            final Request request) throws IOException {
+        try (Response response = pool.send(request)) {
+            final InputStream body = response.getBody();
+            final byte[] buffer = new byte[4096];
+
+            while (body.read(buffer) >= 0) {
+                // Read the whole body so the connection can be reused
+            }
+        }
+    }
+
+    /**
+     * Starts the stand-in server on an ephemeral port.
+     *
+     * @param handlers Runs the server's request handlers
+     * @return The running server
+     * @throws IOException If the server can't be started
+     */
+    private static HttpServer startServer(final ExecutorService handlers)
+            throws IOException {
+        final StringBuilder channels = new StringBuilder("[");
+
+        for (int i = 0; i < 20; i++) {
+            channels.append(i == 0 ? "" : ",")
+                    .append("{\"Id\":\"chat-room:").append(i)
+                    .append("\",\"DisplayName\":\"Channel ").append(i)
+                    .append("\",\"Description\":\"\",\"Subject\":\"\"}");
+        }
+
+        final byte[] listing = channels.append(']').toString()
+                .getBytes(StandardCharsets.UTF_8);
+        final byte[] notFound = "{\"Message\":\"Channel not found\"}"
+                .getBytes(StandardCharsets.UTF_8);
+
+        final HttpServer server = HttpServer.create(
+                new InetSocketAddress("127.0.0.1", 0), 1024);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange)
+                    throws IOException {
+                CONNECTIONS.add(exchange.getRemoteAddress().toString());
+
+                final boolean found = exchange.getRequestURI().getPath()
+                        .equals("/Collaboration/v1/Channels");
+                final byte[] body = found ? listing : notFound;
+
+                exchange.getRequestBody().readAllBytes();
+                exchange.getResponseHeaders().add("Content-Type",
+                        "application/json");
+                exchange.sendResponseHeaders(found ? 200 : 404, body.length);
+                exchange.getResponseBody().write(body);
+                exchange.close();
+            }
+        });
+        server.setExecutor(handlers);
+        server.start();
+        return server;
+    }
+
+    /**
+     * Parses a comma-separated list of numbers.
+     *
+     * @param list The list
+     * @return The numbers
+     */
+    private static int[] parse(final String list) {
+        final String[] parts = list.split(",");
+        final int[] numbers = new int[parts.length];
+
+        for (int i = 0; i < parts.length; i++) {
+            numbers[i] = Integer.parseInt(parts[i].trim());
+        }
+
+        return numbers;
+    }
+
+}
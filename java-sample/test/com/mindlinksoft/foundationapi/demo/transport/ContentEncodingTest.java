@@ -0,0 +1,226 @@
+package com.mindlinksoft.foundationapi.demo.transport;
+
+import static com.mindlinksoft.foundationapi.demo.Assert.assertEquals;
+import static com.mindlinksoft.foundationapi.demo.Assert.assertTrue;
+import static com.mindlinksoft.foundationapi.demo.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Tests the decoding of compressed response bodies, both on their own and
+ * as received by a {@link ConnectionPool} from a real server.
+ */
+public class ContentEncodingTest {
+
+    /** A body which compresses well, as JSON responses do. */
+    private static final byte[] BODY = createBody();
+
+    /**
+     * A gzipped body is decoded, whatever the header's case or spacing, and
+     * so is one sent as the legacy <code>x-gzip</code>.
+     *
+     * @throws Exception If the test fails
+     */
+    public void testGzip() throws Exception {
+        final byte[] gzipped = ContentEncoding.gzip(BODY);
+        assertTrue("compressed", gzipped.length < BODY.length / 2);
+
+        for (String encoding : new String[] {"gzip", " GZIP ", "x-gzip"}) {
+            assertEquals(encoding, new String(BODY, StandardCharsets.UTF_8),
+                    read(ContentEncoding.decode(encoding, gzipped)));
+        }
+    }
+
+    /**
+     * A deflated body is decoded whether it is zlib-wrapped, as the
+     * <code>deflate</code> coding calls for, or raw DEFLATE data, as some
+     * servers send.
+     *
+     * @throws Exception If the test fails
+     */
+    public void testDeflate() throws Exception {
+        assertEquals("zlib", new String(BODY, StandardCharsets.UTF_8),
+                read(ContentEncoding.decode("deflate", deflate(BODY, false))));
+        assertEquals("raw", new String(BODY, StandardCharsets.UTF_8),
+                read(ContentEncoding.decode("deflate", deflate(BODY, true))));
+    }
+
+    /**
+     * Bodies which aren't compressed are passed through untouched, empty
+     * bodies are empty whatever the header says, and unknown codings are
+     * refused.
+     *
+     * @throws Exception If the test fails
+     */
+    public void testIdentityEmptyAndUnsupported() throws Exception {
+        for (String encoding : new String[] {null, "", "identity"}) {
+            assertEquals("identity " + encoding, "plain",
+                    read(ContentEncoding.decode(encoding,
+                    "plain".getBytes(StandardCharsets.UTF_8))));
+        }
+
+        assertEquals("empty gzip", "",
+                read(ContentEncoding.decode("gzip", new byte[0])));
+        assertEquals("empty deflate", "",
+                read(ContentEncoding.decode("deflate", new byte[0])));
+
+        try {
+            ContentEncoding.decode("br", BODY);
+            fail("An unsupported coding should be refused");
+        } catch (IOException ex) {
+            assertTrue("names the coding", ex.getMessage().contains("br"));
+        }
+    }
+
+    /**
+     * The pool asks for compressed responses and decodes each coding, both
+     * blocking and asynchronously, counting the bytes on the wire and the
+     * bytes decoded.
+     *
+     * @throws Exception If the test fails
+     */
+    public void testPoolDecodesResponses() throws Exception {
+        final HttpServer server = HttpServer.create(new InetSocketAddress(
+                InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", ContentEncodingTest::respond);
+        server.start();
+
+        try {
+            final ConnectionPool pool = new ConnectionPool();
+            final String base = "http://127.0.0.1:"
+                    + server.getAddress().getPort() + "/";
+            long decoded = 0;
+
+            for (String encoding : new String[] {"gzip", "deflate",
+                    "raw-deflate", "identity"}) {
+                final Request request = new Request("GET", new URI(base
+                        + encoding), Collections.<String, String>emptyMap(),
+                        null);
+
+                try (Response response = pool.send(request)) {
+                    assertEquals(encoding, new String(BODY,
+                            StandardCharsets.UTF_8), read(response.getBody()));
+                }
+
+                try (Response response = pool.sendAsync(request).join()) {
+                    assertEquals(encoding + " async", new String(BODY,
+                            StandardCharsets.UTF_8), read(response.getBody()));
+                }
+
+                decoded += 2L * BODY.length;
+            }
+
+            final PoolStatistics statistics = pool.getStatistics();
+            assertEquals("bytes decoded", decoded,
+                    statistics.getBytesDecoded());
+            assertTrue("fewer bytes received than decoded ("
+                    + statistics.getBytesReceived() + ")",
+                    statistics.getBytesReceived() < decoded / 2);
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    /**
+     * Responds with the body, encoded with the coding named by the path if
+     * the client accepts compressed responses.
+     *
+     * @param exchange The exchange
+     * @throws IOException If the response can't be sent
+     */
+    private static void respond(final HttpExchange exchange)
+            throws IOException {
+        final String accepted = exchange.getRequestHeaders().getFirst(
+                "Accept-Encoding");
+        final String coding = exchange.getRequestURI().getPath()
+                .substring(1);
+        byte[] body = BODY;
+
+        if (ContentEncoding.ACCEPTED_ENCODINGS.equals(accepted)) {
+            if (coding.equals("gzip")) {
+                body = ContentEncoding.gzip(BODY);
+            } else if (coding.endsWith("deflate")) {
+                body = deflate(BODY, coding.startsWith("raw"));
+            }
+
+            if (body != BODY) {
+                exchange.getResponseHeaders().set("Content-Encoding",
+                        coding.endsWith("deflate") ? "deflate" : coding);
+            }
+        }
+
+        exchange.sendResponseHeaders(200, body.length);
+
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * Compresses a body with DEFLATE.
+     *
+     * @param body The body
+     * @param raw <code>true</code> to leave out the zlib header and trailer
+     * @return The compressed body
+     */
+    private static byte[] deflate(final byte[] body, final boolean raw) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        try (DeflaterOutputStream deflater = new DeflaterOutputStream(out,
+                new Deflater(Deflater.DEFAULT_COMPRESSION, raw))) {
+            deflater.write(body);
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+
+        return out.toByteArray();
+    }
+
+    /**
+     * Reads a stream to the end as UTF-8 text, and closes it.
+     *
+     * @param in The stream
+     * @return The text
+     * @throws IOException If the stream can't be read
+     */
+    private static String read(final InputStream in) throws IOException {
+        try (InputStream body = in) {
+            return new String(body.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Creates a repetitive JSON body, large enough to span several of the
+     * decoder's buffers.
+     *
+     * @return The body
+     */
+    private static byte[] createBody() {
+        final Random random = new Random(5);
+        final StringBuilder builder = new StringBuilder("[");
+
+        for (int i = 0; i < 2000; i++) {
+            builder.append(i == 0 ? "" : ",").append("{\"Id\":\"chat-room:")
+                    .append(random.nextInt(100)).append("\",\"Name\":\"")
+                    .append("Channel \\u00e9 ").append(i).append("\"}");
+        }
+
+        return builder.append(']').toString().getBytes(
+                StandardCharsets.UTF_8);
+    }
+
+}
@@ -0,0 +1,270 @@
+package com.mindlinksoft.foundationapi.demo.transport;
+
+import static com.mindlinksoft.foundationapi.demo.Assert.assertEquals;
+import static com.mindlinksoft.foundationapi.demo.Assert.fail;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.json.JSONString;
+
+/**
+ * Tests that {@link JsonBodyWriter} writes exactly the bytes of a payload's
+ * own <code>toString()</code>.
+ */
+public class JsonBodyWriterTest {
+
+    /** The number of random payloads compared. */
+    private static final int PAYLOADS = 200000;
+
+    /** The deepest a random payload nests. */
+    private static final int MAX_DEPTH = 3;
+
+    /** Characters which are escaped, or encoded in more than one byte. */
+    private static final String AWKWARD = "\"\\/<\b\t\n\f\r\u0000\u001f\u007f"
+            + "\u0080\u009f\u00a0\u00e9\u07ff\u0800\u2000\u2028\u20ac"
+            + "\u2100\ufeff\uffff\ud800\udbff\udc00\udfff";
+
+    /**
+     * A bean, which org.json would expand into an object of its getters if
+     * it were wrapped, but writes as its quoted <code>toString()</code>
+     * when it is a value.
+     */
+    public static class Bean {
+
+        /**
+         * Gets a property.
+         *
+         * @return The property
+         */
+        public String getX() {
+            return "y";
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public String toString() {
+            return "bean";
+        }
+    }
+
+    /**
+     * A value which serialises itself.
+     */
+    private static class Raw implements JSONString {
+
+        /** The value's JSON text. */
+        private final String json;
+
+        /**
+         * Creates a new {@link Raw}.
+         *
+         * @param json The value's JSON text
+         */
+        Raw(final String json) {
+            this.json = json;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public String toJSONString() {
+            return json;
+        }
+    }
+
+    /**
+     * Values which aren't JSON types are written as org.json writes them:
+     * beans as their quoted <code>toString()</code>, and maps, collections
+     * and arrays expanded (with any beans inside them wrapped).
+     *
+     * @throws Exception If the test fails
+     */
+    public void testValuesWhichAreNotJsonTypes() throws Exception {
+        final JSONObject payload = new JSONObject();
+        payload.put("bean", new Bean());
+        assertEquals("bean", "{\"bean\":\"bean\"}", write(payload));
+
+        final Map<String, Object> map = new LinkedHashMap<String, Object>();
+        map.put("bean", new Bean());
+        final JSONObject nested = new JSONObject();
+        nested.put("map", map);
+        nested.put("list", Arrays.asList(1, "two", new Bean()));
+        nested.put("array", new int[] {1, 2});
+        nested.put("char", Character.valueOf('c'));
+        nested.put("raw", new Raw("[true]"));
+        assertEquals("nested", nested.toString(), write(nested));
+    }
+
+    /**
+     * Random payloads, full of characters which must be escaped or encoded
+     * in several bytes and of every kind of value, are written byte for
+     * byte as their <code>toString()</code>.
+     *
+     * @throws Exception If the test fails
+     */
+    public void testRandomPayloadsMatchToString() throws Exception {
+        final Random random = new Random(11);
+
+        for (int i = 0; i < PAYLOADS; i++) {
+            final Object payload = random.nextBoolean()
+                    ? randomObject(random, 0) : randomArray(random, 0);
+            final byte[] expected = payload.toString().getBytes(
+                    StandardCharsets.UTF_8);
+
+            if (!Arrays.equals(expected, JsonBodyWriter.toBytes(payload))) {
+                fail("Payload " + i + " was written differently: "
+                        + payload);
+            }
+        }
+    }
+
+    /**
+     * Writes a payload and decodes the result.
+     *
+     * @param payload The payload
+     * @return The JSON text written
+     * @throws Exception If the payload can't be written
+     */
+    private static String write(final Object payload) throws Exception {
+        return new String(JsonBodyWriter.toBytes(payload),
+                StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Creates a random JSON object.
+     *
+     * @param random The source of randomness
+     * @param depth How deeply the object is nested
+     * @return The object
+     * @throws Exception If a value can't be added
+     */
+    private static JSONObject randomObject(final Random random,
+            final int depth) throws Exception {
+        final JSONObject object = new JSONObject();
+        final int size = random.nextInt(6);
+
+        for (int i = 0; i < size; i++) {
+            object.put(randomString(random), randomValue(random, depth + 1));
+        }
+
+        return object;
+    }
+
+    /**
+     * Creates a random JSON array.
+     *
+     * @param random The source of randomness
+     * @param depth How deeply the array is nested
+     * @return The array
+     */
+    private static JSONArray randomArray(final Random random,
+            final int depth) {
+        final JSONArray array = new JSONArray();
+        final int size = random.nextInt(6);
+
+        for (int i = 0; i < size; i++) {
+            array.put(randomValue(random, depth + 1));
+        }
+
+        return array;
+    }
+
+    /**
+     * Creates a random value of any kind a payload may hold.
+     *
+     * @param random The source of randomness
+     * @param depth How deeply the value is nested
+     * @return The value
+     */
+    private static Object randomValue(final Random random, final int depth) {
+        final int kinds = depth < MAX_DEPTH ? 16 : 12;
+
+        try {
+            switch (random.nextInt(kinds)) {
+            case 0:
+            case 1:
+                return randomString(random);
+            case 2:
+                return random.nextInt() >> random.nextInt(32);
+            case 3:
+                return random.nextLong();
+            case 4:
+                return random.nextDouble() * Math.pow(10,
+                        random.nextInt(40) - 20);
+            case 5:
+                return random.nextFloat();
+            case 6:
+                return new BigDecimal(BigInteger.valueOf(random.nextLong()),
+                        random.nextInt(10));
+            case 7:
+                return random.nextBoolean();
+            case 8:
+                return JSONObject.NULL;
+            case 9:
+                return new Bean();
+            case 10:
+                return Character.valueOf(AWKWARD.charAt(
+                        random.nextInt(AWKWARD.length())));
+            case 11:
+                return new Raw(JSONObject.quote(randomString(random)));
+            case 12:
+                return randomObject(random, depth);
+            case 13:
+                return randomArray(random, depth);
+            case 14:
+                final Map<String, Object> map
+                        = new LinkedHashMap<String, Object>();
+                map.put(randomString(random), randomValue(random, depth + 1));
+                return map;
+            default:
+                final List<Object> list = new ArrayList<Object>();
+                list.add(randomValue(random, depth + 1));
+                list.add(randomString(random));
+                return random.nextBoolean() ? list : list.toArray();
+            }
+        } catch (Exception ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Creates a random string, mixing plain ASCII with characters which are
+     * escaped or encoded in several bytes.
+     *
+     * @param random The source of randomness
+     * @return The string
+     */
+    private static String randomString(final Random random) {
+        final int length = random.nextInt(12);
+        final StringBuilder builder = new StringBuilder(length);
+
+        for (int i = 0; i < length; i++) {
+            switch (random.nextInt(4)) {
+            case 0:
+                builder.append(AWKWARD.charAt(random.nextInt(
+                        AWKWARD.length())));
+                break;
+            case 1:
+                builder.appendCodePoint(0x10000 + random.nextInt(0x100000));
+                break;
+            case 2:
+                builder.append((char) random.nextInt(0x10000));
+                break;
+            default:
+                builder.append((char) (' ' + random.nextInt(95)));
+            }
+        }
+
+        return builder.toString();
+    }
+
+}